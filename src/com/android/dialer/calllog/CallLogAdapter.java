@@ -65,8 +65,6 @@ import com.cyanogen.ambient.deeplink.DeepLink;
 import com.cyanogen.ambient.incall.extension.OriginCodes;
 import com.google.common.annotations.VisibleForTesting;
 
-import java.util.HashMap;
-
 /**
  * Adapter class to fill in data for the Call Log.
  */
@@ -77,6 +75,40 @@ public class CallLogAdapter extends GroupingListAdapter
     /** Interface used to initiate a refresh of the content. */
     public interface CallFetcher {
         public void fetchCalls();
+
+        /** Called once the calls fetched are grouped and shown by the adapter. */
+        public void onCallsShown();
+    }
+
+    /**
+     * The groups of the call log, with the columns and the day groups of the calls read while
+     * grouping them. Like its groups, it is built on a worker thread and only read once published.
+     */
+    private static final class CallLogGroupTable extends GroupTable {
+        /** Helper to group call log entries, holding the columns of the calls it grouped. */
+        final CallLogGroupBuilder calls;
+
+        CallLogGroupTable(CallLogGroupBuilder.GroupCreator groupCreator) {
+            calls = new CallLogGroupBuilder(groupCreator);
+        }
+
+        /**
+         * Retrieves the day group of the previous call in the call log.  Used to determine if the
+         * day group has changed and to trigger display of the day group text.
+         *  Note: Multiple calls are grouped into a single primary "call group" in the call log, and
+         *  the cursor used to bind rows includes all of these calls.  The day group of the last
+         *  call of the previous group is read from the columns of the calls, without having to
+         *  reverse the cursor to it.
+         *
+         * @param cursorPosition The position of the call in the call log cursor.
+         * @return The previous day group, or DAY_GROUP_NONE if this is the first call.
+         */
+        int getPreviousDayGroup(int cursorPosition) {
+            if (cursorPosition == 0) {
+                return CallLogGroupBuilder.DAY_GROUP_NONE;
+            }
+            return calls.getCallDayGroup(cursorPosition - 1);
+        }
     }
 
     private static final int VIEW_TYPE_SHOW_CALL_HISTORY_LIST_ITEM = 10;
@@ -117,20 +149,6 @@ public class CallLogAdapter extends GroupingListAdapter
     // are any changes to the call log entries, such as additions or removals.
     private long mCurrentlyExpandedRowId = NO_EXPANDED_LIST_ITEM;
 
-    /**
-     *  Hashmap, keyed by call Id, used to track the day group for a call.  As call log entries are
-     *  put into the primary call groups in {@link com.android.dialer.calllog.CallLogGroupBuilder},
-     *  they are also assigned a secondary "day group".  This hashmap tracks the day group assigned
-     *  to all calls in the call log.  This information is used to trigger the display of a day
-     *  group header above the call log entry at the start of a day group.
-     *  Note: Multiple calls are grouped into a single primary "call group" in the call log, and
-     *  the cursor used to bind rows includes all of these calls.  When determining if a day group
-     *  change has occurred it is necessary to look at the last entry in the call log to determine
-     *  its day group.  This hashmap provides a means of determining the previous day group without
-     *  having to reverse the cursor to the start of the previous day call log entry.
-     */
-    private HashMap<Long,Integer> mDayGroups = new HashMap<Long, Integer>();
-
     private boolean mLoading = true;
 
     private SharedPreferences mPrefs;
@@ -143,9 +161,6 @@ public class CallLogAdapter extends GroupingListAdapter
     /** Cache for repeated requests to TelecomManager. */
     protected final TelecomCallLogCache mTelecomCallLogCache;
 
-    /** Helper to group call log entries. */
-    private final CallLogGroupBuilder mCallLogGroupBuilder;
-
     /**
      * The OnClickListener used to expand or collapse the action buttons of a call log entry.
      */
@@ -344,7 +359,6 @@ public class CallLogAdapter extends GroupingListAdapter
         mCallLogListItemHelper =
                 new CallLogListItemHelper(phoneCallDetailsHelper, lookupInfoPresenter,
                         resources, mTelecomCallLogCache);
-        mCallLogGroupBuilder = new CallLogGroupBuilder(this);
         mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
         maybeShowVoicemailPromoCard();
     }
@@ -404,7 +418,101 @@ public class CallLogAdapter extends GroupingListAdapter
 
     @Override
     protected void addGroups(Cursor cursor) {
-        mCallLogGroupBuilder.addGroups(cursor);
+        getPendingCallLogGroups().calls.addGroups(cursor);
+    }
+
+    @Override
+    protected GroupTable newGroupTable() {
+        return new CallLogGroupTable(this);
+    }
+
+    /**
+     * Adds the day group of the call and whether it starts a day group to the content of its
+     * item, so that the day group header is updated when it changes.
+     */
+    @Override
+    protected long getItemContentHash(Cursor cursor) {
+        final CallLogGroupTable groups = getPendingCallLogGroups();
+        final int dayGroup = groups.calls.getCallDayGroup(cursor.getPosition());
+        final int previousDayGroup = groups.getPreviousDayGroup(cursor.getPosition());
+        return (super.getItemContentHash(cursor) * 31 + dayGroup) * 31 + previousDayGroup;
+    }
+
+    @Override
+    protected int getFirstGroupedItemPosition() {
+        return mShowPromoCard ? 1 : 0;
+    }
+
+    /**
+     * Updates the position of the expanded item, which is not bound again when only the items
+     * before it changed.
+     */
+    @Override
+    protected void onGroupsPublished() {
+        if (mCurrentlyExpandedRowId != NO_EXPANDED_LIST_ITEM) {
+            final int position = findItemPosition(mCurrentlyExpandedRowId);
+            mCurrentlyExpandedPosition = position < 0
+                    ? RecyclerView.NO_POSITION : position + getFirstGroupedItemPosition();
+        }
+        mCallFetcher.onCallsShown();
+    }
+
+    /**
+     * Copies the columns of the calls which were not grouped again when calls were added on top
+     * of the call log.
+     */
+    @Override
+    protected void onRowsPrepended(GroupTable base, int prependedCount, int regroupedCount) {
+        final CallLogGroupTable oldGroups = (CallLogGroupTable) base;
+        final CallLogGroupTable groups = getPendingCallLogGroups();
+        final int firstCopied = regroupedCount - prependedCount;
+        final int oldCallCount = oldGroups.calls.getCallCount();
+        groups.calls.copyCalls(oldGroups.calls, firstCopied, oldCallCount - firstCopied);
+    }
+
+    /**
+     * Copies the columns of the calls which were not grouped again when calls were added after
+     * the call log.
+     */
+    @Override
+    protected void onRowsAppended(GroupTable base, int keptCount) {
+        final CallLogGroupTable oldGroups = (CallLogGroupTable) base;
+        getPendingCallLogGroups().calls.prependCalls(oldGroups.calls, keptCount);
+    }
+
+    /** Returns the number of calls in the call log shown, as of the last groups published. */
+    public int getCallCount() {
+        final CallLogGroupTable groups = getCallLogGroups();
+        return groups == null ? 0 : groups.calls.getCallCount();
+    }
+
+    /** Returns the date of the most recent call shown; there must be one. */
+    public long getNewestCallDate() {
+        return getCallLogGroups().calls.getCallDate(0);
+    }
+
+    /** Returns the date of the call at the given cursor position. */
+    public long getCallDate(int cursorPosition) {
+        return getCallLogGroups().calls.getCallDate(cursorPosition);
+    }
+
+    /** Returns the id of the call at the given cursor position. */
+    public long getCallId(int cursorPosition) {
+        return getCallLogGroups().calls.getCallId(cursorPosition);
+    }
+
+    /** Returns the id of the oldest call shown; there must be one. */
+    public long getOldestCallId() {
+        final CallLogGroupBuilder calls = getCallLogGroups().calls;
+        return calls.getCallId(calls.getCallCount() - 1);
+    }
+
+    private CallLogGroupTable getCallLogGroups() {
+        return (CallLogGroupTable) getGroupTable();
+    }
+
+    private CallLogGroupTable getPendingCallLogGroups() {
+        return (CallLogGroupTable) getPendingGroupTable();
     }
 
     @Override
@@ -498,6 +606,9 @@ public class CallLogAdapter extends GroupingListAdapter
         }
 
         int count = getGroupSize(position);
+        // The types, ids, dates and features of the calls of the group were read while grouping.
+        final CallLogGroupTable groups = getCallLogGroups();
+        final int cursorPosition = c.getPosition();
 
         final String number = c.getString(CallLogQuery.NUMBER);
         final int numberPresentation = c.getInt(CallLogQuery.NUMBER_PRESENTATION);
@@ -523,11 +634,11 @@ public class CallLogAdapter extends GroupingListAdapter
         final PhoneCallDetails details = new PhoneCallDetails(
                 mContext, number, numberPresentation, formattedNumber, isVoicemailNumber);
         details.accountHandle = accountHandle;
-        details.callTypes = getCallTypes(c, count);
+        details.callTypes = groups.calls.getCallTypes(cursorPosition, count);
         details.countryIso = countryIso;
         details.date = c.getLong(CallLogQuery.DATE);
         details.duration = c.getLong(CallLogQuery.DURATION);
-        details.features = getCallFeatures(c, count);
+        details.features = groups.calls.getCallFeatures(cursorPosition);
         details.geocode = c.getString(CallLogQuery.GEOCODED_LOCATION);
         details.transcription = c.getString(CallLogQuery.TRANSCRIPTION);
         if (details.callTypes[0] == CallLog.Calls.VOICEMAIL_TYPE) {
@@ -559,7 +670,7 @@ public class CallLogAdapter extends GroupingListAdapter
         views.accountHandle = accountHandle;
         views.voicemailUri = c.getString(CallLogQuery.VOICEMAIL_URI);
         // Stash away the Ids of the calls so that we can support deleting a row in the call log.
-        views.callIds = getCallIds(c, count);
+        views.callIds = groups.calls.getCallIds(cursorPosition, count);
         views.isBusiness = mContactInfoHelper.isBusiness(info.sourceType);
         String component = c.getString(CallLogQuery.PLUGIN_PACKAGE_NAME);
         if (!TextUtils.isEmpty(component)) {
@@ -567,7 +678,7 @@ public class CallLogAdapter extends GroupingListAdapter
         } else {
             views.inCallComponentName = null;
         }
-        views.callTimes = getCallTimes(c, count);
+        views.callTimes = groups.calls.getCallTimes(cursorPosition, count);
         views.mDeepLinkPresenter.setDeepLink(mDeepLinkCache.getValue(number, views.callTimes));
         String callMethodName = null;
         if (views.inCallComponentName != null) {
@@ -585,8 +696,8 @@ public class CallLogAdapter extends GroupingListAdapter
         details.numberLabel = label;
 
         // Check if the day group has changed and display a header if necessary.
-        int currentGroup = getDayGroupForCall(views.rowId);
-        int previousGroup = getPreviousDayGroup(c);
+        int currentGroup = groups.calls.getCallDayGroup(cursorPosition);
+        int previousGroup = groups.getPreviousDayGroup(cursorPosition);
         if (currentGroup != previousGroup) {
             views.dayGroupHeader.setVisibility(View.VISIBLE);
             views.dayGroupHeader.setText(getGroupDescription(currentGroup));
@@ -615,25 +726,9 @@ public class CallLogAdapter extends GroupingListAdapter
 
         views.setAttributionImage(views.inCallComponentName);
 
-        mCallLogListItemHelper.setPhoneCallDetails(views, details);
         mCallLogListItemHelper.setLookupInfoDetails(views, info);
     }
 
-    /**
-     * Returns call times for the given number of items in the cursor
-     */
-    private long[] getCallTimes(Cursor cursor, int count) {
-        int position = cursor.getPosition();
-        long[] callTimes = new long[count];
-        for (int index = 0; index < count; ++index) {
-            callTimes[index] = cursor.getLong(CallLogQuery.DATE);
-            cursor.moveToNext();
-        }
-        cursor.moveToPosition(position);
-        return callTimes;
-    }
-
-
     @Override
     public int getItemCount() {
         return super.getItemCount() + ((isShowingRecentsTab() || mShowPromoCard) ? 1 : 0);
@@ -671,76 +766,6 @@ public class CallLogAdapter extends GroupingListAdapter
         mCurrentlyExpandedPosition = RecyclerView.NO_POSITION;
     }
 
-    /**
-     * Retrieves the day group of the previous call in the call log.  Used to determine if the day
-     * group has changed and to trigger display of the day group text.
-     *
-     * @param cursor The call log cursor.
-     * @return The previous day group, or DAY_GROUP_NONE if this is the first call.
-     */
-    private int getPreviousDayGroup(Cursor cursor) {
-        // We want to restore the position in the cursor at the end.
-        int startingPosition = cursor.getPosition();
-        int dayGroup = CallLogGroupBuilder.DAY_GROUP_NONE;
-        if (cursor.moveToPrevious()) {
-            long previousRowId = cursor.getLong(CallLogQuery.ID);
-            dayGroup = getDayGroupForCall(previousRowId);
-        }
-        cursor.moveToPosition(startingPosition);
-        return dayGroup;
-    }
-
-    /**
-     * Given a call Id, look up the day group that the call belongs to.  The day group data is
-     * populated in {@link com.android.dialer.calllog.CallLogGroupBuilder}.
-     *
-     * @param callId The call to retrieve the day group for.
-     * @return The day group for the call.
-     */
-    private int getDayGroupForCall(long callId) {
-        if (mDayGroups.containsKey(callId)) {
-            return mDayGroups.get(callId);
-        }
-        return CallLogGroupBuilder.DAY_GROUP_NONE;
-    }
-
-    /**
-     * Returns the call types for the given number of items in the cursor.
-     * <p>
-     * It uses the next {@code count} rows in the cursor to extract the types.
-     * <p>
-     * It position in the cursor is unchanged by this function.
-     */
-    private int[] getCallTypes(Cursor cursor, int count) {
-        int position = cursor.getPosition();
-        int[] callTypes = new int[count];
-        for (int index = 0; index < count; ++index) {
-            callTypes[index] = cursor.getInt(CallLogQuery.CALL_TYPE);
-            cursor.moveToNext();
-        }
-        cursor.moveToPosition(position);
-        return callTypes;
-    }
-
-    /**
-     * Determine the features which were enabled for any of the calls that make up a call log
-     * entry.
-     *
-     * @param cursor The cursor.
-     * @param count The number of calls for the current call log entry.
-     * @return The features.
-     */
-    private int getCallFeatures(Cursor cursor, int count) {
-        int features = 0;
-        int position = cursor.getPosition();
-        for (int index = 0; index < count; ++index) {
-            features |= cursor.getInt(CallLogQuery.FEATURES);
-            cursor.moveToNext();
-        }
-        cursor.moveToPosition(position);
-        return features;
-    }
-
     /**
      * Sets whether processing of requests for contact details should be enabled.
      *
@@ -764,47 +789,6 @@ public class CallLogAdapter extends GroupingListAdapter
         super.addGroup(cursorPosition, size, expanded);
     }
 
-    /**
-     * Stores the day group associated with a call in the call log.
-     *
-     * @param rowId The row Id of the current call.
-     * @param dayGroup The day group the call belongs in.
-     */
-    @Override
-    public void setDayGroup(long rowId, int dayGroup) {
-        if (!mDayGroups.containsKey(rowId)) {
-            mDayGroups.put(rowId, dayGroup);
-        }
-    }
-
-    /**
-     * Clears the day group associations on re-bind of the call log.
-     */
-    @Override
-    public void clearDayGroups() {
-        mDayGroups.clear();
-    }
-
-    /**
-     * Retrieves the call Ids represented by the current call log row.
-     *
-     * @param cursor Call log cursor to retrieve call Ids from.
-     * @param groupSize Number of calls associated with the current call log row.
-     * @return Array of call Ids.
-     */
-    private long[] getCallIds(final Cursor cursor, final int groupSize) {
-        // We want to restore the position in the cursor at the end.
-        int startingPosition = cursor.getPosition();
-        long[] ids = new long[groupSize];
-        // Copy the ids of the rows in the group.
-        for (int index = 0; index < groupSize; ++index) {
-            ids[index] = cursor.getLong(CallLogQuery.ID);
-            cursor.moveToNext();
-        }
-        cursor.moveToPosition(startingPosition);
-        return ids;
-    }
-
     /**
      * Determines the description for a day group.
      *
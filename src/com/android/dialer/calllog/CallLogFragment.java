@@ -57,6 +57,7 @@ import com.cyanogen.ambient.incall.CallLogConstants;
 import com.cyanogen.lookup.phonenumber.contract.LookupProvider;
 import com.cyanogen.lookup.phonenumber.provider.LookupProviderImpl;
 
+import java.util.ArrayDeque;
 import java.util.HashMap;
 
 /**
@@ -84,6 +85,21 @@ public class CallLogFragment extends Fragment implements CallLogQueryHandler.Lis
 
     private static final int READ_CALL_LOG_PERMISSION_REQUEST_CODE = 1;
 
+    /**
+     * The number of times new calls are added on top of the calls shown before all the calls are
+     * fetched again, so that changes to the calls shown are eventually shown.
+     */
+    private static final int MAX_NEW_CALLS_FETCHES = 8;
+
+    /**
+     * The number of pages of calls shown at most. Once more pages are fetched, the first page is
+     * dropped, and fetched again when scrolling back to it.
+     */
+    private static final int MAX_PAGES_SHOWN = 3;
+
+    /** The number of items from the first or last item shown at which a page is fetched. */
+    private static final int PAGE_FETCH_DISTANCE = 50;
+
     private RecyclerView mRecyclerView;
     private LinearLayoutManager mLayoutManager;
     private CallLogAdapter mAdapter;
@@ -124,6 +140,84 @@ public class CallLogFragment extends Fragment implements CallLogQueryHandler.Lis
 
     private boolean mHasReadCallLogPermission = false;
 
+    /** The number of times new calls were added since all the calls were fetched. */
+    private int mNewCallsFetches;
+    /** The number of calls shown, and the date of the newest, when new calls were requested. */
+    private int mNewCallsRequestCallCount;
+    private long mNewCallsRequestNewestDate;
+
+    /** The first call shown before a page of calls was dropped, and the calls dropped. */
+    private static final class DroppedPage {
+        final long firstCallDate;
+        final long firstCallId;
+        final int callCount;
+
+        DroppedPage(long firstCallDate, long firstCallId, int callCount) {
+            this.firstCallDate = firstCallDate;
+            this.firstCallId = firstCallId;
+            this.callCount = callCount;
+        }
+    }
+
+    /** The pages dropped from the top of the list, the last dropped first. */
+    private final ArrayDeque<DroppedPage> mDroppedPages = new ArrayDeque<DroppedPage>();
+    /** Whether there are calls after the calls shown, as far as the last fetches tell. */
+    private boolean mHasOlderCalls;
+    /** The number of calls requested by the last fetch of all the calls shown. */
+    private int mRequestedCallCount;
+    /** The id of the oldest call shown when older calls were requested. */
+    private long mOlderCallsRequestCallId;
+    /** Whether calls were requested and not fetched yet, in which case no page is requested. */
+    private boolean mFetchPending;
+    /**
+     * Whether the page of older calls fetched last could not be added while other calls were
+     * grouped, in which case it is requested again once they are shown.
+     */
+    private boolean mOlderCallsRefused;
+
+    /** Fetches the pages of calls before or after the calls shown as the list is scrolled. */
+    private final RecyclerView.OnScrollListener mPageScrollListener =
+            new RecyclerView.OnScrollListener() {
+                @Override
+                public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                    updatePages();
+                }
+            };
+
+    /** Whether the adapter was empty when the options menu was last invalidated. */
+    private boolean mAdapterEmpty = true;
+
+    /**
+     * Updates the state of the "Clear call log" menu item when the first calls are shown or the
+     * last ones removed, which happens after {@link #onCallsFetched} since the calls are grouped
+     * on a worker thread.
+     */
+    private final RecyclerView.AdapterDataObserver mAdapterDataObserver =
+            new RecyclerView.AdapterDataObserver() {
+                @Override
+                public void onChanged() {
+                    invalidateOptionsMenu();
+                }
+
+                @Override
+                public void onItemRangeInserted(int positionStart, int itemCount) {
+                    invalidateOptionsMenu();
+                }
+
+                @Override
+                public void onItemRangeRemoved(int positionStart, int itemCount) {
+                    invalidateOptionsMenu();
+                }
+
+                private void invalidateOptionsMenu() {
+                    final boolean empty = mAdapter.isEmpty();
+                    if (empty != mAdapterEmpty && getActivity() != null) {
+                        mAdapterEmpty = empty;
+                        getActivity().invalidateOptionsMenu();
+                    }
+                }
+            };
+
     // Exactly same variable is in Fragment as a package private.
     private boolean mMenuVisible = true;
 
@@ -258,6 +352,7 @@ public class CallLogFragment extends Fragment implements CallLogQueryHandler.Lis
                 mVoicemailPlaybackPresenter,
                 mBlockContactPresenter,
                 isShowingRecentsTab);
+        mAdapter.registerAdapterDataObserver(mAdapterDataObserver);
     }
 
     /** Called by the CallLogQueryHandler when the list of calls has been fetched or updated. */
@@ -268,11 +363,14 @@ public class CallLogFragment extends Fragment implements CallLogQueryHandler.Lis
             return false;
         }
 
+        mNewCallsFetches = 0;
+        mFetchPending = false;
+        mHasOlderCalls = cursor != null && cursor.getCount() >= mRequestedCallCount;
         mAdapter.mDeepLinkCache.buildCache();
         mAdapter.setLoading(false);
-        mAdapter.changeCursor(cursor);
-        // This will update the state of the "Clear call log" menu item.
-        getActivity().invalidateOptionsMenu();
+        // The calls are grouped on a worker thread; the "Clear call log" menu item is updated
+        // by mAdapterDataObserver once they are shown.
+        mAdapter.changeCursorInBackground(cursor);
 
         boolean showListView = cursor != null && cursor.getCount() > 0;
         mRecyclerView.setVisibility(showListView ? View.VISIBLE : View.GONE);
@@ -308,6 +406,71 @@ public class CallLogFragment extends Fragment implements CallLogQueryHandler.Lis
         return true;
     }
 
+    /**
+     * Called by the CallLogQueryHandler when the calls newer than the calls shown have been
+     * fetched, to add them on top of the list.
+     */
+    @Override
+    public boolean onNewCallsFetched(Cursor cursor) {
+        if (getActivity() == null || getActivity().isFinishing()) {
+            // Return false; we did not take ownership of the cursor
+            return false;
+        }
+        mFetchPending = false;
+        if (cursor.getCount() == 0) {
+            return false;
+        }
+
+        if (mAdapter.getCallCount() != mNewCallsRequestCallCount
+                || mAdapter.getNewestCallDate() != mNewCallsRequestNewestDate
+                || !mAdapter.prependInBackground(cursor)) {
+            // Other calls were shown since the new calls were requested.
+            fetchAllCalls();
+            return false;
+        }
+        mNewCallsFetches++;
+        mAdapter.mDeepLinkCache.buildCache();
+        return true;
+    }
+
+    /**
+     * Called by the CallLogQueryHandler when the page of calls following the calls shown has
+     * been fetched, to add them at the end of the list.
+     */
+    @Override
+    public boolean onOlderCallsFetched(Cursor cursor) {
+        if (getActivity() == null || getActivity().isFinishing()) {
+            // Return false; we did not take ownership of the cursor
+            return false;
+        }
+        mFetchPending = false;
+        if (mAdapter.getCallCount() == 0
+                || mAdapter.getOldestCallId() != mOlderCallsRequestCallId) {
+            // Other calls were shown since the page was requested.
+            return false;
+        }
+        mHasOlderCalls = cursor.getCount() >= mCallLogQueryHandler.getPageSize();
+        if (cursor.getCount() == 0) {
+            return false;
+        }
+        if (!mAdapter.appendInBackground(cursor)) {
+            // The page is requested again once the other calls are shown, if the list is still
+            // scrolled to its end.
+            mOlderCallsRefused = true;
+            return false;
+        }
+        return true;
+    }
+
+    /** Called by the adapter once the calls fetched are grouped and shown. */
+    @Override
+    public void onCallsShown() {
+        if (mOlderCallsRefused) {
+            mOlderCallsRefused = false;
+            updatePages();
+        }
+    }
+
     /**
      * Called by {@link CallLogQueryHandler} after a successful query to voicemail status provider.
      */
@@ -337,6 +500,9 @@ public class CallLogFragment extends Fragment implements CallLogQueryHandler.Lis
         mRecyclerView.setHasFixedSize(true);
         mLayoutManager = new LinearLayoutManager(getActivity());
         mRecyclerView.setLayoutManager(mLayoutManager);
+        if (mLogLimit == NO_LOG_LIMIT) {
+            mRecyclerView.addOnScrollListener(mPageScrollListener);
+        }
         mEmptyListView = (EmptyContentView) view.findViewById(R.id.empty_list_view);
         mEmptyListView.setImage(R.drawable.empty_call_log);
         mEmptyListView.setActionClickedListener(this);
@@ -352,7 +518,7 @@ public class CallLogFragment extends Fragment implements CallLogQueryHandler.Lis
                 }
             }
         });
-        fetchCalls();
+        fetchAllCalls();
         return view;
     }
 
@@ -416,6 +582,7 @@ public class CallLogFragment extends Fragment implements CallLogQueryHandler.Lis
     @Override
     public void onDestroy() {
         mAdapter.pauseCache();
+        mAdapter.unregisterAdapterDataObserver(mAdapterDataObserver);
         mAdapter.changeCursor(null);
 
         if (mVoicemailPlaybackPresenter != null) {
@@ -452,9 +619,103 @@ public class CallLogFragment extends Fragment implements CallLogQueryHandler.Lis
         mAdapter.notifyDataSetChanged();
     }
 
+    /**
+     * Called by the adapter when the call log changed. Only fetches the calls newer than the calls
+     * shown when they can be added on top of the list, since fetching and grouping all the calls
+     * takes longer the more calls there are.
+     */
     @Override
     public void fetchCalls() {
-        mCallLogQueryHandler.fetchCalls(mCallTypeFilter, mDateLimit);
+        final int callCount = mAdapter.getCallCount();
+        // The recent calls are limited to a few calls, and voicemails change once transcribed.
+        // New calls are not shown either when the first pages were dropped.
+        if (callCount == 0 || mLogLimit != NO_LOG_LIMIT
+                || mCallTypeFilter == Calls.VOICEMAIL_TYPE
+                || mNewCallsFetches >= MAX_NEW_CALLS_FETCHES || !mDroppedPages.isEmpty()) {
+            fetchAllCalls();
+            return;
+        }
+        mFetchPending = true;
+        // All the calls shown are fetched again instead if one of them was deleted.
+        mRequestedCallCount = Math.max(callCount, mCallLogQueryHandler.getPageSize());
+        mNewCallsRequestCallCount = callCount;
+        mNewCallsRequestNewestDate = mAdapter.getNewestCallDate();
+        mCallLogQueryHandler.fetchNewCalls(mCallTypeFilter, mDateLimit,
+                mNewCallsRequestNewestDate, callCount, mAdapter.getOldestCallId());
+    }
+
+    /**
+     * Fetches all the calls shown again, or the first page of calls if there are none, from the
+     * first call shown if the pages before it were dropped.
+     */
+    private void fetchAllCalls() {
+        final int callCount = mAdapter.getCallCount();
+        mRequestedCallCount = Math.max(callCount, mCallLogQueryHandler.getPageSize());
+        mFetchPending = true;
+        if (mDroppedPages.isEmpty() || callCount == 0) {
+            mDroppedPages.clear();
+            mCallLogQueryHandler.fetchCalls(mCallTypeFilter, mDateLimit, mRequestedCallCount);
+        } else {
+            mCallLogQueryHandler.fetchCallsFrom(mCallTypeFilter, mDateLimit,
+                    mAdapter.getNewestCallDate(), mAdapter.getCallId(0), mRequestedCallCount);
+        }
+    }
+
+    /**
+     * Fetches the page of calls following the calls shown when the list is scrolled close to its
+     * end, and the page of calls preceding them when it is scrolled close to its start and that
+     * page was dropped. Drops the first page once more than {@link #MAX_PAGES_SHOWN} pages are
+     * shown, so that the memory used does not grow with the number of calls scrolled through.
+     * <p>
+     * Pages are fetched by the date and id of the calls at their edges, and only dropped at the
+     * end of a group, so that a group of calls spanning two pages is not split.
+     */
+    private void updatePages() {
+        final int callCount = mAdapter.getCallCount();
+        if (mFetchPending || callCount == 0) {
+            return;
+        }
+        final int pageSize = mCallLogQueryHandler.getPageSize();
+        final int firstVisiblePosition = mLayoutManager.findFirstVisibleItemPosition();
+        final int lastVisiblePosition = mLayoutManager.findLastVisibleItemPosition();
+
+        if (callCount > MAX_PAGES_SHOWN * pageSize) {
+            // Every list item shows at least a call, so the items dropped are not visible.
+            final int dropCount = mAdapter.getItemBoundary(pageSize);
+            if (firstVisiblePosition > dropCount + PAGE_FETCH_DISTANCE) {
+                mDroppedPages.push(new DroppedPage(mAdapter.getNewestCallDate(),
+                        mAdapter.getCallId(0), dropCount));
+                mRequestedCallCount = callCount - dropCount;
+                mFetchPending = true;
+                mCallLogQueryHandler.fetchCallsFrom(mCallTypeFilter, mDateLimit,
+                        mAdapter.getCallDate(dropCount), mAdapter.getCallId(dropCount),
+                        mRequestedCallCount);
+                return;
+            }
+        }
+
+        if (mHasOlderCalls
+                && lastVisiblePosition >= mAdapter.getItemCount() - PAGE_FETCH_DISTANCE) {
+            mOlderCallsRequestCallId = mAdapter.getOldestCallId();
+            mFetchPending = true;
+            mCallLogQueryHandler.fetchOlderCalls(mCallTypeFilter, mDateLimit,
+                    mAdapter.getCallDate(callCount - 1), mOlderCallsRequestCallId);
+        } else if (!mDroppedPages.isEmpty() && firstVisiblePosition >= 0
+                && firstVisiblePosition <= PAGE_FETCH_DISTANCE) {
+            // Fetches the dropped page with the calls shown, dropping the last calls if needed.
+            final DroppedPage page = mDroppedPages.pop();
+            mRequestedCallCount = Math.min(page.callCount + callCount,
+                    MAX_PAGES_SHOWN * pageSize);
+            mFetchPending = true;
+            if (mDroppedPages.isEmpty()) {
+                // The page was the first one, which may have new calls since.
+                mCallLogQueryHandler.fetchCalls(mCallTypeFilter, mDateLimit,
+                        mRequestedCallCount);
+            } else {
+                mCallLogQueryHandler.fetchCallsFrom(mCallTypeFilter, mDateLimit,
+                        page.firstCallDate, page.firstCallId, mRequestedCallCount);
+            }
+        }
     }
 
     private void updateEmptyMessage(int filterType) {
@@ -523,7 +784,7 @@ public class CallLogFragment extends Fragment implements CallLogQueryHandler.Lis
             mAdapter.invalidateCache();
             mAdapter.setLoading(true);
 
-            fetchCalls();
+            fetchAllCalls();
             mCallLogQueryHandler.fetchVoicemailStatus();
 
             updateOnTransition(true /* onEntry */);
@@ -26,6 +26,7 @@ import com.android.contacts.common.util.PhoneNumberHelper;
 
 import com.google.common.annotations.VisibleForTesting;
 
+import java.util.Arrays;
 import java.util.Objects;
 
 /**
@@ -49,21 +50,6 @@ public class CallLogGroupBuilder {
          * @param expanded Whether the group is expanded; always false for the call log.
          */
         public void addGroup(int cursorPosition, int size, boolean expanded);
-
-        /**
-         * Defines the interface for tracking the day group each call belongs to.  Calls in a call
-         * group are assigned the same day group as the first call in the group.  The day group
-         * assigns calls to the buckets: Today, Yesterday, Last week, and Other
-         *
-         * @param rowId The row Id of the current call.
-         * @param dayGroup The day group the call belongs in.
-         */
-        public void setDayGroup(long rowId, int dayGroup);
-
-        /**
-         * Defines the interface for clearing the day groupings information on rebind/regroup.
-         */
-        public void clearDayGroups();
     }
 
     /**
@@ -82,12 +68,38 @@ public class CallLogGroupBuilder {
     /** Day grouping for calls which occurred before last week. */
     public static final int DAY_GROUP_OTHER = 2;
 
-    /** Instance of the time object used for time calculations. */
-    private static final Time TIME = new Time();
+    /**
+     * Instance of the time object used for time calculations. Not shared between builders, which
+     * may group call logs on different threads.
+     */
+    private final Time mTime = new Time();
 
     /** The object on which the groups are created. */
     private final GroupCreator mGroupCreator;
 
+    /**
+     * The columns of the calls read while grouping them, by cursor position, so that binding a
+     * group reads arrays instead of walking the cursor. Only the first {@link #mCallCount}
+     * entries are valid. Every table of groups has its own builder, which the main thread reads
+     * while the next table is built, so the arrays are allocated by each
+     * {@link #addGroups(Cursor)}.
+     */
+    private int mCallCount;
+    private int[] mCallTypes = new int[0];
+    private long[] mCallIds = new long[0];
+    private long[] mCallDates = new long[0];
+    /**
+     * The features of any of the calls of the group starting at each position, or the features
+     * of the call itself for the other calls of the group.
+     */
+    private int[] mGroupFeatures = new int[0];
+    /**
+     * The day group of each call. Calls in a call group are assigned the same day group as the
+     * first call in the group. The day group assigns calls to the buckets: Today, Yesterday, Last
+     * week, and Other.
+     */
+    private int[] mDayGroups = new int[0];
+
     public CallLogGroupBuilder(GroupCreator groupCreator) {
         mGroupCreator = groupCreator;
     }
@@ -105,13 +117,16 @@ public class CallLogGroupBuilder {
      */
     public void addGroups(Cursor cursor) {
         final int count = cursor.getCount();
+        mCallTypes = new int[count];
+        mCallIds = new long[count];
+        mCallDates = new long[count];
+        mGroupFeatures = new int[count];
+        mDayGroups = new int[count];
+        mCallCount = count;
         if (count == 0) {
             return;
         }
 
-        // Clear any previous day grouping information.
-        mGroupCreator.clearDayGroups();
-
         // Get current system time, used for calculating which day group calls belong to.
         long currentTime = System.currentTimeMillis();
 
@@ -130,7 +145,11 @@ public class CallLogGroupBuilder {
         final long firstDate = cursor.getLong(CallLogQuery.DATE);
         final long firstRowId = cursor.getLong(CallLogQuery.ID);
         int currentGroupDayGroup = getDayGroup(firstDate, currentTime);
-        mGroupCreator.setDayGroup(firstRowId, currentGroupDayGroup);
+        mDayGroups[0] = currentGroupDayGroup;
+
+        // The features of any of the calls in the group.
+        int currentGroupFeatures = cursor.getInt(CallLogQuery.FEATURES);
+        setCallColumns(0, firstCallType, firstRowId, firstDate, currentGroupFeatures);
 
         while (cursor.moveToNext()) {
             // The number of the current row in the cursor.
@@ -152,6 +171,8 @@ public class CallLogGroupBuilder {
             final boolean shouldGroup;
             final long currentCallId = cursor.getLong(CallLogQuery.ID);
             final long date = cursor.getLong(CallLogQuery.DATE);
+            final int features = cursor.getInt(CallLogQuery.FEATURES);
+            setCallColumns(cursor.getPosition(), callType, currentCallId, date, features);
 
             if (!sameNumber || !sameAccount) {
                 // Should only group with calls from the same number.
@@ -168,6 +189,7 @@ public class CallLogGroupBuilder {
                 // Increment the size of the group to include the current call, but do not create
                 // the group until we find a call that does not match.
                 currentGroupSize++;
+                currentGroupFeatures |= features;
             } else {
                 // The call group has changed, so determine the day group for the new call group.
                 // This ensures all calls grouped together in the call log are assigned the same
@@ -176,11 +198,13 @@ public class CallLogGroupBuilder {
 
                 // Create a group for the previous set of calls, excluding the current one, but do
                 // not create a group for a single call.
+                mGroupFeatures[cursor.getPosition() - currentGroupSize] = currentGroupFeatures;
                 if (currentGroupSize > 1) {
                     addGroup(cursor.getPosition() - currentGroupSize, currentGroupSize);
                 }
                 // Start a new group; it will include at least the current call.
                 currentGroupSize = 1;
+                currentGroupFeatures = features;
                 // The current entry is now the first in the group.
                 firstNumber = currentNumber;
                 firstCallType = callType;
@@ -189,14 +213,157 @@ public class CallLogGroupBuilder {
             }
 
             // Save the day group associated with the current call.
-            mGroupCreator.setDayGroup(currentCallId, currentGroupDayGroup);
+            mDayGroups[cursor.getPosition()] = currentGroupDayGroup;
         }
         // If the last set of calls at the end of the call log was itself a group, create it now.
+        mGroupFeatures[count - currentGroupSize] = currentGroupFeatures;
         if (currentGroupSize > 1) {
             addGroup(count - currentGroupSize, currentGroupSize);
         }
     }
 
+    /**
+     * Appends the columns of calls read by another builder, after the calls read by the last
+     * {@link #addGroups(Cursor)}, when the calls were grouped again with calls on top of them.
+     *
+     * @param source The builder which read the calls.
+     * @param sourcePosition The cursor position of the first call in the source builder.
+     * @param count The number of calls to copy.
+     */
+    public void copyCalls(CallLogGroupBuilder source, int sourcePosition, int count) {
+        source.checkGroup(sourcePosition, count);
+        final int callCount = mCallCount + count;
+        if (mCallTypes.length < callCount) {
+            mCallTypes = Arrays.copyOf(mCallTypes, callCount);
+            mCallIds = Arrays.copyOf(mCallIds, callCount);
+            mCallDates = Arrays.copyOf(mCallDates, callCount);
+            mGroupFeatures = Arrays.copyOf(mGroupFeatures, callCount);
+            mDayGroups = Arrays.copyOf(mDayGroups, callCount);
+        }
+        System.arraycopy(source.mCallTypes, sourcePosition, mCallTypes, mCallCount, count);
+        System.arraycopy(source.mCallIds, sourcePosition, mCallIds, mCallCount, count);
+        System.arraycopy(source.mCallDates, sourcePosition, mCallDates, mCallCount, count);
+        System.arraycopy(source.mGroupFeatures, sourcePosition, mGroupFeatures, mCallCount, count);
+        System.arraycopy(source.mDayGroups, sourcePosition, mDayGroups, mCallCount, count);
+        mCallCount = callCount;
+    }
+
+    /**
+     * Inserts the columns of the first calls read by another builder before the calls read by the
+     * last {@link #addGroups(Cursor)}, when the calls were grouped again with calls after them.
+     *
+     * @param source The builder which read the calls.
+     * @param count The number of calls to copy.
+     */
+    public void prependCalls(CallLogGroupBuilder source, int count) {
+        source.checkGroup(0, count);
+        final int callCount = mCallCount + count;
+        final int[] callTypes = new int[callCount];
+        final long[] callIds = new long[callCount];
+        final long[] callDates = new long[callCount];
+        final int[] groupFeatures = new int[callCount];
+        final int[] dayGroups = new int[callCount];
+        System.arraycopy(source.mCallTypes, 0, callTypes, 0, count);
+        System.arraycopy(source.mCallIds, 0, callIds, 0, count);
+        System.arraycopy(source.mCallDates, 0, callDates, 0, count);
+        System.arraycopy(source.mGroupFeatures, 0, groupFeatures, 0, count);
+        System.arraycopy(source.mDayGroups, 0, dayGroups, 0, count);
+        System.arraycopy(mCallTypes, 0, callTypes, count, mCallCount);
+        System.arraycopy(mCallIds, 0, callIds, count, mCallCount);
+        System.arraycopy(mCallDates, 0, callDates, count, mCallCount);
+        System.arraycopy(mGroupFeatures, 0, groupFeatures, count, mCallCount);
+        System.arraycopy(mDayGroups, 0, dayGroups, count, mCallCount);
+        mCallTypes = callTypes;
+        mCallIds = callIds;
+        mCallDates = callDates;
+        mGroupFeatures = groupFeatures;
+        mDayGroups = dayGroups;
+        mCallCount = callCount;
+    }
+
+    /** Returns the number of calls read by the last {@link #addGroups(Cursor)}. */
+    public int getCallCount() {
+        return mCallCount;
+    }
+
+    /**
+     * Returns the types of the calls of the group starting at the given cursor position, as read
+     * by the last {@link #addGroups(Cursor)}.
+     */
+    public int[] getCallTypes(int cursorPosition, int size) {
+        checkGroup(cursorPosition, size);
+        return Arrays.copyOfRange(mCallTypes, cursorPosition, cursorPosition + size);
+    }
+
+    /**
+     * Returns the ids of the calls of the group starting at the given cursor position, as read by
+     * the last {@link #addGroups(Cursor)}.
+     */
+    public long[] getCallIds(int cursorPosition, int size) {
+        checkGroup(cursorPosition, size);
+        return Arrays.copyOfRange(mCallIds, cursorPosition, cursorPosition + size);
+    }
+
+    /**
+     * Returns the id of the call at the given cursor position, as read by the last
+     * {@link #addGroups(Cursor)}.
+     */
+    public long getCallId(int cursorPosition) {
+        checkGroup(cursorPosition, 1);
+        return mCallIds[cursorPosition];
+    }
+
+    /**
+     * Returns the date of the call at the given cursor position, as read by the last
+     * {@link #addGroups(Cursor)}.
+     */
+    public long getCallDate(int cursorPosition) {
+        checkGroup(cursorPosition, 1);
+        return mCallDates[cursorPosition];
+    }
+
+    /**
+     * Returns the dates of the calls of the group starting at the given cursor position, as read
+     * by the last {@link #addGroups(Cursor)}.
+     */
+    public long[] getCallTimes(int cursorPosition, int size) {
+        checkGroup(cursorPosition, size);
+        return Arrays.copyOfRange(mCallDates, cursorPosition, cursorPosition + size);
+    }
+
+    /**
+     * Returns the features which were enabled for any of the calls of the group starting at the
+     * given cursor position, as read by the last {@link #addGroups(Cursor)}.
+     */
+    public int getCallFeatures(int cursorPosition) {
+        checkGroup(cursorPosition, 1);
+        return mGroupFeatures[cursorPosition];
+    }
+
+    /**
+     * Returns the day group of the call at the given cursor position, as read by the last
+     * {@link #addGroups(Cursor)}.
+     */
+    public int getCallDayGroup(int cursorPosition) {
+        checkGroup(cursorPosition, 1);
+        return mDayGroups[cursorPosition];
+    }
+
+    private void checkGroup(int cursorPosition, int size) {
+        if (cursorPosition < 0 || cursorPosition + size > mCallCount) {
+            throw new IndexOutOfBoundsException("No group of " + size + " calls at "
+                    + cursorPosition + " in " + mCallCount + " calls");
+        }
+    }
+
+    private void setCallColumns(int cursorPosition, int callType, long callId, long date,
+            int features) {
+        mCallTypes[cursorPosition] = callType;
+        mCallIds[cursorPosition] = callId;
+        mCallDates[cursorPosition] = date;
+        mGroupFeatures[cursorPosition] = features;
+    }
+
     /**
      * Creates a group of items in the cursor.
      * <p>
@@ -254,7 +421,7 @@ public class CallLogGroupBuilder {
      * @return The date group the call belongs in.
      */
     private int getDayGroup(long date, long now) {
-        int days = DateUtils.getDayDifference(TIME, date, now);
+        int days = DateUtils.getDayDifference(mTime, date, now);
 
         if (days == 0) {
             return DAY_GROUP_TODAY;
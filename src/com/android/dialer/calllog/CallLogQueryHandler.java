@@ -51,6 +51,12 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
     private static final String TAG = "CallLogQueryHandler";
     private static final int NUM_LOGS_TO_DISPLAY = 1000;
 
+    /**
+     * The order of the calls fetched, most recent first. Calls of the same date are ordered by id
+     * so that a call identifies where a page of calls ends.
+     */
+    static final String CALLS_SORT_ORDER = Calls.DATE + " DESC, " + Calls._ID + " DESC";
+
     /** The token for the query to fetch the old entries from the call log. */
     private static final int QUERY_CALLLOG_TOKEN = 54;
     /** The token for the query to mark all missed calls as old after seeing the call log. */
@@ -59,6 +65,15 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
     private static final int UPDATE_MARK_MISSED_CALL_AS_READ_TOKEN = 56;
     /** The token for the query to fetch voicemail status messages. */
     private static final int QUERY_VOICEMAIL_STATUS_TOKEN = 57;
+    /**
+     * The token for the query checking that the calls shown are still in the call log, before
+     * fetching the new calls only.
+     */
+    private static final int QUERY_CALLS_SHOWN_TOKEN = 58;
+    /** The token for the query to fetch the calls newer than the calls shown. */
+    private static final int QUERY_NEW_CALLS_TOKEN = 59;
+    /** The token for the query to fetch the page of calls older than the calls shown. */
+    private static final int QUERY_OLDER_CALLS_TOKEN = 60;
 
     private final int mLogLimit;
 
@@ -77,6 +92,24 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
 
     private final Context mContext;
 
+    /** The calls shown when new calls were requested, passed as cookie of the queries. */
+    private static final class CallsShown {
+        final int callType;
+        final long dateLimit;
+        final long newestDate;
+        final int callCount;
+        final long oldestCallId;
+
+        CallsShown(int callType, long dateLimit, long newestDate, int callCount,
+                long oldestCallId) {
+            this.callType = callType;
+            this.dateLimit = dateLimit;
+            this.newestDate = newestDate;
+            this.callCount = callCount;
+            this.oldestCallId = oldestCallId;
+        }
+    }
+
     /**
      * Simple handler that wraps background calls to catch
      * {@link SQLiteException}, such as when the disk is full.
@@ -145,6 +178,90 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
         fetchCalls(callType, 0);
     }
 
+    /**
+     * Fetches the given number of calls from the call log for a given type, such as the number of
+     * calls shown once more pages of calls were fetched. Unlike the other fetches, the number of
+     * calls is not limited to a single page.
+     */
+    public void fetchCalls(int callType, long newerThan, int limit) {
+        fetchCallsFrom(callType, newerThan, 0, -1, limit);
+    }
+
+    /**
+     * Fetches the given number of calls from the call log for a given type, starting from the
+     * call of the given date and id, such as the first call shown once the calls before it were
+     * dropped. Calls the listener as {@link #fetchCalls(int, long)} does.
+     *
+     * @param date The date of the first call to fetch.
+     * @param id The id of the first call to fetch, or -1 to fetch from the most recent call.
+     */
+    public void fetchCallsFrom(int callType, long newerThan, long date, long id, int limit) {
+        cancelFetch();
+        if (PermissionsUtil.hasPhonePermissions(mContext)) {
+            fetchCalls(QUERY_CALLLOG_TOKEN, callType, newerThan, date, id, true /* inclusive */,
+                    limit);
+        } else {
+            updateAdapterData(null);
+        }
+    }
+
+    /**
+     * Fetches the page of calls following the call of the given date and id, the oldest call
+     * shown, for the listener to add them after the calls shown. Uses the date and the id of the
+     * call rather than an offset, so that the cost of fetching a page does not depend on the
+     * number of calls before it.
+     */
+    public void fetchOlderCalls(int callType, long newerThan, long date, long id) {
+        cancelOperation(QUERY_OLDER_CALLS_TOKEN);
+        if (PermissionsUtil.hasPhonePermissions(mContext)) {
+            fetchCalls(QUERY_OLDER_CALLS_TOKEN, callType, newerThan, date, id,
+                    false /* inclusive */, getPageSize());
+        }
+    }
+
+    /** Returns the number of calls fetched at once, unless more are requested. */
+    public int getPageSize() {
+        return (mLogLimit == -1) ? NUM_LOGS_TO_DISPLAY : mLogLimit;
+    }
+
+    /**
+     * Fetches the calls of the given type newer than the newest call shown, for the listener to
+     * add them on top of the calls shown, so that the cost of showing a new call does not depend
+     * on the size of the call log.
+     * <p>
+     * Checks first that the oldest call shown is still at the same offset in the call log. If a
+     * call shown was deleted, fetches all the calls as {@link #fetchCalls(int, long)} instead.
+     * Changes to the calls shown, such as marking them as read, are not fetched.
+     *
+     * @param newestDate The date of the newest call shown.
+     * @param callCount The number of calls shown.
+     * @param oldestCallId The id of the oldest call shown.
+     */
+    public void fetchNewCalls(int callType, long newerThan, long newestDate, int callCount,
+            long oldestCallId) {
+        cancelFetch();
+        if (!PermissionsUtil.hasPhonePermissions(mContext)) {
+            updateAdapterData(null);
+            return;
+        }
+
+        final List<String> selectionArgs = Lists.newArrayList();
+        final StringBuilder where = buildSelection(callType, false /* newOnly */, newerThan,
+                selectionArgs);
+        where.append(" AND ");
+        where.append(String.format("(%s <= ?)", Calls.DATE));
+        selectionArgs.add(Long.toString(newestDate));
+
+        Uri uri = TelecomUtil.getAllCallLogUri(mContext).buildUpon()
+                .appendQueryParameter(Calls.LIMIT_PARAM_KEY, "1")
+                .appendQueryParameter(Calls.OFFSET_PARAM_KEY, Integer.toString(callCount - 1))
+                .build();
+        startQuery(QUERY_CALLS_SHOWN_TOKEN,
+                new CallsShown(callType, newerThan, newestDate, callCount, oldestCallId), uri,
+                new String[] { Calls._ID }, where.toString(),
+                selectionArgs.toArray(EMPTY_STRING_ARRAY), CALLS_SORT_ORDER);
+    }
+
     public void fetchVoicemailStatus() {
         if (TelecomUtil.hasReadWriteVoicemailPermissions(mContext)) {
             startQuery(QUERY_VOICEMAIL_STATUS_TOKEN, null, Status.CONTENT_URI,
@@ -154,11 +271,58 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
 
     /** Fetches the list of calls in the call log. */
     private void fetchCalls(int token, int callType, boolean newOnly, long newerThan) {
+        List<String> selectionArgs = Lists.newArrayList();
+        final String selection = buildSelection(callType, newOnly, newerThan, selectionArgs)
+                .toString();
+        startCallsQuery(token, selection, selectionArgs, getPageSize());
+    }
+
+    /**
+     * Fetches the list of calls in the call log following the call of the given date and id,
+     * including it or not, or from the most recent call if the id is -1.
+     */
+    private void fetchCalls(int token, int callType, long newerThan, long date, long id,
+            boolean inclusive, int limit) {
+        List<String> selectionArgs = Lists.newArrayList();
+        final StringBuilder where = buildSelection(callType, false /* newOnly */, newerThan,
+                selectionArgs);
+        if (id >= 0) {
+            where.append(" AND ");
+            appendCallsFollowing(where, selectionArgs, date, id, inclusive);
+        }
+        startCallsQuery(token, where.toString(), selectionArgs, limit);
+    }
+
+    private void startCallsQuery(int token, String selection, List<String> selectionArgs,
+            int limit) {
+        Uri uri = TelecomUtil.getAllCallLogUri(mContext).buildUpon()
+                .appendQueryParameter(Calls.LIMIT_PARAM_KEY, Integer.toString(limit))
+                .build();
+        startQuery(token, null, uri,
+                CallLogQuery._PROJECTION, selection, selectionArgs.toArray(EMPTY_STRING_ARRAY),
+                CALLS_SORT_ORDER);
+    }
+
+    /**
+     * Appends the condition selecting the calls following the call of the given date and id in
+     * {@link #CALLS_SORT_ORDER}, and the call itself if inclusive, adding its arguments.
+     */
+    static void appendCallsFollowing(StringBuilder where, List<String> selectionArgs, long date,
+            long id, boolean inclusive) {
+        where.append(String.format("(%s < ? OR (%s = ? AND %s %s ?))", Calls.DATE, Calls.DATE,
+                Calls._ID, inclusive ? "<=" : "<"));
+        selectionArgs.add(Long.toString(date));
+        selectionArgs.add(Long.toString(date));
+        selectionArgs.add(Long.toString(id));
+    }
+
+    /** Returns the selection of the calls of the given type, adding its arguments. */
+    private StringBuilder buildSelection(int callType, boolean newOnly, long newerThan,
+            List<String> selectionArgs) {
         // We need to check for NULL explicitly otherwise entries with where READ is NULL
         // may not match either the query or its negation.
         // We consider the calls that are not yet consumed (i.e. IS_READ = 0) as "new".
         StringBuilder where = new StringBuilder();
-        List<String> selectionArgs = Lists.newArrayList();
 
         // Ignore voicemails marked as deleted
         where.append(Voicemails.DELETED);
@@ -190,20 +354,15 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
             where.append(String.format("(%s > ?)", Calls.DATE));
             selectionArgs.add(Long.toString(newerThan));
         }
-
-        final int limit = (mLogLimit == -1) ? NUM_LOGS_TO_DISPLAY : mLogLimit;
-        final String selection = where.length() > 0 ? where.toString() : null;
-        Uri uri = TelecomUtil.getAllCallLogUri(mContext).buildUpon()
-                .appendQueryParameter(Calls.LIMIT_PARAM_KEY, Integer.toString(limit))
-                .build();
-        startQuery(token, null, uri,
-                CallLogQuery._PROJECTION, selection, selectionArgs.toArray(EMPTY_STRING_ARRAY),
-                Calls.DEFAULT_SORT_ORDER);
+        return where;
     }
 
     /** Cancel any pending fetch request. */
     private void cancelFetch() {
         cancelOperation(QUERY_CALLLOG_TOKEN);
+        cancelOperation(QUERY_CALLS_SHOWN_TOKEN);
+        cancelOperation(QUERY_NEW_CALLS_TOKEN);
+        cancelOperation(QUERY_OLDER_CALLS_TOKEN);
     }
 
     /** Updates all new calls to mark them as old. */
@@ -252,6 +411,16 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
                 if (updateAdapterData(cursor)) {
                     cursor = null;
                 }
+            } else if (token == QUERY_CALLS_SHOWN_TOKEN) {
+                onCallsShownChecked((CallsShown) cookie, cursor);
+            } else if (token == QUERY_NEW_CALLS_TOKEN) {
+                if (updateNewCalls(cursor)) {
+                    cursor = null;
+                }
+            } else if (token == QUERY_OLDER_CALLS_TOKEN) {
+                if (updateOlderCalls(cursor)) {
+                    cursor = null;
+                }
             } else if (token == QUERY_VOICEMAIL_STATUS_TOKEN) {
                 updateVoicemailStatus(cursor);
             } else {
@@ -277,6 +446,44 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
 
     }
 
+    /**
+     * Fetches the calls newer than the calls shown if the oldest call shown is still at the same
+     * offset in the call log, and all the calls otherwise.
+     */
+    private void onCallsShownChecked(CallsShown callsShown, Cursor cursor) {
+        if (cursor.moveToFirst() && cursor.getLong(0) == callsShown.oldestCallId) {
+            fetchCalls(QUERY_NEW_CALLS_TOKEN, callsShown.callType, false /* newOnly */,
+                    Math.max(callsShown.newestDate, callsShown.dateLimit));
+        } else {
+            fetchCalls(QUERY_CALLLOG_TOKEN, callsShown.callType, callsShown.dateLimit, 0, -1,
+                    true /* inclusive */, Math.max(callsShown.callCount, getPageSize()));
+        }
+    }
+
+    /**
+     * Adds the new calls on top of the calls in the call log fragment.
+     * Returns true if the listener took ownership of the cursor.
+     */
+    private boolean updateNewCalls(Cursor cursor) {
+        final Listener listener = mListener.get();
+        if (listener != null) {
+            return listener.onNewCallsFetched(cursor);
+        }
+        return false;
+    }
+
+    /**
+     * Adds the older calls after the calls in the call log fragment.
+     * Returns true if the listener took ownership of the cursor.
+     */
+    private boolean updateOlderCalls(Cursor cursor) {
+        final Listener listener = mListener.get();
+        if (listener != null) {
+            return listener.onOlderCallsFetched(cursor);
+        }
+        return false;
+    }
+
     private void updateVoicemailStatus(Cursor statusCursor) {
         final Listener listener = mListener.get();
         if (listener != null) {
@@ -294,5 +501,19 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
          * Returns true if takes ownership of cursor.
          */
         boolean onCallsFetched(Cursor combinedCursor);
+
+        /**
+         * Called when {@link CallLogQueryHandler#fetchNewCalls} completes with the calls newer
+         * than the calls shown, most recent first.
+         * Returns true if takes ownership of cursor.
+         */
+        boolean onNewCallsFetched(Cursor newCallsCursor);
+
+        /**
+         * Called when {@link CallLogQueryHandler#fetchOlderCalls} completes with the page of
+         * calls following the calls shown, most recent first.
+         * Returns true if takes ownership of cursor.
+         */
+        boolean onOlderCallsFetched(Cursor olderCallsCursor);
     }
 }
@@ -19,7 +19,11 @@ package com.android.dialer.calllog;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.database.DataSetObserver;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.os.AsyncTask;
 import android.os.Handler;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
@@ -29,6 +33,12 @@ import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 
 import com.android.contacts.common.testing.NeededForTesting;
+import com.android.dialer.util.AsyncTaskExecutor;
+import com.android.dialer.util.AsyncTaskExecutors;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Arrays;
 
 /**
  * Maintains a list that groups adjacent items sharing the same value of a "group-by" field.
@@ -48,6 +58,143 @@ abstract class GroupingListAdapter extends RecyclerView.Adapter {
     public static final int ITEM_TYPE_GROUP_HEADER = 1;
     public static final int ITEM_TYPE_IN_GROUP = 2;
 
+    /** The enumeration of {@link AsyncTask} objects used in this class. */
+    public enum Tasks {
+        GROUP_CURSOR,
+    }
+
+    /**
+     * The groups found in a cursor by {@link #addGroups}, and the keys and contents of the items
+     * of the list they make. A table is built on a worker thread and only read once published,
+     * so that the next one can be built while the list binds from this one.
+     */
+    protected static class GroupTable {
+        private long[] mGroupMetadata = new long[GROUP_METADATA_ARRAY_INITIAL_SIZE];
+        private int mGroupCount;
+        private boolean mHasExpandedGroups;
+
+        /**
+         * The _id of the last cursor row of every item, which stays the same when calls are added
+         * on top of its group. Null when the items could not be indexed.
+         */
+        private long[] mItemKeys;
+        /** The _id of the first cursor row of every item. */
+        private long[] mItemIds;
+        /** A hash of the content shown by every item. */
+        private long[] mItemContents;
+
+        private void addGroup(int cursorPosition, int size, boolean expanded) {
+            if (mGroupCount >= mGroupMetadata.length) {
+                int newSize = idealLongArraySize(
+                        mGroupMetadata.length + GROUP_METADATA_ARRAY_INCREMENT);
+                long[] array = new long[newSize];
+                System.arraycopy(mGroupMetadata, 0, array, 0, mGroupCount);
+                mGroupMetadata = array;
+            }
+
+            long metadata = ((long)size << 32) | cursorPosition;
+            if (expanded) {
+                metadata |= EXPANDED_GROUP_MASK;
+                mHasExpandedGroups = true;
+            }
+            mGroupMetadata[mGroupCount++] = metadata;
+        }
+    }
+
+    /**
+     * The changes between the items of two group tables: for every new item, the position of the
+     * same item in the old list, or -1 if it was inserted, and whether its content changed.
+     */
+    private static final class ItemDiff {
+        private final int mOldItemCount;
+        private final int[] mOldPositions;
+        private final boolean[] mChanged;
+
+        private ItemDiff(int oldItemCount, int newItemCount) {
+            mOldItemCount = oldItemCount;
+            mOldPositions = new int[newItemCount];
+            mChanged = new boolean[newItemCount];
+        }
+    }
+
+    /**
+     * A cursor to group on the worker thread against the items of the list when it was set, and
+     * its groups once found.
+     */
+    @VisibleForTesting
+    static final class Grouping {
+        final Cursor cursor;
+        /** The table to diff the groups against, or null to rebind the whole list. */
+        final GroupTable base;
+        /** The value of {@link #mGroupsVersion} when the base table was taken. */
+        final int baseVersion;
+
+        /**
+         * The rows added on top of the rows of the base table, or null if the cursor is grouped
+         * from scratch.
+         */
+        final Cursor prependedRows;
+        /** The rows added after the rows of the base table, or null. */
+        final Cursor appendedRows;
+        /**
+         * The rows grouped on the worker thread when rows are added, the added rows with a copy
+         * of the rows of the current cursor they may be grouped with, so that the worker thread
+         * never moves the current cursor while the list binds from it.
+         */
+        final Cursor groupedRows;
+
+        /**
+         * Set on the worker thread, or left null when rows were prepended in the middle of a
+         * group, in which case the cursor is grouped on the main thread once published.
+         */
+        GroupTable groups;
+        ItemDiff diff;
+
+        private Grouping(Cursor cursor, GroupTable base, int baseVersion, Cursor prependedRows,
+                Cursor appendedRows, Cursor groupedRows) {
+            this.cursor = cursor;
+            this.base = base;
+            this.baseVersion = baseVersion;
+            this.prependedRows = prependedRows;
+            this.appendedRows = appendedRows;
+            this.groupedRows = groupedRows;
+        }
+
+        /** Returns the rows added to the current cursor, or null if it replaces it. */
+        private Cursor getAddedRows() {
+            return prependedRows != null ? prependedRows : appendedRows;
+        }
+    }
+
+    /**
+     * The rows of a cursor at the positions they have in a longer cursor, with no rows before the
+     * offset, so that {@link #getItemContentHash} sees the positions of the list when the rows
+     * appended to it are indexed.
+     */
+    private static final class OffsetCursor extends CursorWrapper {
+        private final int mOffset;
+
+        private OffsetCursor(Cursor cursor, int offset) {
+            super(cursor);
+            mOffset = offset;
+        }
+
+        @Override
+        public int getCount() {
+            return mOffset + super.getCount();
+        }
+
+        @Override
+        public int getPosition() {
+            return mOffset + super.getPosition();
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            return super.moveToPosition(position - mOffset);
+        }
+    }
+
     /**
      * Information about a specific list item: is it a group, if so is it expanded.
      * Otherwise, is it a stand-alone item or a group member.
@@ -82,6 +229,31 @@ abstract class GroupingListAdapter extends RecyclerView.Adapter {
      */
     private long[] mGroupMetadata;
 
+    /** The table the groups above come from, or null before the first cursor. */
+    private GroupTable mGroups;
+
+    /**
+     * Incremented whenever the items of the list change, so that a diff computed against an
+     * older table is not dispatched.
+     */
+    private int mGroupsVersion;
+
+    /** Whether a group was expanded or collapsed since {@link #mGroups} was published. */
+    private boolean mGroupsToggled;
+
+    /** The table {@link #addGroup} adds to, only set while {@link #addGroups} runs. */
+    private GroupTable mPendingGroups;
+    /**
+     * Added by {@link #addGroup} to the cursor positions of the groups found in rows appended to
+     * the list, which {@link #addGroups} reads from the last item of the list.
+     */
+    private int mPendingGroupOffset;
+    private final Object mGroupingLock = new Object();
+
+    /** The cursor being grouped in the background, which will replace the current one. */
+    private Cursor mPendingCursor;
+    private AsyncTaskExecutor mAsyncTaskExecutor;
+
     private SparseIntArray mPositionCache = new SparseIntArray();
     private int mLastCachedListPosition;
     private int mLastCachedCursorPosition;
@@ -121,9 +293,75 @@ abstract class GroupingListAdapter extends RecyclerView.Adapter {
     /**
      * Finds all groups of adjacent items in the cursor and calls {@link #addGroup} for
      * each of them.
+     * <p>
+     * Called on a worker thread when the cursor is changed by
+     * {@link #changeCursorInBackground(Cursor)}.
      */
     protected abstract void addGroups(Cursor cursor);
 
+    /**
+     * Creates the table {@link #addGroups} adds the groups of a cursor to. Subclasses can return
+     * a subclass of {@link GroupTable} to keep what they read while grouping with the groups.
+     */
+    protected GroupTable newGroupTable() {
+        return new GroupTable();
+    }
+
+    /**
+     * Returns the table {@link #addGroups} is adding groups to; only valid while it runs.
+     */
+    protected GroupTable getPendingGroupTable() {
+        return mPendingGroups;
+    }
+
+    /**
+     * Returns the table of the groups of the current cursor, or null before the first cursor.
+     */
+    protected GroupTable getGroupTable() {
+        return mGroups;
+    }
+
+    /**
+     * Returns the list position of the first grouped item, for subclasses showing other items
+     * before them.
+     */
+    protected int getFirstGroupedItemPosition() {
+        return 0;
+    }
+
+    /**
+     * Called on the main thread once the groups of a new cursor are published and the list is
+     * notified of the changes.
+     */
+    protected void onGroupsPublished() {
+    }
+
+    /**
+     * Called on the pending table after {@link #addGroups} grouped the first rows of a cursor made
+     * of rows prepended to the rows of the base table, for subclasses to copy what they read
+     * while grouping the other rows from the base table.
+     *
+     * @param base The table of the rows the rows were prepended to.
+     * @param prependedCount The number of rows prepended.
+     * @param regroupedCount The number of rows grouped again, the prepended rows and the rows of
+     *     the first items of the base table. The other rows keep their groups, shifted by the
+     *     number of rows prepended.
+     */
+    protected void onRowsPrepended(GroupTable base, int prependedCount, int regroupedCount) {
+    }
+
+    /**
+     * Called on the pending table after {@link #addGroups} grouped rows appended to the rows of
+     * the base table with the rows of its last item, for subclasses to move what they read while
+     * grouping after what they read from the other rows of the base table, copied from it.
+     *
+     * @param base The table of the rows the rows were appended to.
+     * @param keptCount The number of rows of the base table which kept their groups, before the
+     *     rows grouped again.
+     */
+    protected void onRowsAppended(GroupTable base, int keptCount) {
+    }
+
     protected abstract void onContentChanged();
 
     /**
@@ -143,20 +381,216 @@ abstract class GroupingListAdapter extends RecyclerView.Adapter {
             return;
         }
 
+        // Any cursor being grouped in the background is now out of date.
+        mPendingCursor = null;
+        swapCursor(cursor, findGroups(cursor), true);
+
+        if (cursor != null) {
+            notifyDataSetChanged();
+        }
+        onGroupsPublished();
+    }
+
+    /**
+     * Changes the cursor once its groups are found on a worker thread, and notifies the list of
+     * the items which were inserted, removed or changed, so that the main thread neither groups
+     * the cursor nor binds the items which did not change.
+     */
+    public void changeCursorInBackground(Cursor cursor) {
+        if (cursor == null || cursor == mCursor) {
+            changeCursor(cursor);
+            return;
+        }
+
+        groupInBackground(startGrouping(cursor));
+    }
+
+    /**
+     * Adds rows on top of the current cursor, once grouped on a worker thread. Only the new rows
+     * and the first items of the list are grouped again, so that the time it takes to show new
+     * rows does not depend on the number of rows in the list.
+     * <p>
+     * The rows must sort before the rows of the current cursor, which must not have been changed.
+     * Returns false, leaving the rows to the caller, if they cannot be prepended because the list
+     * is empty, a group is expanded or another cursor is being grouped.
+     */
+    public boolean prependInBackground(Cursor rows) {
+        if (!canAddRows()) {
+            return false;
+        }
+
+        groupInBackground(startPrepending(rows));
+        return true;
+    }
+
+    /**
+     * Adds rows after the rows of the current cursor, such as the next page of a list loaded
+     * page by page, once grouped on a worker thread. Only the new rows and the last item of the
+     * list are grouped again, so that a group continuing in the new rows is not split; the list
+     * is only notified of the items which were added or changed.
+     * <p>
+     * The rows must sort after the rows of the current cursor, which must not have been changed.
+     * Returns false, leaving the rows to the caller, in the same cases as
+     * {@link #prependInBackground}.
+     */
+    public boolean appendInBackground(Cursor rows) {
+        if (!canAddRows()) {
+            return false;
+        }
+
+        groupInBackground(startAppending(rows));
+        return true;
+    }
+
+    private void groupInBackground(final Grouping grouping) {
+        if (mAsyncTaskExecutor == null) {
+            mAsyncTaskExecutor = AsyncTaskExecutors.createAsyncTaskExecutor();
+        }
+        mAsyncTaskExecutor.submit(Tasks.GROUP_CURSOR, new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                groupCursor(grouping);
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void result) {
+                publishGroups(grouping);
+            }
+        });
+    }
+
+    private boolean canAddRows() {
+        return mCursor != null && mPendingCursor == null && !mGroupsToggled && mGroups != null
+                && mGroups.mItemKeys != null && mGroups.mItemKeys.length > 0;
+    }
+
+    /**
+     * Sets the cursor which will replace the current one once grouped, superseding any cursor
+     * being grouped, and takes the current items to diff its groups against.
+     */
+    @VisibleForTesting
+    Grouping startGrouping(Cursor cursor) {
+        mPendingCursor = cursor;
+        return new Grouping(cursor, mGroupsToggled ? null : mGroups, mGroupsVersion, null, null,
+                null);
+    }
+
+    /**
+     * Sets the current cursor with the rows on top as the cursor which will replace the current
+     * one once grouped, and copies the rows of the first two items of the list, which are the
+     * only ones the rows are grouped with. The caller checks {@link #canAddRows()} first.
+     */
+    @VisibleForTesting
+    Grouping startPrepending(Cursor rows) {
+        final Cursor cursor = new MergeCursor(new Cursor[] {rows, mCursor});
+        final int firstItemSize = getGroupSizeAt(mGroups, 0);
+        final int secondItemSize = mGroups.mItemKeys.length > 1
+                ? getGroupSizeAt(mGroups, firstItemSize) : 0;
+        final Cursor groupedRows = new MergeCursor(new Cursor[] {
+                rows, copyRows(mCursor, 0, firstItemSize + secondItemSize)});
+        mPendingCursor = cursor;
+        return new Grouping(cursor, mGroups, mGroupsVersion, rows, null, groupedRows);
+    }
+
+    /**
+     * Sets the current cursor followed by the rows as the cursor which will replace the current
+     * one once grouped, and copies the rows of the last item of the list, which are the only ones
+     * the rows are grouped with. The caller checks {@link #canAddRows()} first.
+     */
+    @VisibleForTesting
+    Grouping startAppending(Cursor rows) {
+        final Cursor cursor = new MergeCursor(new Cursor[] {mCursor, rows});
+        final int count = mCursor.getCount();
+        final int lastItemPosition = getLastItemPosition(mGroups, count);
+        final Cursor groupedRows = new MergeCursor(new Cursor[] {
+                copyRows(mCursor, lastItemPosition, count - lastItemPosition), rows});
+        mPendingCursor = cursor;
+        return new Grouping(cursor, mGroups, mGroupsVersion, null, rows, groupedRows);
+    }
+
+    /**
+     * Finds the groups of the cursor and the changes from the items of the base table.
+     * Does not modify the state of the list, so it can run on any thread.
+     */
+    @VisibleForTesting
+    void groupCursor(Grouping grouping) {
+        if (grouping.prependedRows != null) {
+            grouping.groups = findPrependedGroups(grouping.groupedRows, grouping.base,
+                    grouping.prependedRows.getCount());
+            if (grouping.groups != null && grouping.groups.mItemKeys != null) {
+                grouping.diff = computePrependedDiff(grouping.base, grouping.groups,
+                        grouping.groups.mItemKeys.length - grouping.base.mItemKeys.length);
+            }
+            return;
+        }
+        if (grouping.appendedRows != null) {
+            grouping.groups = findAppendedGroups(grouping.groupedRows, grouping.base);
+            if (grouping.groups.mItemKeys != null) {
+                grouping.diff = computeAppendedDiff(grouping.base, grouping.groups);
+            }
+            return;
+        }
+        grouping.groups = findGroups(grouping.cursor);
+        grouping.diff = computeDiff(grouping.base, grouping.groups);
+    }
+
+    /**
+     * Replaces the cursor with a cursor grouped by {@link #groupCursor}, unless another cursor
+     * was set since, and notifies the list of the changes.
+     */
+    @VisibleForTesting
+    void publishGroups(Grouping grouping) {
+        if (grouping.cursor != mPendingCursor) {
+            // Another cursor replaced this one while it was grouped.
+            if (grouping.getAddedRows() != null) {
+                // The other rows are the rows of the cursor they were added to.
+                grouping.getAddedRows().close();
+            } else if (grouping.cursor != mCursor) {
+                grouping.cursor.close();
+            }
+            return;
+        }
+        mPendingCursor = null;
+
+        if (grouping.groups == null) {
+            // The rows grouped again ended in the middle of a group, so the groups after them
+            // have to be found in the whole cursor, which is only read on the main thread.
+            grouping.groups = findGroups(grouping.cursor);
+            grouping.diff = computeDiff(grouping.base, grouping.groups);
+        }
+        final boolean canDispatchDiff = grouping.diff != null
+                && grouping.baseVersion == mGroupsVersion;
+        // The rows of the current cursor are still shown when rows were added to them.
+        swapCursor(grouping.cursor, grouping.groups, grouping.getAddedRows() == null);
+        if (canDispatchDiff) {
+            dispatchDiff(grouping.diff);
+        } else {
+            notifyDataSetChanged();
+        }
+        onGroupsPublished();
+    }
+
+    private void swapCursor(Cursor cursor, GroupTable groups, boolean closeOldCursor) {
         if (mCursor != null) {
             mCursor.unregisterContentObserver(mChangeObserver);
             mCursor.unregisterDataSetObserver(mDataSetObserver);
-            mCursor.close();
+            if (closeOldCursor) {
+                mCursor.close();
+            }
         }
         mCursor = cursor;
+        mGroups = groups;
+        mGroupMetadata = groups.mGroupMetadata;
+        mGroupCount = groups.mGroupCount;
+        mGroupsVersion++;
+        mGroupsToggled = false;
         resetCache();
-        findGroups();
 
         if (cursor != null) {
             cursor.registerContentObserver(mChangeObserver);
             cursor.registerDataSetObserver(mDataSetObserver);
             mRowIdColumnIndex = cursor.getColumnIndexOrThrow("_id");
-            notifyDataSetChanged();
         }
     }
 
@@ -167,17 +601,180 @@ abstract class GroupingListAdapter extends RecyclerView.Adapter {
 
     /**
      * Scans over the entire cursor looking for duplicate phone numbers that need
-     * to be collapsed.
+     * to be collapsed, and indexes the items of the list they make.
      */
-    private void findGroups() {
-        mGroupCount = 0;
-        mGroupMetadata = new long[GROUP_METADATA_ARRAY_INITIAL_SIZE];
+    private GroupTable findGroups(Cursor cursor) {
+        synchronized (mGroupingLock) {
+            mPendingGroups = newGroupTable();
+            try {
+                if (cursor != null) {
+                    addGroups(cursor);
+                    indexItems(cursor, mPendingGroups, 0, cursor.getCount(), null, 0);
+                }
+                return mPendingGroups;
+            } finally {
+                mPendingGroups = null;
+            }
+        }
+    }
 
-        if (mCursor == null) {
-            return;
+    /**
+     * Finds the groups of a cursor made of rows prepended to the rows of the base table, grouping
+     * the new rows with the first two items of the base table, which are the only ones whose
+     * group or day group header can change, and shifting the other groups. Returns null if the
+     * rows grouped again end in the middle of a group, in which case the whole cursor has to be
+     * grouped.
+     *
+     * @param rows The prepended rows followed by the rows of the first two items of the base
+     *     table, the only rows read.
+     */
+    private GroupTable findPrependedGroups(Cursor rows, GroupTable base, int prependedCount) {
+        final int baseItemCount = base.mItemKeys.length;
+        final int regroupedCount = rows.getCount();
+        final int oldRegroupedCount = regroupedCount - prependedCount;
+        final int secondItemSize = baseItemCount > 1
+                ? oldRegroupedCount - getGroupSizeAt(base, 0) : 0;
+        final int regroupedItems = Math.min(2, baseItemCount);
+
+        synchronized (mGroupingLock) {
+            final GroupTable groups = newGroupTable();
+            mPendingGroups = groups;
+            try {
+                addGroups(rows);
+                if (regroupedItems < baseItemCount && getLastItemPosition(groups, regroupedCount)
+                        != regroupedCount - secondItemSize) {
+                    // The second item joined the group of the first one, and the third one may
+                    // have to join it too.
+                    return null;
+                }
+                onRowsPrepended(base, prependedCount, regroupedCount);
+
+                for (int i = 0; i < base.mGroupCount; i++) {
+                    final long metadata = base.mGroupMetadata[i];
+                    final int offset = (int) (metadata & GROUP_OFFSET_MASK);
+                    if (offset >= oldRegroupedCount) {
+                        groups.addGroup(offset + prependedCount,
+                                (int) ((metadata & GROUP_SIZE_MASK) >> 32), false);
+                    }
+                }
+                indexItems(rows, groups, 0, regroupedCount, base, regroupedItems);
+                return groups;
+            } finally {
+                mPendingGroups = null;
+            }
         }
+    }
 
-        addGroups(mCursor);
+    /**
+     * Finds the groups of a cursor made of rows appended to the rows of the base table, grouping
+     * the new rows with the last item of the base table, the only one they can join, and keeping
+     * the other groups.
+     *
+     * @param rows The rows of the last item of the base table followed by the appended rows, the
+     *     only rows read.
+     */
+    private GroupTable findAppendedGroups(Cursor rows, GroupTable base) {
+        final int keptCount = getLastItemPosition(base, getRowCount(base));
+
+        synchronized (mGroupingLock) {
+            final GroupTable groups = newGroupTable();
+            mPendingGroups = groups;
+            try {
+                for (int i = 0; i < base.mGroupCount; i++) {
+                    final long metadata = base.mGroupMetadata[i];
+                    final int offset = (int) (metadata & GROUP_OFFSET_MASK);
+                    if (offset >= keptCount) {
+                        break;
+                    }
+                    groups.addGroup(offset, (int) ((metadata & GROUP_SIZE_MASK) >> 32), false);
+                }
+                mPendingGroupOffset = keptCount;
+                try {
+                    addGroups(rows);
+                } finally {
+                    mPendingGroupOffset = 0;
+                }
+                onRowsAppended(base, keptCount);
+
+                indexItems(new OffsetCursor(rows, keptCount), groups, keptCount,
+                        keptCount + rows.getCount(), base, base.mItemKeys.length);
+                return groups;
+            } finally {
+                mPendingGroups = null;
+            }
+        }
+    }
+
+    /**
+     * Copies the given rows of a cursor, so that they can be read on a worker thread while the
+     * list binds from the cursor. Values keep their type, so that items hash the same.
+     */
+    private static Cursor copyRows(Cursor cursor, int position, int count) {
+        final MatrixCursor copy = new MatrixCursor(cursor.getColumnNames(), count);
+        final int columnCount = cursor.getColumnCount();
+        for (int i = 0; i < count; i++) {
+            cursor.moveToPosition(position + i);
+            final Object[] row = new Object[columnCount];
+            for (int column = 0; column < columnCount; column++) {
+                switch (cursor.getType(column)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[column] = cursor.getLong(column);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[column] = cursor.getDouble(column);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[column] = cursor.getString(column);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[column] = cursor.getBlob(column);
+                        break;
+                    default:
+                        row[column] = null;
+                        break;
+                }
+            }
+            copy.addRow(row);
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the number of rows of the item starting at the given cursor position in a table
+     * without expanded groups.
+     */
+    private static int getGroupSizeAt(GroupTable groups, int cursorPosition) {
+        for (int i = 0; i < groups.mGroupCount; i++) {
+            final long metadata = groups.mGroupMetadata[i];
+            final int offset = (int) (metadata & GROUP_OFFSET_MASK);
+            if (offset == cursorPosition) {
+                return (int) ((metadata & GROUP_SIZE_MASK) >> 32);
+            } else if (offset > cursorPosition) {
+                break;
+            }
+        }
+        return 1;
+    }
+
+    /** Returns the number of rows of the items of a table without expanded groups. */
+    private static int getRowCount(GroupTable groups) {
+        int count = groups.mItemKeys.length;
+        for (int i = 0; i < groups.mGroupCount; i++) {
+            count += (int) ((groups.mGroupMetadata[i] & GROUP_SIZE_MASK) >> 32) - 1;
+        }
+        return count;
+    }
+
+    /** Returns the position of the first row of the item ending at the given row count. */
+    private static int getLastItemPosition(GroupTable groups, int rowCount) {
+        if (groups.mGroupCount > 0) {
+            final long metadata = groups.mGroupMetadata[groups.mGroupCount - 1];
+            final int offset = (int) (metadata & GROUP_OFFSET_MASK);
+            if (offset + (int) ((metadata & GROUP_SIZE_MASK) >> 32) == rowCount) {
+                return offset;
+            }
+        }
+        return rowCount - 1;
     }
 
     /**
@@ -185,28 +782,325 @@ abstract class GroupingListAdapter extends RecyclerView.Adapter {
      * {@link #addGroups} method.
      */
     protected void addGroup(int cursorPosition, int size, boolean expanded) {
-        if (mGroupCount >= mGroupMetadata.length) {
-            int newSize = idealLongArraySize(
-                    mGroupMetadata.length + GROUP_METADATA_ARRAY_INCREMENT);
-            long[] array = new long[newSize];
-            System.arraycopy(mGroupMetadata, 0, array, 0, mGroupCount);
-            mGroupMetadata = array;
+        mPendingGroups.addGroup(mPendingGroupOffset + cursorPosition, size, expanded);
+    }
+
+    /**
+     * Reads the keys and the content of the items of the list made by the groups, all collapsed,
+     * so that the list can be diffed against the next one.
+     *
+     * @param firstRow The cursor position of the first row to read the items of. The items
+     *     before it are copied from the first items of the base table.
+     * @param endRow The cursor position after the last row to read the items of.
+     * @param base The table to copy the items of the rows not read from, or null.
+     * @param baseItem The first item of the base table to copy after the rows read.
+     */
+    private void indexItems(Cursor cursor, GroupTable groups, int firstRow, int endRow,
+            GroupTable base, int baseItem) {
+        if (groups.mHasExpandedGroups) {
+            return;
+        }
+        int firstItem = firstRow;
+        int itemCount = endRow - firstRow;
+        int firstGroup = 0;
+        for (int i = 0; i < groups.mGroupCount; i++) {
+            final long metadata = groups.mGroupMetadata[i];
+            final int offset = (int) (metadata & GROUP_OFFSET_MASK);
+            if (offset >= endRow) {
+                break;
+            }
+            final int size = (int) ((metadata & GROUP_SIZE_MASK) >> 32);
+            if (offset < firstRow) {
+                firstItem -= size - 1;
+                firstGroup++;
+            } else {
+                itemCount -= size - 1;
+            }
+        }
+        final int copiedCount = base == null ? 0 : base.mItemKeys.length - baseItem;
+        final int length = firstItem + itemCount + copiedCount;
+        final long[] keys = new long[length];
+        final long[] ids = new long[length];
+        final long[] contents = new long[length];
+        if (firstItem > 0) {
+            System.arraycopy(base.mItemKeys, 0, keys, 0, firstItem);
+            System.arraycopy(base.mItemIds, 0, ids, 0, firstItem);
+            System.arraycopy(base.mItemContents, 0, contents, 0, firstItem);
+        }
+        if (copiedCount > 0) {
+            final int copiedItem = firstItem + itemCount;
+            System.arraycopy(base.mItemKeys, baseItem, keys, copiedItem, copiedCount);
+            System.arraycopy(base.mItemIds, baseItem, ids, copiedItem, copiedCount);
+            System.arraycopy(base.mItemContents, baseItem, contents, copiedItem, copiedCount);
         }
 
-        long metadata = ((long)size << 32) | cursorPosition;
-        if (expanded) {
-            metadata |= EXPANDED_GROUP_MASK;
+        final int idColumnIndex = cursor.getColumnIndexOrThrow("_id");
+        int cursorPosition = firstRow;
+        int group = firstGroup;
+        for (int item = firstItem; item < firstItem + itemCount; item++) {
+            int size = 1;
+            if (group < groups.mGroupCount) {
+                final long metadata = groups.mGroupMetadata[group];
+                if ((int) (metadata & GROUP_OFFSET_MASK) == cursorPosition) {
+                    size = (int) ((metadata & GROUP_SIZE_MASK) >> 32);
+                    group++;
+                }
+            }
+
+            cursor.moveToPosition(cursorPosition);
+            long content = getItemContentHash(cursor);
+            ids[item] = cursor.getLong(idColumnIndex);
+            keys[item] = ids[item];
+            for (int i = 1; i < size; i++) {
+                cursor.moveToNext();
+                keys[item] = cursor.getLong(idColumnIndex);
+                content = 31 * content + keys[item];
+            }
+            contents[item] = content;
+            cursorPosition += size;
         }
-        mGroupMetadata[mGroupCount++] = metadata;
+        groups.mItemKeys = keys;
+        groups.mItemIds = ids;
+        groups.mItemContents = contents;
+    }
+
+    /**
+     * Returns a hash of the content shown by the item whose first row the cursor is on, so that
+     * the items whose content did not change are not bound again when the cursor changes. The
+     * _ids of the other rows of a group are hashed separately.
+     * <p>
+     * Called while grouping, on a worker thread when the cursor is changed by
+     * {@link #changeCursorInBackground(Cursor)}.
+     */
+    protected long getItemContentHash(Cursor cursor) {
+        long hash = 0;
+        for (int column = 0; column < cursor.getColumnCount(); column++) {
+            final long value;
+            switch (cursor.getType(column)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    value = cursor.getLong(column);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    value = Double.doubleToLongBits(cursor.getDouble(column));
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    value = cursor.getString(column).hashCode();
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    value = Arrays.hashCode(cursor.getBlob(column));
+                    break;
+                default:
+                    value = 0;
+                    break;
+            }
+            hash = 31 * hash + value;
+        }
+        return hash;
+    }
+
+    /**
+     * Matches the items of the new table with the items of the old table by key. Returns null if
+     * the items cannot be matched, in which case the whole list has to be rebound.
+     */
+    private static ItemDiff computeDiff(GroupTable oldGroups, GroupTable newGroups) {
+        if (oldGroups == null || oldGroups.mItemKeys == null || newGroups.mItemKeys == null) {
+            return null;
+        }
+        final long[] oldKeys = oldGroups.mItemKeys;
+        final long[] newKeys = newGroups.mItemKeys;
+        final int[] oldPositions = indexKeys(oldKeys);
+
+        final ItemDiff diff = new ItemDiff(oldKeys.length, newKeys.length);
+        int lastOldPosition = -1;
+        for (int i = 0; i < newKeys.length; i++) {
+            final int oldPosition = findKey(oldKeys, oldPositions, newKeys[i]);
+            if (oldPosition < 0) {
+                diff.mOldPositions[i] = -1;
+                continue;
+            }
+            if (oldPosition <= lastOldPosition) {
+                // The items were reordered, which the call log never does.
+                return null;
+            }
+            lastOldPosition = oldPosition;
+            diff.mOldPositions[i] = oldPosition;
+            diff.mChanged[i] = oldGroups.mItemContents[oldPosition] != newGroups.mItemContents[i];
+        }
+        return diff;
+    }
+
+    /**
+     * Builds an open addressing hash table of the positions of the keys, so that matching the
+     * items of two tables does not box every key. The table holds the position of a key plus one
+     * in the first free slot from its hash, 0 marking the free slots; its size is a power of two
+     * at least twice the number of keys. Equal keys keep the last position.
+     */
+    private static int[] indexKeys(long[] keys) {
+        final int[] table = new int[Integer.highestOneBit(keys.length * 2 + 1) * 2];
+        final int mask = table.length - 1;
+        for (int i = 0; i < keys.length; i++) {
+            int slot = getKeySlot(keys[i], mask);
+            while (table[slot] != 0 && keys[table[slot] - 1] != keys[i]) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+        return table;
+    }
+
+    /**
+     * Returns the position of a key in the keys indexed by {@link #indexKeys}, or -1 if it is not
+     * one of them.
+     */
+    private static int findKey(long[] keys, int[] table, long key) {
+        final int mask = table.length - 1;
+        int slot = getKeySlot(key, mask);
+        while (table[slot] != 0) {
+            if (keys[table[slot] - 1] == key) {
+                return table[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int getKeySlot(long key, int mask) {
+        final int hash = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Matches the items of a table found by {@link #findPrependedGroups} with the items of its
+     * base table, knowing that only the first items of the new table may differ from the first
+     * items of the base table, whose other items are shifted by the given number of items.
+     */
+    private static ItemDiff computePrependedDiff(GroupTable oldGroups, GroupTable newGroups,
+            int shift) {
+        final long[] oldKeys = oldGroups.mItemKeys;
+        final long[] newKeys = newGroups.mItemKeys;
+        final ItemDiff diff = new ItemDiff(oldKeys.length, newKeys.length);
+        // The regrouped items are at most two more than the items shifted from the base table.
+        final int regroupedOldItems = Math.min(2, oldKeys.length);
+        final int regroupedNewItems = regroupedOldItems + shift;
+        int nextOldPosition = 0;
+        for (int i = 0; i < regroupedNewItems; i++) {
+            diff.mOldPositions[i] = -1;
+            for (int oldPosition = nextOldPosition; oldPosition < regroupedOldItems;
+                    oldPosition++) {
+                if (oldKeys[oldPosition] == newKeys[i]) {
+                    diff.mOldPositions[i] = oldPosition;
+                    diff.mChanged[i] =
+                            oldGroups.mItemContents[oldPosition] != newGroups.mItemContents[i];
+                    nextOldPosition = oldPosition + 1;
+                    break;
+                }
+            }
+        }
+        for (int i = regroupedNewItems; i < newKeys.length; i++) {
+            diff.mOldPositions[i] = i - shift;
+        }
+        return diff;
+    }
+
+    /**
+     * Matches the items of a table found by {@link #findAppendedGroups} with the items of its
+     * base table, knowing that only the last item of the base table may differ, followed by the
+     * items of the appended rows.
+     */
+    private static ItemDiff computeAppendedDiff(GroupTable oldGroups, GroupTable newGroups) {
+        final long[] oldKeys = oldGroups.mItemKeys;
+        final long[] newKeys = newGroups.mItemKeys;
+        final ItemDiff diff = new ItemDiff(oldKeys.length, newKeys.length);
+        final int lastOldPosition = oldKeys.length - 1;
+        for (int i = 0; i < lastOldPosition; i++) {
+            diff.mOldPositions[i] = i;
+        }
+        for (int i = lastOldPosition; i < newKeys.length; i++) {
+            diff.mOldPositions[i] = -1;
+        }
+        if (newKeys[lastOldPosition] == oldKeys[lastOldPosition]) {
+            diff.mOldPositions[lastOldPosition] = lastOldPosition;
+            diff.mChanged[lastOldPosition] = oldGroups.mItemContents[lastOldPosition]
+                    != newGroups.mItemContents[lastOldPosition];
+        }
+        return diff;
+    }
+
+    /**
+     * Notifies the list of the items of the diff which were removed, inserted or changed. Goes
+     * from the end of the list, so that the items before the ones being notified keep their
+     * old positions.
+     */
+    private void dispatchDiff(ItemDiff diff) {
+        final int offset = getFirstGroupedItemPosition();
+        int oldEnd = diff.mOldItemCount;
+        int newEnd = diff.mOldPositions.length;
+        for (int newPosition = newEnd - 1; newPosition >= -1; newPosition--) {
+            final int oldPosition = newPosition < 0 ? -1 : diff.mOldPositions[newPosition];
+            if (newPosition >= 0 && oldPosition < 0) {
+                // Inserted, notified with the other items before the next matched item.
+                continue;
+            }
+
+            final int removed = oldEnd - oldPosition - 1;
+            if (removed > 0) {
+                notifyItemRangeRemoved(offset + oldPosition + 1, removed);
+            }
+            final int inserted = newEnd - newPosition - 1;
+            if (inserted > 0) {
+                notifyItemRangeInserted(offset + oldPosition + 1, inserted);
+            }
+            if (newPosition >= 0 && diff.mChanged[newPosition]) {
+                notifyItemChanged(offset + oldPosition);
+            }
+            oldEnd = oldPosition;
+            newEnd = newPosition;
+        }
+    }
+
+    /**
+     * Returns the position of the item whose first row has the given _id, not counting the
+     * items before {@link #getFirstGroupedItemPosition()}, or -1 if there is none.
+     */
+    protected int findItemPosition(long rowId) {
+        if (mGroups == null || mGroups.mItemIds == null || mGroupsToggled) {
+            return -1;
+        }
+        final long[] ids = mGroups.mItemIds;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == rowId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the cursor position of the first row of the first item which starts at or after the
+     * given cursor position, so that the rows before it can be dropped without splitting a group.
+     */
+    public int getItemBoundary(int cursorPosition) {
+        for (int i = 0; i < mGroupCount; i++) {
+            final long metadata = mGroupMetadata[i];
+            final int offset = (int) (metadata & GROUP_OFFSET_MASK);
+            if (offset >= cursorPosition) {
+                break;
+            }
+            final int end = offset + (int) ((metadata & GROUP_SIZE_MASK) >> 32);
+            if (end > cursorPosition) {
+                return end;
+            }
+        }
+        return cursorPosition;
     }
 
     // Copy/paste from ArrayUtils
-    private int idealLongArraySize(int need) {
+    private static int idealLongArraySize(int need) {
         return idealByteArraySize(need * 8) / 8;
     }
 
     // Copy/paste from ArrayUtils
-    private int idealByteArraySize(int need) {
+    private static int idealByteArraySize(int need) {
         for (int i = 4; i < 32; i++)
             if (need <= (1 << i) - 12)
                 return (1 << i) - 12;
@@ -397,11 +1291,19 @@ abstract class GroupingListAdapter extends RecyclerView.Adapter {
             throw new IllegalArgumentException("Not a group at position " + position);
         }
 
+        if (!mGroupsToggled) {
+            // The metadata belongs to the published table, which a worker thread may be reading
+            // as the base of the groups of another cursor.
+            mGroupMetadata = Arrays.copyOf(mGroupMetadata, mGroupCount);
+        }
         if (mPositionMetadata.isExpanded) {
             mGroupMetadata[mPositionMetadata.groupPosition] &= ~EXPANDED_GROUP_MASK;
         } else {
             mGroupMetadata[mPositionMetadata.groupPosition] |= EXPANDED_GROUP_MASK;
         }
+        // The items no longer match the keys of the table.
+        mGroupsToggled = true;
+        mGroupsVersion++;
         resetCache();
         notifyDataSetChanged();
     }
@@ -27,6 +27,9 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
@@ -39,19 +42,31 @@ import android.util.Log;
 import com.android.contacts.common.util.PermissionsUtil;
 import com.android.contacts.common.util.StopWatch;
 import com.android.dialer.R;
+import com.android.dialer.dialpad.MultiLanguageMatcher;
+import com.android.dialer.dialpad.SmartDialNameIndex;
 import com.android.dialer.dialpad.SmartDialNameMatcher;
 import com.android.dialer.dialpad.SmartDialPrefix;
+import com.android.dialer.dialpad.SmartDialNumberGramIndex;
+import com.android.dialer.dialpad.SmartDialTrie;
 
-import com.android.phone.common.incall.DialerDataSubscription;
-import com.android.phone.common.incall.utils.MimeTypeUtils;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
-import java.lang.reflect.Method;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.cyanogen.ambient.incall.CallableConstants.ADDITIONAL_CALLABLE_MIMETYPES_PARAM_KEY;
 
@@ -70,17 +85,13 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     private static final AtomicBoolean sInUpdate = new AtomicBoolean(false);
     private final Context mContext;
 
-    private Class mMultiMatchClass;
-    private Object mMultiMatchObject;
-    private Method mMultiMatchMethod;
-
     /**
      * SmartDial DB version ranges:
      * <pre>
      *   0-98   KitKat
      * </pre>
      */
-    public static final int DATABASE_VERSION = 70007;
+    public static final int DATABASE_VERSION = 70008;
     public static final String DATABASE_NAME = "dialer.db";
 
     /**
@@ -90,7 +101,196 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     private static final String LAST_UPDATED_MILLIS = "last_updated_millis";
     private static final String DATABASE_VERSION_PROPERTY = "database_version";
 
-    private static final int MAX_ENTRIES = 40;
+    /**
+     * Index maintenance state, kept in {@link Tables#PROPERTIES}: the version of the smart dial
+     * indexes created, the number of rows of the smart dial tables when they were last analyzed,
+     * and the number of rows inserted or deleted since then.
+     */
+    private static final String SMARTDIAL_INDEX_VERSION_PROPERTY = "smartdial_index_version";
+    private static final String SMARTDIAL_ANALYZED_ROWS_PROPERTY = "smartdial_analyzed_rows";
+    private static final String SMARTDIAL_CHANGED_ROWS_PROPERTY = "smartdial_changed_rows";
+
+    /**
+     * The version of the dialpad indexes of the names in the smart dial table. The tables are
+     * rebuilt when it differs from {@link SmartDialNameIndex#getVersion} for the current map.
+     */
+    private static final String SMARTDIAL_NAME_INDEX_VERSION_PROPERTY =
+            "smartdial_name_index_version";
+
+    /**
+     * The mimetypes of the plugins whose rows were indexed. The tables are rebuilt when a plugin
+     * brings a mimetype they have not indexed yet, as the rows of that mimetype in unchanged
+     * contacts would never be picked up by the updates otherwise.
+     */
+    private static final String SMARTDIAL_INDEXED_MIMETYPES_PROPERTY =
+            "smartdial_indexed_mimetypes";
+
+    /** Bump when the indexes created by {@link #createSmartDialIndexes} change. */
+    private static final int SMARTDIAL_INDEX_VERSION = 1;
+
+    /**
+     * Updates analyze the smart dial tables right away once the rows changed since the last
+     * ANALYZE reach a tenth of the tables, and at least this many rows. Smaller changes are left
+     * to {@link SmartDialMaintenanceJob}.
+     */
+    private static final int MIN_ANALYZE_CHANGED_ROWS = 1000;
+    private static final int ANALYZE_CHANGED_ROWS_DIVISOR = 10;
+
+    /** The database is vacuumed once more than a quarter of its pages are free. */
+    private static final int VACUUM_FREE_PAGES_DIVISOR = 4;
+
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 40;
+
+    /**
+     * Number of contact ids bound to a single delete statement, below the default limit of 999
+     * host parameters of SQLite.
+     */
+    private static final int MAX_BULK_DELETE_CONTACTS = 500;
+
+    /** Number of updated contact rows handed to a prefix worker at once. */
+    private static final int PREFIX_BATCH_SIZE = 256;
+    /** Bounds the number of batches read but not written yet, and thus the memory used. */
+    private static final int MAX_PENDING_PREFIX_BATCHES = 8;
+    /** Time after which the idle prefix workers exit, until the next update needs them. */
+    private static final long PREFIX_WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    /** Workers computing the prefixes of updated contacts, created by the first update. */
+    private static ExecutorService sPrefixExecutor;
+
+    /**
+     * Query modes for {@link #getLooseMatches}.
+     * {@link #QUERY_MODE_FULL_SCAN} sorts every row of the smartdial table and runs the name
+     * matcher over them until enough matches are found.
+     * {@link #QUERY_MODE_PREFIX_INDEX} first resolves candidate contacts through a range lookup on
+     * {@link Tables#PREFIX_TABLE}, and only sorts and verifies the rows of those contacts. Numbers
+     * that only match in the middle (not covered by the prefix table) are not returned in this
+     * mode.
+     * {@link #QUERY_MODE_MEMORY_INDEX} resolves the candidate contacts through the resident
+     * {@link SmartDialTrie} without touching the database, and behaves like
+     * {@link #QUERY_MODE_PREFIX_INDEX} whenever the trie is not loaded or over its memory budget.
+     * Numbers matching queries of {@link SmartDialNumberGramIndex#GRAM_LENGTH} digits or more in
+     * the middle are found through the resident {@link SmartDialNumberGramIndex}. Shorter queries
+     * match most numbers somewhere, and have no grams to look up, so they scan every row like
+     * {@link #QUERY_MODE_FULL_SCAN}. While the tables are being updated, every query scans every
+     * row, so that it keeps finding the same numbers. Mid-number matches are only missed while
+     * the trie or the number index is not loaded or over its memory budget.
+     */
+    public static final int QUERY_MODE_FULL_SCAN = 0;
+    public static final int QUERY_MODE_PREFIX_INDEX = 1;
+    public static final int QUERY_MODE_MEMORY_INDEX = 2;
+
+    private volatile int mQueryMode = QUERY_MODE_MEMORY_INDEX;
+
+    /**
+     * Number of arguments of the selections restricting the rows to the candidates of the memory
+     * index. The ids are bound, and the list of candidates is padded to the next of these sizes
+     * by repeating its last id, so that a handful of statements serve every keystroke.
+     */
+    private static final int[] CANDIDATE_BUCKET_SIZES = {8, 32, 128, 512};
+
+    /**
+     * Candidate lists of the memory index longer than this are not worth binding into the SQL
+     * query, the prefix table lookup is used instead, along with the mid-number candidates if
+     * there are no more of them than this. This stays well below the 999 arguments SQLite
+     * accepts.
+     */
+    private static final int MAX_MEMORY_INDEX_CANDIDATES =
+            CANDIDATE_BUCKET_SIZES[CANDIDATE_BUCKET_SIZES.length - 1];
+
+    /**
+     * Head of the smart dial queries, completed with the mimetype selection of
+     * {@link SmartDialMimeTypes} and the candidate restriction. The SQL text only depends on the
+     * call method, on the enabled mimetypes and on the bucket size of the candidate list, so
+     * SQLite keeps using the few statements it compiled for the first keystrokes.
+     */
+    private static final String LOOSE_MATCHES_SELECT = "SELECT " +
+            SmartDialDbColumns.DATA_ID + ", " +
+            SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
+            SmartDialDbColumns.PHOTO_ID + ", " +
+            SmartDialDbColumns.NUMBER + ", " +
+            SmartDialDbColumns.CONTACT_ID + ", " +
+            SmartDialDbColumns.LOOKUP_KEY + ", " +
+            SmartDialDbColumns.PHONE_TYPE + ", " +
+            SmartDialDbColumns.MIMETYPE + ", " +
+            SmartDialDbColumns.PHONE_LABEL + ", " +
+            SmartDialDbColumns.STARRED + ", " +
+            SmartDialDbColumns.IS_SUPER_PRIMARY + ", " +
+            SmartDialDbColumns.LAST_TIME_USED + ", " +
+            SmartDialDbColumns.TIMES_USED + ", " +
+            SmartDialDbColumns.IN_VISIBLE_GROUP + ", " +
+            SmartDialDbColumns.IS_PRIMARY + ", " +
+            SmartDialDbColumns.DIALPAD_INDEX + ", " +
+            SmartDialDbColumns.DIALPAD_INDEX_SOURCES +
+            " FROM " + Tables.SMARTDIAL_TABLE +
+            " WHERE ";
+
+    /** Contacts owning a prefix in the range of the two arguments of the condition. */
+    private static final String PREFIX_RANGE_CONDITION =
+            SmartDialDbColumns.CONTACT_ID + " IN (SELECT " +
+            PrefixColumns.CONTACT_ID + " FROM " + Tables.PREFIX_TABLE +
+            " WHERE " + PrefixColumns.PREFIX + " >= ? AND " +
+            PrefixColumns.PREFIX + " < ?)";
+
+    /** Restricts the rows to contacts owning a prefix in the range of the last two arguments. */
+    private static final String PREFIX_RANGE_SELECTION = " AND " + PREFIX_RANGE_CONDITION;
+
+    /** Selections restricting the rows to a list of candidates, for every bucket size. */
+    private static final String[] CANDIDATE_SELECTIONS =
+            new String[CANDIDATE_BUCKET_SIZES.length];
+
+    /**
+     * Selections restricting the rows to contacts owning a prefix in the range of the first two
+     * arguments, or to a list of mid-number candidates, for every bucket size. They serve the
+     * memory index when it finds more candidates than can be bound, as the prefix table has no
+     * entry for the numbers the query only matches in the middle.
+     */
+    private static final String[] PREFIX_RANGE_OR_CANDIDATE_SELECTIONS =
+            new String[CANDIDATE_BUCKET_SIZES.length];
+    static {
+        for (int i = 0; i < CANDIDATE_BUCKET_SIZES.length; i++) {
+            final StringBuilder condition = new StringBuilder(
+                    SmartDialDbColumns.CONTACT_ID + " IN (?");
+            for (int j = 1; j < CANDIDATE_BUCKET_SIZES[i]; j++) {
+                condition.append(",?");
+            }
+            condition.append(')');
+            CANDIDATE_SELECTIONS[i] = " AND " + condition;
+            PREFIX_RANGE_OR_CANDIDATE_SELECTIONS[i] = " AND (" + PREFIX_RANGE_CONDITION + " OR "
+                    + condition + ")";
+        }
+    }
+
+    /** Resident prefix index, null until it has been loaded from the prefix table. */
+    private volatile SmartDialTrie mSmartDialTrie;
+
+    /** Resident index of mid-number matches, loaded and updated along with the trie. */
+    private volatile SmartDialNumberGramIndex mNumberGramIndex;
+
+    /**
+     * Version of the name indexes stored in the smart dial table, null until it has been read
+     * from the properties table.
+     */
+    private volatile String mNameIndexVersion;
+
+    /**
+     * Bumped whenever the smart dial tables change, so that callers holding on to earlier
+     * results can tell whether they are still valid.
+     */
+    private final AtomicInteger mSmartDialGeneration = new AtomicInteger();
+
+    /**
+     * Smart dial queries cancelled because the user typed on, and queries that ran to the end.
+     * See {@link #getLooseMatches(String, SmartDialNameMatcher, String, CancellationSignal)}.
+     */
+    private final AtomicInteger mCancelledSmartDialQueries = new AtomicInteger();
+    private final AtomicInteger mCompletedSmartDialQueries = new AtomicInteger();
+
+    /** Number of rows the smart dial query loop goes through between cancellation checks. */
+    private static final int CANCELLATION_CHECK_ROWS = 8;
+
+    /** Number of names handed to the {@link MultiLanguageMatcher} of the device at once. */
+    private static final int MULTI_LANGUAGE_BATCH_SIZE = 64;
 
     public interface Tables {
         /** Saves the necessary smart dial information of all contacts. */
@@ -122,6 +322,10 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         static final String MIMETYPE = "mimetype";
         static final String PHONE_TYPE = "phone_type";
         static final String PHONE_LABEL = "phone_label";
+        /** Dialpad index of the display name, see {@link SmartDialNameIndex}. */
+        static final String DIALPAD_INDEX = "dialpad_index";
+        /** Positions in the display name of the characters of the dialpad index. */
+        static final String DIALPAD_INDEX_SOURCES = "dialpad_index_sources";
     }
 
     public static interface PrefixColumns extends BaseColumns {
@@ -191,6 +395,9 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         static final String SELECTION = SELECT_UPDATED_CLAUSE + " AND " +
                 SELECT_IGNORE_LOOKUP_KEY_TOO_LONG_CLAUSE;
 
+        /** Reads the rows of a contact one after the other. */
+        static final String SORT_ORDER = Phone.CONTACT_ID;
+
         public static Uri constructExtendedUri(String mimeTypes) {
             return (TextUtils.isEmpty(mimeTypes)) ? URI : URI.buildUpon()
                     .appendQueryParameter(ADDITIONAL_CALLABLE_MIMETYPES_PARAM_KEY, mimeTypes)
@@ -218,8 +425,12 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     /**
      * Gets the sorting order for the smartdial table. This computes a SQL "ORDER BY" argument by
      * composing contact status and recent contact details together.
+     *
+     * {@link #getLooseMatches} ranks the rows in Java with {@link SmartDialRanker}; the SQL form
+     * is kept as the reference the ranker must agree with.
      */
-    private static interface SmartDialSortingOrder {
+    @VisibleForTesting
+    static interface SmartDialSortingOrder {
         /** Current contacts - those contacted within the last 3 days (in milliseconds) */
         static final long LAST_TIME_USED_CURRENT_MS = 3L * 24 * 60 * 60 * 1000;
         /** Recent contacts - those contacted within the last 30 days (in milliseconds) */
@@ -269,9 +480,18 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         public final String mimeType;
         public final int phoneType;
         public final String phoneLabel;
+        /** Dialpad index of the display name, null if it is not known. */
+        public final SmartDialNameIndex nameIndex;
 
         public ContactNumber(long id, long dataID, String displayName, String phoneNumber,
                 String lookupKey, long photoId, String mimeType, int phoneType, String phoneLabel) {
+            this(id, dataID, displayName, phoneNumber, lookupKey, photoId, mimeType, phoneType,
+                    phoneLabel, null);
+        }
+
+        public ContactNumber(long id, long dataID, String displayName, String phoneNumber,
+                String lookupKey, long photoId, String mimeType, int phoneType, String phoneLabel,
+                SmartDialNameIndex nameIndex) {
             this.dataId = dataID;
             this.id = id;
             this.displayName = displayName;
@@ -281,6 +501,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             this.mimeType = mimeType;
             this.phoneType = phoneType;
             this.phoneLabel = phoneLabel;
+            this.nameIndex = nameIndex;
         }
 
         @Override
@@ -374,33 +595,23 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     protected DialerDatabaseHelper(Context context, String databaseName, int dbVersion) {
         super(context, databaseName, null, dbVersion);
         mContext = Preconditions.checkNotNull(context, "Context must not be null");
+        // Lets smart dial queries keep reading the last committed tables while an update is
+        // being written, see updateSmartDialDatabase().
+        setWriteAheadLoggingEnabled(true);
     }
 
-    private void initMultiLanguageSearch() {
-        try {
-            if (mMultiMatchClass == null) {
-                mMultiMatchClass = Class
-                        .forName("com.qualcomm.qti.smartsearch.SmartMatch");
-                Log.d(TAG, "create multi match success");
-            }
-            if (mMultiMatchObject == null && mMultiMatchClass != null) {
-                mMultiMatchObject = mMultiMatchClass.newInstance();
-            }
-            if (mMultiMatchMethod == null && mMultiMatchClass != null) {
-                mMultiMatchMethod = mMultiMatchClass.getDeclaredMethod(
-                        "getMatchStringIndex", String.class, String.class,
-                        int.class);
-            }
-        } catch (Exception e) {
-        }
-    }
-
-    public Object getMultiMatchObject() {
-        return mMultiMatchObject;
+    /**
+     * Sets how {@link #getLooseMatches} finds its candidate rows, one of
+     * {@link #QUERY_MODE_FULL_SCAN}, {@link #QUERY_MODE_PREFIX_INDEX} or
+     * {@link #QUERY_MODE_MEMORY_INDEX}, which is the default. The modes are described with the
+     * constants.
+     */
+    public void setQueryMode(int queryMode) {
+        mQueryMode = queryMode;
     }
 
-    public Method getMultiMatchMethod() {
-        return mMultiMatchMethod;
+    public int getQueryMode() {
+        return mQueryMode;
     }
 
     /**
@@ -415,6 +626,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
 
     private void setupTables(SQLiteDatabase db) {
         dropTables(db);
+        mNameIndexVersion = null;
         db.execSQL("CREATE TABLE " + Tables.SMARTDIAL_TABLE + " (" +
                 SmartDialDbColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
                 SmartDialDbColumns.DATA_ID + " INTEGER, " +
@@ -432,7 +644,9 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 SmartDialDbColumns.IS_PRIMARY + " INTEGER, " +
                 SmartDialDbColumns.MIMETYPE + " TEXT, " +
                 SmartDialDbColumns.PHONE_TYPE + " INTEGER, " +
-                SmartDialDbColumns.PHONE_LABEL + " Text" +
+                SmartDialDbColumns.PHONE_LABEL + " Text, " +
+                SmartDialDbColumns.DIALPAD_INDEX + " TEXT, " +
+                SmartDialDbColumns.DIALPAD_INDEX_SOURCES + " BLOB" +
                 ");");
 
         db.execSQL("CREATE TABLE " + Tables.PREFIX_TABLE + " (" +
@@ -610,12 +824,8 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             // reset last updated so that we query for all contacts
             resetSmartDialLastUpdatedTime();
 
-            // clear all contacts
-            final SQLiteDatabase db = getWritableDatabase();
-            removeAllContacts(db);
-
-            // repopulate
-            updateSmartDialDatabase();
+            // clear all contacts and repopulate, in a single transaction
+            updateSmartDialDatabase(true);
             return null;
         }
 
@@ -642,32 +852,23 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
      *
      * @param db Database pointer to the dialer database.
      * @param last_update_time Time stamp of last update on the smartdial database
+     * @return The number of rows removed from the smartdial and prefix tables.
      */
-    private void removeDeletedContacts(SQLiteDatabase db, String last_update_time) {
+    private int removeDeletedContacts(SQLiteDatabase db, String last_update_time) {
         final Cursor deletedContactCursor = mContext.getContentResolver().query(
                 DeleteContactQuery.URI,
                 DeleteContactQuery.PROJECTION,
                 DeleteContactQuery.SELECT_UPDATED_CLAUSE,
                 new String[] {last_update_time}, null);
         if (deletedContactCursor == null) {
-            return;
+            return 0;
         }
 
-        db.beginTransaction();
         try {
-            while (deletedContactCursor.moveToNext()) {
-                final Long deleteContactId =
-                        deletedContactCursor.getLong(DeleteContactQuery.DELETED_CONTACT_ID);
-                db.delete(Tables.SMARTDIAL_TABLE,
-                        SmartDialDbColumns.CONTACT_ID + "=" + deleteContactId, null);
-                db.delete(Tables.PREFIX_TABLE,
-                        PrefixColumns.CONTACT_ID + "=" + deleteContactId, null);
-            }
-
-            db.setTransactionSuccessful();
+            return removeContacts(db, readContactIds(deletedContactCursor,
+                    DeleteContactQuery.DELETED_CONTACT_ID));
         } finally {
             deletedContactCursor.close();
-            db.endTransaction();
         }
     }
 
@@ -678,25 +879,45 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
 
      * @param db Database pointer to the dialer database.
      * @param last_update_time Time stamp of last successful update of the dialer database.
+     * @return The number of rows removed from the smartdial and prefix tables.
      */
-    private void removePotentiallyCorruptedContacts(SQLiteDatabase db, String last_update_time) {
-        db.delete(Tables.PREFIX_TABLE,
+    private int removePotentiallyCorruptedContacts(SQLiteDatabase db, String last_update_time) {
+        final int removedPrefixes = db.delete(Tables.PREFIX_TABLE,
                 PrefixColumns.CONTACT_ID + " IN " +
                 "(SELECT " + SmartDialDbColumns.CONTACT_ID + " FROM " + Tables.SMARTDIAL_TABLE +
                 " WHERE " + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + " > " +
                 last_update_time + ")",
                 null);
-        db.delete(Tables.SMARTDIAL_TABLE,
+        final int removedRows = db.delete(Tables.SMARTDIAL_TABLE,
                 SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + " > " + last_update_time, null);
+        if (removedPrefixes > 0) {
+            // We don't know which contacts were removed, reload the whole prefix index.
+            mSmartDialTrie = null;
+            mNumberGramIndex = null;
+        }
+        return removedPrefixes + removedRows;
     }
 
     /**
      * Removes all entries in the smartdial contact database.
+     *
+     * @return The number of rows removed from the smartdial and prefix tables.
      */
     @VisibleForTesting
-    void removeAllContacts(SQLiteDatabase db) {
-        db.delete(Tables.SMARTDIAL_TABLE, null, null);
-        db.delete(Tables.PREFIX_TABLE, null, null);
+    int removeAllContacts(SQLiteDatabase db) {
+        // A "1" where clause makes SQLite report the number of deleted rows.
+        final int removedRows = db.delete(Tables.SMARTDIAL_TABLE, "1", null)
+                + db.delete(Tables.PREFIX_TABLE, "1", null);
+        final SmartDialTrie trie = mSmartDialTrie;
+        if (trie != null) {
+            trie.clear();
+        }
+        final SmartDialNumberGramIndex numberGramIndex = mNumberGramIndex;
+        if (numberGramIndex != null) {
+            numberGramIndex.clear();
+        }
+        mSmartDialGeneration.incrementAndGet();
+        return removedRows;
     }
 
     /**
@@ -713,23 +934,171 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
      *
      * @param db Database pointer to the smartdial database
      * @param updatedContactCursor Cursor pointing to the list of recently updated contacts.
+     * @return The number of rows removed from the smartdial and prefix tables.
      */
-    private void removeUpdatedContacts(SQLiteDatabase db, Cursor updatedContactCursor) {
+    private int removeUpdatedContacts(SQLiteDatabase db, Cursor updatedContactCursor) {
+        return removeContacts(db, readContactIds(updatedContactCursor, PhoneQuery.PHONE_CONTACT_ID));
+    }
+
+    /**
+     * Reads the distinct contact ids of a cursor, in ascending order.
+     */
+    private static long[] readContactIds(Cursor cursor, int columnIndex) {
+        long[] contactIds = new long[cursor.getCount()];
+        int count = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            if (count == contactIds.length) {
+                contactIds = Arrays.copyOf(contactIds, count * 2 + 1);
+            }
+            contactIds[count++] = cursor.getLong(columnIndex);
+        }
+        Arrays.sort(contactIds, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || contactIds[i] != contactIds[distinct - 1]) {
+                contactIds[distinct++] = contactIds[i];
+            }
+        }
+        return Arrays.copyOf(contactIds, distinct);
+    }
+
+    /**
+     * Removes the rows of the given contacts from the smartdial and prefix tables, binding up to
+     * {@link #MAX_BULK_DELETE_CONTACTS} ids to each delete statement, in one transaction.
+     *
+     * @param db Database pointer to the smartdial database.
+     * @param contactIds Distinct ids of the contacts to remove.
+     * @return The number of rows removed from the smartdial and prefix tables.
+     */
+    @VisibleForTesting
+    int removeContacts(SQLiteDatabase db, long[] contactIds) {
+        if (contactIds.length == 0) {
+            return 0;
+        }
+        final long start = DEBUG ? SystemClock.elapsedRealtime() : 0;
+        int statements = 0;
+        int removedRows = 0;
+        SQLiteStatement smartDialDelete = null;
+        SQLiteStatement prefixDelete = null;
+        int statementSize = 0;
+
         db.beginTransaction();
         try {
-            while (updatedContactCursor.moveToNext()) {
-                final Long contactId = updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID);
-
-                db.delete(Tables.SMARTDIAL_TABLE, SmartDialDbColumns.CONTACT_ID + "=" +
-                        contactId, null);
-                db.delete(Tables.PREFIX_TABLE, PrefixColumns.CONTACT_ID + "=" +
-                        contactId, null);
+            for (int offset = 0; offset < contactIds.length; offset += MAX_BULK_DELETE_CONTACTS) {
+                final int size = Math.min(MAX_BULK_DELETE_CONTACTS, contactIds.length - offset);
+                if (size != statementSize) {
+                    // Only the last chunk can be smaller, so at most two statements are compiled
+                    // per table.
+                    if (smartDialDelete != null) {
+                        smartDialDelete.close();
+                        prefixDelete.close();
+                    }
+                    final String placeholders = buildPlaceholders(size);
+                    smartDialDelete = db.compileStatement("DELETE FROM " + Tables.SMARTDIAL_TABLE +
+                            " WHERE " + SmartDialDbColumns.CONTACT_ID + " IN " + placeholders);
+                    prefixDelete = db.compileStatement("DELETE FROM " + Tables.PREFIX_TABLE +
+                            " WHERE " + PrefixColumns.CONTACT_ID + " IN " + placeholders);
+                    statementSize = size;
+                }
+                for (int i = 0; i < size; i++) {
+                    smartDialDelete.bindLong(i + 1, contactIds[offset + i]);
+                    prefixDelete.bindLong(i + 1, contactIds[offset + i]);
+                }
+                removedRows += smartDialDelete.executeUpdateDelete();
+                removedRows += prefixDelete.executeUpdateDelete();
+                statements += 2;
+            }
+            for (long contactId : contactIds) {
+                removeContactFromSmartDialTrie(contactId);
             }
 
             db.setTransactionSuccessful();
         } finally {
+            if (smartDialDelete != null) {
+                smartDialDelete.close();
+                prefixDelete.close();
+            }
             db.endTransaction();
         }
+        if (DEBUG) {
+            Log.v(TAG, "Removed " + contactIds.length + " contacts with " + statements
+                    + " statements in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+        return removedRows;
+    }
+
+    /**
+     * Returns "(?,?,...)" with the given number of placeholders.
+     */
+    private static String buildPlaceholders(int count) {
+        final StringBuilder builder = new StringBuilder(count * 2 + 1);
+        builder.append('(');
+        for (int i = 0; i < count; i++) {
+            if (i != 0) {
+                builder.append(',');
+            }
+            builder.append('?');
+        }
+        return builder.append(')').toString();
+    }
+
+    /**
+     * A row of the updated contacts cursor, along with the prefixes computed for it by a
+     * {@link PrefixTask}.
+     */
+    private static class UpdatedContactRow {
+        long dataId;
+        String number;
+        long contactId;
+        String lookupKey;
+        String displayName;
+        long photoId;
+        long lastTimeUsed;
+        int timesUsed;
+        int starred;
+        int isSuperPrimary;
+        int inVisibleGroup;
+        int isPrimary;
+        String mimetype;
+        int phoneType;
+        String label;
+
+        /** Whether the name prefixes of the contact are computed along with this row. */
+        boolean withNamePrefixes;
+
+        ArrayList<String> numberPrefixes;
+        ArrayList<String> namePrefixes;
+        SmartDialNameIndex nameIndex;
+    }
+
+    /**
+     * Computes the prefixes of a batch of rows, on a worker thread.
+     */
+    private static class PrefixTask implements Callable<ArrayList<UpdatedContactRow>> {
+        private final ArrayList<UpdatedContactRow> mRows;
+
+        public PrefixTask(ArrayList<UpdatedContactRow> rows) {
+            mRows = rows;
+        }
+
+        @Override
+        public ArrayList<UpdatedContactRow> call() {
+            final SmartDialPrefix.PrefixBuffer prefixBuffer = new SmartDialPrefix.PrefixBuffer();
+            for (UpdatedContactRow row : mRows) {
+                row.numberPrefixes = TextUtils.equals(row.mimetype, Phone.CONTENT_ITEM_TYPE) ?
+                        SmartDialPrefix.parseToNumberTokens(row.number) :
+                        SmartDialPrefix.generateNamePrefixes(row.number);
+                row.nameIndex = SmartDialPrefix.getMap().buildNameIndex(row.displayName);
+                if (row.withNamePrefixes) {
+                    // The index holds the name already transliterated, or split for Korean
+                    // names, so the name prefixes don't go through the map a second time.
+                    row.namePrefixes = SmartDialPrefix.generateNamePrefixes(row.nameIndex,
+                            prefixBuffer);
+                }
+            }
+            return mRows;
+        }
     }
 
     /**
@@ -742,6 +1111,43 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     @VisibleForTesting
     protected void insertUpdatedContactsAndNumberPrefix(SQLiteDatabase db,
             Cursor updatedContactCursor, Long currentMillis) {
+        insertUpdatedContacts(db, updatedContactCursor, currentMillis, false);
+    }
+
+    /**
+     * Inserts updated contacts as rows to the smartdial table, and their prefixes to the prefix
+     * table.
+     *
+     * The work is split in three stages: this thread reads the cursor into batches of rows, a
+     * pool of workers computes the prefixes of every batch, and this thread, which owns the
+     * transaction, writes the batches back in order as they complete. Only a bounded number of
+     * batches is in flight at any time.
+     *
+     * @param db Database pointer to the smartdial database.
+     * @param updatedContactCursor Cursor pointing to the list of recently updated contacts.
+     * @param currentMillis Current time to be recorded in the smartdial table as update timestamp.
+     * @param withNamePrefixes Whether to also insert the name prefixes of the contacts.
+     * @return The number of rows inserted to the smartdial and prefix tables.
+     */
+    @VisibleForTesting
+    int insertUpdatedContacts(SQLiteDatabase db, Cursor updatedContactCursor,
+            Long currentMillis, boolean withNamePrefixes) {
+        if (updatedContactCursor.getCount() == 0) {
+            return 0;
+        }
+        final ExecutorService executor = getPrefixExecutor();
+        final ArrayDeque<Future<ArrayList<UpdatedContactRow>>> pendingBatches =
+                new ArrayDeque<Future<ArrayList<UpdatedContactRow>>>();
+        /**
+         * The contact and name of the row read last. The rows of a contact are read one after
+         * the other, and the name prefixes of a contact are only computed for its first row.
+         */
+        long lastContactId = -1;
+        String lastDisplayName = null;
+        final InsertedPrefixes insertedPrefixes = new InsertedPrefixes();
+        final String missingName = mContext.getResources().getString(R.string.missing_name);
+        int insertedRows = 0;
+
         db.beginTransaction();
         try {
             final String sqlInsert = "INSERT INTO " + Tables.SMARTDIAL_TABLE + " (" +
@@ -760,8 +1166,10 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                     SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + ", " +
                     SmartDialDbColumns.MIMETYPE + ", " +
                     SmartDialDbColumns.PHONE_TYPE + ", " +
-                    SmartDialDbColumns.PHONE_LABEL + ") " +
-                    " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+                    SmartDialDbColumns.PHONE_LABEL + ", " +
+                    SmartDialDbColumns.DIALPAD_INDEX + ", " +
+                    SmartDialDbColumns.DIALPAD_INDEX_SOURCES + ") " +
+                    " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
             final SQLiteStatement insert = db.compileStatement(sqlInsert);
 
             final String numberSqlInsert = "INSERT INTO " + Tables.PREFIX_TABLE + " (" +
@@ -770,116 +1178,189 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                     " VALUES (?, ?)";
             final SQLiteStatement numberInsert = db.compileStatement(numberSqlInsert);
 
+            ArrayList<UpdatedContactRow> batch = Lists.newArrayList();
             updatedContactCursor.moveToPosition(-1);
             while (updatedContactCursor.moveToNext()) {
-                insert.clearBindings();
-
                 // Handle string columns which can possibly be null first. In the case of certain
                 // null columns (due to malformed rows possibly inserted by third-party apps
                 // or sync adapters), skip the phone number row.
                 final String number = updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
                 if (TextUtils.isEmpty(number)) {
                     continue;
-                } else {
-                    insert.bindString(2, number);
                 }
 
                 final String lookupKey = updatedContactCursor.getString(
                         PhoneQuery.PHONE_LOOKUP_KEY);
                 if (TextUtils.isEmpty(lookupKey)) {
                     continue;
-                } else {
-                    insert.bindString(4, lookupKey);
                 }
 
+                final UpdatedContactRow row = new UpdatedContactRow();
+                row.number = number;
+                row.lookupKey = lookupKey;
                 final String displayName = updatedContactCursor.getString(
                         PhoneQuery.PHONE_DISPLAY_NAME);
-                if (displayName == null) {
-                    insert.bindString(5, mContext.getResources().getString(R.string.missing_name));
-                } else {
-                    insert.bindString(5, displayName);
-                }
-                insert.bindLong(1, updatedContactCursor.getLong(PhoneQuery.PHONE_ID));
-                insert.bindLong(3, updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
-                insert.bindLong(6, updatedContactCursor.getLong(PhoneQuery.PHONE_PHOTO_ID));
-                insert.bindLong(7, updatedContactCursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED));
-                insert.bindLong(8, updatedContactCursor.getInt(PhoneQuery.PHONE_TIMES_USED));
-                insert.bindLong(9, updatedContactCursor.getInt(PhoneQuery.PHONE_STARRED));
-                insert.bindLong(10, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_SUPER_PRIMARY));
-                insert.bindLong(11, updatedContactCursor.getInt(PhoneQuery.PHONE_IN_VISIBLE_GROUP));
-                insert.bindLong(12, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_PRIMARY));
-                insert.bindLong(13, currentMillis);
-                insert.bindLong(15, updatedContactCursor.getInt(PhoneQuery.PHONE_TYPE));
-
-                final String mimetype =
-                        updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER_MIMETYPE);
-                insert.bindString(14, mimetype);
-
-                final String label = updatedContactCursor.getString(PhoneQuery.PHONE_LABEL);
-                if (label != null) {
-                    insert.bindString(16, label);
-                }
-
-                insert.executeInsert();
-                final String contactPhoneNumber =
-                        updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
-                final ArrayList<String> numberPrefixes =
-                        (TextUtils.equals(mimetype, Phone.CONTENT_ITEM_TYPE)) ?
-                                SmartDialPrefix.parseToNumberTokens(contactPhoneNumber) :
-                                SmartDialPrefix.generateNamePrefixes(contactPhoneNumber);
-
-                for (String numberPrefix : numberPrefixes) {
-                    numberInsert.bindLong(1, updatedContactCursor.getLong(
-                            PhoneQuery.PHONE_CONTACT_ID));
-                    numberInsert.bindString(2, numberPrefix);
-                    numberInsert.executeInsert();
-                    numberInsert.clearBindings();
+                row.displayName = displayName == null ? missingName : displayName;
+                row.dataId = updatedContactCursor.getLong(PhoneQuery.PHONE_ID);
+                row.contactId = updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID);
+                row.photoId = updatedContactCursor.getLong(PhoneQuery.PHONE_PHOTO_ID);
+                row.lastTimeUsed = updatedContactCursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED);
+                row.timesUsed = updatedContactCursor.getInt(PhoneQuery.PHONE_TIMES_USED);
+                row.starred = updatedContactCursor.getInt(PhoneQuery.PHONE_STARRED);
+                row.isSuperPrimary = updatedContactCursor.getInt(PhoneQuery.PHONE_IS_SUPER_PRIMARY);
+                row.inVisibleGroup = updatedContactCursor.getInt(PhoneQuery.PHONE_IN_VISIBLE_GROUP);
+                row.isPrimary = updatedContactCursor.getInt(PhoneQuery.PHONE_IS_PRIMARY);
+                row.phoneType = updatedContactCursor.getInt(PhoneQuery.PHONE_TYPE);
+                row.mimetype = updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER_MIMETYPE);
+                row.label = updatedContactCursor.getString(PhoneQuery.PHONE_LABEL);
+                row.withNamePrefixes = withNamePrefixes && (row.contactId != lastContactId
+                        || !row.displayName.equals(lastDisplayName));
+                lastContactId = row.contactId;
+                lastDisplayName = row.displayName;
+                batch.add(row);
+
+                if (batch.size() == PREFIX_BATCH_SIZE) {
+                    pendingBatches.add(executor.submit(new PrefixTask(batch)));
+                    batch = Lists.newArrayList();
+                    if (pendingBatches.size() == MAX_PENDING_PREFIX_BATCHES) {
+                        insertedRows += writeUpdatedContacts(insert, numberInsert,
+                                currentMillis, getPrefixTaskResult(pendingBatches.remove()),
+                                insertedPrefixes);
+                    }
                 }
             }
+            if (!batch.isEmpty()) {
+                pendingBatches.add(executor.submit(new PrefixTask(batch)));
+            }
+            while (!pendingBatches.isEmpty()) {
+                insertedRows += writeUpdatedContacts(insert, numberInsert, currentMillis,
+                        getPrefixTaskResult(pendingBatches.remove()), insertedPrefixes);
+            }
 
             db.setTransactionSuccessful();
         } finally {
+            // Batches are only left over when writing failed, they are not waited for.
+            for (Future<ArrayList<UpdatedContactRow>> pendingBatch : pendingBatches) {
+                pendingBatch.cancel(true);
+            }
             db.endTransaction();
         }
+        return insertedRows;
     }
 
     /**
-     * Inserts prefixes of contact names to the prefix table.
-     *
-     * @param db Database pointer to the smartdial database.
-     * @param nameCursor Cursor pointing to the list of distinct updated contacts.
+     * Returns the workers computing the prefixes of updated contacts, one per core but the one
+     * of the updating thread. They exit when they are idle, so the pool costs nothing between
+     * updates.
      */
-    @VisibleForTesting
-    void insertNamePrefixes(SQLiteDatabase db, Cursor nameCursor) {
-        final int columnIndexName = nameCursor.getColumnIndex(
-                SmartDialDbColumns.DISPLAY_NAME_PRIMARY);
-        final int columnIndexContactId = nameCursor.getColumnIndex(SmartDialDbColumns.CONTACT_ID);
+    private static synchronized ExecutorService getPrefixExecutor() {
+        if (sPrefixExecutor == null) {
+            final int workerCount = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(workerCount, workerCount,
+                    PREFIX_WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            executor.allowCoreThreadTimeOut(true);
+            sPrefixExecutor = executor;
+        }
+        return sPrefixExecutor;
+    }
 
-        db.beginTransaction();
+    private static ArrayList<UpdatedContactRow> getPrefixTaskResult(
+            Future<ArrayList<UpdatedContactRow>> future) {
         try {
-            final String sqlInsert = "INSERT INTO " + Tables.PREFIX_TABLE + " (" +
-                    PrefixColumns.CONTACT_ID + ", " +
-                    PrefixColumns.PREFIX  + ") " +
-                    " VALUES (?, ?)";
-            final SQLiteStatement insert = db.compileStatement(sqlInsert);
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while computing smart dial prefixes", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to compute smart dial prefixes", e.getCause());
+        }
+    }
 
-            while (nameCursor.moveToNext()) {
-                /** Computes a list of prefixes of a given contact name. */
-                final ArrayList<String> namePrefixes =
-                        SmartDialPrefix.generateNamePrefixes(nameCursor.getString(columnIndexName));
+    /**
+     * The prefixes inserted for the rows of the contact written last. The rows of a contact are
+     * read one after the other, see {@link PhoneQuery#SORT_ORDER}, and its numbers often share
+     * prefixes, such as the same number stored in two raw contacts, which are inserted once.
+     */
+    private static class InsertedPrefixes {
+        private long mContactId = -1;
+        private final HashSet<String> mPrefixes = new HashSet<String>();
 
-                for (String namePrefix : namePrefixes) {
-                    insert.bindLong(1, nameCursor.getLong(columnIndexContactId));
-                    insert.bindString(2, namePrefix);
-                    insert.executeInsert();
-                    insert.clearBindings();
+        /**
+         * Returns the prefixes not inserted yet for the contact, and records them as inserted.
+         */
+        ArrayList<String> retainNew(long contactId, ArrayList<String> prefixes) {
+            if (contactId != mContactId) {
+                mContactId = contactId;
+                mPrefixes.clear();
+            }
+            ArrayList<String> newPrefixes = null;
+            for (int i = 0; i < prefixes.size(); i++) {
+                final String prefix = prefixes.get(i);
+                if (!mPrefixes.add(prefix)) {
+                    if (newPrefixes == null) {
+                        newPrefixes = Lists.newArrayList(prefixes.subList(0, i));
+                    }
+                } else if (newPrefixes != null) {
+                    newPrefixes.add(prefix);
                 }
             }
+            return newPrefixes == null ? prefixes : newPrefixes;
+        }
+    }
 
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
+    private int writeUpdatedContacts(SQLiteStatement insert, SQLiteStatement prefixInsert,
+            Long currentMillis, ArrayList<UpdatedContactRow> rows,
+            InsertedPrefixes insertedPrefixes) {
+        int insertedRows = rows.size();
+        for (UpdatedContactRow row : rows) {
+            insert.clearBindings();
+            insert.bindLong(1, row.dataId);
+            insert.bindString(2, row.number);
+            insert.bindLong(3, row.contactId);
+            insert.bindString(4, row.lookupKey);
+            insert.bindString(5, row.displayName);
+            insert.bindLong(6, row.photoId);
+            insert.bindLong(7, row.lastTimeUsed);
+            insert.bindLong(8, row.timesUsed);
+            insert.bindLong(9, row.starred);
+            insert.bindLong(10, row.isSuperPrimary);
+            insert.bindLong(11, row.inVisibleGroup);
+            insert.bindLong(12, row.isPrimary);
+            insert.bindLong(13, currentMillis);
+            insert.bindString(14, row.mimetype);
+            insert.bindLong(15, row.phoneType);
+            if (row.label != null) {
+                insert.bindString(16, row.label);
+            }
+            insert.bindString(17, row.nameIndex.getIndex());
+            final byte[] sources = row.nameIndex.getSourcesAsBlob();
+            if (sources != null) {
+                insert.bindBlob(18, sources);
+            }
+            insert.executeInsert();
+            addNumberToGramIndex(row.contactId, row.number);
+
+            insertedRows += insertPrefixes(prefixInsert, row.contactId,
+                    insertedPrefixes.retainNew(row.contactId, row.numberPrefixes));
+            if (row.namePrefixes != null) {
+                insertedRows += insertPrefixes(prefixInsert, row.contactId,
+                        insertedPrefixes.retainNew(row.contactId, row.namePrefixes));
+            }
         }
+        return insertedRows;
+    }
+
+    private int insertPrefixes(SQLiteStatement insert, long contactId,
+            ArrayList<String> prefixes) {
+        for (String prefix : prefixes) {
+            insert.bindLong(1, contactId);
+            insert.bindString(2, prefix);
+            insert.executeInsert();
+            insert.clearBindings();
+        }
+        addPrefixesToSmartDialTrie(contactId, prefixes);
+        return prefixes.size();
     }
 
     /**
@@ -890,8 +1371,17 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
      * update.
      */
     public void updateSmartDialDatabase() {
-        initMultiLanguageSearch();
+        updateSmartDialDatabase(false);
+    }
 
+    /**
+     * All changes are written in a single transaction. The database uses write-ahead logging, so
+     * smart dial queries running meanwhile keep seeing the tables as of the last update until
+     * the transaction commits, instead of an empty or half-updated index.
+     *
+     * @param removeAll Whether to delete all smart dial data before repopulating it.
+     */
+    private void updateSmartDialDatabase(boolean removeAll) {
         final SQLiteDatabase db = getWritableDatabase();
 
         synchronized(mLock) {
@@ -903,15 +1393,30 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             /** Gets the last update time on the database. */
             final SharedPreferences databaseLastUpdateSharedPref = mContext.getSharedPreferences(
                     DATABASE_LAST_CREATED_SHARED_PREF, Context.MODE_PRIVATE);
-            final String lastUpdateMillis = String.valueOf(
+            String lastUpdateMillis = String.valueOf(
                     databaseLastUpdateSharedPref.getLong(LAST_UPDATED_MILLIS, 0));
 
+            /** The stored name indexes were built with another map, every contact is reindexed. */
+            if (!TextUtils.equals(getProperty(db, SMARTDIAL_NAME_INDEX_VERSION_PROPERTY, null),
+                    SmartDialNameIndex.getVersion(SmartDialPrefix.getMap()))) {
+                removeAll = true;
+                lastUpdateMillis = "0";
+            }
+
+            // Get callable mimetypes from incall api, modify query uri accordingly
+            final String mimeTypes = SmartDialMimeTypes.getInstance(mContext)
+                    .getIndexedMimeTypes();
+            final String indexedMimeTypes =
+                    getProperty(db, SMARTDIAL_INDEXED_MIMETYPES_PROPERTY, null);
+            if (!SmartDialMimeTypes.isIndexed(indexedMimeTypes, mimeTypes)) {
+                removeAll = true;
+                lastUpdateMillis = "0";
+            }
+
             if (DEBUG) {
                 Log.v(TAG, "Last updated at " + lastUpdateMillis);
             }
 
-            // Get callable mimetypes from incall api, modify query uri accordingly
-            String mimeTypes = MimeTypeUtils.getAllMimeTypes(DialerDataSubscription.get(mContext));
             Uri uri = PhoneQuery.constructExtendedUri(mimeTypes);
 
             /** Queries the contact database to get contacts that have been updated since the last
@@ -919,7 +1424,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
              */
             final Cursor updatedContactCursor = mContext.getContentResolver().query(uri,
                     PhoneQuery.PROJECTION, PhoneQuery.SELECTION,
-                    new String[]{lastUpdateMillis}, null);
+                    new String[]{lastUpdateMillis}, PhoneQuery.SORT_ORDER);
             if (updatedContactCursor == null) {
                 if (DEBUG) {
                     Log.e(TAG, "SmartDial query received null for cursor");
@@ -934,143 +1439,407 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 if (DEBUG) {
                     stopWatch.lap("Queried the Contacts database");
                 }
+                updateSmartDialTables(db, updatedContactCursor, lastUpdateMillis, currentMillis,
+                        removeAll, stopWatch);
+                /**
+                 * Mimetypes of plugins that went away are kept, so that a plugin briefly missing
+                 * while the subscription starts up does not trigger two rebuilds.
+                 */
+                setProperty(db, SMARTDIAL_INDEXED_MIMETYPES_PROPERTY,
+                        SmartDialMimeTypes.union(indexedMimeTypes, mimeTypes));
+            } finally {
+                updatedContactCursor.close();
+            }
+        }
+    }
 
-                /** Prevents the app from reading the dialer database when updating. */
-                sInUpdate.getAndSet(true);
-
+    /**
+     * Applies the updated contacts to the smart dial and prefix tables in a single transaction,
+     * then refreshes the index statistics and the memory index.
+     *
+     * @param db Database pointer to the smartdial database.
+     * @param updatedContactCursor Cursor pointing to the list of recently updated contacts.
+     * @param lastUpdateMillis Time stamp of last successful update of the dialer database.
+     * @param currentMillis Current time to be recorded in the smartdial table as update timestamp.
+     * @param removeAll Whether to delete all smart dial data before inserting the contacts.
+     * @param stopWatch Stop watch to report progress to, null if not debugging.
+     */
+    @VisibleForTesting
+    void updateSmartDialTables(SQLiteDatabase db, Cursor updatedContactCursor,
+            String lastUpdateMillis, Long currentMillis, boolean removeAll,
+            StopWatch stopWatch) {
+        /** Keeps readers off the memory index, which is modified as the update goes. */
+        sInUpdate.getAndSet(true);
+        mSmartDialGeneration.incrementAndGet();
+
+        final String nameIndexVersion = SmartDialNameIndex.getVersion(SmartDialPrefix.getMap());
+        boolean committed = false;
+        boolean analyze = false;
+        int changedRows = 0;
+        db.beginTransactionNonExclusive();
+        try {
+            if (removeAll) {
+                changedRows += removeAllContacts(db);
+            } else {
                 /** Removes contacts that have been deleted. */
-                removeDeletedContacts(db, lastUpdateMillis);
-                removePotentiallyCorruptedContacts(db, lastUpdateMillis);
+                changedRows += removeDeletedContacts(db, lastUpdateMillis);
+                changedRows += removePotentiallyCorruptedContacts(db, lastUpdateMillis);
+            }
 
-                if (DEBUG) {
-                    stopWatch.lap("Finished deleting deleted entries");
-                }
+            if (DEBUG) {
+                stopWatch.lap("Finished deleting deleted entries");
+            }
 
-                /** If the database did not exist before, jump through deletion as there is nothing
-                 * to delete.
+            /** If the database did not exist before, jump through deletion as there is nothing
+             * to delete.
+             */
+            if (!lastUpdateMillis.equals("0")) {
+                /** Removes contacts that have been updated. Updated contact information will be
+                 * inserted later.
                  */
-                if (!lastUpdateMillis.equals("0")) {
-                    /** Removes contacts that have been updated. Updated contact information will be
-                     * inserted later.
-                     */
-                    removeUpdatedContacts(db, updatedContactCursor);
-                    if (DEBUG) {
-                        stopWatch.lap("Finished deleting updated entries");
-                    }
-                }
-
-                /** Inserts recently updated contacts to the smartdial database.*/
-                insertUpdatedContactsAndNumberPrefix(db, updatedContactCursor, currentMillis);
+                changedRows += removeUpdatedContacts(db, updatedContactCursor);
                 if (DEBUG) {
-                    stopWatch.lap("Finished building the smart dial table");
+                    stopWatch.lap("Finished deleting updated entries");
                 }
-            } finally {
-                /** Inserts prefixes of phone numbers into the prefix table.*/
-                updatedContactCursor.close();
             }
 
-            /** Gets a list of distinct contacts which have been updated, and adds the name prefixes
-             * of these contacts to the prefix table.
+            /** Inserts recently updated contacts to the smartdial database, along with the
+             * prefixes of their numbers and names.
              */
-            final Cursor nameCursor = db.rawQuery(
-                    "SELECT DISTINCT " +
-                    SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " + SmartDialDbColumns.CONTACT_ID +
-                    " FROM " + Tables.SMARTDIAL_TABLE +
-                    " WHERE " + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME +
-                    " = " + Long.toString(currentMillis),
-                    new String[] {});
-            if (nameCursor != null) {
-                try {
-                    if (DEBUG) {
-                        stopWatch.lap("Queried the smart dial table for contact names");
-                    }
+            changedRows += insertUpdatedContacts(db, updatedContactCursor, currentMillis, true);
+            if (DEBUG) {
+                stopWatch.lap("Finished building the smart dial and prefix tables");
+            }
 
-                    /** Inserts prefixes of names into the prefix table.*/
-                    insertNamePrefixes(db, nameCursor);
-                    if (DEBUG) {
-                        stopWatch.lap("Finished building the name prefix table");
-                    }
-                } finally {
-                    nameCursor.close();
+            if (removeAll) {
+                setProperty(db, SMARTDIAL_NAME_INDEX_VERSION_PROPERTY, nameIndexVersion);
+            }
+            if (getPropertyAsInt(db, SMARTDIAL_INDEX_VERSION_PROPERTY, 0)
+                    != SMARTDIAL_INDEX_VERSION) {
+                createSmartDialIndexes(db);
+                setProperty(db, SMARTDIAL_INDEX_VERSION_PROPERTY,
+                        String.valueOf(SMARTDIAL_INDEX_VERSION));
+                if (DEBUG) {
+                    stopWatch.lap(TAG + "Finished recreating index");
                 }
             }
+            if (changedRows > 0) {
+                analyze = recordChangedRows(db, changedRows);
+            }
 
-            /** Creates index on contact_id for fast JOIN operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_contact_id_index ON " +
-                    Tables.SMARTDIAL_TABLE + " (" + SmartDialDbColumns.CONTACT_ID  + ");");
-            /** Creates index on last_smartdial_update_time for fast SELECT operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_last_update_index ON " +
-                    Tables.SMARTDIAL_TABLE + " (" +
-                    SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + ");");
-            /** Creates index on sorting fields for fast sort operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_sort_index ON " +
-                    Tables.SMARTDIAL_TABLE + " (" +
-                    SmartDialDbColumns.STARRED + ", " +
-                    SmartDialDbColumns.IS_SUPER_PRIMARY + ", " +
-                    SmartDialDbColumns.LAST_TIME_USED + ", " +
-                    SmartDialDbColumns.TIMES_USED + ", " +
-                    SmartDialDbColumns.IN_VISIBLE_GROUP +  ", " +
-                    SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
-                    SmartDialDbColumns.CONTACT_ID + ", " +
-                    SmartDialDbColumns.IS_PRIMARY +
-                    ");");
-            /** Creates index on prefix for fast SELECT operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS nameprefix_index ON " +
-                    Tables.PREFIX_TABLE + " (" + PrefixColumns.PREFIX + ");");
-            /** Creates index on contact_id for fast JOIN operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS nameprefix_contact_id_index ON " +
-                    Tables.PREFIX_TABLE + " (" + PrefixColumns.CONTACT_ID + ");");
-
-            if (DEBUG) {
-                stopWatch.lap(TAG + "Finished recreating index");
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            db.endTransaction();
+            if (!committed) {
+                // The memory index already holds the changes that were rolled back.
+                mSmartDialTrie = null;
+                mNumberGramIndex = null;
+                sInUpdate.getAndSet(false);
+                mSmartDialGeneration.incrementAndGet();
             }
+        }
 
-            /** Updates the database index statistics.*/
-            db.execSQL("ANALYZE " + Tables.SMARTDIAL_TABLE);
-            db.execSQL("ANALYZE " + Tables.PREFIX_TABLE);
-            db.execSQL("ANALYZE smartdial_contact_id_index");
-            db.execSQL("ANALYZE smartdial_last_update_index");
-            db.execSQL("ANALYZE nameprefix_index");
-            db.execSQL("ANALYZE nameprefix_contact_id_index");
+        if (removeAll) {
+            mNameIndexVersion = nameIndexVersion;
+        }
+
+        if (analyze) {
+            analyzeSmartDialTablesAndRecord(db);
             if (DEBUG) {
-                stopWatch.stopAndLog(TAG + "Finished updating index stats", 0);
+                stopWatch.lap(TAG + "Finished updating index stats");
             }
+        } else if (changedRows > 0) {
+            SmartDialMaintenanceJob.schedule(mContext);
+        }
 
-            sInUpdate.getAndSet(false);
+        final SmartDialTrie trie = mSmartDialTrie;
+        final SmartDialNumberGramIndex numberGramIndex = mNumberGramIndex;
+        if (mQueryMode == QUERY_MODE_MEMORY_INDEX
+                && (trie == null || trie.needsCompaction()
+                        || numberGramIndex == null || numberGramIndex.needsCompaction())) {
+            loadSmartDialTrie(db);
         }
+        if (DEBUG) {
+            stopWatch.stopAndLog(TAG + "Finished loading the prefix index", 0);
+        }
+
+        sInUpdate.getAndSet(false);
+        mSmartDialGeneration.incrementAndGet();
     }
 
     /**
-     * Helper method for creating the where and param entries for mimetypes
-     * @param builder our string builder
-     * @param listOfMimes a list of mimes
-     * @param params a String[] of params for the where string we are building
-     * @param isCustomMimes are these mimes from our InCallPlugins?
-     * @param selectMime CallMethod currently selected in the filter
-     * @param paramPos position to start writing our params, zero if initial.
+     * Returns a counter that changes every time the smart dial tables are modified. Results of
+     * {@link #getLooseMatches} obtained under a different generation are stale.
      */
-    private void buildWhereString(StringBuilder builder, String[] listOfMimes, String[] params,
-                                  boolean isCustomMimes, String selectMime, int paramPos) {
-
-        for (int i = 0; i < listOfMimes.length; i++) {
-            params[paramPos + i] = listOfMimes[i];
-
-            if (isCustomMimes) {
-                if (selectMime != null
-                        && MimeTypeUtils.getAllEnabledMimeTypes(
-                        DialerDataSubscription.get(mContext)).contains(selectMime)) {
-                    builder.append(SmartDialDbColumns.MIMETYPE + " = ?");
-                } else {
-                    builder.append(SmartDialDbColumns.MIMETYPE + " != ?");
+    public int getSmartDialGeneration() {
+        return mSmartDialGeneration.get();
+    }
+
+    @VisibleForTesting
+    SmartDialTrie getSmartDialTrie() {
+        return mSmartDialTrie;
+    }
+
+    @VisibleForTesting
+    SmartDialNumberGramIndex getNumberGramIndex() {
+        return mNumberGramIndex;
+    }
+
+    private void addPrefixesToSmartDialTrie(long contactId, ArrayList<String> prefixes) {
+        final SmartDialTrie trie = mSmartDialTrie;
+        if (trie != null) {
+            trie.addPrefixes(contactId, prefixes);
+        }
+    }
+
+    private void addNumberToGramIndex(long contactId, String number) {
+        final SmartDialNumberGramIndex numberGramIndex = mNumberGramIndex;
+        if (numberGramIndex != null) {
+            numberGramIndex.addNumber(contactId, number);
+        }
+    }
+
+    private void removeContactFromSmartDialTrie(long contactId) {
+        final SmartDialTrie trie = mSmartDialTrie;
+        if (trie != null) {
+            trie.removeContact(contactId);
+        }
+        final SmartDialNumberGramIndex numberGramIndex = mNumberGramIndex;
+        if (numberGramIndex != null) {
+            numberGramIndex.removeContact(contactId);
+        }
+    }
+
+    /**
+     * Builds the resident prefix index from scratch out of the prefix table, and the resident
+     * index of mid-number matches out of the numbers of the smartdial table. Later updates are
+     * applied incrementally as contacts are removed from and inserted into the tables.
+     */
+    @VisibleForTesting
+    void loadSmartDialTrie(SQLiteDatabase db) {
+        loadNumberGramIndex(db);
+        final SmartDialTrie trie = new SmartDialTrie();
+        final Cursor cursor = db.rawQuery("SELECT " +
+                PrefixColumns.CONTACT_ID + ", " + PrefixColumns.PREFIX +
+                " FROM " + Tables.PREFIX_TABLE +
+                " ORDER BY " + PrefixColumns.CONTACT_ID, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                if (!trie.addPrefix(cursor.getLong(0), cursor.getString(1))) {
+                    break;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (DEBUG) {
+            Log.v(TAG, "Loaded prefix index of " + trie.getContactCount() + " contacts, "
+                    + trie.getHeapFootprintBytes() + " bytes");
+        }
+        mSmartDialTrie = trie;
+    }
+
+    private void loadNumberGramIndex(SQLiteDatabase db) {
+        final SmartDialNumberGramIndex numberGramIndex = new SmartDialNumberGramIndex();
+        final Cursor cursor = db.rawQuery("SELECT " +
+                SmartDialDbColumns.CONTACT_ID + ", " + SmartDialDbColumns.NUMBER +
+                " FROM " + Tables.SMARTDIAL_TABLE +
+                " ORDER BY " + SmartDialDbColumns.CONTACT_ID, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                if (!numberGramIndex.addNumber(cursor.getLong(0), cursor.getString(1))) {
+                    break;
                 }
-            } else {
-                builder.append(SmartDialDbColumns.MIMETYPE + " = ?");
             }
+        } finally {
+            cursor.close();
+        }
+        if (DEBUG) {
+            Log.v(TAG, "Loaded number index of " + numberGramIndex.getContactCount()
+                    + " contacts, " + numberGramIndex.getPostingCount() + " postings, "
+                    + numberGramIndex.getHeapFootprintBytes() + " bytes");
+        }
+        mNumberGramIndex = numberGramIndex;
+    }
 
-            if (i != listOfMimes.length - 1) {
-                builder.append(" OR ");
+    /**
+     * Creates the indexes used by smart dial queries, if they do not exist yet.
+     */
+    @VisibleForTesting
+    void createSmartDialIndexes(SQLiteDatabase db) {
+        /** Creates index on contact_id for fast JOIN operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_contact_id_index ON " +
+                Tables.SMARTDIAL_TABLE + " (" + SmartDialDbColumns.CONTACT_ID  + ");");
+        /** Creates index on last_smartdial_update_time for fast SELECT operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_last_update_index ON " +
+                Tables.SMARTDIAL_TABLE + " (" +
+                SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + ");");
+        /** Creates index on sorting fields for fast sort operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_sort_index ON " +
+                Tables.SMARTDIAL_TABLE + " (" +
+                SmartDialDbColumns.STARRED + ", " +
+                SmartDialDbColumns.IS_SUPER_PRIMARY + ", " +
+                SmartDialDbColumns.LAST_TIME_USED + ", " +
+                SmartDialDbColumns.TIMES_USED + ", " +
+                SmartDialDbColumns.IN_VISIBLE_GROUP +  ", " +
+                SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
+                SmartDialDbColumns.CONTACT_ID + ", " +
+                SmartDialDbColumns.IS_PRIMARY +
+                ");");
+        /** Creates index on prefix for fast SELECT operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS nameprefix_index ON " +
+                Tables.PREFIX_TABLE + " (" + PrefixColumns.PREFIX + ");");
+        /** Creates index on contact_id for fast JOIN operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS nameprefix_contact_id_index ON " +
+                Tables.PREFIX_TABLE + " (" + PrefixColumns.CONTACT_ID + ");");
+    }
+
+    /**
+     * Adds rows inserted to or deleted from the smart dial tables to the count of changes since
+     * the last ANALYZE.
+     *
+     * @return Whether the changes are large enough to be worth updating the index statistics
+     * right away, rather than waiting for {@link SmartDialMaintenanceJob}.
+     */
+    @VisibleForTesting
+    boolean recordChangedRows(SQLiteDatabase db, int changedRows) {
+        final int pendingRows = getPropertyAsInt(db, SMARTDIAL_CHANGED_ROWS_PROPERTY, 0)
+                + changedRows;
+        setProperty(db, SMARTDIAL_CHANGED_ROWS_PROPERTY, String.valueOf(pendingRows));
+        final int analyzedRows = getPropertyAsInt(db, SMARTDIAL_ANALYZED_ROWS_PROPERTY, 0);
+        return pendingRows >= Math.max(MIN_ANALYZE_CHANGED_ROWS,
+                analyzedRows / ANALYZE_CHANGED_ROWS_DIVISOR);
+    }
+
+    /**
+     * Updates the database index statistics and resets the count of changed rows.
+     */
+    private void analyzeSmartDialTablesAndRecord(SQLiteDatabase db) {
+        analyzeSmartDialTables(db);
+        final long rows = DatabaseUtils.queryNumEntries(db, Tables.SMARTDIAL_TABLE)
+                + DatabaseUtils.queryNumEntries(db, Tables.PREFIX_TABLE);
+        db.beginTransaction();
+        try {
+            setProperty(db, SMARTDIAL_ANALYZED_ROWS_PROPERTY, String.valueOf(rows));
+            setProperty(db, SMARTDIAL_CHANGED_ROWS_PROPERTY, "0");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Runs the maintenance deferred by smart dial updates: updates the index statistics if any
+     * row changed since the last ANALYZE, and reclaims the space of deleted rows once it makes
+     * up a large part of the database file. Meant to run while the device is idle.
+     */
+    public void runSmartDialMaintenance() {
+        final SQLiteDatabase db = getWritableDatabase();
+        synchronized(mLock) {
+            final long start = SystemClock.elapsedRealtime();
+            final boolean analyze = getPropertyAsInt(db, SMARTDIAL_CHANGED_ROWS_PROPERTY, 0) > 0;
+            if (analyze) {
+                analyzeSmartDialTablesAndRecord(db);
+            }
+
+            final long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+            final long pages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+            final boolean vacuum = freePages * VACUUM_FREE_PAGES_DIVISOR > pages;
+            if (vacuum) {
+                db.execSQL("VACUUM");
+            }
+            if (DEBUG) {
+                Log.v(TAG, "Maintenance analyze=" + analyze + " vacuum=" + vacuum + " in "
+                        + (SystemClock.elapsedRealtime() - start) + "ms");
+            }
+        }
+    }
+
+    /**
+     * Updates the database index statistics.
+     */
+    @VisibleForTesting
+    void analyzeSmartDialTables(SQLiteDatabase db) {
+        db.execSQL("ANALYZE " + Tables.SMARTDIAL_TABLE);
+        db.execSQL("ANALYZE " + Tables.PREFIX_TABLE);
+        db.execSQL("ANALYZE smartdial_contact_id_index");
+        db.execSQL("ANALYZE smartdial_last_update_index");
+        db.execSQL("ANALYZE nameprefix_index");
+        db.execSQL("ANALYZE nameprefix_contact_id_index");
+    }
+
+    /**
+     * Merges the candidates of the prefix index with those of the mid-number index.
+     *
+     * @param numberCandidates Candidates of the mid-number index, or null if it had no answer.
+     * @return The ids of both arrays, without duplicates.
+     */
+    @VisibleForTesting
+    static long[] mergeCandidates(long[] prefixCandidates, long[] numberCandidates) {
+        if (numberCandidates == null || numberCandidates.length == 0) {
+            return prefixCandidates;
+        }
+        if (prefixCandidates.length == 0) {
+            return numberCandidates;
+        }
+        final long[] merged = new long[prefixCandidates.length + numberCandidates.length];
+        System.arraycopy(prefixCandidates, 0, merged, 0, prefixCandidates.length);
+        System.arraycopy(numberCandidates, 0, merged, prefixCandidates.length,
+                numberCandidates.length);
+        Arrays.sort(merged);
+        int count = 1;
+        for (int i = 1; i < merged.length; i++) {
+            if (merged[i] != merged[count - 1]) {
+                merged[count++] = merged[i];
             }
         }
+        return count == merged.length ? merged : Arrays.copyOf(merged, count);
+    }
+
+    /**
+     * Returns the index in {@link #CANDIDATE_BUCKET_SIZES} of the smallest bucket holding the
+     * given number of candidates, which must not exceed {@link #MAX_MEMORY_INDEX_CANDIDATES}.
+     */
+    @VisibleForTesting
+    static int getCandidateBucket(int candidateCount) {
+        int bucket = 0;
+        while (CANDIDATE_BUCKET_SIZES[bucket] < candidateCount) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    /**
+     * Writes the candidate ids to the arguments from the given position to the end of the
+     * arguments, repeating the last id for the slots left over.
+     */
+    @VisibleForTesting
+    static void bindCandidates(String[] args, int position, long[] candidateContactIds) {
+        for (int i = 0; position + i < args.length; i++) {
+            args[position + i] = Long.toString(
+                    candidateContactIds[Math.min(i, candidateContactIds.length - 1)]);
+        }
+    }
+
+    /**
+     * Computes the exclusive upper bound of a range lookup on the prefix table, so that
+     * {@code prefix >= query AND prefix < upperBound} selects every prefix starting with query.
+     * Prefixes only contain dialpad digits, so bumping the last character is sufficient.
+     *
+     * @param query The non-empty dialpad query.
+     * @return The smallest string greater than every string that starts with query.
+     */
+    @VisibleForTesting
+    static String getPrefixUpperBound(String query) {
+        final int last = query.length() - 1;
+        return query.substring(0, last) + (char) (query.charAt(last) + 1);
     }
 
     /**
@@ -1082,13 +1851,124 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
      */
     public ArrayList<ContactNumber>  getLooseMatches(String query,
             SmartDialNameMatcher nameMatcher, String usernameMimeType) {
+        return getLooseMatches(query, nameMatcher, usernameMimeType, null);
+    }
+
+    /**
+     * Same as {@link #getLooseMatches(String, SmartDialNameMatcher, String)}, but gives up as
+     * soon as the query is cancelled, which happens when the user typed another digit before the
+     * results of this one were shown. The signal reaches the SQL query, and is checked every
+     * {@link #CANCELLATION_CHECK_ROWS} rows of the matching loop.
+     *
+     * @param cancellationSignal The signal to cancel the query with, or null.
+     * @throws OperationCanceledException if the query was cancelled.
+     */
+    public ArrayList<ContactNumber> getLooseMatches(String query,
+            SmartDialNameMatcher nameMatcher, String usernameMimeType,
+            CancellationSignal cancellationSignal) {
+        try {
+            final ArrayList<ContactNumber> result = queryLooseMatches(query, nameMatcher,
+                    usernameMimeType, cancellationSignal);
+            mCompletedSmartDialQueries.incrementAndGet();
+            return result;
+        } catch (OperationCanceledException e) {
+            mCancelledSmartDialQueries.incrementAndGet();
+            if (DEBUG) {
+                Log.v(TAG, "Cancelled smart dial query " + query + ", "
+                        + mCancelledSmartDialQueries.get() + " cancelled, "
+                        + mCompletedSmartDialQueries.get() + " completed");
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of smart dial queries cancelled so far.
+     */
+    public int getCancelledSmartDialQueryCount() {
+        return mCancelledSmartDialQueries.get();
+    }
+
+    /**
+     * Returns the number of smart dial queries that ran to completion so far.
+     */
+    public int getCompletedSmartDialQueryCount() {
+        return mCompletedSmartDialQueries.get();
+    }
+
+    private ArrayList<ContactNumber> queryLooseMatches(String query,
+            SmartDialNameMatcher nameMatcher, String usernameMimeType,
+            CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+        /**
+         * While an update is running the database still serves the last committed tables, but the
+         * memory index is being modified, so every row is scanned instead.
+         */
+        final int generation = mSmartDialGeneration.get();
         final boolean inUpdate = sInUpdate.get();
-        if (inUpdate) {
+
+        /** The vendor multi-language matcher can match names the prefix table knows nothing of. */
+        final int queryMode = nameMatcher.hasMultiLanguageMatcher()
+                ? QUERY_MODE_FULL_SCAN : mQueryMode;
+        if (queryMode != QUERY_MODE_FULL_SCAN && TextUtils.isEmpty(query)) {
             return Lists.newArrayList();
         }
 
+        long[] candidateContactIds = null;
+        /** Mid-number candidates added to the prefix table lookup, when there are too many. */
+        long[] numberCandidateIds = null;
+        boolean scanAllRows = queryMode == QUERY_MODE_FULL_SCAN;
+        if (queryMode == QUERY_MODE_MEMORY_INDEX
+                && query.length() < SmartDialNumberGramIndex.GRAM_LENGTH) {
+            /** Most numbers contain the query somewhere, and the number index has no gram of it. */
+            scanAllRows = true;
+        } else if (queryMode == QUERY_MODE_MEMORY_INDEX) {
+            final SmartDialTrie trie = mSmartDialTrie;
+            final SmartDialNumberGramIndex numberGramIndex = mNumberGramIndex;
+            long[] numberCandidates = null;
+            if (!inUpdate && trie != null) {
+                candidateContactIds = trie.getCandidateContactIds(query);
+                if (candidateContactIds != null && numberGramIndex != null) {
+                    numberCandidates = numberGramIndex.getCandidateContactIds(query);
+                    candidateContactIds = mergeCandidates(candidateContactIds, numberCandidates);
+                }
+            }
+            if (inUpdate || generation != mSmartDialGeneration.get()) {
+                // An update started while the memory index was being read.
+                candidateContactIds = null;
+                numberCandidates = null;
+                scanAllRows = true;
+            }
+            if (candidateContactIds != null && candidateContactIds.length == 0) {
+                return Lists.newArrayList();
+            }
+            if (candidateContactIds != null
+                    && candidateContactIds.length > MAX_MEMORY_INDEX_CANDIDATES) {
+                candidateContactIds = null;
+                if (numberCandidates != null && numberCandidates.length > 0) {
+                    if (numberCandidates.length <= MAX_MEMORY_INDEX_CANDIDATES) {
+                        numberCandidateIds = numberCandidates;
+                    } else {
+                        scanAllRows = true;
+                    }
+                }
+            }
+        }
+        final boolean usePrefixIndex = !scanAllRows && candidateContactIds == null;
+
         final SQLiteDatabase db = getReadableDatabase();
 
+        /** Name indexes built with another map are ignored until the tables are rebuilt. */
+        String nameIndexVersion = mNameIndexVersion;
+        if (nameIndexVersion == null) {
+            nameIndexVersion = getProperty(db, SMARTDIAL_NAME_INDEX_VERSION_PROPERTY, "");
+            mNameIndexVersion = nameIndexVersion;
+        }
+        final boolean useNameIndex = nameIndexVersion.equals(
+                SmartDialNameIndex.getVersion(SmartDialPrefix.getMap()));
+
         /** Uses SQL query wildcard '%' to represent prefix matching.*/
         //final String looseQuery = query + "%";
 
@@ -1096,45 +1976,50 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
 
         final StopWatch stopWatch = DEBUG ? StopWatch.start(":Name Prefix query") : null;
 
-        final String currentTimeStamp = Long.toString(System.currentTimeMillis());
-
-        String[] defaultMimes = new String[] {
-                ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE,
-                ContactsContract.CommonDataKinds.SipAddress.CONTENT_ITEM_TYPE
-        };
-        String[] customMimes = MimeTypeUtils.getAllEnabledMimeTypes(
-                DialerDataSubscription.get(mContext)).split(",");
-        String[] finalizedParams = new String[customMimes.length + defaultMimes.length + 1];
-
-        StringBuilder where = new StringBuilder();
-
-        if (customMimes.length > 0) {
-            buildWhereString(where, customMimes, finalizedParams, true, usernameMimeType, 0);
-
-            // Append an OR in between our custom mimes and our default mimes
-            where.append(" OR ");
+        final long currentMillis = System.currentTimeMillis();
+
+        /** Only rows that can be called with the selected call method are returned. */
+        final SmartDialMimeTypes.Filter mimeTypeFilter =
+                SmartDialMimeTypes.getInstance(mContext).getFilter();
+        final long[] boundContactIds = candidateContactIds != null
+                ? candidateContactIds : numberCandidateIds;
+        final int candidateBucket = boundContactIds != null
+                ? getCandidateBucket(boundContactIds.length) : -1;
+        final int candidateCount = candidateBucket >= 0
+                ? CANDIDATE_BUCKET_SIZES[candidateBucket] : 0;
+        final String[] finalizedParams = mimeTypeFilter.getSelectionArgs(
+                (usePrefixIndex ? 2 : 0) + candidateCount);
+        final StringBuilder where = new StringBuilder(
+                mimeTypeFilter.getSelection(usernameMimeType));
+
+        if (candidateContactIds != null) {
+            /** Restricts the rows to the contacts found by the memory index. */
+            where.append(CANDIDATE_SELECTIONS[candidateBucket]);
+        } else if (usePrefixIndex) {
+            /**
+             * Restricts the rows to contacts owning a prefix that starts with the query, or to
+             * the contacts the memory index found a mid-number match of.
+             */
+            where.append(numberCandidateIds != null
+                    ? PREFIX_RANGE_OR_CANDIDATE_SELECTIONS[candidateBucket]
+                    : PREFIX_RANGE_SELECTION);
+            final int prefixParamPos = finalizedParams.length - candidateCount - 2;
+            finalizedParams[prefixParamPos] = query;
+            finalizedParams[prefixParamPos + 1] = getPrefixUpperBound(query);
+        }
+        if (boundContactIds != null) {
+            bindCandidates(finalizedParams, finalizedParams.length - candidateCount,
+                    boundContactIds);
         }
 
-        buildWhereString(where, defaultMimes, finalizedParams, false, null, customMimes.length);
-
-        // setup currentTypeStamp param for our order by
-        finalizedParams[finalizedParams.length - 1] = currentTimeStamp;
-
-        /** Queries the database to find contacts that have an index matching the query prefix. */
-        final Cursor cursor = db.rawQuery("SELECT " +
-                SmartDialDbColumns.DATA_ID + ", " +
-                SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
-                SmartDialDbColumns.PHOTO_ID + ", " +
-                SmartDialDbColumns.NUMBER + ", " +
-                SmartDialDbColumns.CONTACT_ID + ", " +
-                SmartDialDbColumns.LOOKUP_KEY + ", " +
-                SmartDialDbColumns.PHONE_TYPE + ", " +
-                SmartDialDbColumns.MIMETYPE + ", " +
-                SmartDialDbColumns.PHONE_LABEL +
-                " FROM " + Tables.SMARTDIAL_TABLE +
-                " WHERE " + where.toString() +
-                " ORDER BY " + SmartDialSortingOrder.SORT_ORDER,
-                finalizedParams);
+        /**
+         * Queries the database to find contacts that have an index matching the query prefix.
+         * The rows are not sorted by SQLite: ordering every candidate row costs more than ranking
+         * the matching ones in Java, and the recency of the rows depends on the current time,
+         * so the sort could never be served by an index.
+         */
+        final Cursor cursor = db.rawQuery(LOOSE_MATCHES_SELECT + where.toString(),
+                finalizedParams, cancellationSignal);
         if (cursor == null) {
             return result;
         }
@@ -1153,45 +2038,80 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             final int columnPhoneType = 6;
             final int columnMimetype = 7;
             final int columnPhoneLabel = 8;
+            final int columnStarred = 9;
+            final int columnIsSuperPrimary = 10;
+            final int columnLastTimeUsed = 11;
+            final int columnTimesUsed = 12;
+            final int columnInVisibleGroup = 13;
+            final int columnIsPrimary = 14;
+            final int columnDialpadIndex = 15;
+            final int columnDialpadIndexSources = 16;
 
             if (DEBUG) {
                 stopWatch.lap("Found column IDs");
             }
 
-            int counter = 0;
             if (DEBUG) {
                 stopWatch.lap("Moved cursor to start");
             }
-            /** Iterates the cursor to find top contact suggestions without duplication.*/
-            while ((cursor.moveToNext()) && (counter < MAX_ENTRIES)) {
-                final long dataID = cursor.getLong(columnDataId);
-                final String displayName = cursor.getString(columnDisplayNamePrimary);
-                final String phoneNumber = cursor.getString(columnNumber);
+            /**
+             * Iterates the cursor to keep the top contact suggestions. The name matcher only runs
+             * on rows that rank high enough to be kept.
+             */
+            final SmartDialRanker ranker = new SmartDialRanker(MAX_ENTRIES, currentMillis);
+            /** The names of the rows are matched in batches by the matcher of the device. */
+            final boolean batchMatching = nameMatcher.hasMultiLanguageMatcher();
+            final String[] batchNames =
+                    batchMatching ? new String[MULTI_LANGUAGE_BATCH_SIZE] : null;
+            final boolean[] batchMatches =
+                    batchMatching ? new boolean[MULTI_LANGUAGE_BATCH_SIZE] : null;
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                if (cancellationSignal != null && ++rows % CANCELLATION_CHECK_ROWS == 0) {
+                    cancellationSignal.throwIfCanceled();
+                }
                 final long id = cursor.getLong(columnId);
-                final long photoId = cursor.getLong(columnPhotoId);
-                final String lookupKey = cursor.getString(columnLookupKey);
                 final int phoneType = cursor.getInt(columnPhoneType);
-                final String mimeType = cursor.getString(columnMimetype);
-                final String phoneLabel = cursor.getString(columnPhoneLabel);
+                final String displayName = cursor.getString(columnDisplayNamePrimary);
+                if (!ranker.setCandidate(id, phoneType, cursor.getInt(columnStarred),
+                        cursor.getInt(columnIsSuperPrimary), cursor.getLong(columnLastTimeUsed),
+                        cursor.getInt(columnTimesUsed), cursor.getInt(columnInVisibleGroup),
+                        displayName, cursor.getInt(columnIsPrimary))) {
+                    continue;
+                }
 
-                /**
-                 * If the contact has either the name or number OR a username
-                 * that matches the query, add to the result.
-                 */
-                final boolean nameMatches = nameMatcher.matches(displayName);
-                final boolean numberMatches = TextUtils.equals(mimeType, usernameMimeType) ?
-                        nameMatcher.matches(phoneNumber) :
-                        (nameMatcher.matchesNumber(phoneNumber, query) != null);
-                if (nameMatches || numberMatches) {
-                    /** If a contact has not been added, add it to the result and the hash set.*/
-                    result.add(new ContactNumber(id, dataID, displayName, phoneNumber, lookupKey,
-                            photoId, mimeType, phoneType, phoneLabel));
-                    counter++;
+                final String phoneNumber = cursor.getString(columnNumber);
+                final String mimeType = cursor.getString(columnMimetype);
+                final SmartDialNameIndex nameIndex = useNameIndex ? SmartDialNameIndex.fromStored(
+                        cursor.getString(columnDialpadIndex),
+                        cursor.getBlob(columnDialpadIndexSources), displayName) : null;
+                if (batchMatching) {
+                    ranker.deferCandidate(new ContactNumber(id, cursor.getLong(columnDataId),
+                            displayName, phoneNumber, cursor.getString(columnLookupKey),
+                            cursor.getLong(columnPhotoId), mimeType, phoneType,
+                            cursor.getString(columnPhoneLabel), nameIndex));
+                    if (ranker.getDeferredCount() == MULTI_LANGUAGE_BATCH_SIZE) {
+                        addDeferredMatches(ranker, query, nameMatcher, usernameMimeType,
+                                batchNames, batchMatches);
+                    }
+                    continue;
+                }
+                if (matchesContact(query, nameMatcher, usernameMimeType, displayName, nameIndex,
+                        phoneNumber, mimeType)) {
+                    ranker.addCandidate(new ContactNumber(id, cursor.getLong(columnDataId),
+                            displayName, phoneNumber, cursor.getString(columnLookupKey),
+                            cursor.getLong(columnPhotoId), mimeType, phoneType,
+                            cursor.getString(columnPhoneLabel), nameIndex));
                     if (DEBUG) {
                         stopWatch.lap("Added one result: Name: " + displayName);
                     }
                 }
             }
+            if (batchMatching && ranker.getDeferredCount() > 0) {
+                addDeferredMatches(ranker, query, nameMatcher, usernameMimeType, batchNames,
+                        batchMatches);
+            }
+            result.addAll(ranker.getResults());
 
             if (DEBUG) {
                 stopWatch.stopAndLog(TAG + "Finished loading cursor", 0);
@@ -1201,4 +2121,102 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         }
         return result;
     }
+
+    /**
+     * Narrows the result of a previous query down to the contacts that still match a query
+     * extending it, without going back to the database. Every contact matching the new query also
+     * matched the previous one, so this is only valid when the previous result was complete.
+     *
+     * Only the results of {@link #QUERY_MODE_MEMORY_INDEX} are refined: the prefix table of
+     * {@link #QUERY_MODE_PREFIX_INDEX} only returns the numbers of a contact owning a prefix
+     * starting with the query, and misses the mid-number matches the new query may find.
+     *
+     * @param previousMatches Result of {@link #getLooseMatches} for a prefix of the query.
+     * @param query The new query.
+     * @return The refined list of candidates, or null if the previous result was truncated at
+     * {@link #MAX_ENTRIES} or may miss matches of the new query, and {@link #getLooseMatches}
+     * has to be used instead.
+     */
+    public ArrayList<ContactNumber> refineLooseMatches(ArrayList<ContactNumber> previousMatches,
+            String query, SmartDialNameMatcher nameMatcher, String usernameMimeType) {
+        if (previousMatches.size() >= MAX_ENTRIES || mQueryMode != QUERY_MODE_MEMORY_INDEX) {
+            return null;
+        }
+        final ArrayList<ContactNumber> result = Lists.newArrayList();
+        if (nameMatcher.hasMultiLanguageMatcher()) {
+            final int count = previousMatches.size();
+            final String[] names = new String[count];
+            final boolean[] matches = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = previousMatches.get(i).displayName;
+            }
+            nameMatcher.matchesWithoutPositions(names, count, matches);
+            for (int i = 0; i < count; i++) {
+                final ContactNumber contact = previousMatches.get(i);
+                if (matches[i] || matchesNumber(query, nameMatcher, usernameMimeType,
+                        contact.phoneNumber, contact.mimeType)) {
+                    result.add(contact);
+                }
+            }
+            return result;
+        }
+        for (int i = 0; i < previousMatches.size(); i++) {
+            final ContactNumber contact = previousMatches.get(i);
+            if (matchesContact(query, nameMatcher, usernameMimeType, contact.displayName,
+                    contact.nameIndex, contact.phoneNumber, contact.mimeType)) {
+                result.add(contact);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Matches the names of the rows set aside in the ranker in a single call to the name
+     * matcher, then hands the matching rows back to the ranker.
+     *
+     * @param names Scratch array holding at least as many names as there are rows set aside.
+     * @param matches Scratch array of the same size.
+     */
+    private static void addDeferredMatches(SmartDialRanker ranker, String query,
+            SmartDialNameMatcher nameMatcher, String usernameMimeType, String[] names,
+            boolean[] matches) {
+        final int count = ranker.getDeferredCount();
+        for (int i = 0; i < count; i++) {
+            names[i] = ranker.getDeferredContact(i).displayName;
+        }
+        nameMatcher.matchesWithoutPositions(names, count, matches);
+        for (int i = 0; i < count; i++) {
+            if (!matches[i]) {
+                final ContactNumber contact = ranker.getDeferredContact(i);
+                matches[i] = matchesNumber(query, nameMatcher, usernameMimeType,
+                        contact.phoneNumber, contact.mimeType);
+            }
+        }
+        ranker.addDeferredCandidates(matches);
+    }
+
+    /**
+     * If the contact has either the name or number OR a username that matches the query, it is
+     * part of the result. Match positions are not needed here, the list adapter computes them
+     * for the rows it displays.
+     */
+    private static boolean matchesContact(String query, SmartDialNameMatcher nameMatcher,
+            String usernameMimeType, String displayName, SmartDialNameIndex nameIndex,
+            String phoneNumber, String mimeType) {
+        final boolean nameMatches = nameMatcher.matchesWithoutPositions(displayName, nameIndex);
+        final boolean numberMatches = matchesNumber(query, nameMatcher, usernameMimeType,
+                phoneNumber, mimeType);
+        return nameMatches || numberMatches;
+    }
+
+    /**
+     * Whether the number of the contact, or its username for the mimetype of the selected call
+     * method, matches the query.
+     */
+    private static boolean matchesNumber(String query, SmartDialNameMatcher nameMatcher,
+            String usernameMimeType, String phoneNumber, String mimeType) {
+        return TextUtils.equals(mimeType, usernameMimeType) ?
+                nameMatcher.matchesWithoutPositions(phoneNumber) :
+                nameMatcher.matchesNumberWithoutPosition(phoneNumber, query);
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.android.dialerbind.DatabaseHelperManager;
+
+/**
+ * Runs the maintenance of the smart dial tables that updates defer: ANALYZE after small changes,
+ * and VACUUM once deleted rows leave much of the database file unused. Scheduled by
+ * {@link DialerDatabaseHelper} after an update, and run while the device is idle and charging.
+ */
+public class SmartDialMaintenanceJob extends JobService {
+
+    private static final String TAG = SmartDialMaintenanceJob.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    /** Must be unique among the jobs of the app, see InCallMetricsHelper. */
+    private static final int MAINTENANCE_JOB_ID = 2;
+
+    private MaintenanceTask mMaintenanceTask;
+
+    /**
+     * Schedules the maintenance job, unless it is already pending.
+     */
+    public static void schedule(Context context) {
+        final JobScheduler jobScheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null) {
+            if (DEBUG) Log.e(TAG, "Running on a device without JobScheduler.");
+            return;
+        }
+        for (JobInfo ji : jobScheduler.getAllPendingJobs()) {
+            if (ji.getId() == MAINTENANCE_JOB_ID) {
+                if (DEBUG) Log.d(TAG, "Maintenance job already scheduled");
+                return;
+            }
+        }
+
+        final ComponentName jobComponent = new ComponentName(context,
+                SmartDialMaintenanceJob.class);
+        final JobInfo job = new JobInfo.Builder(MAINTENANCE_JOB_ID, jobComponent)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_NONE)
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .build();
+        jobScheduler.schedule(job);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        mMaintenanceTask = new MaintenanceTask(params);
+        mMaintenanceTask.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR, (Void) null);
+
+        // Running on another thread, return true.
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // ANALYZE and VACUUM cannot be interrupted, the task only finishes early if it has not
+        // started yet.
+        mMaintenanceTask.cancel(false);
+
+        // Try again the next time the device is idle.
+        return true;
+    }
+
+    private class MaintenanceTask extends AsyncTask<Void, Void, Void> {
+        private final JobParameters mJobParams;
+
+        public MaintenanceTask(JobParameters params) {
+            mJobParams = params;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            if (!isCancelled()) {
+                DatabaseHelperManager.getDatabaseHelper(SmartDialMaintenanceJob.this)
+                        .runSmartDialMaintenance();
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            jobFinished(mJobParams, false /* reschedule */);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.SipAddress;
+import android.text.TextUtils;
+
+import com.android.dialer.database.DialerDatabaseHelper.SmartDialDbColumns;
+import com.android.phone.common.incall.CallMethodInfo;
+import com.android.phone.common.incall.DialerDataSubscription;
+import com.android.phone.common.incall.utils.MimeTypeUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * The mimetypes of the data rows smart dial can call: phone numbers and SIP addresses, and the
+ * mimetypes of the InCall plugins.
+ *
+ * The mimetypes of the plugins only change when a plugin is enabled, disabled, installed or
+ * removed, so the selection smart dial queries filter their rows with is built once per set of
+ * enabled mimetypes and handed out as an immutable {@link Filter}. The SQL text of the queries
+ * then stays the same from one keystroke to the next, and SQLite reuses the statement it compiled
+ * for it. The plugins are only asked for their mimetypes again once the subscription to the
+ * plugins reported a change.
+ */
+public class SmartDialMimeTypes {
+
+    /** Mimetypes callable without any InCall plugin. */
+    private static final String[] DEFAULT_MIMETYPES = new String[] {
+            Phone.CONTENT_ITEM_TYPE,
+            SipAddress.CONTENT_ITEM_TYPE
+    };
+
+    private static final String SUBSCRIPTION_ID = "SmartDialMimeTypes";
+
+    private static SmartDialMimeTypes sInstance;
+
+    private final Context mContext;
+
+    /** Filter of the enabled mimetypes, null until it is needed after a change of the plugins. */
+    private Filter mFilter;
+
+    private final DialerDataSubscription.PluginChanged<CallMethodInfo> mPluginsChangedReceiver =
+            new DialerDataSubscription.PluginChanged<CallMethodInfo>() {
+                @Override
+                public void onChanged(HashMap<ComponentName, CallMethodInfo> pluginInfos) {
+                    invalidateFilter();
+                }
+            };
+
+    /**
+     * The selection of the rows of the smart dial table with a callable mimetype, for one set of
+     * enabled plugin mimetypes.
+     */
+    public static final class Filter {
+        private final String mEnabledMimeTypes;
+        private final String[] mSelectionArgs;
+
+        /** Selection used when the user picked one of the plugins as call method. */
+        private final String mSelectionForPlugin;
+        /** Selection used otherwise. */
+        private final String mSelection;
+
+        @VisibleForTesting
+        Filter(String enabledMimeTypes) {
+            mEnabledMimeTypes = enabledMimeTypes;
+            final String[] customMimeTypes = enabledMimeTypes.split(",");
+            mSelectionArgs = Arrays.copyOf(customMimeTypes,
+                    customMimeTypes.length + DEFAULT_MIMETYPES.length);
+            System.arraycopy(DEFAULT_MIMETYPES, 0, mSelectionArgs, customMimeTypes.length,
+                    DEFAULT_MIMETYPES.length);
+            mSelectionForPlugin = buildSelection(customMimeTypes.length, " = ?");
+            mSelection = buildSelection(customMimeTypes.length, " != ?");
+        }
+
+        /**
+         * Builds the selection of the rows of one of the custom mimetypes, compared with the
+         * given operator, or of one of the default mimetypes.
+         */
+        private static String buildSelection(int customMimeTypeCount, String customOperator) {
+            final StringBuilder selection = new StringBuilder("(");
+            for (int i = 0; i < customMimeTypeCount; i++) {
+                selection.append(SmartDialDbColumns.MIMETYPE).append(customOperator);
+                selection.append(" OR ");
+            }
+            for (int i = 0; i < DEFAULT_MIMETYPES.length; i++) {
+                if (i != 0) {
+                    selection.append(" OR ");
+                }
+                selection.append(SmartDialDbColumns.MIMETYPE).append(" = ?");
+            }
+            return selection.append(")").toString();
+        }
+
+        /**
+         * Returns the selection of the rows that can be called.
+         *
+         * @param selectedMimeType The mimetype of the call method picked by the user, or null.
+         */
+        public String getSelection(String selectedMimeType) {
+            return selectedMimeType != null && mEnabledMimeTypes.contains(selectedMimeType)
+                    ? mSelectionForPlugin : mSelection;
+        }
+
+        /**
+         * Returns a new array holding the arguments of {@link #getSelection}, followed by room
+         * for the given number of arguments.
+         */
+        public String[] getSelectionArgs(int extraArgs) {
+            return Arrays.copyOf(mSelectionArgs, mSelectionArgs.length + extraArgs);
+        }
+
+        /**
+         * Whether a row of the given mimetype is shown when the user picked the given call
+         * method: its own rows, and phone numbers and SIP addresses.
+         */
+        public boolean isShown(String mimeType, String selectedMimeType) {
+            if (TextUtils.equals(mimeType, selectedMimeType)) {
+                return true;
+            }
+            for (String defaultMimeType : DEFAULT_MIMETYPES) {
+                if (TextUtils.equals(mimeType, defaultMimeType)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public static synchronized SmartDialMimeTypes getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SmartDialMimeTypes(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SmartDialMimeTypes(Context context) {
+        mContext = context;
+        // Like the instance, the subscription lasts as long as the process.
+        DialerDataSubscription.get(context).subscribe(SUBSCRIPTION_ID, mPluginsChangedReceiver);
+    }
+
+    /**
+     * Returns the filter of the currently enabled mimetypes. The same filter is returned until
+     * the plugins change, so callers can tell whether results obtained with an earlier filter
+     * are still valid by comparing the filters.
+     */
+    public synchronized Filter getFilter() {
+        if (mFilter == null) {
+            final String enabledMimeTypes = MimeTypeUtils.getAllEnabledMimeTypes(
+                    DialerDataSubscription.get(mContext));
+            mFilter = new Filter(enabledMimeTypes != null ? enabledMimeTypes : "");
+        }
+        return mFilter;
+    }
+
+    /**
+     * Drops the filter, so that the next call to {@link #getFilter} asks the plugins for their
+     * enabled mimetypes again.
+     */
+    @VisibleForTesting
+    synchronized void invalidateFilter() {
+        mFilter = null;
+    }
+
+    /**
+     * Returns the mimetypes of all plugins, enabled or not, whose rows are indexed by smart
+     * dial, as a comma separated list.
+     */
+    public String getIndexedMimeTypes() {
+        return MimeTypeUtils.getAllMimeTypes(DialerDataSubscription.get(mContext));
+    }
+
+    /**
+     * Whether every mimetype of the comma separated list of mimetypes was already indexed.
+     */
+    @VisibleForTesting
+    static boolean isIndexed(String indexedMimeTypes, String mimeTypes) {
+        if (TextUtils.isEmpty(mimeTypes)) {
+            return true;
+        }
+        if (indexedMimeTypes == null) {
+            return false;
+        }
+        final LinkedHashSet<String> indexed = toSet(indexedMimeTypes);
+        for (String mimeType : mimeTypes.split(",")) {
+            if (!mimeType.isEmpty() && !indexed.contains(mimeType)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the comma separated union of two comma separated lists of mimetypes.
+     */
+    @VisibleForTesting
+    static String union(String indexedMimeTypes, String mimeTypes) {
+        final LinkedHashSet<String> union = toSet(indexedMimeTypes);
+        union.addAll(toSet(mimeTypes));
+        return TextUtils.join(",", union);
+    }
+
+    private static LinkedHashSet<String> toSet(String mimeTypes) {
+        final LinkedHashSet<String> set = new LinkedHashSet<String>();
+        if (mimeTypes != null) {
+            for (String mimeType : mimeTypes.split(",")) {
+                if (!mimeType.isEmpty()) {
+                    set.add(mimeType);
+                }
+            }
+        }
+        return set;
+    }
+}
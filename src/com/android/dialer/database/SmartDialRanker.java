@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the best smart dial rows seen so far, in the order of
+ * {@link DialerDatabaseHelper.SmartDialSortingOrder#SORT_ORDER}, so that the smart dial table
+ * does not have to be sorted by SQLite.
+ *
+ * Callers fill in the rank of each row with {@link #setCandidate}, which tells whether the row
+ * would make it into the results, and only then run the name matcher and hand the row over with
+ * {@link #addCandidate}. Once the ranker is full, rows ranking below all of the kept ones cost a
+ * few comparisons and no allocation.
+ *
+ * Callers matching rows in batches set the rows ranking high enough aside with
+ * {@link #deferCandidate}, and hand over those that matched with {@link #addDeferredCandidates}.
+ */
+/* package */ class SmartDialRanker {
+
+    /** A row of the smart dial table, with the columns it is ranked by. */
+    private static final class Entry {
+        long contactId;
+        int phoneType;
+        int starred;
+        int isSuperPrimary;
+        int usageBucket;
+        int timesUsed;
+        int inVisibleGroup;
+        String displayName;
+        int isPrimary;
+        ContactNumber contact;
+    }
+
+    /** Orders entries like SORT_ORDER, best first. */
+    private static final Comparator<Entry> RANK_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            int result = compareLongs(lhs.contactId, rhs.contactId);
+            if (result == 0) {
+                result = compareLongs(rhs.phoneType, lhs.phoneType);
+            }
+            if (result == 0) {
+                result = compareLongs(rhs.starred, lhs.starred);
+            }
+            if (result == 0) {
+                result = compareLongs(rhs.isSuperPrimary, lhs.isSuperPrimary);
+            }
+            if (result == 0) {
+                result = compareLongs(lhs.usageBucket, rhs.usageBucket);
+            }
+            if (result == 0) {
+                result = compareLongs(rhs.timesUsed, lhs.timesUsed);
+            }
+            if (result == 0) {
+                result = compareLongs(rhs.inVisibleGroup, lhs.inVisibleGroup);
+            }
+            if (result == 0) {
+                result = compareBinary(lhs.displayName, rhs.displayName);
+            }
+            if (result == 0) {
+                result = compareLongs(rhs.isPrimary, lhs.isPrimary);
+            }
+            return result;
+        }
+    };
+
+    private final int mMaxEntries;
+    private final long mCurrentTimeMillis;
+
+    /** The kept entries, worst first. */
+    private final PriorityQueue<Entry> mEntries;
+
+    /** The entry filled in by {@link #setCandidate}, reused until it is added. */
+    private Entry mCandidate = new Entry();
+
+    /** The entries set aside by {@link #deferCandidate}, until their rows are matched. */
+    private final ArrayList<Entry> mDeferred = new ArrayList<Entry>();
+
+    /**
+     * @param maxEntries The number of rows to keep.
+     * @param currentTimeMillis The time the recency of the rows is measured against.
+     */
+    public SmartDialRanker(int maxEntries, long currentTimeMillis) {
+        mMaxEntries = maxEntries;
+        mCurrentTimeMillis = currentTimeMillis;
+        mEntries = new PriorityQueue<Entry>(maxEntries + 1, Collections.reverseOrder(RANK_ORDER));
+    }
+
+    /**
+     * Sets the rank of the next row.
+     *
+     * @return Whether the row ranks high enough to be kept, if it matches the query.
+     */
+    public boolean setCandidate(long contactId, int phoneType, int starred, int isSuperPrimary,
+            long lastTimeUsed, int timesUsed, int inVisibleGroup, String displayName,
+            int isPrimary) {
+        final Entry candidate = mCandidate;
+        candidate.contactId = contactId;
+        candidate.phoneType = phoneType;
+        candidate.starred = starred;
+        candidate.isSuperPrimary = isSuperPrimary;
+        candidate.usageBucket = getUsageBucket(mCurrentTimeMillis - lastTimeUsed);
+        candidate.timesUsed = timesUsed;
+        candidate.inVisibleGroup = inVisibleGroup;
+        candidate.displayName = displayName;
+        candidate.isPrimary = isPrimary;
+        return mEntries.size() < mMaxEntries || RANK_ORDER.compare(candidate, mEntries.peek()) < 0;
+    }
+
+    /**
+     * Keeps the row last passed to {@link #setCandidate}, which must have returned true,
+     * dropping the worst kept row if the ranker is full.
+     */
+    public void addCandidate(ContactNumber contact) {
+        mCandidate.contact = contact;
+        mEntries.add(mCandidate);
+        if (mEntries.size() > mMaxEntries) {
+            mCandidate = mEntries.poll();
+            mCandidate.contact = null;
+        } else {
+            mCandidate = new Entry();
+        }
+    }
+
+    /**
+     * Sets the row last passed to {@link #setCandidate}, which must have returned true, aside
+     * until {@link #addDeferredCandidates} tells whether it matched.
+     */
+    public void deferCandidate(ContactNumber contact) {
+        mCandidate.contact = contact;
+        mDeferred.add(mCandidate);
+        mCandidate = new Entry();
+    }
+
+    public int getDeferredCount() {
+        return mDeferred.size();
+    }
+
+    public ContactNumber getDeferredContact(int position) {
+        return mDeferred.get(position).contact;
+    }
+
+    /**
+     * Keeps the rows set aside by {@link #deferCandidate} that matched and still rank high
+     * enough, in the order they were set aside.
+     *
+     * @param matches Whether each of the rows set aside matched.
+     */
+    public void addDeferredCandidates(boolean[] matches) {
+        for (int i = 0; i < mDeferred.size(); i++) {
+            final Entry entry = mDeferred.get(i);
+            if (!matches[i] || (mEntries.size() >= mMaxEntries
+                    && RANK_ORDER.compare(entry, mEntries.peek()) >= 0)) {
+                continue;
+            }
+            mEntries.add(entry);
+            if (mEntries.size() > mMaxEntries) {
+                mEntries.poll();
+            }
+        }
+        mDeferred.clear();
+    }
+
+    /**
+     * Returns the kept rows, best first.
+     */
+    public ArrayList<ContactNumber> getResults() {
+        final ArrayList<Entry> entries = new ArrayList<Entry>(mEntries);
+        Collections.sort(entries, RANK_ORDER);
+        final ArrayList<ContactNumber> results = Lists.newArrayListWithCapacity(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            results.add(entries.get(i).contact);
+        }
+        return results;
+    }
+
+    /**
+     * Returns 0 for rows used in the last 3 days, 1 for rows used in the last 30 days, and 2 for
+     * the others, like {@link DialerDatabaseHelper.SmartDialSortingOrder#SORT_BY_DATA_USAGE}.
+     */
+    private static int getUsageBucket(long timeSinceLastUsedMs) {
+        if (timeSinceLastUsedMs < DialerDatabaseHelper.SmartDialSortingOrder
+                .LAST_TIME_USED_CURRENT_MS) {
+            return 0;
+        } else if (timeSinceLastUsedMs < DialerDatabaseHelper.SmartDialSortingOrder
+                .LAST_TIME_USED_RECENT_MS) {
+            return 1;
+        }
+        return 2;
+    }
+
+    private static int compareLongs(long lhs, long rhs) {
+        return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+    }
+
+    /**
+     * Compares strings by code point, which is how SQLite's default BINARY collation orders
+     * UTF-8 text. {@link String#compareTo} differs for characters outside of the BMP.
+     */
+    private static int compareBinary(String lhs, String rhs) {
+        if (lhs == null || rhs == null) {
+            // SQLite orders NULL before any text.
+            return lhs == rhs ? 0 : (lhs == null ? -1 : 1);
+        }
+        final int lhsLength = lhs.length();
+        final int rhsLength = rhs.length();
+        int i = 0;
+        int j = 0;
+        while (i < lhsLength && j < rhsLength) {
+            final int lhsCodePoint = lhs.codePointAt(i);
+            final int rhsCodePoint = rhs.codePointAt(j);
+            if (lhsCodePoint != rhsCodePoint) {
+                return lhsCodePoint < rhsCodePoint ? -1 : 1;
+            }
+            i += Character.charCount(lhsCodePoint);
+            j += Character.charCount(rhsCodePoint);
+        }
+        return compareLongs(lhsLength - i, rhsLength - j);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * {@link SmartDialMap} defined by data rather than code. A map is described by
+ * <ul>
+ * <li>a folding table, mapping upper case and accented characters to the character they are
+ * normalized to,</li>
+ * <li>the ranges of characters that are considered alphabetic,</li>
+ * <li>the letters printed on every dialpad key.</li>
+ * </ul>
+ * All maps contain the latin alphabet. The description is compiled once into lookup tables, so
+ * that every method of the map, as well as {@link #normalizeToDialpadCharacter}, is a table
+ * lookup. The tables are split in pages of 256 characters, and pages without any data are shared
+ * between all maps, which keeps a map to a few kilobytes.
+ */
+public abstract class BaseSmartDialMap implements SmartDialMap {
+
+    /*
+     * Folds accented latin characters to their alphabetic equivalents, and upper case latin
+     * characters to lower case. Each entry starts with the normalized character, followed by all
+     * the characters folded to it.
+     *
+     * The accented characters were generated using the python code:
+     * from unidecode import unidecode
+     * for i in range(192, 564):
+     *     char = unichr(i)
+     *     decoded = unidecode(char)
+     *     # Unicode characters that decompose into multiple characters i.e.
+     *     #  into ss are not supported for now
+     *     if (len(decoded) == 1 and decoded.isalpha()):
+     *         print "case '" + char + "': return '" + unidecode(char) +  "';"
+     *
+     * The unidecode library can be found at: http://pypi.python.org/pypi/Unidecode/0.04.1
+     */
+    private static final String[] LATIN_FOLDING = {
+        "aAÀÁÂÃÄÅàáâãäåĀāĂăĄąǍǎǞǟǠǡǺǻȀȁȂȃȦȧ",
+        "bBƀƁƂƃ",
+        "cCÇçĆćĈĉĊċČčƇƈ",
+        "dDÐðĎďĐđƉƊƋƌƍǲ",
+        "eEÈÉÊËèéêëĒēĔĕĖėĘęĚěƐȄȅȆȇȨȩ",
+        "fFƑƒ",
+        "gGĜĝĞğĠġĢģƓƔǤǥǦǧǴǵ",
+        "hHĤĥĦħȞȟ",
+        "iIÌÍÎÏìíîïĨĩĪīĬĭĮįİıƖƗǏǐȈȉȊȋ",
+        "jJĴĵǰ",
+        "kKĶķĸƘƙǨǩ",
+        "lLĹĺĻļĽľĿŀŁłƚƛ",
+        "mM",
+        "nNÑñŃńŅņŇňƝƞǸǹ",
+        "oOÒÓÔÕÖØòóôõöøŌōŎŏŐőƆƟƠơǑǒǪǫǬǭǾǿȌȍȎȏȪȫȬȭȮȯȰȱ",
+        "pPƤƥ",
+        "qQ",
+        "rRŔŕŖŗŘřȐȑȒȓ",
+        "sSŚśŜŝŞşŠšſȘș",
+        "tTŢţŤťŦŧƫƬƭƮȚț",
+        "uUÙÚÛÜÝùúûüŨũŪūŬŭŮůŰűŲųƯưǓǔǕǖǗǘǙǚǛǜȔȕȖȗ",
+        "vVƲ",
+        "wWŴŵƜƿǷ",
+        "xX×",
+        "yYýÿŶŷŸƱƳƴȜȝȲȳ",
+        "zZŹźŻżŽžƵƶȤȥ"
+    };
+
+    /** Each entry starts with a dialpad digit, followed by the letters of that key. */
+    private static final String[] LATIN_KEYS = {
+        "2abc", "3def", "4ghi", "5jkl", "6mno", "7pqrs", "8tuv", "9wxyz"
+    };
+
+    private static final String LATIN_ALPHABETIC_RANGES = "az";
+
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int PAGE_COUNT = (Character.MAX_VALUE + 1) >> PAGE_SHIFT;
+
+    private static final byte FLAG_ALPHABETIC = 1;
+    private static final byte FLAG_NUMERIC = 2;
+    private static final byte NO_INDEX = -1;
+
+    private static final char[] EMPTY_CHAR_PAGE = new char[PAGE_SIZE];
+    private static final byte[] EMPTY_FLAG_PAGE = new byte[PAGE_SIZE];
+    private static final byte[] EMPTY_INDEX_PAGE = new byte[PAGE_SIZE];
+    static {
+        Arrays.fill(EMPTY_INDEX_PAGE, NO_INDEX);
+    }
+
+    /** Offset from a character to its normalized form. */
+    private final char[][] mNormalizeDelta = newPages(EMPTY_CHAR_PAGE);
+    /** Offset from a character to the digit of its dialpad key. */
+    private final char[][] mNumericDelta = newPages(EMPTY_CHAR_PAGE);
+    private final byte[][] mFlags = newPages(EMPTY_FLAG_PAGE);
+    private final byte[][] mIndex = newPages(EMPTY_INDEX_PAGE);
+    /** See {@link #normalizeToDialpadCharacter}, 0 for characters that are not on the dialpad. */
+    private final char[][] mDialpadCharacter = newPages(EMPTY_CHAR_PAGE);
+
+    /**
+     * Creates a map of the latin alphabet only.
+     */
+    protected BaseSmartDialMap() {
+        this(new String[0], "", new String[0]);
+    }
+
+    /**
+     * Creates a map of the latin alphabet and one additional script.
+     *
+     * @param folding Entries made of a normalized character followed by the characters folded
+     * to it.
+     * @param alphabeticRanges Pairs of first and last characters of ranges of alphabetic
+     * characters.
+     * @param keys Entries made of a dialpad digit followed by the letters of that key.
+     */
+    protected BaseSmartDialMap(String[] folding, String alphabeticRanges, String[] keys) {
+        addFolding(LATIN_FOLDING);
+        addFolding(folding);
+        addAlphabeticRanges(LATIN_ALPHABETIC_RANGES);
+        addAlphabeticRanges(alphabeticRanges);
+        for (char ch = '0'; ch <= '9'; ch++) {
+            ownPage(mFlags, ch)[ch & PAGE_MASK] = FLAG_NUMERIC;
+            ownPage(mIndex, ch)[ch & PAGE_MASK] = (byte) (ch - '0');
+        }
+        addKeys(LATIN_KEYS);
+        addKeys(keys);
+        compileDialpadCharacters();
+    }
+
+    private static char[][] newPages(char[] emptyPage) {
+        final char[][] pages = new char[PAGE_COUNT][];
+        Arrays.fill(pages, emptyPage);
+        return pages;
+    }
+
+    private static byte[][] newPages(byte[] emptyPage) {
+        final byte[][] pages = new byte[PAGE_COUNT][];
+        Arrays.fill(pages, emptyPage);
+        return pages;
+    }
+
+    /**
+     * Returns the page of the character, replacing a shared empty page by a private copy.
+     */
+    private static char[] ownPage(char[][] pages, char ch) {
+        final int page = ch >>> PAGE_SHIFT;
+        if (pages[page] == EMPTY_CHAR_PAGE) {
+            pages[page] = EMPTY_CHAR_PAGE.clone();
+        }
+        return pages[page];
+    }
+
+    private static byte[] ownPage(byte[][] pages, char ch) {
+        final int page = ch >>> PAGE_SHIFT;
+        if (pages[page] == EMPTY_FLAG_PAGE || pages[page] == EMPTY_INDEX_PAGE) {
+            pages[page] = pages[page].clone();
+        }
+        return pages[page];
+    }
+
+    private void addFolding(String[] folding) {
+        for (String entry : folding) {
+            final char normalized = entry.charAt(0);
+            for (int i = 1; i < entry.length(); i++) {
+                final char ch = entry.charAt(i);
+                ownPage(mNormalizeDelta, ch)[ch & PAGE_MASK] = (char) (normalized - ch);
+            }
+        }
+    }
+
+    private void addAlphabeticRanges(String ranges) {
+        for (int i = 0; i < ranges.length(); i += 2) {
+            for (char ch = ranges.charAt(i); ch <= ranges.charAt(i + 1); ch++) {
+                ownPage(mFlags, ch)[ch & PAGE_MASK] |= FLAG_ALPHABETIC;
+            }
+        }
+    }
+
+    private void addKeys(String[] keys) {
+        for (String entry : keys) {
+            final char digit = entry.charAt(0);
+            for (int i = 1; i < entry.length(); i++) {
+                final char ch = entry.charAt(i);
+                ownPage(mNumericDelta, ch)[ch & PAGE_MASK] = (char) (digit - ch);
+                ownPage(mIndex, ch)[ch & PAGE_MASK] = (byte) (digit - '0');
+            }
+        }
+    }
+
+    /**
+     * Fills {@link #mDialpadCharacter}. A character can only normalize to a dialpad character if
+     * it is folded, or if it is a dialpad character itself, so only those pages are visited.
+     */
+    private void compileDialpadCharacters() {
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            if (mNormalizeDelta[page] == EMPTY_CHAR_PAGE && mFlags[page] == EMPTY_FLAG_PAGE) {
+                continue;
+            }
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                final char normalized = normalizeCharacter((char) ((page << PAGE_SHIFT) | i));
+                if (isValidDialpadAlphabeticChar(normalized)) {
+                    ownPage(mDialpadCharacter, (char) (page << PAGE_SHIFT))[i] =
+                            getDialpadNumericCharacter(normalized);
+                } else if (isValidDialpadNumericChar(normalized)) {
+                    ownPage(mDialpadCharacter, (char) (page << PAGE_SHIFT))[i] = normalized;
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isValidDialpadAlphabeticChar(char ch) {
+        return (mFlags[ch >>> PAGE_SHIFT][ch & PAGE_MASK] & FLAG_ALPHABETIC) != 0;
+    }
+
+    @Override
+    public boolean isValidDialpadNumericChar(char ch) {
+        return (mFlags[ch >>> PAGE_SHIFT][ch & PAGE_MASK] & FLAG_NUMERIC) != 0;
+    }
+
+    @Override
+    public boolean isValidDialpadCharacter(char ch) {
+        return mFlags[ch >>> PAGE_SHIFT][ch & PAGE_MASK] != 0;
+    }
+
+    @Override
+    public byte getDialpadIndex(char ch) {
+        return mIndex[ch >>> PAGE_SHIFT][ch & PAGE_MASK];
+    }
+
+    @Override
+    public char getDialpadNumericCharacter(char ch) {
+        return (char) (ch + mNumericDelta[ch >>> PAGE_SHIFT][ch & PAGE_MASK]);
+    }
+
+    @Override
+    public char normalizeCharacter(char ch) {
+        return (char) (ch + mNormalizeDelta[ch >>> PAGE_SHIFT][ch & PAGE_MASK]);
+    }
+
+    @Override
+    public char normalizeToDialpadCharacter(char ch) {
+        return mDialpadCharacter[ch >>> PAGE_SHIFT][ch & PAGE_MASK];
+    }
+
+    @Override
+    public String transliterateName(String index) {
+        return index;
+    }
+
+    @Override
+    public SmartDialNameIndex buildNameIndex(String displayName) {
+        return SmartDialNameIndex.build(this, displayName, displayName.length(), null);
+    }
+
+    @Override
+    public boolean matchesCombination(SmartDialNameMatcher smartDialNameMatcher,
+            String displayName, String query, ArrayList<SmartDialMatchPosition> matchList) {
+        return smartDialNameMatcher.matchesCombination(displayName, query, matchList);
+    }
+}
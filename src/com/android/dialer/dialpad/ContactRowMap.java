@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import java.util.Arrays;
+
+/**
+ * Map from contact ids to the rows of {@link SmartDialTrie} and {@link SmartDialNumberGramIndex},
+ * open addressing with linear probing over a long array of keys and an int array of rows, so
+ * that no entry is boxed.
+ *
+ * Rows are never negative, {@link #NO_ROW} marks a free slot. Removed entries shift the following
+ * entries of their probe sequence back instead of leaving tombstones.
+ */
+final class ContactRowMap {
+    /** Returned by {@link #get} for contacts that are not in the map. */
+    static final int NO_ROW = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] mKeys;
+    private int[] mRows;
+    private int mSize;
+
+    ContactRowMap() {
+        clear();
+    }
+
+    void clear() {
+        mKeys = new long[INITIAL_CAPACITY];
+        mRows = new int[INITIAL_CAPACITY];
+        Arrays.fill(mRows, NO_ROW);
+        mSize = 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /** Returns the number of slots, two to four times the number of entries. */
+    int getCapacity() {
+        return mKeys.length;
+    }
+
+    /**
+     * Returns the row of the contact, or {@link #NO_ROW} if it is not in the map.
+     */
+    int get(long contactId) {
+        final int mask = mKeys.length - 1;
+        for (int slot = hash(contactId) & mask; mRows[slot] != NO_ROW; slot = (slot + 1) & mask) {
+            if (mKeys[slot] == contactId) {
+                return mRows[slot];
+            }
+        }
+        return NO_ROW;
+    }
+
+    /**
+     * Maps the contact to the given row, which must not be negative.
+     */
+    void put(long contactId, int row) {
+        if (row < 0) {
+            throw new IllegalArgumentException("Invalid row " + row);
+        }
+        if (2 * (mSize + 1) > mKeys.length) {
+            resize(mKeys.length * 2);
+        }
+        final int mask = mKeys.length - 1;
+        int slot = hash(contactId) & mask;
+        while (mRows[slot] != NO_ROW) {
+            if (mKeys[slot] == contactId) {
+                mRows[slot] = row;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        mKeys[slot] = contactId;
+        mRows[slot] = row;
+        mSize++;
+    }
+
+    /**
+     * Removes the contact from the map.
+     *
+     * @return The row of the contact, or {@link #NO_ROW} if it was not in the map.
+     */
+    int remove(long contactId) {
+        final int mask = mKeys.length - 1;
+        int slot = hash(contactId) & mask;
+        while (mRows[slot] != NO_ROW && mKeys[slot] != contactId) {
+            slot = (slot + 1) & mask;
+        }
+        final int row = mRows[slot];
+        if (row == NO_ROW) {
+            return NO_ROW;
+        }
+        // Move back the following entries which could not be stored at the freed slot or before.
+        int free = slot;
+        for (int next = (free + 1) & mask; mRows[next] != NO_ROW; next = (next + 1) & mask) {
+            final int home = hash(mKeys[next]) & mask;
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                mKeys[free] = mKeys[next];
+                mRows[free] = mRows[next];
+                free = next;
+            }
+        }
+        mRows[free] = NO_ROW;
+        mSize--;
+        return row;
+    }
+
+    private void resize(int capacity) {
+        final long[] keys = mKeys;
+        final int[] rows = mRows;
+        mKeys = new long[capacity];
+        mRows = new int[capacity];
+        Arrays.fill(mRows, NO_ROW);
+        final int mask = capacity - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if (rows[i] != NO_ROW) {
+                int slot = hash(keys[i]) & mask;
+                while (mRows[slot] != NO_ROW) {
+                    slot = (slot + 1) & mask;
+                }
+                mKeys[slot] = keys[i];
+                mRows[slot] = rows[i];
+            }
+        }
+    }
+
+    private static int hash(long contactId) {
+        final int h = (int) (contactId ^ (contactId >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
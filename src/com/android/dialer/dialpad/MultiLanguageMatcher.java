@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+/**
+ * Matcher provided by the vendor of the device, which matches dialpad queries against names in
+ * languages the {@link SmartDialMap}s don't know. When there is one, it replaces the map for
+ * matching names, see {@link MultiLanguageMatchers#getInstance}.
+ *
+ * Implementations are called from the loader threads and the UI thread, and must be thread safe.
+ */
+public interface MultiLanguageMatcher {
+
+    /**
+     * Matches a query against a name.
+     *
+     * @param query The normalized dialpad query.
+     * @param name The display name.
+     * @return The matched characters of the name as (start, end) pairs, both inclusive, or null
+     * if the name does not match.
+     */
+    int[] getMatchStringIndex(String query, String name);
+
+    /**
+     * Matches a query against many names at once, like {@link #getMatchStringIndex} does for
+     * each of them.
+     *
+     * @param names The display names, only the first count ones are matched.
+     * @param results Receives the result of {@link #getMatchStringIndex} for every name.
+     */
+    void getMatchStringIndexes(String query, String[] names, int count, int[][] results);
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.lang.reflect.Method;
+
+/**
+ * Finds the {@link MultiLanguageMatcher} of the device, once per process.
+ */
+public final class MultiLanguageMatchers {
+    private static final String TAG = "MultiLanguageMatchers";
+
+    /** Class of the vendor matcher, looked up in the boot class path. */
+    private static final String VENDOR_MATCHER_CLASS = "com.qualcomm.qti.smartsearch.SmartMatch";
+
+    private static MultiLanguageMatcher sInstance;
+    private static boolean sLoaded;
+
+    private MultiLanguageMatchers() {
+    }
+
+    /**
+     * Returns the matcher of the device, or null if it has none.
+     */
+    public static synchronized MultiLanguageMatcher getInstance() {
+        if (!sLoaded) {
+            sInstance = load();
+            sLoaded = true;
+        }
+        return sInstance;
+    }
+
+    /**
+     * Replaces the matcher of the device, null to match names with the {@link SmartDialMap} only.
+     */
+    @VisibleForTesting
+    public static synchronized void setInstance(MultiLanguageMatcher matcher) {
+        sInstance = matcher;
+        sLoaded = true;
+    }
+
+    private static MultiLanguageMatcher load() {
+        final Object matcher;
+        try {
+            matcher = Class.forName(VENDOR_MATCHER_CLASS).newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            Log.w(TAG, "Could not create the multi-language matcher", e);
+            return null;
+        }
+        if (matcher instanceof MultiLanguageMatcher) {
+            Log.d(TAG, "Created the multi-language matcher");
+            return (MultiLanguageMatcher) matcher;
+        }
+        try {
+            final Method method = matcher.getClass().getDeclaredMethod("getMatchStringIndex",
+                    String.class, String.class, int.class);
+            Log.d(TAG, "Created the legacy multi-language matcher");
+            return new ReflectiveMatcher(matcher, method);
+        } catch (NoSuchMethodException e) {
+            Log.w(TAG, "The multi-language matcher has no match method", e);
+            return null;
+        }
+    }
+
+    /**
+     * Adapts vendor matchers that predate {@link MultiLanguageMatcher}, whose match method is
+     * called through reflection.
+     */
+    private static final class ReflectiveMatcher implements MultiLanguageMatcher {
+        private final Object mMatcher;
+        private final Method mMethod;
+
+        ReflectiveMatcher(Object matcher, Method method) {
+            mMatcher = matcher;
+            mMethod = method;
+        }
+
+        @Override
+        public int[] getMatchStringIndex(String query, String name) {
+            try {
+                return (int[]) mMethod.invoke(mMatcher, query, name, 0);
+            } catch (Exception e) {
+                Log.d(TAG, "Exception:" + e);
+                return null;
+            }
+        }
+
+        @Override
+        public void getMatchStringIndexes(String query, String[] names, int count,
+                int[][] results) {
+            for (int i = 0; i < count; i++) {
+                results[i] = getMatchStringIndex(query, names[i]);
+            }
+        }
+    }
+}
@@ -20,7 +20,8 @@ import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.MatrixCursor;
-import android.provider.ContactsContract;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -29,7 +30,10 @@ import com.android.contacts.common.util.PermissionsUtil;
 
 import com.android.dialer.database.DialerDatabaseHelper;
 import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.database.SmartDialMimeTypes;
 import com.android.dialerbind.DatabaseHelperManager;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ObjectArrays;
 
 import java.util.ArrayList;
 
@@ -50,9 +54,48 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
 
     private ForceLoadContentObserver mObserver;
 
+    /** Cancels the query in progress, see {@link #cancelLoadInBackground}. */
+    private CancellationSignal mCancellationSignal;
+
     private String mCallableMimetype;
     public static final String CALLABLE_EXTRA_NUMBER = "callable_extra_number";
 
+    /**
+     * Columns holding the dialpad index of the name, appended to
+     * {@link PhoneQuery#PROJECTION_PRIMARY} so that the list adapter highlights the matches
+     * without indexing the names again. See {@link #getNameIndex}.
+     */
+    private static final String DIALPAD_INDEX = "dialpad_index";
+    private static final String DIALPAD_INDEX_SOURCES = "dialpad_index_sources";
+
+    private static final String[] PROJECTION = ObjectArrays.concat(
+            PhoneQuery.PROJECTION_PRIMARY,
+            new String[] {DIALPAD_INDEX, DIALPAD_INDEX_SOURCES}, String.class);
+
+    /**
+     * Result of the last completed query. A new loader is created for every query the user types,
+     * so this is shared by all instances.
+     */
+    private static volatile PreviousMatches sPreviousMatches;
+
+    private static class PreviousMatches {
+        final String query;
+        final String callableMimetype;
+        final SmartDialMimeTypes.Filter mimeTypeFilter;
+        final int generation;
+        final ArrayList<ContactNumber> matches;
+
+        PreviousMatches(String query, String callableMimetype,
+                SmartDialMimeTypes.Filter mimeTypeFilter, int generation,
+                ArrayList<ContactNumber> matches) {
+            this.query = query;
+            this.callableMimetype = callableMimetype;
+            this.mimeTypeFilter = mimeTypeFilter;
+            this.generation = generation;
+            this.matches = matches;
+        }
+    }
+
     public SmartDialCursorLoader(Context context) {
         super(context);
         mContext = context;
@@ -87,27 +130,79 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
             return new MatrixCursor(PhoneQuery.PROJECTION_PRIMARY);
         }
 
+        final CancellationSignal cancellationSignal;
+        synchronized (this) {
+            if (isLoadInBackgroundCanceled()) {
+                throw new OperationCanceledException();
+            }
+            cancellationSignal = mCancellationSignal = new CancellationSignal();
+        }
+        try {
+            return loadMatches(cancellationSignal);
+        } finally {
+            synchronized (this) {
+                mCancellationSignal = null;
+            }
+        }
+    }
+
+    /**
+     * Stops the query in progress, whose results would be discarded anyway, so that the query
+     * of the next digit typed by the user does not have to wait for it.
+     */
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
+    }
+
+    private Cursor loadMatches(CancellationSignal cancellationSignal) {
         /** Loads results from the database helper. */
         final DialerDatabaseHelper dialerDatabaseHelper = DatabaseHelperManager.getDatabaseHelper(
                 mContext);
-        final ArrayList<ContactNumber> allMatches = dialerDatabaseHelper.getLooseMatches(mQuery,
-                mNameMatcher, mCallableMimetype);
+        /** Read the generation first, so that results racing with an update are never reused. */
+        final int generation = dialerDatabaseHelper.getSmartDialGeneration();
+        /** Matches found while other plugins were enabled may miss rows, or hold extra ones. */
+        final SmartDialMimeTypes.Filter mimeTypeFilter =
+                SmartDialMimeTypes.getInstance(mContext).getFilter();
+        ArrayList<ContactNumber> allMatches = null;
+        final PreviousMatches previous = sPreviousMatches;
+        if (previous != null && previous.generation == generation
+                && previous.mimeTypeFilter == mimeTypeFilter
+                && TextUtils.equals(previous.callableMimetype, mCallableMimetype)
+                && isAppendedDigit(previous.query, mQuery)) {
+            allMatches = dialerDatabaseHelper.refineLooseMatches(previous.matches, mQuery,
+                    mNameMatcher, mCallableMimetype);
+        }
+        if (allMatches == null) {
+            allMatches = dialerDatabaseHelper.getLooseMatches(mQuery, mNameMatcher,
+                    mCallableMimetype, cancellationSignal);
+        } else if (DEBUG) {
+            Log.v(TAG, "Refined matches of " + previous.query);
+        }
+        sPreviousMatches = new PreviousMatches(mQuery, mCallableMimetype, mimeTypeFilter,
+                generation, allMatches);
 
         if (DEBUG) {
-            Log.v(TAG, "Loaded matches " + String.valueOf(allMatches.size()));
+            Log.v(TAG, "Loaded matches " + String.valueOf(allMatches.size()) + ", "
+                    + dialerDatabaseHelper.getCancelledSmartDialQueryCount() + " cancelled and "
+                    + dialerDatabaseHelper.getCompletedSmartDialQueryCount()
+                    + " completed queries so far");
         }
 
-        int projectionLength = PhoneQuery.PROJECTION_PRIMARY.length;
+        int projectionLength = PROJECTION.length;
+        final int dialpadIndexColumn = PhoneQuery.PROJECTION_PRIMARY.length;
 
         /** Constructs a cursor for the returned array of results. */
-        final MatrixCursor cursor = new MatrixCursor(PhoneQuery.PROJECTION_PRIMARY);
+        final MatrixCursor cursor = new MatrixCursor(PROJECTION);
         Object[] row = new Object[projectionLength];
         for (ContactNumber contact : allMatches) {
-            if (TextUtils.equals(contact.mimeType, mCallableMimetype) ||
-                    TextUtils.equals(contact.mimeType,
-                            ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE) ||
-                    TextUtils.equals(contact.mimeType,
-                            ContactsContract.CommonDataKinds.SipAddress.CONTENT_ITEM_TYPE)) {
+            if (mimeTypeFilter.isShown(contact.mimeType, mCallableMimetype)) {
                 row[PhoneQuery.CONTACT_ID] = contact.id;
                 row[PhoneQuery.LOOKUP_KEY] = contact.lookupKey;
                 row[PhoneQuery.PHOTO_ID] = contact.photoId;
@@ -117,6 +212,10 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
                 row[PhoneQuery.PHONE_MIME_TYPE] = contact.mimeType;
                 row[PhoneQuery.PHONE_TYPE] = contact.phoneType;
                 row[PhoneQuery.PHONE_LABEL] = contact.phoneLabel;
+                row[dialpadIndexColumn] = contact.nameIndex != null
+                        ? contact.nameIndex.getIndex() : null;
+                row[dialpadIndexColumn + 1] = contact.nameIndex != null
+                        ? contact.nameIndex.getSourcesAsBlob() : null;
                 cursor.addRow(row);
             }
         }
@@ -200,6 +299,31 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
         releaseResources(cursor);
     }
 
+    /**
+     * Whether the query was obtained by typing one more digit after the previous query. Deleting
+     * a digit or pasting a number requires a full search.
+     */
+    @VisibleForTesting
+    static boolean isAppendedDigit(String previousQuery, String query) {
+        return !TextUtils.isEmpty(previousQuery) && query != null
+                && query.length() == previousQuery.length() + 1
+                && query.startsWith(previousQuery);
+    }
+
+    /**
+     * Returns the dialpad index of the name of the row the cursor is at, or null if the cursor
+     * does not come from this loader or the name was not indexed.
+     */
+    public static SmartDialNameIndex getNameIndex(Cursor cursor) {
+        final int indexColumn = cursor.getColumnIndex(DIALPAD_INDEX);
+        final int sourcesColumn = cursor.getColumnIndex(DIALPAD_INDEX_SOURCES);
+        if (indexColumn < 0 || sourcesColumn < 0) {
+            return null;
+        }
+        return SmartDialNameIndex.fromStored(cursor.getString(indexColumn),
+                cursor.getBlob(sourcesColumn), cursor.getString(PhoneQuery.DISPLAY_NAME));
+    }
+
     private void releaseResources(Cursor cursor) {
         if (cursor != null) {
             cursor.close();
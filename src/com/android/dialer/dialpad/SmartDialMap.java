@@ -43,11 +43,24 @@ public interface SmartDialMap {
      */
     public char normalizeCharacter(char ch);
 
+    /*
+     * Normalizes the character and returns what it stands for on the dialpad: the digit of its key
+     * for letters, the letter itself for letters without a key, the digit itself for digits, and
+     * 0 for characters that can't be mapped to the dialpad.
+     */
+    public char normalizeToDialpadCharacter(char ch);
+
     /*
      * Allow the SmartDialMaps to convert the characters if needed.
      */
     public String transliterateName(String index);
 
+    /*
+     * Builds the dialpad index of a display name, which matches queries like
+     * {@link #matchesCombination} does on the name.
+     */
+    public SmartDialNameIndex buildNameIndex(String displayName);
+
     /*
      * Allow the SmartDialMaps to provide their own character to dialpad matching if needed.
      */
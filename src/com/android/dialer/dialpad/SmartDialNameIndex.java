@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+/**
+ * The dialpad index of a display name: the name as the {@link SmartDialMap} sees it once
+ * transliterated, with every character replaced by what it stands for on the dialpad, and
+ * {@link #SEPARATOR} for the characters that can't be mapped to the dialpad.
+ *
+ * The index only changes when the name does, so it is computed when the smart dial database is
+ * updated and stored next to the name. {@link SmartDialNameMatcher} then matches queries against
+ * the index without going through the map again, and maps the match positions back to the
+ * characters of the name with {@link #mapToName}.
+ */
+public class SmartDialNameIndex {
+    /** Stands for the characters of the name that can't be mapped to the dialpad. */
+    public static final char SEPARATOR = ' ';
+
+    /**
+     * Bump when the encoding of the index changes. Stored indexes are rebuilt when this, or the
+     * map they were built with, changes; see {@link #getVersion}. Version 2 also splits Korean
+     * names holding the first Hangul syllable, U+AC00.
+     */
+    private static final int VERSION = 2;
+
+    /** Marks the characters of the index that don't come from a character of the name. */
+    private static final int NO_SOURCE = 0xFFFF;
+
+    private final String mIndex;
+    private final int mNameLength;
+
+    /**
+     * The position in the name of the character each character of the index comes from, or -1
+     * for separators that don't come from the name. Null when the index has one character per
+     * character of the name.
+     */
+    private final int[] mSources;
+
+    private SmartDialNameIndex(String index, int nameLength, int[] sources) {
+        mIndex = index;
+        mNameLength = nameLength;
+        mSources = sources;
+    }
+
+    /**
+     * Builds the index of a transliterated name.
+     *
+     * @param map The map the name is matched with.
+     * @param transliteratedName The name as matched by the map.
+     * @param nameLength The length of the display name.
+     * @param sources The position in the display name of every character of the transliterated
+     * name, -1 for characters that don't come from the name, or null if the transliterated name
+     * is the display name.
+     */
+    static SmartDialNameIndex build(SmartDialMap map, String transliteratedName, int nameLength,
+            int[] sources) {
+        final int length = transliteratedName.length();
+        final char[] index = new char[length];
+        for (int i = 0; i < length; i++) {
+            final char ch = map.normalizeToDialpadCharacter(transliteratedName.charAt(i));
+            index[i] = ch != 0 ? ch : SEPARATOR;
+        }
+        return new SmartDialNameIndex(new String(index), nameLength, sources);
+    }
+
+    /**
+     * Restores an index stored with {@link #getIndex} and {@link #getSourcesAsBlob}.
+     *
+     * @return The index, or null if it was not stored.
+     */
+    public static SmartDialNameIndex fromStored(String index, byte[] sources, String displayName) {
+        if (index == null || displayName == null) {
+            return null;
+        }
+        if (sources == null) {
+            return index.length() == displayName.length()
+                    ? new SmartDialNameIndex(index, displayName.length(), null) : null;
+        }
+        if (sources.length != index.length() * 2) {
+            return null;
+        }
+        final int[] decoded = new int[index.length()];
+        for (int i = 0; i < decoded.length; i++) {
+            final int source = ((sources[i * 2] & 0xFF) << 8) | (sources[i * 2 + 1] & 0xFF);
+            decoded[i] = source == NO_SOURCE ? -1 : source;
+        }
+        return new SmartDialNameIndex(index, displayName.length(), decoded);
+    }
+
+    /**
+     * Returns the version of the indexes built by the given map.
+     */
+    public static String getVersion(SmartDialMap map) {
+        return VERSION + ":" + map.getClass().getName();
+    }
+
+    public String getIndex() {
+        return mIndex;
+    }
+
+    public int getNameLength() {
+        return mNameLength;
+    }
+
+    /**
+     * Returns the positions of the characters of the index in the name, two bytes per character,
+     * or null if the index has one character per character of the name.
+     */
+    public byte[] getSourcesAsBlob() {
+        if (mSources == null) {
+            return null;
+        }
+        final byte[] blob = new byte[mSources.length * 2];
+        for (int i = 0; i < mSources.length; i++) {
+            final int source = mSources[i] < 0 ? NO_SOURCE : mSources[i];
+            blob[i * 2] = (byte) (source >> 8);
+            blob[i * 2 + 1] = (byte) source;
+        }
+        return blob;
+    }
+
+    /**
+     * Maps match positions in the index to positions in the name, in place. A range of the index
+     * maps to the range of the name covering the characters its characters come from.
+     *
+     * @param positions Ranges of the index as (start, end) pairs.
+     * @param count Number of ranges in positions.
+     * @return The number of ranges left in positions, ranges made of separators only are dropped.
+     */
+    int mapToName(int[] positions, int count) {
+        if (mSources == null) {
+            return count;
+        }
+        int mapped = 0;
+        for (int i = 0; i < count; i++) {
+            final int start = positions[i * 2];
+            final int end = positions[i * 2 + 1];
+            int first = start;
+            while (first < end && mSources[first] < 0) {
+                first++;
+            }
+            int last = end - 1;
+            while (last >= first && mSources[last] < 0) {
+                last--;
+            }
+            if (first <= last) {
+                positions[mapped * 2] = mSources[first];
+                positions[mapped * 2 + 1] = Math.min(mSources[last] + 1, mNameLength);
+                mapped++;
+            }
+        }
+        return mapped;
+    }
+}
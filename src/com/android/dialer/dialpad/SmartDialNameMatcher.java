@@ -20,14 +20,13 @@ import android.content.Context;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.android.dialer.database.DialerDatabaseHelper;
 import com.android.dialer.dialpad.SmartDialPrefix.PhoneNumberTokens;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 
-import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * {@link #SmartDialNameMatcher} contains utility functions to remove accents from accented
@@ -53,13 +52,68 @@ public class SmartDialNameMatcher {
 
     private final SmartDialMap mMap;
 
+    /**
+     * The highlight masks are only built when asked for. Until then, null stands for a mask of
+     * {@link #mNameMaskLength} characters highlighting the {@link #mNameMaskCount} match positions
+     * at the start of {@link #mScratchPositions}, or the number match range respectively.
+     */
     private String mNameMatchMask = "";
+    private int mNameMaskLength;
+    private int mNameMaskCount;
     private String mPhoneNumberMatchMask = "";
+    private int mNumberMaskLength;
+    private int mNumberMatchStart;
+    private int mNumberMatchEnd;
+
+    /**
+     * Scratch buffers reused across calls to {@link #matchesCombination}. The positions of the
+     * match found at recursion depth d are stored as (start, end) pairs in the region starting at
+     * d * {@link #mScratchRegionSize}, and their number in mScratchCounts[d].
+     */
+    private int[] mScratchPositions = new int[0];
+    private int[] mScratchCounts = new int[0];
+    private int mScratchRegionSize;
+
+    /** Whether matches are recorded into {@link SmartDialMatchPosition} lists. */
+    private boolean mRecordMatchPositions = true;
+
+    /**
+     * Whether {@link #matchesCombination} is matching a {@link SmartDialNameIndex}, whose
+     * characters are already mapped to the dialpad, rather than a display name.
+     */
+    private boolean mMatchingNameIndex;
+
+    /** Formatting characters skipped when matching a phone number, indexed by character. */
+    private static final boolean[] NUMBER_SEPARATORS = new boolean[128];
+    static {
+        final String separators = "+*#-.(,)/ ";
+        for (int i = 0; i < separators.length(); i++) {
+            NUMBER_SEPARATORS[separators.charAt(i)] = true;
+        }
+    }
+
+    /**
+     * Whether the character is a formatting character skipped when matching a phone number.
+     */
+    static boolean isNumberSeparator(char ch) {
+        return ch < NUMBER_SEPARATORS.length && NUMBER_SEPARATORS[ch];
+    }
+
+    /**
+     * Scratch buffers of the phone number matcher: the KMP failure function of
+     * {@link #mNumberQuery}, and the positions in the raw number of the last matched digits.
+     */
+    private String mNumberQuery;
+    private int[] mNumberQueryFailure = new int[0];
+    private int[] mNumberDigitPositions = new int[0];
 
     private Context mContext;
-    private String mSchar = "+*#-.(,)/ ";
-    private Object mMultiMatchObject;
-    private Method mMultiMatchMethod;
+
+    /** Matcher of the device replacing {@link #mMap} for names, or null if there is none. */
+    private final MultiLanguageMatcher mMultiLanguageMatcher;
+
+    /** Results of the last {@link #matchesWithoutPositions(String[], int, boolean[])} call. */
+    private int[][] mBatchResults = new int[0][];
 
     @VisibleForTesting
     public SmartDialNameMatcher(String query, Context context) {
@@ -70,33 +124,56 @@ public class SmartDialNameMatcher {
         mQuery = query;
         mMap = map;
         mContext = context;
-        mMultiMatchObject = DialerDatabaseHelper.getInstance(mContext)
-                .getMultiMatchObject();
-        mMultiMatchMethod = DialerDatabaseHelper.getInstance(mContext)
-                .getMultiMatchMethod();
+        mMultiLanguageMatcher = MultiLanguageMatchers.getInstance();
     }
 
     /**
-     * Constructs empty highlight mask. Bit 0 at a position means there is no match, Bit 1 means
-     * there is a match and should be highlighted in the TextView.
-     * @param builder StringBuilder object
-     * @param length Length of the desired mask.
+     * Whether names are matched by the {@link MultiLanguageMatcher} of the device rather than
+     * by the map, in which case the dialpad index of the names is of no use.
      */
-    private void constructEmptyMask(StringBuilder builder, int length) {
-        for (int i = 0; i < length; ++i) {
-            builder.append("0");
+    public boolean hasMultiLanguageMatcher() {
+        return mMultiLanguageMatcher != null;
+    }
+
+    /**
+     * Makes sure the scratch buffers can hold the match positions of a query of the given length.
+     * Every recursion level consumes at least one character of the query, and so does every
+     * match position.
+     */
+    private void ensureScratchCapacity(int queryLength) {
+        if (mScratchCounts.length > queryLength) {
+            return;
         }
+        mScratchRegionSize = queryLength * 2;
+        mScratchCounts = new int[queryLength + 1];
+        mScratchPositions = new int[(queryLength + 1) * mScratchRegionSize];
     }
 
     /**
-     * Replaces the 0-bit at a position with 1-bit, indicating that there is a match.
-     * @param builder StringBuilder object.
-     * @param matchPos Match Positions to mask as 1.
+     * Builds a highlight mask of the given length with 1-bits in the given ranges.
+     * @param positions Ranges to highlight as (start, end) pairs.
+     * @param count Number of ranges in positions.
      */
-    private void replaceBitInMask(StringBuilder builder, SmartDialMatchPosition matchPos) {
-        for (int i = matchPos.start; i < matchPos.end; ++i) {
-            builder.replace(i, i + 1, "1");
+    private static String buildMask(int length, int[] positions, int count) {
+        final char[] mask = new char[length];
+        Arrays.fill(mask, '0');
+        for (int i = 0; i < count; i++) {
+            final int end = Math.min(positions[i * 2 + 1], length);
+            for (int j = positions[i * 2]; j < end; j++) {
+                mask[j] = '1';
+            }
         }
+        return new String(mask);
+    }
+
+    /**
+     * Builds a highlight mask of the given length with 1-bits in the range from start to end.
+     */
+    private static String buildMask(int length, int start, int end) {
+        final char[] mask = new char[length];
+        Arrays.fill(mask, '0');
+        Arrays.fill(mask, Math.min(start, length), Math.min(end, length), '1');
+        return new String(mask);
     }
 
     /**
@@ -138,17 +215,25 @@ public class SmartDialNameMatcher {
      */
     @VisibleForTesting
     public SmartDialMatchPosition matchesNumber(String phoneNumber, String query, boolean useNanp) {
-        StringBuilder builder = new StringBuilder();
-        constructEmptyMask(builder, phoneNumber.length());
-        mPhoneNumberMatchMask = builder.toString();
-
         // Try matching the number as is
-        SmartDialMatchPosition matchPos = matchesNumberWithOffset(phoneNumber, query, 0);
-        if (matchPos != null) {
-            replaceBitInMask(builder, matchPos);
-            mPhoneNumberMatchMask = builder.toString();
+        if (!matchesNumberWithoutPosition(phoneNumber, query)) {
+            return null;
+        }
+        return new SmartDialMatchPosition(mNumberMatchStart, mNumberMatchEnd);
+    }
+
+    /**
+     * Same as {@link #matchesNumber(String, String)}, but does not allocate memory once the
+     * scratch buffers fit the query.
+     */
+    public boolean matchesNumberWithoutPosition(String phoneNumber, String query) {
+        mNumberMaskLength = phoneNumber.length();
+        mPhoneNumberMatchMask = null;
+        if (matchesNumberWithOffset(phoneNumber, query, 0)) {
+            return true;
         }
-        return matchPos;
+        mNumberMatchStart = mNumberMatchEnd = 0;
+        return false;
     }
 
     /**
@@ -177,58 +262,78 @@ public class SmartDialNameMatcher {
     }
 
     /**
-     * Matches a phone number against a query, taking care of formatting characters
+     * Matches a phone number against a query, taking care of formatting characters. The query
+     * is looked up as a substring of the digits of the number, in a single pass over the raw
+     * number.
      *
      * @param phoneNumber - Raw phone number
      * @param query - Normalized query (only contains numbers from 0-9)
      * @param offset - The position in the number to start the match against (used to ignore
      * leading prefixes/country codes)
-     * @return {@literal null} if the number and the query don't match, a valid
-     *         SmartDialMatchPosition with the matching positions otherwise
+     * @return false if the number and the query don't match, true otherwise, in which case
+     *         {@link #mNumberMatchStart} and {@link #mNumberMatchEnd} hold the range of the first
+     *         match in the raw number
      */
-    private SmartDialMatchPosition matchesNumberWithOffset(String phoneNumber, String query,
-            int offset) {
+    private boolean matchesNumberWithOffset(String phoneNumber, String query, int offset) {
         if (TextUtils.isEmpty(phoneNumber) || TextUtils.isEmpty(query)
                 || query.length() > phoneNumber.length()) {
-            return null;
+            return false;
         }
 
-        String phoneNum = phoneNumber.replaceAll("[\\+\\*\\#\\-\\.\\(\\,\\)\\/ ]", "");
-        if (!TextUtils.isEmpty(phoneNum) && phoneNum.contains(query)) {
-            // firstly, find the start position in original phone number.
-            int start = phoneNum.indexOf(query);
-            int length = phoneNumber.length();
-            for (int i = start; i < length; i++) {
-                char ch = phoneNumber.charAt(i);
-                if (ch != phoneNum.charAt(start)) {
-                    continue;
-                }
-                if (phoneNumber.substring(i).replaceAll("[\\+\\*\\#\\-\\.\\(\\,\\)\\/ ]", "")
-                        .indexOf(query) == 0) {
-                    start = i;
-                    break;
-                }
+        prepareNumberQuery(query);
+        final int queryLength = query.length();
+        final int length = phoneNumber.length();
+        // Number of digits of the query matched so far, and of digits seen in the number.
+        int matched = 0;
+        int digits = 0;
+        for (int i = offset; i < length; i++) {
+            final char ch = phoneNumber.charAt(i);
+            if (isNumberSeparator(ch)) {
+                continue;
             }
-            // secondly, find the end position in original phone number.
-            int specialCount = 0;
-            int queryLength = query.length();
-            int end = start + queryLength;
-            for (int i = start; i < length; i++) {
-                char ch = phoneNumber.charAt(i);
-                if (mSchar.indexOf(ch) != -1) {
-                    specialCount++;
-                    continue;
-                }
+            mNumberDigitPositions[digits % queryLength] = i;
+            digits++;
 
-                if (i - start + 1 - specialCount == queryLength) {
-                    end = i + 1;
-                    break;
-                }
+            while (matched > 0 && query.charAt(matched) != ch) {
+                matched = mNumberQueryFailure[matched - 1];
             }
-            return new SmartDialMatchPosition(start, end);
-        } else {
-            return null;
+            if (query.charAt(matched) == ch) {
+                matched++;
+            }
+            if (matched == queryLength) {
+                // The match started queryLength digits ago.
+                mNumberMatchStart = mNumberDigitPositions[digits % queryLength];
+                mNumberMatchEnd = i + 1;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the KMP failure function of the query, unless it was already computed for it.
+     */
+    private void prepareNumberQuery(String query) {
+        if (query.equals(mNumberQuery)) {
+            return;
+        }
+        final int queryLength = query.length();
+        if (mNumberQueryFailure.length < queryLength) {
+            mNumberQueryFailure = new int[queryLength];
+            mNumberDigitPositions = new int[queryLength];
         }
+        mNumberQueryFailure[0] = 0;
+        int k = 0;
+        for (int i = 1; i < queryLength; i++) {
+            while (k > 0 && query.charAt(i) != query.charAt(k)) {
+                k = mNumberQueryFailure[k - 1];
+            }
+            if (query.charAt(i) == query.charAt(k)) {
+                k++;
+            }
+            mNumberQueryFailure[i] = k;
+        }
+        mNumberQuery = query;
     }
 
     /**
@@ -266,13 +371,96 @@ public class SmartDialNameMatcher {
             return false;
         }
 
-        StringBuilder builder = new StringBuilder();
-        constructEmptyMask(builder, displayName.length());
-        mNameMatchMask = builder.toString();
+        ensureScratchCapacity(query.length());
+        final boolean matches = matchesCombination(displayName, 0, query, 0, 0);
+
+        mNameMatchMask = null;
+        mNameMaskLength = displayName.length();
+        mNameMaskCount = matches ? mScratchCounts[0] : 0;
+        if (matches && mRecordMatchPositions) {
+            for (int i = 0; i < mNameMaskCount; i++) {
+                matchList.add(new SmartDialMatchPosition(
+                        mScratchPositions[i * 2], mScratchPositions[i * 2 + 1]));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Records that a display name of the given length does not match, for maps telling so
+     * without matching it.
+     *
+     * @return false.
+     */
+    boolean rejectName(int nameLength) {
+        mNameMatchMask = null;
+        mNameMaskLength = nameLength;
+        mNameMaskCount = 0;
+        return false;
+    }
+
+    /**
+     * Same as {@link #matchesCombination(String, String, ArrayList)} on the transliteration of a
+     * display name, with the match positions mapped back to the characters of the display name
+     * they come from, one position per character.
+     *
+     * @param sources The position in the display name of every character of the transliterated
+     * name, in ascending order, or -1 for the characters that don't come from the display name.
+     * @param nameLength The length of the display name.
+     */
+    boolean matchesTransliteratedName(String transliteratedName, int[] sources, int nameLength,
+            String query, ArrayList<SmartDialMatchPosition> matchList) {
+        ensureScratchCapacity(query.length());
+        final boolean matches = matchesCombination(transliteratedName, 0, query, 0, 0);
+
+        mNameMatchMask = null;
+        mNameMaskLength = nameLength;
+        mNameMaskCount = 0;
+        if (!matches) {
+            return false;
+        }
+        // The ranges are in ascending order and so are their sources, so every source is found
+        // once by skipping those not past the last one. Each of them comes from a matched
+        // character, so there are no more of them than digits in the query, and they fit in the
+        // scratch region of depth 1, which the match is done with.
+        int lastSource = -1;
+        for (int i = 0; i < mScratchCounts[0]; i++) {
+            final int end = mScratchPositions[i * 2 + 1];
+            for (int pos = mScratchPositions[i * 2]; pos < end; pos++) {
+                final int source = sources[pos];
+                if (source > lastSource) {
+                    mScratchPositions[mScratchRegionSize + mNameMaskCount * 2] = source;
+                    mScratchPositions[mScratchRegionSize + mNameMaskCount * 2 + 1] = source + 1;
+                    mNameMaskCount++;
+                    lastSource = source;
+                }
+            }
+        }
+        System.arraycopy(mScratchPositions, mScratchRegionSize, mScratchPositions, 0,
+                mNameMaskCount * 2);
+        if (mRecordMatchPositions) {
+            for (int i = 0; i < mNameMaskCount; i++) {
+                matchList.add(new SmartDialMatchPosition(
+                        mScratchPositions[i * 2], mScratchPositions[i * 2 + 1]));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Implements {@link #matchesCombination(String, String, ArrayList)} for the part of the
+     * display name starting at nameOffset and the part of the query starting at queryOffset.
+     * Match positions are relative to the whole display name and are stored in the scratch region
+     * of the given recursion depth, so that no memory is allocated.
+     */
+    private boolean matchesCombination(String displayName, int nameOffset, String query,
+            int queryOffset, int depth) {
         final int nameLength = displayName.length();
-        final int queryLength = query.length();
+        final int queryLength = query.length() - queryOffset;
+        final int region = depth * mScratchRegionSize;
+        mScratchCounts[depth] = 0;
 
-        if (nameLength < queryLength) {
+        if (nameLength - nameOffset < queryLength) {
             return false;
         }
 
@@ -282,13 +470,13 @@ public class SmartDialNameMatcher {
 
         // The current character index in displayName
         // E.g. 3 corresponds to 'd' in "Fred Smith"
-        int nameStart = 0;
+        int nameStart = nameOffset;
 
         // The current character in the query we are trying to match the displayName against
         int queryStart = 0;
 
         // The start position of the current token we are inspecting
-        int tokenStart = 0;
+        int tokenStart = nameOffset;
 
         // The number of non-alphabetic characters we've encountered so far in the current match.
         // E.g. if we've currently matched 3733764849 to (Fred Smith W)illiam, then the
@@ -296,17 +484,12 @@ public class SmartDialNameMatcher {
         // positions
         int seperatorCount = 0;
 
-        ArrayList<SmartDialMatchPosition> partial = new ArrayList<SmartDialMatchPosition>();
         // Keep going until we reach the end of displayName
         while (nameStart < nameLength && queryStart < queryLength) {
-            char ch = displayName.charAt(nameStart);
-            // Strip diacritics from accented characters if any
-            ch = mMap.normalizeCharacter(ch);
-            if (mMap.isValidDialpadCharacter(ch)) {
-                if (mMap.isValidDialpadAlphabeticChar(ch)) {
-                    ch = mMap.getDialpadNumericCharacter(ch);
-                }
-                if (ch != query.charAt(queryStart)) {
+            // Strip diacritics from accented characters if any, and map letters to their key
+            final char ch = toDialpadCharacter(displayName, nameStart);
+            if (ch != 0) {
+                if (ch != query.charAt(queryOffset + queryStart)) {
                     // Failed to match the current character in the query.
 
                     // Case 1: Failed to match the first character in the query. Skip to the next
@@ -323,12 +506,11 @@ public class SmartDialNameMatcher {
                     // Yo-Yoghurt because the query match would fail on the 3rd character, and
                     // then skip to the end of the "Yoghurt" token.
 
-                    if (queryStart == 0 || mMap.isValidDialpadCharacter(mMap.normalizeCharacter(
-                            displayName.charAt(nameStart - 1)))) {
+                    if (queryStart == 0
+                            || toDialpadCharacter(displayName, nameStart - 1) != 0) {
                         // skip to the next token, in the case of 1 or 2.
-                        while (nameStart < nameLength &&
-                                mMap.isValidDialpadCharacter(mMap.normalizeCharacter(
-                                        displayName.charAt(nameStart)))) {
+                        while (nameStart < nameLength
+                                && toDialpadCharacter(displayName, nameStart) != 0) {
                             nameStart++;
                         }
                         nameStart++;
@@ -343,12 +525,9 @@ public class SmartDialNameMatcher {
 
                         // As much as possible, we prioritize a full token match over a sub token
                         // one so if we find a full token match, we can return right away
-                        matchList.add(new SmartDialMatchPosition(
-                                tokenStart, queryLength + tokenStart + seperatorCount));
-                        for (SmartDialMatchPosition match : matchList) {
-                            replaceBitInMask(builder, match);
-                        }
-                        mNameMatchMask = builder.toString();
+                        mScratchPositions[region] = tokenStart;
+                        mScratchPositions[region + 1] = queryLength + tokenStart + seperatorCount;
+                        mScratchCounts[depth] = 1;
                         return true;
                     } else if (ALLOW_INITIAL_MATCH && queryStart < INITIAL_LENGTH_LIMIT) {
                         // we matched the first character.
@@ -357,28 +536,21 @@ public class SmartDialNameMatcher {
                         // find the next separator in the query string
                         int j;
                         for (j = nameStart; j < nameLength; j++) {
-                            if (!mMap.isValidDialpadCharacter(mMap.normalizeCharacter(
-                                    displayName.charAt(j)))) {
+                            if (toDialpadCharacter(displayName, j) == 0) {
                                 break;
                             }
                         }
                         // this means there is at least one character left after the separator
-                        if (j < nameLength - 1) {
-                            final String remainder = displayName.substring(j + 1);
-                            final ArrayList<SmartDialMatchPosition> partialTemp =
-                                    Lists.newArrayList();
-                            if (matchesCombination(
-                                    remainder, query.substring(queryStart + 1), partialTemp)) {
-
-                                // store the list of possible match positions
-                                SmartDialMatchPosition.advanceMatchPositions(partialTemp, j + 1);
-                                partialTemp.add(0,
-                                        new SmartDialMatchPosition(nameStart, nameStart + 1));
-                                // we found a partial token match, store the data in a
-                                // temp buffer and return it if we end up not finding a full
-                                // token match
-                                partial = partialTemp;
-                            }
+                        if (j < nameLength - 1 && matchesCombination(displayName, j + 1, query,
+                                queryOffset + queryStart + 1, depth + 1)) {
+                            // we found a partial token match, store the data in this level's
+                            // region and return it if we end up not finding a full token match
+                            final int subCount = mScratchCounts[depth + 1];
+                            mScratchPositions[region] = nameStart;
+                            mScratchPositions[region + 1] = nameStart + 1;
+                            System.arraycopy(mScratchPositions, region + mScratchRegionSize,
+                                    mScratchPositions, region + 2, subCount * 2);
+                            mScratchCounts[depth] = subCount + 1;
                         }
                     }
                     nameStart++;
@@ -403,27 +575,133 @@ public class SmartDialNameMatcher {
         }
         // if we have no complete match at this point, then we attempt to fall back to the partial
         // token match(if any). If we don't allow initial matching (ALLOW_INITIAL_MATCH = false)
-        // then partial will always be empty.
-        if (!partial.isEmpty()) {
-            matchList.addAll(partial);
-            for (SmartDialMatchPosition match : matchList) {
-                replaceBitInMask(builder, match);
+        // then the partial match will always be empty.
+        return mScratchCounts[depth] > 0;
+    }
+
+    /**
+     * Returns what the character of the name stands for on the dialpad, 0 for separators. The
+     * characters of a name index are already mapped.
+     */
+    private char toDialpadCharacter(String name, int position) {
+        final char ch = name.charAt(position);
+        if (mMatchingNameIndex) {
+            return ch != SmartDialNameIndex.SEPARATOR ? ch : 0;
+        }
+        return mMap.normalizeToDialpadCharacter(ch);
+    }
+
+    /**
+     * Same as {@link #matches(String)}, but matches the precomputed dialpad index of the name
+     * when there is one, which skips the transliteration and the mapping of the characters.
+     * The match positions are relative to the display name.
+     */
+    public boolean matches(String displayName, SmartDialNameIndex nameIndex) {
+        if (nameIndex == null || mMultiLanguageMatcher != null || mQuery == null) {
+            return matches(displayName);
+        }
+        mMatchPositions.clear();
+
+        ensureScratchCapacity(mQuery.length());
+        mMatchingNameIndex = true;
+        final boolean matches;
+        try {
+            matches = matchesCombination(nameIndex.getIndex(), 0, mQuery, 0, 0);
+        } finally {
+            mMatchingNameIndex = false;
+        }
+
+        mNameMatchMask = null;
+        mNameMaskLength = nameIndex.getNameLength();
+        mNameMaskCount = matches ? nameIndex.mapToName(mScratchPositions, mScratchCounts[0]) : 0;
+        if (mRecordMatchPositions) {
+            for (int i = 0; i < mNameMaskCount; i++) {
+                mMatchPositions.add(new SmartDialMatchPosition(
+                        mScratchPositions[i * 2], mScratchPositions[i * 2 + 1]));
             }
-            mNameMatchMask = builder.toString();
-            return true;
         }
-        return false;
+        return matches;
+    }
+
+    /**
+     * Same as {@link #matches(String, SmartDialNameIndex)}, without recording the match
+     * positions.
+     */
+    public boolean matchesWithoutPositions(String displayName, SmartDialNameIndex nameIndex) {
+        mRecordMatchPositions = false;
+        try {
+            return matches(displayName, nameIndex);
+        } finally {
+            mRecordMatchPositions = true;
+        }
     }
 
     public boolean matches(String displayName) {
         mMatchPositions.clear();
-        if (mMultiMatchObject != null && mMultiMatchMethod != null) {
+        if (mMultiLanguageMatcher != null) {
             return matchesMultiLanguage(displayName, mQuery, mMatchPositions);
         } else {
             return mMap.matchesCombination(this, displayName, mQuery, mMatchPositions);
         }
     }
 
+    /**
+     * Same as {@link #matches}, but without recording the match positions. This does not
+     * allocate memory for names matched by the {@link SmartDialMap}, so it is suitable for
+     * verifying every candidate of a query. {@link #matches} should be called again for the rows
+     * whose match positions are needed.
+     */
+    public boolean matchesWithoutPositions(String displayName) {
+        mRecordMatchPositions = false;
+        try {
+            return matches(displayName);
+        } finally {
+            mRecordMatchPositions = true;
+        }
+    }
+
+    /**
+     * Same as {@link #matchesWithoutPositions(String)} for the first count names, which the
+     * {@link MultiLanguageMatcher} of the device matches in a single call.
+     *
+     * @param matches Receives whether each name matches.
+     * @return The number of names matching.
+     */
+    public int matchesWithoutPositions(String[] names, int count, boolean[] matches) {
+        int matchCount = 0;
+        if (mMultiLanguageMatcher == null) {
+            for (int i = 0; i < count; i++) {
+                matches[i] = matchesWithoutPositions(names[i]);
+                if (matches[i]) {
+                    matchCount++;
+                }
+            }
+            return matchCount;
+        }
+        mMatchPositions.clear();
+        if (TextUtils.isEmpty(mQuery)) {
+            Arrays.fill(matches, 0, count, false);
+            return 0;
+        }
+        if (mBatchResults.length < count) {
+            mBatchResults = new int[count][];
+        }
+        try {
+            mMultiLanguageMatcher.getMatchStringIndexes(mQuery, names, count, mBatchResults);
+        } catch (RuntimeException e) {
+            Log.d(TAG, "Exception:" + e);
+            Arrays.fill(mBatchResults, 0, count, null);
+        }
+        for (int i = 0; i < count; i++) {
+            matches[i] = mBatchResults[i] != null;
+            if (matches[i]) {
+                matchCount++;
+            }
+            mBatchResults[i] = null;
+        }
+        return matchCount;
+    }
+
     public ArrayList<SmartDialMatchPosition> getMatchPositions() {
         // Return a clone of mMatchPositions so that the caller can use it without
         // worrying about it changing
@@ -435,10 +713,17 @@ public class SmartDialNameMatcher {
     }
 
     public String getNameMatchPositionsInString() {
+        if (mNameMatchMask == null) {
+            mNameMatchMask = buildMask(mNameMaskLength, mScratchPositions, mNameMaskCount);
+        }
         return mNameMatchMask;
     }
 
     public String getNumberMatchPositionsInString() {
+        if (mPhoneNumberMatchMask == null) {
+            mPhoneNumberMatchMask = buildMask(mNumberMaskLength, mNumberMatchStart,
+                    mNumberMatchEnd);
+        }
         return mPhoneNumberMatchMask;
     }
 
@@ -448,42 +733,45 @@ public class SmartDialNameMatcher {
 
     boolean matchesMultiLanguage(String displayName, String query,
             ArrayList<SmartDialMatchPosition> matchList) {
-        StringBuilder builder = new StringBuilder();
-        constructEmptyMask(builder, displayName.length());
-        mNameMatchMask = builder.toString();
-        final int nameLength = displayName.length();
+        mNameMatchMask = null;
+        mNameMaskLength = displayName.length();
+        mNameMaskCount = 0;
         final int queryLength = query.length();
 
         if (queryLength == 0) {
             return false;
         }
         // contains the start, not the end poing
+        int count = 0;
         try {
-            int[] indexs = (int[]) mMultiMatchMethod.invoke(mMultiMatchObject,
-                    query, displayName, 0);
-            // mMultimatch.getMatchStringIndex(query, displayName, 0);
+            int[] indexs = mMultiLanguageMatcher.getMatchStringIndex(query, displayName);
             if (indexs == null) {
                 return false;
             }
+            if (mScratchPositions.length < indexs.length) {
+                mScratchPositions = new int[indexs.length];
+            }
             for (int i = 0; i < indexs.length; i = i + 2) {
                 int start = indexs[i];
                 int end = indexs[i + 1];
                 if (start >= 0 && end >= 0) {
-                    matchList.add(new SmartDialMatchPosition(start, end + 1));
+                    mScratchPositions[count * 2] = start;
+                    mScratchPositions[count * 2 + 1] = end + 1;
+                    count++;
+                    if (mRecordMatchPositions) {
+                        matchList.add(new SmartDialMatchPosition(start, end + 1));
+                    }
                 } else {
                     Log.d(TAG, "Invalid index, start is:" + start + " end is:"
                             + end + " for name:" + displayName);
                 }
             }
-        } catch (Exception e) {
+        } catch (RuntimeException e) {
             Log.d(TAG, "Exception:" + e);
             return false;
         }
 
-        for (SmartDialMatchPosition match : matchList) {
-            replaceBitInMask(builder, match);
-        }
-        mNameMatchMask = builder.toString();
+        mNameMaskCount = count;
         return true;
     }
 }
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Resident index of the digit n-grams of phone numbers, which finds the numbers a query appears
+ * in anywhere, like {@link SmartDialNameMatcher#matchesNumber} matches them. The prefix table and
+ * {@link SmartDialTrie} only know the numbers by their full, national and local prefixes.
+ *
+ * Every number is cut into its runs of {@link #GRAM_LENGTH} consecutive digits, skipping
+ * formatting characters, and each of the 10^{@link #GRAM_LENGTH} possible grams keeps a posting
+ * list of the contact rows whose numbers contain it. A query resolves to the contacts holding all
+ * of its grams, which is a superset of the contacts whose numbers contain the query, so callers
+ * are expected to verify the candidates. Queries shorter than {@link #GRAM_LENGTH} digits have no
+ * gram and are not answered.
+ *
+ * Like {@link SmartDialTrie}, removed contacts only mark their row as dead until the index is
+ * rebuilt, and the index gives up and releases its arrays once it would exceed its memory budget.
+ */
+public class SmartDialNumberGramIndex {
+    private static final String TAG = "SmartDialNumberGramIndex";
+
+    /** Number of digits of a gram, and the shortest query the index answers. */
+    public static final int GRAM_LENGTH = 3;
+
+    /** Number of distinct grams, every gram is also its index in {@link #mPostingHead}. */
+    private static final int GRAM_COUNT = 1000;
+
+    public static final long DEFAULT_MEMORY_BUDGET_BYTES = 8L * 1024 * 1024;
+
+    private static final int NO_POSTING = -1;
+    private static final long DEAD_ROW = -1;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final long[] EMPTY = new long[0];
+
+    private final long mMemoryBudgetBytes;
+    private boolean mOverBudget;
+
+    /** First posting of every gram, and the length of its posting list. */
+    private int[] mPostingHead;
+    private int[] mGramPostingCount;
+
+    private int[] mPostingRow;
+    private int[] mPostingNext;
+    private int mPostingCount;
+
+    private long[] mRowContactId;
+    /** Query generation a row was last seen in, and the number of query grams it holds. */
+    private int[] mRowMark;
+    private int[] mRowHits;
+    private int mRowCount;
+    private int mDeadRowCount;
+    private int mMarkGeneration;
+
+    private final ContactRowMap mContactRows = new ContactRowMap();
+
+    public SmartDialNumberGramIndex() {
+        this(DEFAULT_MEMORY_BUDGET_BYTES);
+    }
+
+    public SmartDialNumberGramIndex(long memoryBudgetBytes) {
+        mMemoryBudgetBytes = memoryBudgetBytes;
+        clear();
+    }
+
+    /**
+     * Removes every contact from the index. This also lifts a previously exceeded memory budget.
+     */
+    public synchronized void clear() {
+        mPostingHead = new int[GRAM_COUNT];
+        Arrays.fill(mPostingHead, NO_POSTING);
+        mGramPostingCount = new int[GRAM_COUNT];
+
+        mPostingRow = new int[INITIAL_CAPACITY];
+        mPostingNext = new int[INITIAL_CAPACITY];
+        mPostingCount = 0;
+
+        mRowContactId = new long[INITIAL_CAPACITY];
+        mRowMark = new int[INITIAL_CAPACITY];
+        mRowHits = new int[INITIAL_CAPACITY];
+        mRowCount = 0;
+        mDeadRowCount = 0;
+        mMarkGeneration = 0;
+
+        mContactRows.clear();
+        mOverBudget = false;
+    }
+
+    /**
+     * Adds the grams of a phone number of a contact to the index. Characters that are neither
+     * digits nor formatting characters break the runs of digits grams are taken from, as no
+     * query can match across them.
+     *
+     * @return false if the index ran out of memory budget and is no longer usable.
+     */
+    public synchronized boolean addNumber(long contactId, String number) {
+        if (mOverBudget) {
+            return false;
+        }
+        if (number == null) {
+            return true;
+        }
+        final int row = getOrCreateRow(contactId);
+        if (row < 0) {
+            return false;
+        }
+        final int length = number.length();
+        int gram = 0;
+        int run = 0;
+        for (int i = 0; i < length; i++) {
+            final char ch = number.charAt(i);
+            if (SmartDialNameMatcher.isNumberSeparator(ch)) {
+                continue;
+            }
+            if (ch < '0' || ch > '9') {
+                run = 0;
+                continue;
+            }
+            gram = (gram * 10 + (ch - '0')) % GRAM_COUNT;
+            if (++run >= GRAM_LENGTH && !addPosting(gram, row)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Marks all numbers of a contact as removed.
+     */
+    public synchronized void removeContact(long contactId) {
+        final int row = mContactRows.remove(contactId);
+        if (row != ContactRowMap.NO_ROW) {
+            mRowContactId[row] = DEAD_ROW;
+            mDeadRowCount++;
+        }
+    }
+
+    /**
+     * Returns the ids of the contacts owning a number that holds every gram of the query.
+     *
+     * @param query Normalized dialpad query, only containing digits.
+     * @return Candidate contact ids without duplicates, or null if the query is shorter than
+     * {@link #GRAM_LENGTH} or the index exceeded its memory budget and cannot answer queries.
+     */
+    public synchronized long[] getCandidateContactIds(String query) {
+        if (mOverBudget || query.length() < GRAM_LENGTH) {
+            return null;
+        }
+        final int gramCount = query.length() - GRAM_LENGTH + 1;
+        final int[] grams = new int[gramCount];
+        int rarest = 0;
+        for (int i = 0; i < gramCount; i++) {
+            int gram = 0;
+            for (int j = i; j < i + GRAM_LENGTH; j++) {
+                final char ch = query.charAt(j);
+                if (ch < '0' || ch > '9') {
+                    return EMPTY;
+                }
+                gram = gram * 10 + (ch - '0');
+            }
+            grams[i] = gram;
+            if (mGramPostingCount[gram] < mGramPostingCount[grams[rarest]]) {
+                rarest = i;
+            }
+        }
+
+        if (++mMarkGeneration == 0) {
+            // The generation counter wrapped around, forget all previous marks.
+            Arrays.fill(mRowMark, 0);
+            mMarkGeneration = 1;
+        }
+        // The rows holding the rarest gram are the only possible candidates.
+        int[] rows = new int[16];
+        int count = 0;
+        for (int p = mPostingHead[grams[rarest]]; p != NO_POSTING; p = mPostingNext[p]) {
+            final int row = mPostingRow[p];
+            if (mRowContactId[row] == DEAD_ROW || mRowMark[row] == mMarkGeneration) {
+                continue;
+            }
+            mRowMark[row] = mMarkGeneration;
+            mRowHits[row] = 0;
+            if (count == rows.length) {
+                rows = Arrays.copyOf(rows, count * 2);
+            }
+            rows[count++] = row;
+        }
+
+        // Counts the other grams each candidate holds, every distinct gram once per row.
+        int distinctGrams = 0;
+        for (int i = 0; i < gramCount && count > 0; i++) {
+            if (i == rarest || isRepeatedGram(grams, i, rarest)) {
+                continue;
+            }
+            for (int p = mPostingHead[grams[i]]; p != NO_POSTING; p = mPostingNext[p]) {
+                final int row = mPostingRow[p];
+                if (mRowMark[row] == mMarkGeneration && mRowHits[row] == distinctGrams) {
+                    mRowHits[row]++;
+                }
+            }
+            distinctGrams++;
+        }
+
+        final long[] result = new long[count];
+        int resultCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (mRowHits[rows[i]] == distinctGrams) {
+                result[resultCount++] = mRowContactId[rows[i]];
+            }
+        }
+        return resultCount == count ? result : Arrays.copyOf(result, resultCount);
+    }
+
+    /**
+     * Whether removed contacts take up more space than live ones, in which case the index should
+     * be rebuilt from scratch.
+     */
+    public synchronized boolean needsCompaction() {
+        return mDeadRowCount > INITIAL_CAPACITY && mDeadRowCount > mRowCount - mDeadRowCount;
+    }
+
+    public synchronized boolean isOverBudget() {
+        return mOverBudget;
+    }
+
+    public synchronized int getContactCount() {
+        return mRowCount - mDeadRowCount;
+    }
+
+    /**
+     * Returns the number of (gram, contact) pairs held by the index.
+     */
+    public synchronized int getPostingCount() {
+        return mPostingCount;
+    }
+
+    /**
+     * Returns an estimate of the heap used by the index, in bytes.
+     */
+    public synchronized long getHeapFootprintBytes() {
+        return computeFootprint(mPostingRow.length, mRowContactId.length);
+    }
+
+    private long computeFootprint(int postingCapacity, int rowCapacity) {
+        return GRAM_COUNT * (4L + 4)
+                + postingCapacity * (4L + 4)
+                + rowCapacity * (8L + 4 + 4)
+                + mContactRows.getCapacity() * (8L + 4);
+    }
+
+    /**
+     * Whether the gram at the given position of the query also appears before it, or is the
+     * rarest gram, which is counted already.
+     */
+    private static boolean isRepeatedGram(int[] grams, int position, int rarest) {
+        if (grams[position] == grams[rarest]) {
+            return true;
+        }
+        for (int i = 0; i < position; i++) {
+            if (grams[i] == grams[position]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Releases all arrays once the memory budget is exceeded. The index stays unusable until
+     * {@link #clear()} is called.
+     */
+    private void exceedBudget() {
+        Log.w(TAG, "Smart dial number index exceeded its memory budget of " + mMemoryBudgetBytes
+                + " bytes, mid-number matches are not looked up");
+        mOverBudget = true;
+        mPostingHead = mGramPostingCount = mPostingRow = mPostingNext = mRowMark = mRowHits =
+                new int[0];
+        mRowContactId = new long[0];
+        mPostingCount = mRowCount = mDeadRowCount = 0;
+        mContactRows.clear();
+    }
+
+    private static int grow(int capacity) {
+        return capacity + (capacity >> 1);
+    }
+
+    private int getOrCreateRow(long contactId) {
+        final int existing = mContactRows.get(contactId);
+        if (existing != ContactRowMap.NO_ROW) {
+            return existing;
+        }
+        if (mRowCount == mRowContactId.length) {
+            final int capacity = grow(mRowCount);
+            if (computeFootprint(mPostingRow.length, capacity) > mMemoryBudgetBytes) {
+                exceedBudget();
+                return -1;
+            }
+            mRowContactId = Arrays.copyOf(mRowContactId, capacity);
+            mRowMark = Arrays.copyOf(mRowMark, capacity);
+            mRowHits = Arrays.copyOf(mRowHits, capacity);
+        }
+        final int row = mRowCount++;
+        mRowContactId[row] = contactId;
+        mRowMark[row] = 0;
+        mContactRows.put(contactId, row);
+        return row;
+    }
+
+    private boolean addPosting(int gram, int row) {
+        final int head = mPostingHead[gram];
+        if (head != NO_POSTING && mPostingRow[head] == row) {
+            // The numbers of one contact are added back to back and often share grams.
+            return true;
+        }
+        if (mPostingCount == mPostingRow.length) {
+            final int capacity = grow(mPostingCount);
+            if (computeFootprint(capacity, mRowContactId.length) > mMemoryBudgetBytes) {
+                exceedBudget();
+                return false;
+            }
+            mPostingRow = Arrays.copyOf(mPostingRow, capacity);
+            mPostingNext = Arrays.copyOf(mPostingNext, capacity);
+        }
+        final int posting = mPostingCount++;
+        mPostingRow[posting] = row;
+        mPostingNext[posting] = head;
+        mPostingHead[gram] = posting;
+        mGramPostingCount[gram]++;
+        return true;
+    }
+}
@@ -30,6 +30,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.Locale;
@@ -69,8 +70,11 @@ public class SmartDialPrefix {
     /** Set of country names that use NANP code.*/
     private static Set<String> sNanpCountries = null;
 
-    /** Set of supported country codes in front of the phone number. */
-    private static Set<String> sCountryCodes = null;
+    /**
+     * Set of supported country codes in front of the phone number. Built eagerly, since numbers
+     * are parsed by several threads at once when the smart dial database is updated.
+     */
+    private static final Set<String> sCountryCodes = initCountryCodes();
 
     /** Dialpad mapping. */
     private static SmartDialMap mMap = null;
@@ -134,7 +138,7 @@ public class SmartDialPrefix {
 
     // for testing only
     @VisibleForTesting
-    static void setSmartDialMap(SmartDialMap map) {
+    public static void setSmartDialMap(SmartDialMap map) {
         mMap = map;
     }
 
@@ -183,9 +187,12 @@ public class SmartDialPrefix {
          * example space " ", mark the current token as complete and add it to the list of tokens.
          */
         for (int i = 0; i < length; i++) {
-            c = mMap.normalizeCharacter(contactName.charAt(i));
-            if (mMap.isValidDialpadCharacter(c)) {
+            c = mMap.normalizeToDialpadCharacter(contactName.charAt(i));
+            if (c >= '0' && c <= '9') {
                 /** Converts a character into the number on dialpad that represents the character.*/
+                currentIndexToken.append(c);
+            } else if (c != 0) {
+                /** Letters that are not printed on any key keep their (invalid) index. */
                 currentIndexToken.append(mMap.getDialpadIndex(c));
             } else {
                 if (currentIndexToken.length() != 0) {
@@ -210,54 +217,274 @@ public class SmartDialPrefix {
      * @return A List of strings, whose prefix can be used to look up the contact.
      */
     public static ArrayList<String> generateNamePrefixes(String index) {
-        final ArrayList<String> result = Lists.newArrayList();
         index = mMap.transliterateName(index);
         /** Parses the name into a list of tokens.*/
-        final ArrayList<String> indexTokens = parseToIndexTokens(index);
-
-        if (indexTokens.size() > 0) {
-            /** Adds the full token combinations to the list. For example, a contact with name
-             * "Albert Ben Ed Foster" can be looked up by any prefix of the following strings
-             * "Foster" "EdFoster" "BenEdFoster" and "AlbertBenEdFoster". This covers all cases of
-             * look up that contains only one token, and that spans multiple continuous tokens.
-             */
-            final StringBuilder fullNameToken = new StringBuilder();
-            for (int i = indexTokens.size() - 1; i >= 0; i--) {
-                fullNameToken.insert(0, indexTokens.get(i));
-                result.add(fullNameToken.toString());
+        return generateTokenPrefixes(parseToIndexTokens(index), new PrefixBuffer());
+    }
+
+    /**
+     * Generates the same prefixes as {@link #generateNamePrefixes(String)} from the dialpad index
+     * of the name. The index is already transliterated and mapped to the dialpad, so names that
+     * the map has to split or transliterate, like Korean and Chinese ones, are only processed
+     * once when the smart dial database is updated.
+     *
+     * @param nameIndex The dialpad index of the contact's name, built by the current map.
+     * @return A List of strings, whose prefix can be used to look up the contact.
+     */
+    public static ArrayList<String> generateNamePrefixes(SmartDialNameIndex nameIndex) {
+        return generateNamePrefixes(nameIndex, new PrefixBuffer());
+    }
+
+    /**
+     * Generates the same prefixes as {@link #generateNamePrefixes(SmartDialNameIndex)}, building
+     * them in a buffer reused for the names of a batch.
+     *
+     * @param buffer A buffer only used by the calling thread.
+     */
+    public static ArrayList<String> generateNamePrefixes(SmartDialNameIndex nameIndex,
+            PrefixBuffer buffer) {
+        final String index = nameIndex.getIndex();
+        final int length = index.length();
+        final ArrayList<String> indexTokens = Lists.newArrayList();
+        final StringBuilder currentIndexToken = new StringBuilder();
+        /** Splits the index into tokens like {@link #parseToIndexTokens} splits the name. */
+        for (int i = 0; i < length; i++) {
+            final char c = index.charAt(i);
+            if (c == SmartDialNameIndex.SEPARATOR) {
+                if (currentIndexToken.length() != 0) {
+                    indexTokens.add(currentIndexToken.toString());
+                    currentIndexToken.setLength(0);
+                }
+            } else if (c >= '0' && c <= '9') {
+                currentIndexToken.append(c);
+            } else {
+                currentIndexToken.append(mMap.getDialpadIndex(c));
+            }
+        }
+        if (currentIndexToken.length() != 0) {
+            indexTokens.add(currentIndexToken.toString());
+        }
+        return generateTokenPrefixes(indexTokens, buffer);
+    }
+
+    /**
+     * Generates the prefixes of a name parsed into tokens, see {@link #generateNamePrefixes}.
+     *
+     * Any prefix of the returned strings looks the contact up, so strings that are a prefix of
+     * another one, or equal to one, as the initials of one letter tokens often produce, are not
+     * returned.
+     */
+    private static ArrayList<String> generateTokenPrefixes(ArrayList<String> indexTokens,
+            PrefixBuffer buffer) {
+        final int tokenCount = indexTokens.size();
+        if (tokenCount == 0) {
+            return Lists.newArrayList();
+        }
+        buffer.reset(indexTokens);
+
+        /** Adds the full token combinations to the list. For example, a contact with name
+         * "Albert Ben Ed Foster" can be looked up by any prefix of the following strings
+         * "Foster" "EdFoster" "BenEdFoster" and "AlbertBenEdFoster". This covers all cases of
+         * look up that contains only one token, and that spans multiple continuous tokens.
+         * They are all suffixes of the full name, which is written once.
+         */
+        final int fullNameEnd = buffer.appendTokens(indexTokens, 0, tokenCount);
+        int tokenStart = fullNameEnd;
+        for (int i = tokenCount - 1; i >= 0; i--) {
+            tokenStart -= indexTokens.get(i).length();
+            buffer.addPrefix(tokenStart, fullNameEnd - tokenStart);
+        }
+
+        /** Adds initial combinations to the list, with the number of initials restricted by
+         * {@link #LAST_TOKENS_FOR_INITIALS} and {@link #FIRST_TOKENS_FOR_INITIALS}.
+         * For example, a contact with name "Albert Ben Ed Foster" can be looked up by any
+         * prefix of the following strings "EFoster" "BFoster" "BEFoster" "AFoster" "ABFoster"
+         * "AEFoster" and "ABEFoster". This covers all cases of initial lookup.
+         * The initials are followed by the suffixes of the name without its middle tokens, which
+         * is the full name unless it has more tokens than initials.
+         */
+        int fullNamesEnd = fullNameEnd;
+        if (tokenCount > LAST_TOKENS_FOR_INITIALS + FIRST_TOKENS_FOR_INITIALS) {
+            buffer.appendTokens(indexTokens, 0, FIRST_TOKENS_FOR_INITIALS);
+            fullNamesEnd = buffer.appendTokens(indexTokens,
+                    tokenCount - LAST_TOKENS_FOR_INITIALS, tokenCount);
+        }
+        final int[] fullNameStarts = new int[LAST_TOKENS_FOR_INITIALS + FIRST_TOKENS_FOR_INITIALS];
+        fullNameStarts[0] = fullNamesEnd - indexTokens.get(tokenCount - 1).length();
+        int fullNameCount = 1;
+        final int recursiveNameStart = buffer.getPrefixCount();
+        int recursiveNameEnd = buffer.getPrefixCount();
+        for (int i = tokenCount - 2; i >= 0; i--) {
+            if ((i >= tokenCount - LAST_TOKENS_FOR_INITIALS) ||
+                    (i < FIRST_TOKENS_FOR_INITIALS)) {
+                final String token = indexTokens.get(i);
+
+                /** Recursively adds initial combinations to the list.*/
+                for (int j = 0; j < fullNameCount; ++j) {
+                    buffer.addInitialPrefix(token, fullNameStarts[j],
+                            fullNamesEnd - fullNameStarts[j]);
+                }
+                for (int j = recursiveNameStart; j < recursiveNameEnd; ++j) {
+                    buffer.addInitialPrefix(token, buffer.getPrefixStart(j),
+                            buffer.getPrefixLength(j));
+                }
+                recursiveNameEnd = buffer.getPrefixCount();
+                fullNameStarts[fullNameCount] = fullNameStarts[fullNameCount - 1]
+                        - token.length();
+                fullNameCount++;
             }
+        }
 
-            /** Adds initial combinations to the list, with the number of initials restricted by
-             * {@link #LAST_TOKENS_FOR_INITIALS} and {@link #FIRST_TOKENS_FOR_INITIALS}.
-             * For example, a contact with name "Albert Ben Ed Foster" can be looked up by any
-             * prefix of the following strings "EFoster" "BFoster" "BEFoster" "AFoster" "ABFoster"
-             * "AEFoster" and "ABEFoster". This covers all cases of initial lookup.
-             */
-            ArrayList<String> fullNames = Lists.newArrayList();
-            fullNames.add(indexTokens.get(indexTokens.size() - 1));
-            final int recursiveNameStart = result.size();
-            int recursiveNameEnd = result.size();
-            String initial = "";
-            for (int i = indexTokens.size() - 2; i >= 0; i--) {
-                if ((i >= indexTokens.size() - LAST_TOKENS_FOR_INITIALS) ||
-                        (i < FIRST_TOKENS_FOR_INITIALS)) {
-                    initial = indexTokens.get(i).substring(0, 1);
-
-                    /** Recursively adds initial combinations to the list.*/
-                    for (int j = 0; j < fullNames.size(); ++j) {
-                        result.add(initial + fullNames.get(j));
+        return buffer.getMaximalPrefixes();
+    }
+
+    /**
+     * Holds the strings generated for a name as ranges of a single character buffer, so that
+     * only the strings returned in the end are allocated. Grows to the longest name it was used
+     * for, and can be reused for the next name by the same thread.
+     */
+    public static final class PrefixBuffer {
+        private char[] mChars = new char[0];
+        private int mLength;
+
+        private int[] mStarts = new int[0];
+        private int[] mLengths = new int[0];
+        /** Whether each string is a prefix of another one, or equal to an earlier one. */
+        private boolean[] mRedundant = new boolean[0];
+        private int mCount;
+
+        /** Empties the buffer, and makes room for the strings generated from the tokens. */
+        void reset(ArrayList<String> indexTokens) {
+            final int tokenCount = indexTokens.size();
+            int length = 0;
+            for (int i = 0; i < tokenCount; i++) {
+                length += indexTokens.get(i).length();
+            }
+            // Room for the full name, the name without its middle tokens and a few initials.
+            if (mChars.length < length * 3) {
+                mChars = new char[length * 3];
+            }
+            // The full name, its suffixes and the combinations of initials.
+            final int count = tokenCount + (1 << Math.min(tokenCount - 1,
+                    LAST_TOKENS_FOR_INITIALS + FIRST_TOKENS_FOR_INITIALS - 1));
+            if (mStarts.length < count) {
+                mStarts = new int[count];
+                mLengths = new int[count];
+            }
+            mLength = 0;
+            mCount = 0;
+        }
+
+        int getPrefixCount() {
+            return mCount;
+        }
+
+        int getPrefixStart(int prefix) {
+            return mStarts[prefix];
+        }
+
+        int getPrefixLength(int prefix) {
+            return mLengths[prefix];
+        }
+
+        /**
+         * Writes the concatenation of the tokens, from start included to end excluded, at the end
+         * of the buffer.
+         *
+         * @return The end of the concatenation in the buffer.
+         */
+        int appendTokens(ArrayList<String> tokens, int start, int end) {
+            for (int i = start; i < end; i++) {
+                final String token = tokens.get(i);
+                ensureCapacity(token.length());
+                token.getChars(0, token.length(), mChars, mLength);
+                mLength += token.length();
+            }
+            return mLength;
+        }
+
+        /**
+         * Adds the string written at the given range of the buffer as a prefix.
+         */
+        void addPrefix(int start, int length) {
+            if (mCount == mStarts.length) {
+                mStarts = Arrays.copyOf(mStarts, mCount * 2);
+                mLengths = Arrays.copyOf(mLengths, mCount * 2);
+            }
+            mStarts[mCount] = start;
+            mLengths[mCount] = length;
+            mCount++;
+        }
+
+        /**
+         * Adds the initial of the token followed by the string at the given range of the buffer
+         * as a prefix.
+         */
+        void addInitialPrefix(String token, int start, int length) {
+            ensureCapacity(length + 1);
+            final int prefixStart = mLength;
+            mChars[prefixStart] = token.charAt(0);
+            System.arraycopy(mChars, start, mChars, prefixStart + 1, length);
+            mLength += length + 1;
+            addPrefix(prefixStart, length + 1);
+        }
+
+        /**
+         * Returns the prefixes that are not a prefix of another one, once each, in the order
+         * they were added.
+         */
+        ArrayList<String> getMaximalPrefixes() {
+            if (mRedundant.length < mCount) {
+                mRedundant = new boolean[mStarts.length];
+            } else {
+                Arrays.fill(mRedundant, 0, mCount, false);
+            }
+            // Compares every pair once, keeping the first of equal prefixes.
+            final char[] chars = mChars;
+            for (int i = 0; i < mCount; i++) {
+                final int start = mStarts[i];
+                final int length = mLengths[i];
+                for (int j = i + 1; j < mCount; j++) {
+                    // Most prefixes already differ from their first character.
+                    final int otherStart = mStarts[j];
+                    if (chars[otherStart] != chars[start]) {
+                        continue;
                     }
-                    for (int j = recursiveNameStart; j < recursiveNameEnd; ++j) {
-                       result.add(initial + result.get(j));
+                    final int otherLength = mLengths[j];
+                    if (otherLength >= length) {
+                        if (regionMatches(otherStart, start, length)) {
+                            mRedundant[otherLength == length ? j : i] = true;
+                        }
+                    } else if (regionMatches(start, otherStart, otherLength)) {
+                        mRedundant[j] = true;
                     }
-                    recursiveNameEnd = result.size();
-                    final String currentFullName = fullNames.get(fullNames.size() - 1);
-                    fullNames.add(indexTokens.get(i) +  currentFullName);
                 }
             }
+
+            final ArrayList<String> result = Lists.newArrayListWithCapacity(mCount);
+            for (int i = 0; i < mCount; i++) {
+                if (!mRedundant[i]) {
+                    result.add(new String(mChars, mStarts[i], mLengths[i]));
+                }
+            }
+            return result;
         }
 
-        return result;
+        private boolean regionMatches(int start, int otherStart, int length) {
+            final char[] chars = mChars;
+            for (int i = 1; i < length; i++) {
+                if (chars[start + i] != chars[otherStart + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (mLength + extra > mChars.length) {
+                mChars = Arrays.copyOf(mChars, Math.max(mChars.length * 2, mLength + extra));
+            }
+        }
     }
 
     /**
@@ -366,9 +593,6 @@ public class SmartDialPrefix {
      * Checkes whether a country code is valid.
      */
     private static boolean isValidCountryCode(String countryCode) {
-        if (sCountryCodes == null) {
-            sCountryCodes = initCountryCodes();
-        }
         return sCountryCodes.contains(countryCode);
     }
 
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Resident digit trie over the dialpad prefixes generated by
+ * {@link SmartDialPrefix#generateNamePrefixes} and {@link SmartDialPrefix#parseToNumberTokens}.
+ *
+ * Nodes are stored in parallel int arrays (first child / next sibling), and every node keeps a
+ * posting list of the contact rows owning a prefix that passes through it, so resolving a query
+ * is a walk of at most {@link #MAX_DEPTH} nodes followed by a scan of one posting list. Queries
+ * longer than {@link #MAX_DEPTH} resolve to the candidates of their first {@link #MAX_DEPTH}
+ * digits, which callers are expected to verify anyway.
+ *
+ * Removed contacts only mark their row as dead; once dead rows outnumber live ones the trie
+ * reports {@link #needsCompaction()} and should be rebuilt. When growing the trie would exceed
+ * its memory budget the arrays are released and {@link #getCandidateContactIds} returns null,
+ * telling the caller to fall back to the SQL path.
+ */
+public class SmartDialTrie {
+    private static final String TAG = "SmartDialTrie";
+
+    /** Number of leading digits of a prefix that are indexed. */
+    public static final int MAX_DEPTH = 8;
+
+    public static final long DEFAULT_MEMORY_BUDGET_BYTES = 8L * 1024 * 1024;
+
+    /** The root is node 0 and is never anybody's child, so 0 doubles as "no node". */
+    private static final int NO_NODE = 0;
+    private static final int NO_POSTING = -1;
+    private static final long DEAD_ROW = -1;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final long[] EMPTY = new long[0];
+
+    private final long mMemoryBudgetBytes;
+    private boolean mOverBudget;
+
+    private int[] mFirstChild;
+    private int[] mNextSibling;
+    private byte[] mDigit;
+    private int[] mPostingHead;
+    private int mNodeCount;
+
+    private int[] mPostingRow;
+    private int[] mPostingNext;
+    private int mPostingCount;
+
+    private long[] mRowContactId;
+    private int[] mRowMark;
+    private int mRowCount;
+    private int mDeadRowCount;
+    private int mMarkGeneration;
+
+    private final ContactRowMap mContactRows = new ContactRowMap();
+
+    public SmartDialTrie() {
+        this(DEFAULT_MEMORY_BUDGET_BYTES);
+    }
+
+    public SmartDialTrie(long memoryBudgetBytes) {
+        mMemoryBudgetBytes = memoryBudgetBytes;
+        clear();
+    }
+
+    /**
+     * Removes every contact from the trie. This also lifts a previously exceeded memory budget.
+     */
+    public synchronized void clear() {
+        mFirstChild = new int[INITIAL_CAPACITY];
+        mNextSibling = new int[INITIAL_CAPACITY];
+        mDigit = new byte[INITIAL_CAPACITY];
+        mPostingHead = new int[INITIAL_CAPACITY];
+        mPostingHead[0] = NO_POSTING;
+        mNodeCount = 1;
+
+        mPostingRow = new int[INITIAL_CAPACITY];
+        mPostingNext = new int[INITIAL_CAPACITY];
+        mPostingCount = 0;
+
+        mRowContactId = new long[INITIAL_CAPACITY];
+        mRowMark = new int[INITIAL_CAPACITY];
+        mRowCount = 0;
+        mDeadRowCount = 0;
+        mMarkGeneration = 0;
+
+        mContactRows.clear();
+        mOverBudget = false;
+    }
+
+    /**
+     * Adds the given dialpad prefixes of a contact to the trie.
+     *
+     * @return false if the trie ran out of memory budget and is no longer usable.
+     */
+    public synchronized boolean addPrefixes(long contactId, List<String> prefixes) {
+        for (int i = 0; i < prefixes.size(); i++) {
+            if (!addPrefix(contactId, prefixes.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds one dialpad prefix of a contact to the trie. Characters other than dialpad digits end
+     * the indexed part of the prefix.
+     *
+     * @return false if the trie ran out of memory budget and is no longer usable.
+     */
+    public synchronized boolean addPrefix(long contactId, String prefix) {
+        if (mOverBudget) {
+            return false;
+        }
+        final int row = getOrCreateRow(contactId);
+        if (row < 0) {
+            return false;
+        }
+        final int depth = Math.min(prefix.length(), MAX_DEPTH);
+        int node = 0;
+        for (int i = 0; i < depth; i++) {
+            final char ch = prefix.charAt(i);
+            if (ch < '0' || ch > '9') {
+                break;
+            }
+            node = getOrCreateChild(node, (byte) (ch - '0'));
+            if (node == NO_NODE || !addPosting(node, row)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Marks all prefixes of a contact as removed.
+     */
+    public synchronized void removeContact(long contactId) {
+        final int row = mContactRows.remove(contactId);
+        if (row != ContactRowMap.NO_ROW) {
+            mRowContactId[row] = DEAD_ROW;
+            mDeadRowCount++;
+        }
+    }
+
+    /**
+     * Returns the ids of the contacts owning a prefix that starts with the query, or that starts
+     * with the first {@link #MAX_DEPTH} digits of a longer query.
+     *
+     * @param query Normalized dialpad query, only containing digits.
+     * @return Candidate contact ids without duplicates, or null if the trie exceeded its memory
+     * budget and cannot answer queries.
+     */
+    public synchronized long[] getCandidateContactIds(String query) {
+        if (mOverBudget) {
+            return null;
+        }
+        final int depth = Math.min(query.length(), MAX_DEPTH);
+        if (depth == 0) {
+            return EMPTY;
+        }
+        int node = 0;
+        for (int i = 0; i < depth; i++) {
+            final char ch = query.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return EMPTY;
+            }
+            node = findChild(node, (byte) (ch - '0'));
+            if (node == NO_NODE) {
+                return EMPTY;
+            }
+        }
+
+        if (++mMarkGeneration == 0) {
+            // The generation counter wrapped around, forget all previous marks.
+            Arrays.fill(mRowMark, 0);
+            mMarkGeneration = 1;
+        }
+        long[] result = new long[16];
+        int count = 0;
+        for (int p = mPostingHead[node]; p != NO_POSTING; p = mPostingNext[p]) {
+            final int row = mPostingRow[p];
+            if (mRowContactId[row] == DEAD_ROW || mRowMark[row] == mMarkGeneration) {
+                continue;
+            }
+            mRowMark[row] = mMarkGeneration;
+            if (count == result.length) {
+                result = Arrays.copyOf(result, count * 2);
+            }
+            result[count++] = mRowContactId[row];
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Whether removed contacts take up more space than live ones, in which case the trie should
+     * be rebuilt from scratch.
+     */
+    public synchronized boolean needsCompaction() {
+        return mDeadRowCount > INITIAL_CAPACITY && mDeadRowCount > mRowCount - mDeadRowCount;
+    }
+
+    public synchronized boolean isOverBudget() {
+        return mOverBudget;
+    }
+
+    public synchronized int getContactCount() {
+        return mRowCount - mDeadRowCount;
+    }
+
+    /**
+     * Returns an estimate of the heap used by the trie, in bytes.
+     */
+    public synchronized long getHeapFootprintBytes() {
+        return computeFootprint(mFirstChild.length, mPostingRow.length, mRowContactId.length);
+    }
+
+    private long computeFootprint(int nodeCapacity, int postingCapacity, int rowCapacity) {
+        return nodeCapacity * (4L + 4 + 1 + 4)
+                + postingCapacity * (4L + 4)
+                + rowCapacity * (8L + 4)
+                + mContactRows.getCapacity() * (8L + 4);
+    }
+
+    /**
+     * Releases all arrays once the memory budget is exceeded. The trie stays unusable until
+     * {@link #clear()} is called.
+     */
+    private void exceedBudget() {
+        Log.w(TAG, "Smart dial trie exceeded its memory budget of " + mMemoryBudgetBytes
+                + " bytes, falling back to database queries");
+        mOverBudget = true;
+        mFirstChild = mNextSibling = mPostingHead = mPostingRow = mPostingNext = mRowMark =
+                new int[0];
+        mDigit = new byte[0];
+        mRowContactId = new long[0];
+        mNodeCount = mPostingCount = mRowCount = mDeadRowCount = 0;
+        mContactRows.clear();
+    }
+
+    private static int grow(int capacity) {
+        return capacity + (capacity >> 1);
+    }
+
+    private int getOrCreateRow(long contactId) {
+        final int existing = mContactRows.get(contactId);
+        if (existing != ContactRowMap.NO_ROW) {
+            return existing;
+        }
+        if (mRowCount == mRowContactId.length) {
+            final int capacity = grow(mRowCount);
+            if (computeFootprint(mFirstChild.length, mPostingRow.length, capacity)
+                    > mMemoryBudgetBytes) {
+                exceedBudget();
+                return -1;
+            }
+            mRowContactId = Arrays.copyOf(mRowContactId, capacity);
+            mRowMark = Arrays.copyOf(mRowMark, capacity);
+        }
+        final int row = mRowCount++;
+        mRowContactId[row] = contactId;
+        mRowMark[row] = 0;
+        mContactRows.put(contactId, row);
+        return row;
+    }
+
+    private int findChild(int node, byte digit) {
+        for (int child = mFirstChild[node]; child != NO_NODE; child = mNextSibling[child]) {
+            if (mDigit[child] == digit) {
+                return child;
+            }
+        }
+        return NO_NODE;
+    }
+
+    private int getOrCreateChild(int node, byte digit) {
+        final int existing = findChild(node, digit);
+        if (existing != NO_NODE) {
+            return existing;
+        }
+        if (mNodeCount == mFirstChild.length) {
+            final int capacity = grow(mNodeCount);
+            if (computeFootprint(capacity, mPostingRow.length, mRowContactId.length)
+                    > mMemoryBudgetBytes) {
+                exceedBudget();
+                return NO_NODE;
+            }
+            mFirstChild = Arrays.copyOf(mFirstChild, capacity);
+            mNextSibling = Arrays.copyOf(mNextSibling, capacity);
+            mDigit = Arrays.copyOf(mDigit, capacity);
+            mPostingHead = Arrays.copyOf(mPostingHead, capacity);
+        }
+        final int child = mNodeCount++;
+        mDigit[child] = digit;
+        mFirstChild[child] = NO_NODE;
+        mPostingHead[child] = NO_POSTING;
+        mNextSibling[child] = mFirstChild[node];
+        mFirstChild[node] = child;
+        return child;
+    }
+
+    private boolean addPosting(int node, int row) {
+        final int head = mPostingHead[node];
+        if (head != NO_POSTING && mPostingRow[head] == row) {
+            // Prefixes of one contact are usually added back to back and share leading digits.
+            return true;
+        }
+        if (mPostingCount == mPostingRow.length) {
+            final int capacity = grow(mPostingCount);
+            if (computeFootprint(mFirstChild.length, capacity, mRowContactId.length)
+                    > mMemoryBudgetBytes) {
+                exceedBudget();
+                return false;
+            }
+            mPostingRow = Arrays.copyOf(mPostingRow, capacity);
+            mPostingNext = Arrays.copyOf(mPostingNext, capacity);
+        }
+        final int posting = mPostingCount++;
+        mPostingRow[posting] = row;
+        mPostingNext[posting] = head;
+        mPostingHead[node] = posting;
+        return true;
+    }
+}
@@ -324,6 +324,18 @@ public class ListsFragment extends Fragment
         return false;
     }
 
+    @Override
+    public boolean onNewCallsFetched(Cursor newCallsCursor) {
+        // Return false; did not take ownership of cursor
+        return false;
+    }
+
+    @Override
+    public boolean onOlderCallsFetched(Cursor olderCallsCursor) {
+        // Return false; did not take ownership of cursor
+        return false;
+    }
+
     public int getCurrentTabIndex() {
         return mTabIndex;
     }
@@ -91,7 +91,8 @@ public class SmartDialNumberListAdapter extends DialerPhoneNumberListAdapter {
     protected void setHighlight(ContactListItemView view, Cursor cursor) {
         view.clearHighlightSequences();
 
-        if (mNameMatcher.matches(cursor.getString(PhoneQuery.DISPLAY_NAME))) {
+        if (mNameMatcher.matches(cursor.getString(PhoneQuery.DISPLAY_NAME),
+                SmartDialCursorLoader.getNameIndex(cursor))) {
             final ArrayList<SmartDialMatchPosition> nameMatches = mNameMatcher.getMatchPositions();
             for (SmartDialMatchPosition match:nameMatches) {
                 view.addNameHighlightSequence(match.start, match.end);
@@ -55,6 +55,9 @@ public class CallLogAdapterTest extends AndroidTestCase {
         CallLogAdapter.CallFetcher fakeCallFetcher = new CallLogAdapter.CallFetcher() {
             @Override
             public void fetchCalls() {}
+
+            @Override
+            public void onCallsShown() {}
         };
 
         ContactInfoHelper fakeContactInfoHelper =
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.calllog;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Debug;
+import android.provider.CallLog.Calls;
+import android.support.v7.widget.RecyclerView.ViewHolder;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.android.dialer.database.BenchmarkResult;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Measures binding the rows of a call log of 500 calls, grouped into runs of calls from the same
+ * number as in a real call log: the whole {@link CallLogAdapter#onBindViewHolder}, and the
+ * summaries of the calls of every group, read from the columns of {@link CallLogGroupBuilder}
+ * or by walking the cursor as binding used to. Also measures the time the main thread spends
+ * when a new call arrives, grouping the call log itself or publishing the groups found on a
+ * worker thread, and the time it takes to group a new call with the whole call log or only with
+ * the first calls of the call log. Also compares the allocations of grouping the call log and
+ * looking up the day groups of the rows, with the day groups in the columns of
+ * {@link CallLogGroupBuilder} or in a map keyed by call id as they used to be.
+ *
+ * To run this benchmark, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.calllog.CallLogBindBenchmark /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class CallLogBindBenchmark extends AndroidTestCase {
+    private static final String TAG = "CallLogBindBenchmark";
+
+    private static final int CALL_COUNT = 500;
+    private static final int NUMBER_COUNT = 60;
+    private static final int MAX_GROUP_SIZE = 4;
+    private static final int ROUNDS = 20;
+
+    /** The columns binding a row reads for every call of its group. */
+    private static final int[] GROUP_COLUMNS = {CallLogQuery.CALL_TYPE, CallLogQuery.FEATURES,
+            CallLogQuery.ID, CallLogQuery.DATE};
+
+    /** Groups the calls again without changing the groups of the adapter. */
+    private static final CallLogGroupBuilder.GroupCreator NO_OP_GROUP_CREATOR =
+            new CallLogGroupBuilder.GroupCreator() {
+                @Override
+                public void addGroup(int cursorPosition, int size, boolean expanded) {}
+            };
+
+    private CallLogAdapter mAdapter;
+    private MatrixCursor mCursor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final CallLogAdapter.CallFetcher fakeCallFetcher = new CallLogAdapter.CallFetcher() {
+            @Override
+            public void fetchCalls() {}
+
+            @Override
+            public void onCallsShown() {}
+        };
+        mAdapter = new CallLogAdapter(getContext(), fakeCallFetcher,
+                new ContactInfoHelper(getContext(), "US", null), null, null, false);
+        mAdapter.disableRequestProcessingForTest();
+        mCursor = createCalls(0);
+        mAdapter.changeCursor(mCursor);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mAdapter.changeCursor(null);
+        mAdapter = null;
+        mCursor = null;
+        super.tearDown();
+    }
+
+    public void testBindTime() {
+        final ViewHolder viewHolder = CallLogListItemViewHolder.createForTest(getContext());
+        final int itemCount = mAdapter.getItemCount();
+        // Warm up.
+        for (int position = 0; position < itemCount; position++) {
+            mAdapter.onBindViewHolder(viewHolder, position);
+        }
+
+        final BenchmarkResult result = new BenchmarkResult(
+                "onBindViewHolder calls=" + CALL_COUNT + " rows=" + itemCount);
+        for (int round = 0; round < ROUNDS; round++) {
+            final long start = System.nanoTime();
+            for (int position = 0; position < itemCount; position++) {
+                mAdapter.onBindViewHolder(viewHolder, position);
+            }
+            result.addSample(System.nanoTime() - start, itemCount);
+        }
+        Log.i(TAG, result.toString());
+    }
+
+    public void testGroupSummaries() {
+        final CallLogGroupBuilder builder = new CallLogGroupBuilder(NO_OP_GROUP_CREATOR);
+        builder.addGroups(mCursor);
+        final int itemCount = mAdapter.getItemCount();
+        // Warm up.
+        readFromCursor(itemCount);
+        readFromColumns(builder, itemCount);
+
+        final BenchmarkResult cursorResult = new BenchmarkResult(
+                "group summaries from cursor rows=" + itemCount);
+        final BenchmarkResult columnsResult = new BenchmarkResult(
+                "group summaries from columns rows=" + itemCount);
+        startAllocCounting();
+        for (int round = 0; round < ROUNDS; round++) {
+            final long start = System.nanoTime();
+            readFromCursor(itemCount);
+            cursorResult.addSample(System.nanoTime() - start, itemCount);
+        }
+        stopAllocCounting(cursorResult);
+
+        startAllocCounting();
+        for (int round = 0; round < ROUNDS; round++) {
+            final long start = System.nanoTime();
+            readFromColumns(builder, itemCount);
+            columnsResult.addSample(System.nanoTime() - start, itemCount);
+        }
+        stopAllocCounting(columnsResult);
+        Log.i(TAG, cursorResult.toString());
+        Log.i(TAG, columnsResult.toString());
+    }
+
+    public void testGroupingTime() {
+        final CallLogGroupBuilder builder = new CallLogGroupBuilder(NO_OP_GROUP_CREATOR);
+        final BenchmarkResult result = new BenchmarkResult("addGroups calls=" + CALL_COUNT);
+        for (int round = 0; round < ROUNDS; round++) {
+            final long start = System.nanoTime();
+            builder.addGroups(mCursor);
+            result.addSample(System.nanoTime() - start, CALL_COUNT);
+        }
+        Log.i(TAG, result.toString());
+    }
+
+    public void testRefreshTime() {
+        final BenchmarkResult changeResult = new BenchmarkResult(
+                "changeCursor on main thread calls=" + CALL_COUNT);
+        final BenchmarkResult publishResult = new BenchmarkResult(
+                "publishGroups on main thread calls=" + CALL_COUNT);
+        for (int round = 0; round < ROUNDS; round++) {
+            // Every refresh adds a call on top of the call log.
+            MatrixCursor cursor = createCalls(2 * round + 1);
+            long start = System.nanoTime();
+            mAdapter.changeCursor(cursor);
+            changeResult.addSample(System.nanoTime() - start, 1);
+
+            cursor = createCalls(2 * round + 2);
+            final GroupingListAdapter.Grouping grouping = mAdapter.startGrouping(cursor);
+            mAdapter.groupCursor(grouping);
+            start = System.nanoTime();
+            mAdapter.publishGroups(grouping);
+            publishResult.addSample(System.nanoTime() - start, 1);
+        }
+        Log.i(TAG, changeResult.toString());
+        Log.i(TAG, publishResult.toString());
+    }
+
+    public void testNewCallTime() {
+        final BenchmarkResult fullResult = new BenchmarkResult(
+                "new call grouped with all calls calls=" + CALL_COUNT);
+        final BenchmarkResult prependResult = new BenchmarkResult(
+                "new call prepended calls=" + CALL_COUNT);
+        for (int round = 0; round < ROUNDS; round++) {
+            mAdapter.changeCursor(createCalls(0));
+            MatrixCursor cursor = createCalls(1);
+            long start = System.nanoTime();
+            GroupingListAdapter.Grouping grouping = mAdapter.startGrouping(cursor);
+            mAdapter.groupCursor(grouping);
+            mAdapter.publishGroups(grouping);
+            fullResult.addSample(System.nanoTime() - start, 1);
+
+            mAdapter.changeCursor(createCalls(0));
+            cursor = new MatrixCursor(CallLogQuery._PROJECTION);
+            addNewCall(cursor, 0, System.currentTimeMillis());
+            start = System.nanoTime();
+            grouping = mAdapter.startPrepending(cursor);
+            mAdapter.groupCursor(grouping);
+            mAdapter.publishGroups(grouping);
+            prependResult.addSample(System.nanoTime() - start, 1);
+        }
+        Log.i(TAG, fullResult.toString());
+        Log.i(TAG, prependResult.toString());
+    }
+
+    public void testDayGroupAllocations() {
+        final CallLogGroupBuilder builder = new CallLogGroupBuilder(NO_OP_GROUP_CREATOR);
+        final HashMap<Long, Integer> dayGroups = new HashMap<Long, Integer>();
+        final int itemCount = mAdapter.getItemCount();
+        // Warm up.
+        builder.addGroups(mCursor);
+        fillDayGroups(builder, dayGroups);
+        readDayGroupsFromMap(builder, dayGroups, itemCount);
+        readDayGroupsFromColumns(builder, itemCount);
+
+        final BenchmarkResult mapResult = new BenchmarkResult(
+                "group and day groups from map calls=" + CALL_COUNT + " rows=" + itemCount);
+        startAllocCounting();
+        for (int round = 0; round < ROUNDS; round++) {
+            final long start = System.nanoTime();
+            builder.addGroups(mCursor);
+            dayGroups.clear();
+            fillDayGroups(builder, dayGroups);
+            readDayGroupsFromMap(builder, dayGroups, itemCount);
+            mapResult.addSample(System.nanoTime() - start, CALL_COUNT);
+        }
+        stopAllocCounting(mapResult);
+
+        final BenchmarkResult columnsResult = new BenchmarkResult(
+                "group and day groups from columns calls=" + CALL_COUNT + " rows=" + itemCount);
+        startAllocCounting();
+        for (int round = 0; round < ROUNDS; round++) {
+            final long start = System.nanoTime();
+            builder.addGroups(mCursor);
+            readDayGroupsFromColumns(builder, itemCount);
+            columnsResult.addSample(System.nanoTime() - start, CALL_COUNT);
+        }
+        stopAllocCounting(columnsResult);
+        Log.i(TAG, mapResult.toString());
+        Log.i(TAG, columnsResult.toString());
+    }
+
+    /** Stores the day group of every call by call id, as grouping used to. */
+    private static void fillDayGroups(CallLogGroupBuilder builder,
+            HashMap<Long, Integer> dayGroups) {
+        for (int i = 0; i < builder.getCallCount(); i++) {
+            final long callId = builder.getCallId(i);
+            if (!dayGroups.containsKey(callId)) {
+                dayGroups.put(callId, builder.getCallDayGroup(i));
+            }
+        }
+    }
+
+    /**
+     * Looks up the day group of every row and of the call before it by call id, as binding used
+     * to.
+     */
+    private long readDayGroupsFromMap(CallLogGroupBuilder builder,
+            HashMap<Long, Integer> dayGroups, int itemCount) {
+        long checksum = 0;
+        for (int position = 0; position < itemCount; position++) {
+            final int cursorPosition = ((Cursor) mAdapter.getItem(position)).getPosition();
+            final long callId = builder.getCallId(cursorPosition);
+            if (dayGroups.containsKey(callId)) {
+                checksum += dayGroups.get(callId);
+            }
+            if (cursorPosition > 0) {
+                final long previousCallId = builder.getCallId(cursorPosition - 1);
+                if (dayGroups.containsKey(previousCallId)) {
+                    checksum += dayGroups.get(previousCallId);
+                }
+            }
+        }
+        return checksum;
+    }
+
+    private long readDayGroupsFromColumns(CallLogGroupBuilder builder, int itemCount) {
+        long checksum = 0;
+        for (int position = 0; position < itemCount; position++) {
+            final int cursorPosition = ((Cursor) mAdapter.getItem(position)).getPosition();
+            checksum += builder.getCallDayGroup(cursorPosition);
+            if (cursorPosition > 0) {
+                checksum += builder.getCallDayGroup(cursorPosition - 1);
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * Reads the types, features, ids and dates of the calls of every row, walking the cursor
+     * forward and back for each of them. The types, ids and dates are copied to an array, as
+     * binding used to keep them.
+     */
+    private long readFromCursor(int itemCount) {
+        long checksum = 0;
+        for (int position = 0; position < itemCount; position++) {
+            final Cursor cursor = (Cursor) mAdapter.getItem(position);
+            final int count = mAdapter.getGroupSize(position);
+            final int cursorPosition = cursor.getPosition();
+            for (int column : GROUP_COLUMNS) {
+                final long[] values = column == CallLogQuery.FEATURES ? null : new long[count];
+                for (int index = 0; index < count; ++index) {
+                    final long value = cursor.getLong(column);
+                    if (values != null) {
+                        values[index] = value;
+                    }
+                    checksum += value;
+                    cursor.moveToNext();
+                }
+                cursor.moveToPosition(cursorPosition);
+            }
+        }
+        return checksum;
+    }
+
+    private long readFromColumns(CallLogGroupBuilder builder, int itemCount) {
+        long checksum = 0;
+        for (int position = 0; position < itemCount; position++) {
+            final Cursor cursor = (Cursor) mAdapter.getItem(position);
+            final int count = mAdapter.getGroupSize(position);
+            final int cursorPosition = cursor.getPosition();
+            checksum += builder.getCallTypes(cursorPosition, count)[0];
+            checksum += builder.getCallFeatures(cursorPosition);
+            checksum += builder.getCallIds(cursorPosition, count)[0];
+            checksum += builder.getCallTimes(cursorPosition, count)[0];
+        }
+        return checksum;
+    }
+
+    private static void startAllocCounting() {
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+    }
+
+    private static void stopAllocCounting(BenchmarkResult result) {
+        Debug.stopAllocCounting();
+        result.addAllocations(Debug.getThreadAllocCount(), Debug.getThreadAllocSize());
+    }
+
+    /**
+     * Creates calls spread over the last weeks, most recent first, in runs of up to
+     * {@link #MAX_GROUP_SIZE} calls from the same number, below the given number of new calls
+     * from other numbers.
+     */
+    private static MatrixCursor createCalls(int newCalls) {
+        final MatrixCursor cursor = new MatrixCursor(CallLogQuery._PROJECTION);
+        long date = System.currentTimeMillis();
+        for (int i = newCalls - 1; i >= 0; i--) {
+            addNewCall(cursor, i, date);
+        }
+
+        // Use a fixed seed so that every run works on the same call log.
+        final Random random = new Random(CALL_COUNT);
+        final int[] types = {Calls.INCOMING_TYPE, Calls.OUTGOING_TYPE, Calls.MISSED_TYPE};
+        int id = 0;
+        while (id < CALL_COUNT) {
+            final String number = String.valueOf(4125550000L + random.nextInt(NUMBER_COUNT));
+            final int groupSize = Math.min(1 + random.nextInt(MAX_GROUP_SIZE), CALL_COUNT - id);
+            for (int i = 0; i < groupSize; i++) {
+                date -= random.nextInt((int) (2 * DateUtils.HOUR_IN_MILLIS));
+                final Object[] values = CallLogQueryTestUtils.createTestValues();
+                values[CallLogQuery.ID] = (long) id++;
+                values[CallLogQuery.NUMBER] = number;
+                values[CallLogQuery.DATE] = date;
+                values[CallLogQuery.DURATION] = (long) random.nextInt(600);
+                values[CallLogQuery.CALL_TYPE] = types[random.nextInt(types.length)];
+                values[CallLogQuery.COUNTRY_ISO] = "US";
+                values[CallLogQuery.FEATURES] = random.nextInt(10) == 0 ? Calls.FEATURES_VIDEO : 0;
+                cursor.addRow(values);
+            }
+        }
+        return cursor;
+    }
+
+    /** Adds the new call of the given index, the given number of minutes after the date. */
+    private static void addNewCall(MatrixCursor cursor, int index, long date) {
+        final Object[] values = CallLogQueryTestUtils.createTestValues();
+        values[CallLogQuery.ID] = (long) (CALL_COUNT + index);
+        values[CallLogQuery.NUMBER] = String.valueOf(4125560000L + index);
+        values[CallLogQuery.DATE] = date + (index + 1) * DateUtils.MINUTE_IN_MILLIS;
+        values[CallLogQuery.CALL_TYPE] = Calls.INCOMING_TYPE;
+        values[CallLogQuery.COUNTRY_ISO] = "US";
+        cursor.addRow(values);
+    }
+}
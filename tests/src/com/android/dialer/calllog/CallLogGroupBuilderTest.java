@@ -22,7 +22,9 @@ import android.database.MatrixCursor;
 import android.provider.CallLog.Calls;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -154,6 +156,52 @@ public class CallLogGroupBuilderTest extends AndroidTestCase {
         assertGroupIs(8, 3, false, mFakeGroupCreator.groups.get(1));
     }
 
+    public void testAddGroups_Columns() {
+        addCallLogEntry(TEST_NUMBER1, Calls.VOICEMAIL_TYPE);  // Stand-alone
+        addCallLogEntry(TEST_NUMBER1, Calls.INCOMING_TYPE, 2000L, Calls.FEATURES_VIDEO);  // Group
+        addCallLogEntry(TEST_NUMBER1, Calls.MISSED_TYPE, 1000L, 0);
+        addCallLogEntry(TEST_NUMBER2, Calls.OUTGOING_TYPE);  // Stand-alone
+        mBuilder.addGroups(mCursor);
+        assertEquals(1, mFakeGroupCreator.groups.size());
+        assertGroupIs(1, 2, false, mFakeGroupCreator.groups.get(0));
+
+        assertTrue(Arrays.equals(new int[] {Calls.INCOMING_TYPE, Calls.MISSED_TYPE},
+                mBuilder.getCallTypes(1, 2)));
+        assertTrue(Arrays.equals(new long[] {1L, 2L}, mBuilder.getCallIds(1, 2)));
+        assertTrue(Arrays.equals(new long[] {2000L, 1000L}, mBuilder.getCallTimes(1, 2)));
+        assertEquals(Calls.FEATURES_VIDEO, mBuilder.getCallFeatures(1));
+        assertEquals(0, mBuilder.getCallFeatures(3));
+        assertTrue(Arrays.equals(new int[] {Calls.OUTGOING_TYPE}, mBuilder.getCallTypes(3, 1)));
+        assertEquals(3L, mBuilder.getCallId(3));
+    }
+
+    public void testAddGroups_DayGroups() {
+        final long now = System.currentTimeMillis();
+        final long lastMonth = now - 30 * DateUtils.DAY_IN_MILLIS;
+        addCallLogEntry(TEST_NUMBER1, Calls.INCOMING_TYPE, now, 0);  // Group
+        addCallLogEntry(TEST_NUMBER1, Calls.MISSED_TYPE, lastMonth, 0);
+        addCallLogEntry(TEST_NUMBER2, Calls.OUTGOING_TYPE, lastMonth, 0);  // Stand-alone
+        mBuilder.addGroups(mCursor);
+
+        // Calls are in the day group of the first call of their group.
+        assertEquals(CallLogGroupBuilder.DAY_GROUP_TODAY, mBuilder.getCallDayGroup(0));
+        assertEquals(CallLogGroupBuilder.DAY_GROUP_TODAY, mBuilder.getCallDayGroup(1));
+        assertEquals(CallLogGroupBuilder.DAY_GROUP_OTHER, mBuilder.getCallDayGroup(2));
+
+        final CallLogGroupBuilder copy = new CallLogGroupBuilder(mFakeGroupCreator);
+        copy.copyCalls(mBuilder, 1, 2);
+        assertEquals(CallLogGroupBuilder.DAY_GROUP_TODAY, copy.getCallDayGroup(0));
+        assertEquals(CallLogGroupBuilder.DAY_GROUP_OTHER, copy.getCallDayGroup(1));
+
+        copy.prependCalls(mBuilder, 1);
+        assertEquals(3, copy.getCallCount());
+        assertEquals(CallLogGroupBuilder.DAY_GROUP_TODAY, copy.getCallDayGroup(0));
+        assertEquals(CallLogGroupBuilder.DAY_GROUP_TODAY, copy.getCallDayGroup(1));
+        assertEquals(CallLogGroupBuilder.DAY_GROUP_OTHER, copy.getCallDayGroup(2));
+        assertEquals(mBuilder.getCallId(0), copy.getCallId(0));
+        assertEquals(mBuilder.getCallId(2), copy.getCallId(2));
+    }
+
     public void testEqualPhoneNumbers() {
         // Identical.
         assertTrue(mBuilder.equalNumbers("6505555555", "6505555555"));
@@ -257,6 +305,18 @@ public class CallLogGroupBuilderTest extends AndroidTestCase {
         mCursor.addRow(values);
     }
 
+    /** Adds a call log entry with the given number, type, date and features to the cursor. */
+    private void addCallLogEntry(String number, int type, long date, int features) {
+        mCursor.moveToNext();
+        Object[] values = CallLogQueryTestUtils.createTestValues();
+        values[CallLogQuery.ID] = mCursor.getPosition();
+        values[CallLogQuery.NUMBER] = number;
+        values[CallLogQuery.CALL_TYPE] = type;
+        values[CallLogQuery.DATE] = date;
+        values[CallLogQuery.FEATURES] = features;
+        mCursor.addRow(values);
+    }
+
     /** Adds a call log entry with a header to the cursor. */
     private void addCallLogHeader(int section) {
         mCursor.moveToNext();
@@ -297,15 +357,5 @@ public class CallLogGroupBuilderTest extends AndroidTestCase {
         public void addGroup(int cursorPosition, int size, boolean expanded) {
             groups.add(new GroupSpec(cursorPosition, size, expanded));
         }
-
-        @Override
-        public void setDayGroup(long rowId, int dayGroup) {
-            //No-op
-        }
-
-        @Override
-        public void clearDayGroups() {
-            //No-op
-        }
     }
 }
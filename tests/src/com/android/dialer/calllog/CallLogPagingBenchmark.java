@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.calllog;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.CallLog.Calls;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.dialer.database.BenchmarkResult;
+import com.android.dialer.tests.calllog.FillCallLogTestActivity;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures fetching a call log of 50k calls, inserted by {@link FillCallLogTestActivity}: the
+ * first page of calls against the whole call log at once, and all the pages of the call log one
+ * after the other, selecting every page after the last call of the previous one as
+ * {@link CallLogQueryHandler} does, or skipping the calls of the previous pages with an offset.
+ *
+ * The calls are inserted with a phone account id of their own, so that the benchmark only
+ * fetches them and removes them when it is done.
+ *
+ * To run this benchmark, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.calllog.CallLogPagingBenchmark /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class CallLogPagingBenchmark extends AndroidTestCase {
+    private static final String TAG = "CallLogPagingBenchmark";
+
+    private static final int CALL_COUNT = 50000;
+    private static final int PAGE_SIZE = 1000;
+    private static final int ROUNDS = 5;
+
+    /** The phone account id of the inserted calls. */
+    private static final String ACCOUNT_ID = TAG;
+
+    private ContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getContext().getContentResolver();
+        // Use a fixed seed so that every run works on the same call log.
+        final ContentValues[] values = FillCallLogTestActivity.createRandomCalls(CALL_COUNT,
+                System.currentTimeMillis(), new Random(CALL_COUNT));
+        for (ContentValues call : values) {
+            call.put(Calls.PHONE_ACCOUNT_ID, ACCOUNT_ID);
+        }
+        assertEquals(CALL_COUNT,
+                FillCallLogTestActivity.bulkInsertCalls(mResolver, values, null));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mResolver.delete(Calls.CONTENT_URI, Calls.PHONE_ACCOUNT_ID + " = ?",
+                new String[] {ACCOUNT_ID});
+        super.tearDown();
+    }
+
+    public void testFirstPage() {
+        final BenchmarkResult pageResult = new BenchmarkResult(
+                "first page calls=" + CALL_COUNT + " pageSize=" + PAGE_SIZE);
+        final BenchmarkResult allResult = new BenchmarkResult(
+                "whole call log calls=" + CALL_COUNT);
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            int count = readCalls(queryFrom(-1, -1, PAGE_SIZE), null);
+            pageResult.addSample(System.nanoTime() - start, count);
+            assertEquals(PAGE_SIZE, count);
+
+            start = System.nanoTime();
+            count = readCalls(queryFrom(-1, -1, CALL_COUNT), null);
+            allResult.addSample(System.nanoTime() - start, count);
+            assertEquals(CALL_COUNT, count);
+        }
+        Log.i(TAG, pageResult.toString());
+        Log.i(TAG, allResult.toString());
+    }
+
+    public void testPageWalk() {
+        final BenchmarkResult keysetResult = new BenchmarkResult(
+                "pages after last call calls=" + CALL_COUNT + " pageSize=" + PAGE_SIZE);
+        final BenchmarkResult offsetResult = new BenchmarkResult(
+                "pages at offset calls=" + CALL_COUNT + " pageSize=" + PAGE_SIZE);
+        for (int round = 0; round < ROUNDS; round++) {
+            final long[] lastCall = {-1, -1};
+            int total = 0;
+            while (true) {
+                final long start = System.nanoTime();
+                final int count = readCalls(queryFrom(lastCall[0], lastCall[1], PAGE_SIZE),
+                        lastCall);
+                keysetResult.addSample(System.nanoTime() - start, count);
+                total += count;
+                if (count < PAGE_SIZE) {
+                    break;
+                }
+            }
+            assertEquals(CALL_COUNT, total);
+
+            total = 0;
+            while (true) {
+                final long start = System.nanoTime();
+                final int count = readCalls(queryAt(total, PAGE_SIZE), null);
+                offsetResult.addSample(System.nanoTime() - start, count);
+                total += count;
+                if (count < PAGE_SIZE) {
+                    break;
+                }
+            }
+            assertEquals(CALL_COUNT, total);
+        }
+        Log.i(TAG, keysetResult.toString());
+        Log.i(TAG, offsetResult.toString());
+    }
+
+    /**
+     * Queries the calls following the call of the given date and id, as
+     * {@link CallLogQueryHandler#fetchOlderCalls} does, or the most recent calls if the id is -1.
+     */
+    private Cursor queryFrom(long date, long id, int limit) {
+        final StringBuilder where = new StringBuilder(Calls.PHONE_ACCOUNT_ID + " = ?");
+        final List<String> selectionArgs = Lists.newArrayList(ACCOUNT_ID);
+        if (id >= 0) {
+            where.append(" AND ");
+            CallLogQueryHandler.appendCallsFollowing(where, selectionArgs, date, id,
+                    false /* inclusive */);
+        }
+        return query(where.toString(), selectionArgs, limit, 0);
+    }
+
+    /** Queries the calls following the given number of most recent calls. */
+    private Cursor queryAt(int offset, int limit) {
+        return query(Calls.PHONE_ACCOUNT_ID + " = ?", Lists.newArrayList(ACCOUNT_ID), limit,
+                offset);
+    }
+
+    private Cursor query(String selection, List<String> selectionArgs, int limit, int offset) {
+        final Uri uri = Calls.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Calls.LIMIT_PARAM_KEY, Integer.toString(limit))
+                .appendQueryParameter(Calls.OFFSET_PARAM_KEY, Integer.toString(offset))
+                .build();
+        return mResolver.query(uri, CallLogQuery._PROJECTION, selection,
+                selectionArgs.toArray(new String[selectionArgs.size()]),
+                CallLogQueryHandler.CALLS_SORT_ORDER);
+    }
+
+    /**
+     * Reads the date and id of every call of the cursor and closes it, as the call log does
+     * when grouping the calls.
+     *
+     * @param lastCall if not null, set to the date and id of the last call read
+     * @return the number of calls read
+     */
+    private static int readCalls(Cursor cursor, long[] lastCall) {
+        try {
+            while (cursor.moveToNext()) {
+                if (lastCall != null) {
+                    lastCall[0] = cursor.getLong(CallLogQuery.DATE);
+                    lastCall[1] = cursor.getLong(CallLogQuery.ID);
+                }
+            }
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -29,6 +29,9 @@ import android.text.TextUtils;
 import android.view.View;
 import android.view.ViewGroup;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Tests for {@link GroupingListAdapter}.
  *
@@ -102,6 +105,223 @@ public class GroupingListAdapterTests extends AndroidTestCase {
         }
     }
 
+    /** Builds a cursor of the given ids and values, most recent first. */
+    private MatrixCursor buildCursorWithIds(Object... idsAndValues) {
+        final MatrixCursor cursor = new MatrixCursor(PROJECTION);
+        for (int i = 0; i < idsAndValues.length; i += 2) {
+            cursor.addRow(new Object[]{idsAndValues[i], idsAndValues[i + 1]});
+        }
+        return cursor;
+    }
+
+    /** Changes the cursor as {@link GroupingListAdapter#changeCursorInBackground} does. */
+    private void changeCursorInBackground(Cursor cursor) {
+        final GroupingListAdapter.Grouping grouping = mAdapter.startGrouping(cursor);
+        mAdapter.groupCursor(grouping);
+        mAdapter.publishGroups(grouping);
+    }
+
+    /** Prepends rows as {@link GroupingListAdapter#prependInBackground} does. */
+    private void prependRows(Cursor rows) {
+        final GroupingListAdapter.Grouping grouping = mAdapter.startPrepending(rows);
+        mAdapter.groupCursor(grouping);
+        mAdapter.publishGroups(grouping);
+    }
+
+    /** Appends rows as {@link GroupingListAdapter#appendInBackground} does. */
+    private void appendRows(Cursor rows) {
+        final GroupingListAdapter.Grouping grouping = mAdapter.startAppending(rows);
+        mAdapter.groupCursor(grouping);
+        mAdapter.publishGroups(grouping);
+    }
+
+    public void testChangeCursorInBackground_firstCursor() {
+        final RecordingObserver observer = new RecordingObserver();
+        mAdapter.registerAdapterDataObserver(observer);
+        mCursor = buildCursorWithIds(1, "1", 2, "2", 3, "2");
+        changeCursorInBackground(mCursor);
+
+        assertSame(mCursor, mAdapter.getCursor());
+        assertEquals(2, mAdapter.getItemCount());
+        assertPositionMetadata(1, ITEM_TYPE_GROUP_HEADER, false, 1);
+        assertEquals("changed", observer.getEvents());
+    }
+
+    public void testChangeCursorInBackground_callInserted() {
+        mAdapter.changeCursor(buildCursorWithIds(1, "1", 2, "2", 3, "2", 4, "3"));
+        final RecordingObserver observer = new RecordingObserver();
+        mAdapter.registerAdapterDataObserver(observer);
+        changeCursorInBackground(buildCursorWithIds(5, "4", 1, "1", 2, "2", 3, "2", 4, "3"));
+
+        assertEquals(4, mAdapter.getItemCount());
+        assertPositionMetadata(2, ITEM_TYPE_GROUP_HEADER, false, 2);
+        assertEquals("inserted 0+1", observer.getEvents());
+    }
+
+    public void testChangeCursorInBackground_callAddedToGroup() {
+        mAdapter.changeCursor(buildCursorWithIds(1, "1", 2, "2", 3, "2", 4, "3"));
+        final RecordingObserver observer = new RecordingObserver();
+        mAdapter.registerAdapterDataObserver(observer);
+        changeCursorInBackground(buildCursorWithIds(5, "1", 1, "1", 2, "2", 3, "2", 4, "3"));
+
+        assertEquals(3, mAdapter.getItemCount());
+        assertPositionMetadata(0, ITEM_TYPE_GROUP_HEADER, false, 0);
+        assertEquals("changed 0+1", observer.getEvents());
+    }
+
+    public void testChangeCursorInBackground_callsRemoved() {
+        mAdapter.changeCursor(buildCursorWithIds(1, "1", 2, "2", 3, "2", 4, "3", 5, "4"));
+        final RecordingObserver observer = new RecordingObserver();
+        mAdapter.registerAdapterDataObserver(observer);
+        changeCursorInBackground(buildCursorWithIds(1, "1", 5, "4"));
+
+        assertEquals(2, mAdapter.getItemCount());
+        assertEquals("removed 1+2", observer.getEvents());
+    }
+
+    public void testChangeCursorInBackground_supersededByNewerCursor() {
+        final MatrixCursor olderCursor = buildCursorWithIds(1, "1");
+        final GroupingListAdapter.Grouping grouping = mAdapter.startGrouping(olderCursor);
+        mCursor = buildCursorWithIds(2, "2", 1, "1");
+        mAdapter.changeCursor(mCursor);
+        mAdapter.groupCursor(grouping);
+        mAdapter.publishGroups(grouping);
+
+        assertSame(mCursor, mAdapter.getCursor());
+        assertTrue(olderCursor.isClosed());
+        assertEquals(2, mAdapter.getItemCount());
+    }
+
+    public void testPrependRows_callInserted() {
+        mCursor = buildCursorWithIds(1, "1", 2, "2", 3, "2", 4, "3");
+        mAdapter.changeCursor(mCursor);
+        final RecordingObserver observer = new RecordingObserver();
+        mAdapter.registerAdapterDataObserver(observer);
+        prependRows(buildCursorWithIds(5, "4"));
+
+        assertFalse(mCursor.isClosed());
+        assertEquals(5, mAdapter.getCursor().getCount());
+        assertEquals(4, mAdapter.getItemCount());
+        assertPositionMetadata(0, ITEM_TYPE_STANDALONE, false, 0);
+        assertPositionMetadata(2, ITEM_TYPE_GROUP_HEADER, false, 2);
+        assertEquals("inserted 0+1", observer.getEvents());
+    }
+
+    public void testPrependRows_callAddedToGroup() {
+        mAdapter.changeCursor(buildCursorWithIds(1, "1", 2, "2", 3, "2", 4, "3"));
+        final RecordingObserver observer = new RecordingObserver();
+        mAdapter.registerAdapterDataObserver(observer);
+        prependRows(buildCursorWithIds(5, "1"));
+
+        assertEquals(3, mAdapter.getItemCount());
+        assertPositionMetadata(0, ITEM_TYPE_GROUP_HEADER, false, 0);
+        assertPositionMetadata(1, ITEM_TYPE_GROUP_HEADER, false, 2);
+        assertPositionMetadata(2, ITEM_TYPE_STANDALONE, false, 4);
+        assertEquals("changed 0+1", observer.getEvents());
+    }
+
+    public void testPrependRows_groupsShifted() {
+        mAdapter.changeCursor(buildCursorWithIds(1, "1", 2, "2", 3, "2", 4, "3", 5, "3"));
+        final RecordingObserver observer = new RecordingObserver();
+        mAdapter.registerAdapterDataObserver(observer);
+        prependRows(buildCursorWithIds(6, "4", 7, "4"));
+
+        assertEquals(4, mAdapter.getItemCount());
+        assertPositionMetadata(0, ITEM_TYPE_GROUP_HEADER, false, 0);
+        assertPositionMetadata(1, ITEM_TYPE_STANDALONE, false, 2);
+        assertPositionMetadata(2, ITEM_TYPE_GROUP_HEADER, false, 3);
+        assertPositionMetadata(3, ITEM_TYPE_GROUP_HEADER, false, 5);
+        assertEquals("inserted 0+1", observer.getEvents());
+    }
+
+    public void testPrependRows_currentCursorNotMoved() {
+        mCursor = buildCursorWithIds(1, "1", 2, "2", 3, "2", 4, "3", 5, "3");
+        mAdapter.changeCursor(mCursor);
+        final GroupingListAdapter.Grouping grouping =
+                mAdapter.startPrepending(buildCursorWithIds(6, "1"));
+        // The list binds from the current cursor while the rows are grouped.
+        mCursor.moveToPosition(3);
+        mAdapter.groupCursor(grouping);
+
+        assertEquals(3, mCursor.getPosition());
+        mAdapter.publishGroups(grouping);
+        assertEquals(3, mAdapter.getItemCount());
+        assertPositionMetadata(0, ITEM_TYPE_GROUP_HEADER, false, 0);
+        assertPositionMetadata(2, ITEM_TYPE_GROUP_HEADER, false, 4);
+    }
+
+    public void testPrependRows_supersededByNewerCursor() {
+        final MatrixCursor oldCursor = buildCursorWithIds(1, "1");
+        mAdapter.changeCursor(oldCursor);
+        final MatrixCursor rows = buildCursorWithIds(2, "2");
+        final GroupingListAdapter.Grouping grouping = mAdapter.startPrepending(rows);
+        mCursor = buildCursorWithIds(3, "3", 2, "2", 1, "1");
+        mAdapter.changeCursor(mCursor);
+        mAdapter.groupCursor(grouping);
+        mAdapter.publishGroups(grouping);
+
+        assertSame(mCursor, mAdapter.getCursor());
+        assertTrue(rows.isClosed());
+        assertTrue(oldCursor.isClosed());
+        assertEquals(3, mAdapter.getItemCount());
+    }
+
+    public void testAppendRows_newItems() {
+        mCursor = buildCursorWithIds(1, "1", 2, "2", 3, "2");
+        mAdapter.changeCursor(mCursor);
+        final RecordingObserver observer = new RecordingObserver();
+        mAdapter.registerAdapterDataObserver(observer);
+        appendRows(buildCursorWithIds(4, "3", 5, "4", 6, "4"));
+
+        assertFalse(mCursor.isClosed());
+        assertEquals(4, mAdapter.getItemCount());
+        assertPositionMetadata(1, ITEM_TYPE_GROUP_HEADER, false, 1);
+        assertPositionMetadata(2, ITEM_TYPE_STANDALONE, false, 3);
+        assertPositionMetadata(3, ITEM_TYPE_GROUP_HEADER, false, 4);
+        assertEquals("inserted 2+2", observer.getEvents());
+    }
+
+    public void testAppendRows_groupSpanningPages() {
+        mAdapter.changeCursor(buildCursorWithIds(1, "1", 2, "2", 3, "2"));
+        final RecordingObserver observer = new RecordingObserver();
+        mAdapter.registerAdapterDataObserver(observer);
+        appendRows(buildCursorWithIds(4, "2", 5, "3"));
+
+        assertEquals(3, mAdapter.getItemCount());
+        assertPositionMetadata(1, ITEM_TYPE_GROUP_HEADER, false, 1);
+        assertEquals(3, mAdapter.getGroupSize(1));
+        assertPositionMetadata(2, ITEM_TYPE_STANDALONE, false, 4);
+        // The group continuing in the new rows is a new item, since its last row changed.
+        assertEquals("removed 1+1, inserted 1+2", observer.getEvents());
+    }
+
+    public void testAppendRows_currentCursorNotMoved() {
+        mCursor = buildCursorWithIds(1, "1", 2, "2", 3, "2");
+        mAdapter.changeCursor(mCursor);
+        final GroupingListAdapter.Grouping grouping =
+                mAdapter.startAppending(buildCursorWithIds(4, "2", 5, "3"));
+        // The list binds from the current cursor while the rows are grouped.
+        mCursor.moveToPosition(0);
+        mAdapter.groupCursor(grouping);
+
+        assertEquals(0, mCursor.getPosition());
+        mAdapter.publishGroups(grouping);
+        assertEquals(3, mAdapter.getItemCount());
+        assertPositionMetadata(1, ITEM_TYPE_GROUP_HEADER, false, 1);
+        assertEquals(3, mAdapter.getGroupSize(1));
+    }
+
+    public void testGetItemBoundary() {
+        buildCursor("1", "2", "2", "2", "3");
+        mAdapter.changeCursor(mCursor);
+
+        assertEquals(0, mAdapter.getItemBoundary(0));
+        assertEquals(1, mAdapter.getItemBoundary(1));
+        assertEquals(4, mAdapter.getItemBoundary(2));
+        assertEquals(4, mAdapter.getItemBoundary(3));
+        assertEquals(4, mAdapter.getItemBoundary(4));
+    }
+
     public void testGroupingWithoutGroups() {
         buildCursor("1", "2", "3");
         mAdapter.changeCursor(mCursor);
@@ -297,4 +517,33 @@ public class GroupingListAdapterTests extends AndroidTestCase {
         }
         assertEquals(cursorPosition, metadata.cursorPosition);
     }
+
+    /** Records the notifications of the adapter. */
+    private static class RecordingObserver extends RecyclerView.AdapterDataObserver {
+        private final List<String> mEvents = new ArrayList<String>();
+
+        @Override
+        public void onChanged() {
+            mEvents.add("changed");
+        }
+
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount) {
+            mEvents.add("changed " + positionStart + "+" + itemCount);
+        }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            mEvents.add("inserted " + positionStart + "+" + itemCount);
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            mEvents.add("removed " + positionStart + "+" + itemCount);
+        }
+
+        public String getEvents() {
+            return TextUtils.join(", ", mEvents);
+        }
+    }
 }
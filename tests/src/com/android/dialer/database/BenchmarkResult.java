@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Collects the samples of a benchmark: the time spent by every sample, such as the query of a
+ * keystroke, the number of operations it did, such as the names it matched, and the bytes it
+ * allocated. Reports the throughput, the allocation rate and the latency percentiles.
+ *
+ * This class only uses the Java library, so that it can be reused by benchmarks running outside
+ * of a device.
+ */
+public class BenchmarkResult {
+    private final String mName;
+
+    private long[] mSampleNanos = new long[64];
+    private int mSampleCount;
+    private long mTotalNanos;
+    private long mOperations;
+    private long mAllocatedBytes;
+    private long mAllocations;
+
+    public BenchmarkResult(String name) {
+        mName = name;
+    }
+
+    /**
+     * Records a sample.
+     *
+     * @param nanos Time spent by the sample.
+     * @param operations Number of operations done by the sample.
+     */
+    public void addSample(long nanos, long operations) {
+        if (mSampleCount == mSampleNanos.length) {
+            mSampleNanos = Arrays.copyOf(mSampleNanos, mSampleCount * 2);
+        }
+        mSampleNanos[mSampleCount++] = nanos;
+        mTotalNanos += nanos;
+        mOperations += operations;
+    }
+
+    /**
+     * Records the memory allocated while taking the samples, when the runtime can count it.
+     */
+    public void addAllocations(long allocations, long bytes) {
+        mAllocations += allocations;
+        mAllocatedBytes += bytes;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    public double getOperationsPerSecond() {
+        return mTotalNanos == 0 ? 0 : mOperations * 1e9 / mTotalNanos;
+    }
+
+    /** Returns the allocated megabytes per second of sampled time. */
+    public double getAllocationRate() {
+        return mTotalNanos == 0 ? 0 : mAllocatedBytes * 1e9 / mTotalNanos / (1024 * 1024);
+    }
+
+    public double getAllocationsPerOperation() {
+        return mOperations == 0 ? 0 : (double) mAllocations / mOperations;
+    }
+
+    public double getAllocatedBytesPerOperation() {
+        return mOperations == 0 ? 0 : (double) mAllocatedBytes / mOperations;
+    }
+
+    /**
+     * Returns the time spent by the sample at the given percentile, nearest rank.
+     *
+     * @param percentile Between 0 and 100.
+     */
+    public long getPercentileNanos(double percentile) {
+        if (mSampleCount == 0) {
+            return 0;
+        }
+        final long[] sorted = Arrays.copyOf(mSampleNanos, mSampleCount);
+        Arrays.sort(sorted);
+        final int rank = (int) Math.ceil(percentile / 100 * mSampleCount);
+        return sorted[Math.max(0, Math.min(rank, mSampleCount) - 1)];
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%s samples=%d ops/s=%.0f p50=%.3fms p99=%.3fms allocs/op=%.2f bytes/op=%.1f"
+                        + " alloc=%.1fMB/s",
+                mName, mSampleCount, getOperationsPerSecond(),
+                getPercentileNanos(50) / 1e6, getPercentileNanos(99) / 1e6,
+                getAllocationsPerOperation(), getAllocatedBytesPerOperation(),
+                getAllocationRate());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+
+import java.util.Random;
+
+/**
+ * Builds the cursor of phone numbers {@link DialerDatabaseHelper} reads from the contacts
+ * provider, with the columns of {@link DialerDatabaseHelper.PhoneQuery#PROJECTION}, for the
+ * contacts of the smart dial tests and benchmarks.
+ *
+ * Contacts get ids in the order they are added. Their ranking columns are drawn from a random
+ * seeded by the caller, so that the same contacts always get the same columns, and the numbers
+ * of a contact all have a different type, so that no two rows rank the same.
+ */
+class ContactCursorBuilder {
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    /**
+     * How long ago numbers were last used, away from the 3 and 30 days limits of the recency
+     * buckets so that the time spent by a test cannot move a row to another bucket.
+     */
+    static final long[] LAST_USED_AGO_MS = {DAY_MS, 10 * DAY_MS, 60 * DAY_MS};
+
+    static final int[] PHONE_TYPES = {Phone.TYPE_MOBILE, Phone.TYPE_HOME, Phone.TYPE_WORK};
+
+    private final MatrixCursor mCursor =
+            new MatrixCursor(DialerDatabaseHelper.PhoneQuery.PROJECTION);
+    private final Random mRandom;
+    private final long mNow;
+    private long mNextContactId;
+    private long mNextDataId;
+
+    /**
+     * @param now The time the last time used columns are relative to.
+     * @param seed The seed of the ranking columns.
+     */
+    ContactCursorBuilder(long now, long seed) {
+        mNow = now;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Adds a contact with at most {@link #PHONE_TYPES} numbers.
+     */
+    ContactCursorBuilder addContact(String displayName, String... numbers) {
+        final long contactId = mNextContactId++;
+        final int starred = mRandom.nextInt(5) == 0 ? 1 : 0;
+        final int inVisibleGroup = mRandom.nextInt(5) == 0 ? 0 : 1;
+        for (int i = 0; i < numbers.length; i++) {
+            final long lastTimeUsed = mRandom.nextInt(4) == 0 ? 0
+                    : mNow - LAST_USED_AGO_MS[mRandom.nextInt(LAST_USED_AGO_MS.length)];
+            mCursor.addRow(new Object[] {mNextDataId++, PHONE_TYPES[i], "", numbers[i],
+                    contactId, String.valueOf(contactId), displayName, 0, lastTimeUsed,
+                    mRandom.nextInt(20), starred, mRandom.nextInt(4) == 0 ? 1 : 0,
+                    inVisibleGroup, mRandom.nextInt(2), Phone.CONTENT_ITEM_TYPE});
+        }
+        return this;
+    }
+
+    /**
+     * Adds every contact of the book with its number, the contact at position i getting the id
+     * i if the book is the first thing added.
+     */
+    ContactCursorBuilder addContacts(SyntheticAddressBook book) {
+        for (int i = 0; i < book.size(); i++) {
+            addContact(book.getName(i), book.getNumber(i));
+        }
+        return this;
+    }
+
+    MatrixCursor build() {
+        return mCursor;
+    }
+
+    /**
+     * Returns the cursor of every contact of the book, seeded by the size of the book.
+     */
+    static MatrixCursor create(SyntheticAddressBook book, long now) {
+        return new ContactCursorBuilder(now, book.size()).addContacts(book).build();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.dialer.dialpad.SmartDialNameMatcher;
+import com.android.dialer.dialpad.SmartDialPrefix;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Verifies that smart dial queries keep returning the last committed contacts while the smart
+ * dial tables are being rebuilt.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.database.SmartDialConcurrentUpdateTest /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@MediumTest
+public class SmartDialConcurrentUpdateTest extends AndroidTestCase {
+    /** Write-ahead logging needs a database file, it is not used by in-memory databases. */
+    private static final String DATABASE_NAME = "dialer_concurrent_update_test.db";
+
+    private static final int CONTACT_COUNT = 2000;
+    private static final int UPDATE_COUNT = 3;
+
+    private static final String[] QUERIES = {"5", "52", "527", "5276", "52766"};
+
+    private DialerDatabaseHelper mTestHelper;
+
+    @Override
+    protected void setUp() {
+        getContext().deleteDatabase(DATABASE_NAME);
+        mTestHelper = new DialerDatabaseHelper(getContext(), DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mTestHelper.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testQueriesDuringRebuild() throws Exception {
+        for (int queryMode : new int[] {DialerDatabaseHelper.QUERY_MODE_PREFIX_INDEX,
+                DialerDatabaseHelper.QUERY_MODE_MEMORY_INDEX}) {
+            mTestHelper.setQueryMode(queryMode);
+            rebuild(0);
+
+            final AtomicReference<Throwable> updateError = new AtomicReference<Throwable>();
+            final Thread updater = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 1; i <= UPDATE_COUNT; i++) {
+                            rebuild(i);
+                        }
+                    } catch (Throwable t) {
+                        updateError.set(t);
+                    }
+                }
+            };
+            updater.start();
+
+            int queries = 0;
+            while (updater.isAlive()) {
+                final String query = QUERIES[queries % QUERIES.length];
+                final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(query,
+                        SmartDialPrefix.getMap(), getContext());
+                assertFalse("mode=" + queryMode + " query=" + query,
+                        mTestHelper.getLooseMatches(query, nameMatcher, null).isEmpty());
+                queries++;
+            }
+            updater.join();
+            assertNull(updateError.get());
+            assertTrue(queries > 0);
+        }
+    }
+
+    /**
+     * Deletes and reinserts all contacts, as when the smart dial database is recreated.
+     */
+    private void rebuild(long updateMillis) {
+        final MatrixCursor contactCursor =
+                new MatrixCursor(DialerDatabaseHelper.PhoneQuery.PROJECTION);
+        for (int id = 0; id < CONTACT_COUNT; id++) {
+            // All contacts are named "Jason Smith <n>", which "52766" matches.
+            contactCursor.addRow(new Object[] {id, Phone.TYPE_MOBILE, "",
+                    String.format("+1 650-555-%04d", id), id, String.valueOf(id),
+                    "Jason Smith " + id, 0, 0, 0, 0, 0, 1, 0, Phone.CONTENT_ITEM_TYPE});
+        }
+        try {
+            mTestHelper.updateSmartDialTables(mTestHelper.getWritableDatabase(), contactCursor,
+                    "0", updateMillis, true, null);
+        } finally {
+            contactCursor.close();
+        }
+    }
+}
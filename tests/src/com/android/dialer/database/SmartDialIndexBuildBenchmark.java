@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.dialer.database.SyntheticAddressBook.Script;
+import com.android.dialer.dialpad.SmartDialPrefix;
+
+/**
+ * Measures the time spent building the smart dial and prefix tables from scratch, as on the
+ * first launch of the dialer, and removing contacts from them, against the size of the address
+ * book.
+ *
+ * To run this benchmark, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.database.SmartDialIndexBuildBenchmark /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class SmartDialIndexBuildBenchmark extends AndroidTestCase {
+    private static final String TAG = "SmartDialIndexBuildBenchmark";
+
+    private static final int[] CONTACT_SET_SIZES = {1000, 10000, 30000};
+
+    private DialerDatabaseHelper mTestHelper;
+
+    @Override
+    protected void setUp() {
+        SmartDialPrefix.setUserInNanpRegion(true);
+        mTestHelper = DialerDatabaseHelper.getNewInstanceForTest(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+        mTestHelper.removeAllContacts(db);
+        super.tearDown();
+    }
+
+    public void testFirstLaunchBuildTime() {
+        for (int size : CONTACT_SET_SIZES) {
+            final MatrixCursor contactCursor = createContacts(size);
+            final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+            final long start = SystemClock.elapsedRealtime();
+            mTestHelper.updateSmartDialTables(db, contactCursor, "0", System.currentTimeMillis(),
+                    true, null);
+            final long elapsed = SystemClock.elapsedRealtime() - start;
+
+            Log.i(TAG, "contacts=" + size + " rows=" + contactCursor.getCount()
+                    + " prefixes=" + mTestHelper.countPrefixTableRows(db)
+                    + " bytes=" + getDatabaseBytes(db)
+                    + " time=" + elapsed + "ms"
+                    + " cores=" + Runtime.getRuntime().availableProcessors());
+            contactCursor.close();
+        }
+    }
+
+    public void testBulkRemoveTime() {
+        for (int size : CONTACT_SET_SIZES) {
+            final MatrixCursor contactCursor = createContacts(size);
+            final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+            mTestHelper.updateSmartDialTables(db, contactCursor, "0", System.currentTimeMillis(),
+                    true, null);
+            contactCursor.close();
+
+            // Removes every other contact, as a sync touching half of the address book would.
+            final long[] contactIds = new long[size / 2];
+            for (int i = 0; i < contactIds.length; i++) {
+                contactIds[i] = i * 2;
+            }
+            final long start = SystemClock.elapsedRealtime();
+            mTestHelper.removeContacts(db, contactIds);
+            final long elapsed = SystemClock.elapsedRealtime() - start;
+
+            Log.i(TAG, "contacts=" + size + " removed=" + contactIds.length
+                    + " time=" + elapsed + "ms");
+        }
+    }
+
+    private static long getDatabaseBytes(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) * db.getPageSize();
+    }
+
+    /**
+     * Returns the contacts of a book of the given size, a third of which also have the number of
+     * the next contact. A quarter of the names get a "J." middle initial, whose one letter token
+     * makes the name prefix generator produce redundant strings.
+     */
+    private static MatrixCursor createContacts(int size) {
+        final SyntheticAddressBook book = new SyntheticAddressBook(Script.LATIN, size);
+        final ContactCursorBuilder builder =
+                new ContactCursorBuilder(System.currentTimeMillis(), size);
+        for (int i = 0; i < size; i++) {
+            String name = book.getName(i);
+            final int space = name.indexOf(' ');
+            if (i % 4 == 0 && space > 0) {
+                name = name.substring(0, space) + " J." + name.substring(space);
+            }
+            if (i % 3 == 0) {
+                builder.addContact(name, book.getNumber(i),
+                        book.getNumber((i + 1) % size));
+            } else {
+                builder.addContact(name, book.getNumber(i));
+            }
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.dialer.database.SyntheticAddressBook.Script;
+import com.android.dialer.dialpad.KoreanSmartDialMap;
+import com.android.dialer.dialpad.SmartDialMap;
+import com.android.dialer.dialpad.SmartDialNameIndex;
+import com.android.dialer.dialpad.SmartDialNameMatcher;
+import com.android.dialer.dialpad.SmartDialPrefix;
+
+/**
+ * Measures smart dial on an address book of Korean names, which are looked up by the keys of the
+ * initial letters (chosung) of their syllables: the time spent building the tables, the time
+ * spent per query in every query mode, and the time spent matching the names of the address book
+ * with and without their stored dialpad index, which saves splitting and decomposing every name.
+ *
+ * To run this benchmark, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.database.SmartDialKoreanBenchmark /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class SmartDialKoreanBenchmark extends AndroidTestCase {
+    private static final String TAG = "SmartDialKoreanBenchmark";
+
+    private static final int CONTACT_SET_SIZE = 20000;
+
+    /** Chosung queries: ㄱ, ㄱㅊ, ㄱㅊㅅ, and ㅇ, ㅇㅁ, ㅇㅁㅈ. */
+    private static final String[] QUERIES = {"4", "49", "498", "2", "22", "229"};
+
+    private static final int ITERATIONS = 5;
+
+    private DialerDatabaseHelper mTestHelper;
+    private SmartDialMap mPreviousMap;
+
+    @Override
+    protected void setUp() {
+        SmartDialPrefix.setUserInNanpRegion(true);
+        mPreviousMap = SmartDialPrefix.getMap();
+        SmartDialPrefix.setSmartDialMap(new KoreanSmartDialMap());
+        mTestHelper = DialerDatabaseHelper.getNewInstanceForTest(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+        mTestHelper.removeAllContacts(db);
+        SmartDialPrefix.setSmartDialMap(mPreviousMap);
+        super.tearDown();
+    }
+
+    public void testBuildTime() {
+        final MatrixCursor contactCursor = ContactCursorBuilder.create(
+                new SyntheticAddressBook(Script.KOREAN, CONTACT_SET_SIZE),
+                System.currentTimeMillis());
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final long start = SystemClock.elapsedRealtime();
+        mTestHelper.updateSmartDialTables(db, contactCursor, "0", System.currentTimeMillis(),
+                true, null);
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "contacts=" + CONTACT_SET_SIZE + " rows=" + contactCursor.getCount()
+                + " prefixes=" + mTestHelper.countPrefixTableRows(db)
+                + " time=" + elapsed + "ms");
+        contactCursor.close();
+    }
+
+    public void testQueryTime() {
+        final MatrixCursor contactCursor = ContactCursorBuilder.create(
+                new SyntheticAddressBook(Script.KOREAN, CONTACT_SET_SIZE),
+                System.currentTimeMillis());
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+        mTestHelper.updateSmartDialTables(db, contactCursor, "0", System.currentTimeMillis(),
+                true, null);
+        mTestHelper.loadSmartDialTrie(db);
+
+        for (String query : QUERIES) {
+            final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(query,
+                    SmartDialPrefix.getMap(), getContext());
+            Log.i(TAG, "contacts=" + CONTACT_SET_SIZE + " query=" + query
+                    + " results=" + mTestHelper.getLooseMatches(query, nameMatcher, null).size()
+                    + " fullScan=" + measureLooseMatches(query, nameMatcher,
+                            DialerDatabaseHelper.QUERY_MODE_FULL_SCAN) + "us"
+                    + " prefixIndex=" + measureLooseMatches(query, nameMatcher,
+                            DialerDatabaseHelper.QUERY_MODE_PREFIX_INDEX) + "us"
+                    + " memoryIndex=" + measureLooseMatches(query, nameMatcher,
+                            DialerDatabaseHelper.QUERY_MODE_MEMORY_INDEX) + "us");
+        }
+        contactCursor.close();
+    }
+
+    /**
+     * Matches every name of the address book, as the dialer did for every row before the names
+     * were indexed, against matching their stored dialpad index.
+     */
+    public void testNameMatchingTime() {
+        final SmartDialMap map = SmartDialPrefix.getMap();
+        final SyntheticAddressBook book = new SyntheticAddressBook(Script.KOREAN,
+                CONTACT_SET_SIZE);
+        final String[] names = new String[CONTACT_SET_SIZE];
+        final SmartDialNameIndex[] nameIndexes = new SmartDialNameIndex[CONTACT_SET_SIZE];
+        for (int i = 0; i < CONTACT_SET_SIZE; i++) {
+            names[i] = book.getName(i);
+            nameIndexes[i] = map.buildNameIndex(names[i]);
+        }
+
+        for (String query : QUERIES) {
+            final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(query, map,
+                    getContext());
+            int matches = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < CONTACT_SET_SIZE; i++) {
+                if (nameMatcher.matchesWithoutPositions(names[i])) {
+                    matches++;
+                }
+            }
+            final long byName = (System.nanoTime() - start) / 1000;
+
+            start = System.nanoTime();
+            for (int i = 0; i < CONTACT_SET_SIZE; i++) {
+                nameMatcher.matchesWithoutPositions(names[i], nameIndexes[i]);
+            }
+            final long byIndex = (System.nanoTime() - start) / 1000;
+
+            Log.i(TAG, "names=" + CONTACT_SET_SIZE + " query=" + query + " matches=" + matches
+                    + " byName=" + byName + "us byIndex=" + byIndex + "us");
+        }
+    }
+
+    private long measureLooseMatches(String query, SmartDialNameMatcher nameMatcher,
+            int queryMode) {
+        mTestHelper.setQueryMode(queryMode);
+        mTestHelper.getLooseMatches(query, nameMatcher, null);
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            mTestHelper.getLooseMatches(query, nameMatcher, null);
+        }
+        return (System.nanoTime() - start) / ITERATIONS / 1000;
+    }
+}
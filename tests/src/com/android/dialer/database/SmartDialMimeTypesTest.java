@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.SipAddress;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+@SmallTest
+public class SmartDialMimeTypesTest extends AndroidTestCase {
+    private static final String PLUGIN_A = "vnd.android.cursor.item/plugin_a";
+    private static final String PLUGIN_B = "vnd.android.cursor.item/plugin_b";
+
+    public void testFilterSelection() {
+        final SmartDialMimeTypes.Filter filter =
+                new SmartDialMimeTypes.Filter(PLUGIN_A + "," + PLUGIN_B);
+
+        assertEquals("(mimetype = ? OR mimetype = ? OR mimetype = ? OR mimetype = ?)",
+                filter.getSelection(PLUGIN_A));
+        assertEquals("(mimetype != ? OR mimetype != ? OR mimetype = ? OR mimetype = ?)",
+                filter.getSelection(null));
+        assertEquals("(mimetype != ? OR mimetype != ? OR mimetype = ? OR mimetype = ?)",
+                filter.getSelection("vnd.android.cursor.item/disabled"));
+        // The same selection is handed out for every query.
+        assertSame(filter.getSelection(null), filter.getSelection(Phone.CONTENT_ITEM_TYPE));
+    }
+
+    public void testFilterSelectionArgs() {
+        final SmartDialMimeTypes.Filter filter = new SmartDialMimeTypes.Filter(PLUGIN_A);
+
+        final String[] args = filter.getSelectionArgs(2);
+        assertEquals(Arrays.asList(PLUGIN_A, Phone.CONTENT_ITEM_TYPE,
+                SipAddress.CONTENT_ITEM_TYPE, null, null), Arrays.asList(args));
+        // Callers fill in their own arguments, which must not leak into the next query.
+        args[3] = "5";
+        assertNull(filter.getSelectionArgs(2)[3]);
+    }
+
+    public void testFilterWithoutPlugins() {
+        final SmartDialMimeTypes.Filter filter = new SmartDialMimeTypes.Filter("");
+
+        assertEquals("(mimetype != ? OR mimetype = ? OR mimetype = ?)",
+                filter.getSelection(null));
+        assertEquals(3, filter.getSelectionArgs(0).length);
+    }
+
+    public void testIsShown() {
+        final SmartDialMimeTypes.Filter filter = new SmartDialMimeTypes.Filter(PLUGIN_A);
+
+        assertTrue(filter.isShown(Phone.CONTENT_ITEM_TYPE, null));
+        assertTrue(filter.isShown(SipAddress.CONTENT_ITEM_TYPE, PLUGIN_A));
+        assertTrue(filter.isShown(PLUGIN_A, PLUGIN_A));
+        assertFalse(filter.isShown(PLUGIN_A, null));
+        assertFalse(filter.isShown(PLUGIN_B, PLUGIN_A));
+    }
+
+    public void testFilterCachedUntilPluginsChange() {
+        final SmartDialMimeTypes mimeTypes = SmartDialMimeTypes.getInstance(getContext());
+        final SmartDialMimeTypes.Filter filter = mimeTypes.getFilter();
+        assertSame(filter, mimeTypes.getFilter());
+
+        mimeTypes.invalidateFilter();
+        final SmartDialMimeTypes.Filter newFilter = mimeTypes.getFilter();
+        assertNotSame(filter, newFilter);
+        assertEquals(filter.getSelection(null), newFilter.getSelection(null));
+    }
+
+    public void testIndexedMimeTypes() {
+        assertTrue(SmartDialMimeTypes.isIndexed(null, ""));
+        assertTrue(SmartDialMimeTypes.isIndexed(null, null));
+        assertFalse(SmartDialMimeTypes.isIndexed(null, PLUGIN_A));
+        assertTrue(SmartDialMimeTypes.isIndexed(PLUGIN_A + "," + PLUGIN_B, PLUGIN_B));
+        assertFalse(SmartDialMimeTypes.isIndexed(PLUGIN_A, PLUGIN_A + "," + PLUGIN_B));
+
+        assertEquals(PLUGIN_A, SmartDialMimeTypes.union(null, PLUGIN_A));
+        assertEquals(PLUGIN_A + "," + PLUGIN_B,
+                SmartDialMimeTypes.union(PLUGIN_A + "," + PLUGIN_B, PLUGIN_B));
+        assertEquals(PLUGIN_A + "," + PLUGIN_B, SmartDialMimeTypes.union(PLUGIN_A, PLUGIN_B));
+        assertEquals(PLUGIN_A, SmartDialMimeTypes.union(PLUGIN_A, ""));
+    }
+}
@@ -18,17 +18,19 @@ package com.android.dialer.database;
 
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.test.suitebuilder.annotation.Suppress;
 import android.test.AndroidTestCase;
 import android.text.TextUtils;
 import android.util.Log;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.Data;
 
 import com.android.dialer.database.DialerDatabaseHelper;
 import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.dialpad.LatinSmartDialMap;
+import com.android.dialer.dialpad.SmartDialMap;
 import com.android.dialer.dialpad.SmartDialNameMatcher;
 import com.android.dialer.dialpad.SmartDialPrefix;
 
@@ -36,6 +38,7 @@ import java.lang.Exception;
 import java.lang.Override;
 import java.lang.String;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * To run this test, use the command:
@@ -46,6 +49,7 @@ import java.util.ArrayList;
 public class SmartDialPrefixTest extends AndroidTestCase {
 
     private DialerDatabaseHelper mTestHelper;
+    private SmartDialMap mPreviousMap;
 
     public void testIsCountryNanp_CaseInsensitive() {
         assertFalse(SmartDialPrefix.isCountryNanp(null));
@@ -81,6 +85,8 @@ public class SmartDialPrefixTest extends AndroidTestCase {
 
     @Override
     protected void setUp() {
+        mPreviousMap = SmartDialPrefix.getMap();
+        SmartDialPrefix.setSmartDialMap(new LatinSmartDialMap());
         mTestHelper = DialerDatabaseHelper.getNewInstanceForTest(getContext());
     }
 
@@ -88,6 +94,7 @@ public class SmartDialPrefixTest extends AndroidTestCase {
     protected void tearDown() throws Exception {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
         mTestHelper.removeAllContacts(db);
+        SmartDialPrefix.setSmartDialMap(mPreviousMap);
         super.tearDown();
     }
 
@@ -108,44 +115,21 @@ public class SmartDialPrefixTest extends AndroidTestCase {
     }
 
 
-    private MatrixCursor constructNewNameCursor() {
-        final MatrixCursor cursor = new MatrixCursor(new String[]{
-                DialerDatabaseHelper.SmartDialDbColumns.DISPLAY_NAME_PRIMARY,
-                DialerDatabaseHelper.SmartDialDbColumns.CONTACT_ID});
-        return cursor;
-    }
-
     private MatrixCursor constructNewContactCursor() {
-        final MatrixCursor cursor = new MatrixCursor(new String[]{
-                    Phone._ID,                          // 0
-                    Phone.TYPE,                         // 1
-                    Phone.LABEL,                        // 2
-                    Phone.NUMBER,                       // 3
-                    Phone.CONTACT_ID,                   // 4
-                    Phone.LOOKUP_KEY,                   // 5
-                    Phone.DISPLAY_NAME_PRIMARY,         // 6
-                    Phone.PHOTO_ID,                     // 7
-                    Data.LAST_TIME_USED,                // 8
-                    Data.TIMES_USED,                    // 9
-                    Contacts.STARRED,                   // 10
-                    Data.IS_SUPER_PRIMARY,              // 11
-                    Contacts.IN_VISIBLE_GROUP,          // 12
-                    Data.IS_PRIMARY});                  // 13
-        return cursor;
+        return new MatrixCursor(DialerDatabaseHelper.PhoneQuery.PROJECTION);
     }
 
     private ContactNumber constructNewContactWithDummyIds(MatrixCursor contactCursor,
-            MatrixCursor nameCursor, String number, int id, String displayName) {
-        return constructNewContact(contactCursor, nameCursor, id, number, id, String.valueOf(id),
-                displayName, 0, 0, 0, 0, 0, 0, 0, null, 0, null);
+            String number, int id, String displayName) {
+        return constructNewContact(contactCursor, id, number, id, String.valueOf(id),
+                displayName, 0, 0, 0, 0, 0, 0, 0, Phone.CONTENT_ITEM_TYPE, 0, null);
     }
 
-    private ContactNumber constructNewContact(MatrixCursor contactCursor, MatrixCursor nameCursor,
-            int id, String number, int contactId, String lookupKey, String displayName, int photoId,
-            int lastTimeUsed, int timesUsed, int starred, int isSuperPrimary, int inVisibleGroup,
-            int isPrimary, String mimetype, int phoneType, String phoneLabel) {
+    private ContactNumber constructNewContact(MatrixCursor contactCursor, int id, String number,
+            int contactId, String lookupKey, String displayName, int photoId, int lastTimeUsed,
+            int timesUsed, int starred, int isSuperPrimary, int inVisibleGroup, int isPrimary,
+            String mimetype, int phoneType, String phoneLabel) {
         assertNotNull(contactCursor);
-        assertNotNull(nameCursor);
 
         if (TextUtils.isEmpty(number)) {
             // Add a dummy number, otherwise DialerDatabaseHelper simply ignores the entire
@@ -153,10 +137,9 @@ public class SmartDialPrefixTest extends AndroidTestCase {
             number = "0";
         }
 
-        contactCursor.addRow(new Object[]{id, "", "", number, contactId, lookupKey, displayName,
-                photoId, lastTimeUsed, timesUsed, starred, isSuperPrimary, inVisibleGroup,
-                isPrimary});
-        nameCursor.addRow(new Object[]{displayName, contactId});
+        contactCursor.addRow(new Object[]{id, phoneType, phoneLabel, number, contactId, lookupKey,
+                displayName, photoId, lastTimeUsed, timesUsed, starred, isSuperPrimary,
+                inVisibleGroup, isPrimary, mimetype});
 
         return new ContactNumber(contactId, id, displayName, number, lookupKey, 0, mimetype,
                 phoneType, phoneLabel);
@@ -171,19 +154,16 @@ public class SmartDialPrefixTest extends AndroidTestCase {
     public void testPutForFullName() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber jasonsmith = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber jasonsmith = constructNewContactWithDummyIds(contactCursor,
                 "", 0, "Jason Smith");
-        final ContactNumber jasonsmitt = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber jasonsmitt = constructNewContactWithDummyIds(contactCursor,
                 "", 1, "Jason Smitt");
-        final ContactNumber alphabet = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber alphabet = constructNewContactWithDummyIds(contactCursor,
                 "12345678", 2, "abc def ghi jkl mno pqrs tuv wxyz");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
 
-        nameCursor.close();
         contactCursor.close();
 
         final ArrayList<ContactNumber> result1 = getLooseMatchesFromDb("5276676484");
@@ -209,19 +189,16 @@ public class SmartDialPrefixTest extends AndroidTestCase {
     public void testPutForPartialName() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber maryjane = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber maryjane = constructNewContactWithDummyIds(contactCursor,
                 "", 0, "Mary Jane");
-        final ContactNumber sarahsmith = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber sarahsmith = constructNewContactWithDummyIds(contactCursor,
                 "", 1, "Sarah Smith");
-        final ContactNumber jasonsmitt = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber jasonsmitt = constructNewContactWithDummyIds(contactCursor,
                 "", 2, "Jason Smitt");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
 
-        nameCursor.close();
         contactCursor.close();
 
         final ArrayList<ContactNumber> result1 = getLooseMatchesFromDb("6279");
@@ -241,18 +218,83 @@ public class SmartDialPrefixTest extends AndroidTestCase {
         assertTrue(result3.contains(jasonsmitt));
     }
 
+    public void testRefineLooseMatches() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        final ContactNumber sarahsmith = constructNewContactWithDummyIds(contactCursor,
+                "", 0, "Sarah Smith");
+        final ContactNumber jasonsmitt = constructNewContactWithDummyIds(contactCursor,
+                "", 1, "Jason Smitt");
+
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
+
+        contactCursor.close();
+
+        final ArrayList<ContactNumber> previous = getLooseMatchesFromDb("7648");
+        assertTrue(previous.contains(sarahsmith));
+        assertTrue(previous.contains(jasonsmitt));
+
+        final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher("76484",
+                SmartDialPrefix.getMap(), getContext());
+        final ArrayList<ContactNumber> refined =
+                mTestHelper.refineLooseMatches(previous, "76484", nameMatcher, null);
+        assertEquals(getLooseMatchesFromDb("76484"), refined);
+        assertTrue(refined.contains(sarahsmith));
+        assertFalse(refined.contains(jasonsmitt));
+    }
+
+    public void testRemoveContacts() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        // More contacts than fit in a single delete statement.
+        final int contactCount = 1200;
+        final int removedCount = 1100;
+        for (int i = 0; i < contactCount; i++) {
+            constructNewContactWithDummyIds(contactCursor, "", i, "Jason Smith");
+        }
+
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
+        // The removed contacts must also leave the memory index.
+        mTestHelper.loadSmartDialTrie(db);
+
+        contactCursor.close();
+
+        final int prefixCount = mTestHelper.countPrefixTableRows(db);
+        final long[] removedIds = new long[removedCount];
+        for (int i = 0; i < removedCount; i++) {
+            removedIds[i] = i;
+        }
+        final int removedPrefixCount = prefixCount / contactCount * removedCount;
+        assertEquals(removedCount + removedPrefixCount, mTestHelper.removeContacts(db, removedIds));
+
+        assertEquals(prefixCount - removedPrefixCount, mTestHelper.countPrefixTableRows(db));
+        final ArrayList<ContactNumber> result = getLooseMatchesFromDb("52766");
+        assertFalse(result.isEmpty());
+        for (ContactNumber contact : result) {
+            assertTrue(contact.id >= removedCount);
+        }
+    }
+
+    public void testRecordChangedRows() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        // Small changes are left to the maintenance job, until they add up.
+        assertFalse(mTestHelper.recordChangedRows(db, 10));
+        assertFalse(mTestHelper.recordChangedRows(db, 900));
+        assertTrue(mTestHelper.recordChangedRows(db, 90));
+    }
+
     public void testPutForNameTokens() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
         final ContactNumber jasonfwilliams = constructNewContactWithDummyIds(contactCursor,
-                nameCursor, "", 0, "Jason F. Williams");
+                "", 0, "Jason F. Williams");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
 
-        nameCursor.close();
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("527").contains(jasonfwilliams));
@@ -265,15 +307,12 @@ public class SmartDialPrefixTest extends AndroidTestCase {
     public void testPutForInitialMatches() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
         final ContactNumber martinjuniorharry = constructNewContactWithDummyIds(contactCursor,
-                nameCursor, "", 0, "Martin Jr Harry");
+                "", 0, "Martin Jr Harry");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
 
-        nameCursor.close();
         contactCursor.close();
 
         // 654 corresponds to mjh = "(M)artin (J)r (H)arry"
@@ -309,15 +348,12 @@ public class SmartDialPrefixTest extends AndroidTestCase {
 
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber alphabet = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber alphabet = constructNewContactWithDummyIds(contactCursor,
                 "12345678", 0, "abc def ghi jkl mno pqrs tuv wxyz");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
 
-        nameCursor.close();
         contactCursor.close();
 
         // Makes sure only only the first two and last two token are considered for initials.
@@ -338,40 +374,36 @@ public class SmartDialPrefixTest extends AndroidTestCase {
     public void testCheckLongToken() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber alphabet = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber alphabet = constructNewContactWithDummyIds(contactCursor,
                 "1", 0,  " aaaa bbbb cccc dddd eeee ffff gggg hhhh iiii jjjj kkkk llll mmmm nnnn" +
                 " oooo pppp qqqq rrrr ssss tttt uuuu vvvv wwww xxxx yyyy zzzz");
 
-        final ContactNumber alphabet2 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber alphabet2 = constructNewContactWithDummyIds(contactCursor,
                 "1", 1, "aaaabbbbccccddddeeeeffffgggghhhhiiiijjjjkkkkllllmmmmnnnnooooppppqqqqrrrr" +
                 "ssssttttuuuuvvvvwwwwxxxxyyyyzzzz");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
 
-        nameCursor.close();
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("2222").contains(alphabet));
-        assertEquals(40, mTestHelper.countPrefixTableRows(db));
+        // Tokens that share a key, such as "wwww" to "zzzz", make prefixes of the longer
+        // strings, which are not inserted.
+        assertEquals(29, mTestHelper.countPrefixTableRows(db));
     }
 
     public void testAccentedCharacters() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber reene = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber reene = constructNewContactWithDummyIds(contactCursor,
                 "0", 0, "Reenée");
-        final ContactNumber bronte = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber bronte = constructNewContactWithDummyIds(contactCursor,
                 "0", 1, "Brontë");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
 
-        nameCursor.close();
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("733633").contains(reene));
@@ -381,17 +413,14 @@ public class SmartDialPrefixTest extends AndroidTestCase {
     public void testNumbersInName() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber contact = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contact = constructNewContactWithDummyIds(contactCursor,
                 "0", 0, "12345678");
-        final ContactNumber teacher = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber teacher = constructNewContactWithDummyIds(contactCursor,
                 "0", 1, "1st Grade Teacher");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
 
-        nameCursor.close();
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("12345678").contains(contact));
@@ -402,19 +431,16 @@ public class SmartDialPrefixTest extends AndroidTestCase {
     public void testPutForNumbers() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor,
                 "510-527-2357", 0,  "James");
-        final ContactNumber contactno2 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno2 = constructNewContactWithDummyIds(contactCursor,
                 "77212862357", 1, "James");
-        final ContactNumber contactno3 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno3 = constructNewContactWithDummyIds(contactCursor,
                 "+13684976334", 2, "James");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
 
-        nameCursor.close();
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("510").contains(contactno1));
@@ -425,26 +451,174 @@ public class SmartDialPrefixTest extends AndroidTestCase {
         assertFalse(getLooseMatchesFromDb("1367").contains(contactno3));
     }
 
+    public void testMidNumberMatches() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor,
+                "510-527-2357", 0,  "James");
+        final ContactNumber contactno2 = constructNewContactWithDummyIds(contactCursor,
+                "77212862357", 1, "James");
+
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
+        mTestHelper.loadSmartDialTrie(db);
+        contactCursor.close();
+
+        mTestHelper.setQueryMode(DialerDatabaseHelper.QUERY_MODE_MEMORY_INDEX);
+        // Queries of three digits or more find the numbers they appear in.
+        assertTrue(getLooseMatchesFromDb("5272").contains(contactno1));
+        assertFalse(getLooseMatchesFromDb("5272").contains(contactno2));
+        assertTrue(getLooseMatchesFromDb("2357").contains(contactno1));
+        assertTrue(getLooseMatchesFromDb("2357").contains(contactno2));
+        assertTrue(getLooseMatchesFromDb("286").contains(contactno2));
+        assertFalse(getLooseMatchesFromDb("2358").contains(contactno1));
+
+        // Shorter queries scan every row, and find the numbers they appear in as well.
+        assertTrue(getLooseMatchesFromDb("51").contains(contactno1));
+        assertTrue(getLooseMatchesFromDb("27").contains(contactno1));
+        assertFalse(getLooseMatchesFromDb("27").contains(contactno2));
+        assertTrue(getLooseMatchesFromDb("5").contains(contactno2));
+
+        mTestHelper.removeContacts(db, new long[] {0});
+        assertFalse(getLooseMatchesFromDb("2357").contains(contactno1));
+        assertTrue(getLooseMatchesFromDb("2357").contains(contactno2));
+    }
+
+    public void testRefineLooseMatches_MidNumber() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        final ContactNumber prefixMatch = constructNewContactWithDummyIds(contactCursor,
+                "5620000", 0, "Zed");
+        final ContactNumber midNumberMatch = constructNewContactWithDummyIds(contactCursor,
+                "0125620", 1, "Zed");
+
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
+        mTestHelper.loadSmartDialTrie(db);
+        contactCursor.close();
+
+        mTestHelper.setQueryMode(DialerDatabaseHelper.QUERY_MODE_MEMORY_INDEX);
+        // Two digits scan every row, three look 0125620 up in the number index.
+        final ArrayList<ContactNumber> previous = getLooseMatchesFromDb("56");
+        assertTrue(previous.contains(prefixMatch));
+        assertTrue(previous.contains(midNumberMatch));
+        final ArrayList<ContactNumber> expected = getLooseMatchesFromDb("562");
+        assertTrue(expected.contains(midNumberMatch));
+
+        final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher("562",
+                SmartDialPrefix.getMap(), getContext());
+        assertEquals(expected, mTestHelper.refineLooseMatches(previous, "562", nameMatcher, null));
+
+        final SmartDialNameMatcher longerNameMatcher = new SmartDialNameMatcher("5620",
+                SmartDialPrefix.getMap(), getContext());
+        assertEquals(getLooseMatchesFromDb("5620"),
+                mTestHelper.refineLooseMatches(expected, "5620", longerNameMatcher, null));
+
+        // The prefix table has no mid-number entries, its results are never refined.
+        mTestHelper.setQueryMode(DialerDatabaseHelper.QUERY_MODE_PREFIX_INDEX);
+        final ArrayList<ContactNumber> prefixTableMatches = getLooseMatchesFromDb("56");
+        assertFalse(prefixTableMatches.contains(midNumberMatch));
+        assertNull(mTestHelper.refineLooseMatches(prefixTableMatches, "562", nameMatcher, null));
+    }
+
+    public void testMidNumberMatches_ManyCandidates() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        // Results are ranked by contact id first, so the mid-number match gets the lowest one.
+        final ContactNumber midNumberMatch = constructNewContactWithDummyIds(contactCursor,
+                "0125270", 0, "Zed");
+        // More contacts matching "527" by their name than the memory index binds.
+        final int contactCount = 600;
+        for (int i = 1; i <= contactCount; i++) {
+            constructNewContactWithDummyIds(contactCursor, "", i, "Jason Smith");
+        }
+
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
+        mTestHelper.loadSmartDialTrie(db);
+        contactCursor.close();
+
+        mTestHelper.setQueryMode(DialerDatabaseHelper.QUERY_MODE_MEMORY_INDEX);
+        final ArrayList<ContactNumber> result = getLooseMatchesFromDb("527");
+        assertEquals(DialerDatabaseHelper.MAX_ENTRIES, result.size());
+        assertTrue(result.contains(midNumberMatch));
+    }
+
+    public void testCancelledLooseMatches() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        final ContactNumber contact = constructNewContactWithDummyIds(contactCursor,
+                "510-527-2357", 0,  "James");
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
+        contactCursor.close();
+
+        final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher("510",
+                SmartDialPrefix.getMap(), getContext());
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        assertTrue(mTestHelper.getLooseMatches("510", nameMatcher, null, cancellationSignal)
+                .contains(contact));
+        assertEquals(1, mTestHelper.getCompletedSmartDialQueryCount());
+
+        cancellationSignal.cancel();
+        try {
+            mTestHelper.getLooseMatches("510", nameMatcher, null, cancellationSignal);
+            fail("Cancelled query returned");
+        } catch (OperationCanceledException e) {
+            // Expected.
+        }
+        assertEquals(1, mTestHelper.getCancelledSmartDialQueryCount());
+        assertEquals(1, mTestHelper.getCompletedSmartDialQueryCount());
+
+        // Short queries scan every row, and are cancelled all the same.
+        final SmartDialNameMatcher shortNameMatcher = new SmartDialNameMatcher("5",
+                SmartDialPrefix.getMap(), getContext());
+        try {
+            mTestHelper.getLooseMatches("5", shortNameMatcher, null, cancellationSignal);
+            fail("Cancelled query returned");
+        } catch (OperationCanceledException e) {
+            // Expected.
+        }
+        assertEquals(2, mTestHelper.getCancelledSmartDialQueryCount());
+        assertEquals(1, mTestHelper.getCompletedSmartDialQueryCount());
+    }
+
+    public void testMergeCandidates() {
+        assertTrue(Arrays.equals(new long[] {1, 2, 3, 5},
+                DialerDatabaseHelper.mergeCandidates(new long[] {3, 1}, new long[] {5, 2, 3})));
+        assertTrue(Arrays.equals(new long[] {4},
+                DialerDatabaseHelper.mergeCandidates(new long[] {4}, null)));
+        assertTrue(Arrays.equals(new long[] {7},
+                DialerDatabaseHelper.mergeCandidates(new long[0], new long[] {7})));
+    }
+
+    public void testBindCandidates() {
+        assertEquals(0, DialerDatabaseHelper.getCandidateBucket(1));
+        assertEquals(0, DialerDatabaseHelper.getCandidateBucket(8));
+        assertEquals(1, DialerDatabaseHelper.getCandidateBucket(9));
+
+        final String[] args = {"mimetype", null, null, null, null};
+        DialerDatabaseHelper.bindCandidates(args, 1, new long[] {3, 5});
+        assertTrue(Arrays.equals(new String[] {"mimetype", "3", "5", "5", "5"}, args));
+    }
+
     public void testPutNumbersCountryCode() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor,
                 "+13684976334", 0, "James");
-        final ContactNumber contactno2 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno2 = constructNewContactWithDummyIds(contactCursor,
                 "+65 9177-6930", 1, "Jason");
-        final ContactNumber contactno3 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno3 = constructNewContactWithDummyIds(contactCursor,
                 "+85212345678", 2, "Mike");
-        final ContactNumber contactno4 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno4 = constructNewContactWithDummyIds(contactCursor,
                 "+85112345678", 3, "Invalid");
-        final ContactNumber contactno5 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno5 = constructNewContactWithDummyIds(contactCursor,
                 "+852", 4, "Invalid");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
 
-        nameCursor.close();
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("1368").contains(contactno1));
@@ -468,31 +642,28 @@ public class SmartDialPrefixTest extends AndroidTestCase {
         SmartDialPrefix.setUserInNanpRegion(true);
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor,
                 "16503337596", 0, "James");
-        final ContactNumber contactno2 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno2 = constructNewContactWithDummyIds(contactCursor,
                 "5109921234", 1, "Michael");
-        final ContactNumber contactno3 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno3 = constructNewContactWithDummyIds(contactCursor,
                 "(415)-123-4567", 2, "Jason");
-        final ContactNumber contactno4 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno4 = constructNewContactWithDummyIds(contactCursor,
                 "1 510-284-9170", 3, "Mike");
-        final ContactNumber contactno5 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno5 = constructNewContactWithDummyIds(contactCursor,
                 "1-415-123-123", 4, "Invalid");
-        final ContactNumber contactno6 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno6 = constructNewContactWithDummyIds(contactCursor,
                 "415-123-123", 5, "Invalid2");
-        final ContactNumber contactno7 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno7 = constructNewContactWithDummyIds(contactCursor,
                 "+1-510-284-9170", 6, "Mike");
-        final ContactNumber contactno8 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno8 = constructNewContactWithDummyIds(contactCursor,
                 "+1-510-284-917", 7, "Invalid");
-        final ContactNumber contactno9 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno9 = constructNewContactWithDummyIds(contactCursor,
                 "+857-510-284-9170", 8, "Inv");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
 
-        nameCursor.close();
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("16503337596").contains(contactno1));
@@ -538,19 +709,16 @@ public class SmartDialPrefixTest extends AndroidTestCase {
         SmartDialPrefix.setUserInNanpRegion(false);
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
 
-        final ContactNumber contactno0 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno0 = constructNewContactWithDummyIds(contactCursor,
                 "(415)-123-4567", 0, "Jason");
-        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor,
                 "1 510-284-9170", 1, "Mike");
 
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
 
-        nameCursor.close();
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("4151234567").contains(contactno0));
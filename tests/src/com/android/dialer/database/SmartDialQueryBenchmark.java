@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.dialer.database.SyntheticAddressBook.Script;
+import com.android.dialer.dialpad.SmartDialNameMatcher;
+import com.android.dialer.dialpad.SmartDialPrefix;
+
+/**
+ * Measures the per-keystroke latency of {@link DialerDatabaseHelper#getLooseMatches} against the
+ * size of the contact set, for every query mode.
+ *
+ * To run this benchmark, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.database.SmartDialQueryBenchmark /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class SmartDialQueryBenchmark extends AndroidTestCase {
+    private static final String TAG = "SmartDialQueryBenchmark";
+
+    private static final int[] CONTACT_SET_SIZES = {1000, 5000, 20000};
+
+    /** Keystrokes typed by the user, one query per keystroke. */
+    private static final String[] KEYSTROKES = {"5", "56", "562", "5627", "56274"};
+
+    private static final int ITERATIONS = 5;
+
+    private DialerDatabaseHelper mTestHelper;
+
+    @Override
+    protected void setUp() {
+        SmartDialPrefix.setUserInNanpRegion(true);
+        mTestHelper = DialerDatabaseHelper.getNewInstanceForTest(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+        mTestHelper.removeAllContacts(db);
+        super.tearDown();
+    }
+
+    public void testKeystrokeLatency() {
+        for (int size : CONTACT_SET_SIZES) {
+            populate(size);
+            final double fullScanMs = measure(DialerDatabaseHelper.QUERY_MODE_FULL_SCAN);
+            final double prefixIndexMs = measure(DialerDatabaseHelper.QUERY_MODE_PREFIX_INDEX);
+            final double memoryIndexMs = measure(DialerDatabaseHelper.QUERY_MODE_MEMORY_INDEX);
+            Log.i(TAG, "contacts=" + size
+                    + " fullScan=" + fullScanMs + "ms/keystroke"
+                    + " prefixIndex=" + prefixIndexMs + "ms/keystroke"
+                    + " memoryIndex=" + memoryIndexMs + "ms/keystroke"
+                    + " memoryIndexFootprint="
+                    + mTestHelper.getSmartDialTrie().getHeapFootprintBytes() + "bytes"
+                    + " numberIndexFootprint="
+                    + mTestHelper.getNumberGramIndex().getHeapFootprintBytes() + "bytes"
+                    + " numberIndexPostings="
+                    + mTestHelper.getNumberGramIndex().getPostingCount());
+            mTestHelper.removeAllContacts(mTestHelper.getWritableDatabase());
+        }
+    }
+
+    /**
+     * Returns the average time spent per keystroke, in milliseconds.
+     */
+    private double measure(int queryMode) {
+        mTestHelper.setQueryMode(queryMode);
+        // Warm up the statement cache and the page cache.
+        runKeystrokes();
+
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            runKeystrokes();
+        }
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        return (double) elapsed / (ITERATIONS * KEYSTROKES.length);
+    }
+
+    private void runKeystrokes() {
+        for (String query : KEYSTROKES) {
+            final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(query,
+                    SmartDialPrefix.getMap(), getContext());
+            mTestHelper.getLooseMatches(query, nameMatcher, null);
+        }
+    }
+
+    private void populate(int size) {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+        final MatrixCursor contactCursor = ContactCursorBuilder.create(
+                new SyntheticAddressBook(Script.LATIN, size), System.currentTimeMillis());
+        mTestHelper.insertUpdatedContacts(db, contactCursor, Long.valueOf(0), true);
+        mTestHelper.createSmartDialIndexes(db);
+        mTestHelper.analyzeSmartDialTables(db);
+        mTestHelper.loadSmartDialTrie(db);
+        contactCursor.close();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.database.DialerDatabaseHelper.SmartDialDbColumns;
+import com.android.dialer.database.DialerDatabaseHelper.SmartDialSortingOrder;
+import com.android.dialer.database.DialerDatabaseHelper.Tables;
+import com.android.dialer.dialpad.SmartDialNameMatcher;
+import com.android.dialer.dialpad.SmartDialPrefix;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Verifies that ranking the smart dial rows in Java returns the same rows, in the same order, as
+ * sorting them with {@link SmartDialSortingOrder#SORT_ORDER} in SQL.
+ */
+@MediumTest
+public class SmartDialRankerTest extends AndroidTestCase {
+    private static final int CONTACT_COUNT = 500;
+
+    private static final String[] NAMES = {"Jason Smith", "Jason Smitt", "Jasmine Kim",
+            "Kate Smith", "Jason 😀", "Jason �", "Mark Jason", "Élise Jasper"};
+
+    private static final String[] QUERIES = {"5", "52", "527", "5276", "76484", "650"};
+
+    private DialerDatabaseHelper mTestHelper;
+
+    @Override
+    protected void setUp() {
+        SmartDialPrefix.setUserInNanpRegion(true);
+        mTestHelper = DialerDatabaseHelper.getNewInstanceForTest(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+        mTestHelper.removeAllContacts(db);
+        super.tearDown();
+    }
+
+    public void testOrderMatchesSql() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+        final long now = System.currentTimeMillis();
+        final MatrixCursor contactCursor = createContacts(now);
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, now);
+        contactCursor.close();
+
+        for (int queryMode : new int[] {DialerDatabaseHelper.QUERY_MODE_FULL_SCAN,
+                DialerDatabaseHelper.QUERY_MODE_PREFIX_INDEX}) {
+            mTestHelper.setQueryMode(queryMode);
+            for (String query : QUERIES) {
+                final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(query,
+                        SmartDialPrefix.getMap(), getContext());
+                final ArrayList<Long> expected = getSortedMatches(db, query, nameMatcher);
+                final ArrayList<ContactNumber> actual =
+                        mTestHelper.getLooseMatches(query, nameMatcher, null);
+
+                assertEquals("mode=" + queryMode + " query=" + query,
+                        expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertEquals("mode=" + queryMode + " query=" + query + " row=" + i,
+                            (long) expected.get(i), actual.get(i).dataId);
+                }
+            }
+        }
+    }
+
+    public void testDeferredCandidates() {
+        final long now = System.currentTimeMillis();
+        final Random random = new Random(CONTACT_COUNT);
+        final SmartDialRanker ranker = new SmartDialRanker(DialerDatabaseHelper.MAX_ENTRIES, now);
+        final SmartDialRanker deferringRanker =
+                new SmartDialRanker(DialerDatabaseHelper.MAX_ENTRIES, now);
+        final boolean[] batchMatches = new boolean[16];
+        for (int id = 0; id < CONTACT_COUNT; id++) {
+            final int phoneType = ContactCursorBuilder.PHONE_TYPES[
+                    random.nextInt(ContactCursorBuilder.PHONE_TYPES.length)];
+            final int starred = random.nextInt(2);
+            final long lastTimeUsed = now - ContactCursorBuilder.LAST_USED_AGO_MS[
+                    random.nextInt(ContactCursorBuilder.LAST_USED_AGO_MS.length)];
+            final int timesUsed = random.nextInt(10);
+            final String displayName = NAMES[random.nextInt(NAMES.length)];
+            final boolean matches = random.nextInt(3) == 0;
+            final ContactNumber contact = new ContactNumber(id, id, displayName, "", "", 0,
+                    Phone.CONTENT_ITEM_TYPE, phoneType, "");
+
+            if (ranker.setCandidate(id, phoneType, starred, 0, lastTimeUsed, timesUsed, 1,
+                    displayName, 0) && matches) {
+                ranker.addCandidate(contact);
+            }
+            if (deferringRanker.setCandidate(id, phoneType, starred, 0, lastTimeUsed, timesUsed,
+                    1, displayName, 0)) {
+                batchMatches[deferringRanker.getDeferredCount()] = matches;
+                deferringRanker.deferCandidate(contact);
+                if (deferringRanker.getDeferredCount() == batchMatches.length) {
+                    deferringRanker.addDeferredCandidates(batchMatches);
+                }
+            }
+        }
+        deferringRanker.addDeferredCandidates(batchMatches);
+
+        final ArrayList<ContactNumber> expected = ranker.getResults();
+        final ArrayList<ContactNumber> actual = deferringRanker.getResults();
+        assertEquals(DialerDatabaseHelper.MAX_ENTRIES, expected.size());
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame("row=" + i, expected.get(i), actual.get(i));
+        }
+    }
+
+    /**
+     * Returns the data ids of the first matching rows, in the order of the SQL sort.
+     */
+    private static ArrayList<Long> getSortedMatches(SQLiteDatabase db, String query,
+            SmartDialNameMatcher nameMatcher) {
+        final ArrayList<Long> result = new ArrayList<Long>();
+        final Cursor cursor = db.rawQuery("SELECT " +
+                SmartDialDbColumns.DATA_ID + ", " +
+                SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
+                SmartDialDbColumns.NUMBER +
+                " FROM " + Tables.SMARTDIAL_TABLE +
+                " ORDER BY " + SmartDialSortingOrder.SORT_ORDER,
+                new String[] {Long.toString(System.currentTimeMillis())});
+        try {
+            while (cursor.moveToNext() && result.size() < DialerDatabaseHelper.MAX_ENTRIES) {
+                if (nameMatcher.matchesWithoutPositions(cursor.getString(1))
+                        || nameMatcher.matchesNumberWithoutPosition(cursor.getString(2), query)) {
+                    result.add(cursor.getLong(0));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Creates contacts with the names above, so that many rows match the same queries.
+     */
+    private static MatrixCursor createContacts(long now) {
+        final ContactCursorBuilder builder = new ContactCursorBuilder(now, CONTACT_COUNT);
+        final Random random = new Random(CONTACT_COUNT);
+        for (int id = 0; id < CONTACT_COUNT; id++) {
+            final String[] numbers =
+                    new String[1 + random.nextInt(ContactCursorBuilder.PHONE_TYPES.length)];
+            for (int i = 0; i < numbers.length; i++) {
+                numbers[i] = String.format("650-%03d-%04d", random.nextInt(1000),
+                        random.nextInt(10000));
+            }
+            builder.addContact(NAMES[random.nextInt(NAMES.length)], numbers);
+        }
+        return builder.build();
+    }
+}
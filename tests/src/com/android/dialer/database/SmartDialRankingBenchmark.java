@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.dialer.database.DialerDatabaseHelper.SmartDialDbColumns;
+import com.android.dialer.database.DialerDatabaseHelper.SmartDialSortingOrder;
+import com.android.dialer.database.DialerDatabaseHelper.Tables;
+import com.android.dialer.database.SyntheticAddressBook.Script;
+import com.android.dialer.dialpad.SmartDialNameMatcher;
+import com.android.dialer.dialpad.SmartDialPrefix;
+
+/**
+ * Compares the time spent by {@link DialerDatabaseHelper#getLooseMatches}, which ranks the
+ * matching rows in Java, with the time SQLite spends sorting the same rows by
+ * {@link SmartDialSortingOrder#SORT_ORDER}, against the size of the address book.
+ *
+ * To run this benchmark, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.database.SmartDialRankingBenchmark /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class SmartDialRankingBenchmark extends AndroidTestCase {
+    private static final String TAG = "SmartDialRankingBenchmark";
+
+    private static final int[] CONTACT_SET_SIZES = {1000, 10000, 50000};
+
+    private static final String[] QUERIES = {"5", "52", "527", "5276"};
+
+    private static final int ITERATIONS = 5;
+
+    private DialerDatabaseHelper mTestHelper;
+
+    @Override
+    protected void setUp() {
+        SmartDialPrefix.setUserInNanpRegion(true);
+        mTestHelper = DialerDatabaseHelper.getNewInstanceForTest(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+        mTestHelper.removeAllContacts(db);
+        super.tearDown();
+    }
+
+    public void testRankingTime() {
+        for (int size : CONTACT_SET_SIZES) {
+            final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+            final MatrixCursor contactCursor = ContactCursorBuilder.create(
+                    new SyntheticAddressBook(Script.LATIN, size), System.currentTimeMillis());
+            mTestHelper.updateSmartDialTables(db, contactCursor, "0", System.currentTimeMillis(),
+                    true, null);
+            contactCursor.close();
+
+            for (String query : QUERIES) {
+                final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(query,
+                        SmartDialPrefix.getMap(), getContext());
+                Log.i(TAG, "contacts=" + size + " query=" + query
+                        + " sqlSort=" + measureSqlSort(db) + "us"
+                        + " fullScan=" + measureLooseMatches(query, nameMatcher,
+                                DialerDatabaseHelper.QUERY_MODE_FULL_SCAN) + "us"
+                        + " prefixIndex=" + measureLooseMatches(query, nameMatcher,
+                                DialerDatabaseHelper.QUERY_MODE_PREFIX_INDEX) + "us");
+            }
+            mTestHelper.removeAllContacts(db);
+        }
+    }
+
+    private long measureLooseMatches(String query, SmartDialNameMatcher nameMatcher,
+            int queryMode) {
+        mTestHelper.setQueryMode(queryMode);
+        mTestHelper.getLooseMatches(query, nameMatcher, null);
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            mTestHelper.getLooseMatches(query, nameMatcher, null);
+        }
+        return (System.nanoTime() - start) / ITERATIONS / 1000;
+    }
+
+    /**
+     * Measures the sort the Java ranking replaced, reading the first rows of the sorted table as
+     * the old query loop did.
+     */
+    private static long measureSqlSort(SQLiteDatabase db) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            final Cursor cursor = db.rawQuery("SELECT " + SmartDialDbColumns.DATA_ID +
+                    " FROM " + Tables.SMARTDIAL_TABLE +
+                    " ORDER BY " + SmartDialSortingOrder.SORT_ORDER,
+                    new String[] {Long.toString(System.currentTimeMillis())});
+            try {
+                for (int row = 0; row < DialerDatabaseHelper.MAX_ENTRIES && cursor.moveToNext();
+                        row++) {
+                    cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return (System.nanoTime() - start) / ITERATIONS / 1000;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.dialer.database.SyntheticAddressBook.Script;
+import com.android.dialer.dialpad.ChineseSmartDialMap;
+import com.android.dialer.dialpad.GreekSmartDialMap;
+import com.android.dialer.dialpad.HebrewSmartDialMap;
+import com.android.dialer.dialpad.KoreanSmartDialMap;
+import com.android.dialer.dialpad.LatinSmartDialMap;
+import com.android.dialer.dialpad.RussianSmartDialMap;
+import com.android.dialer.dialpad.SmartDialMap;
+import com.android.dialer.dialpad.SmartDialNameMatcher;
+import com.android.dialer.dialpad.SmartDialPrefix;
+
+import java.util.ArrayList;
+
+/**
+ * Measures smart dial search on {@link SyntheticAddressBook}s of every script at 1k, 10k and 100k
+ * contacts: generating the name prefixes of the index, matching every name and number of the
+ * book against the queries the user types, and querying the database.
+ *
+ * Every line of the report gives the operations per second, the allocations per operation and
+ * the allocation rate, and the 50th and 99th percentile of the time spent per sample. A sample is
+ * one name for the prefixes, and one keystroke otherwise. The keystrokes type, digit by digit,
+ * the names and the numbers of contacts spread over the book.
+ *
+ * To run this benchmark, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.database.SmartDialSearchBenchmark /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class SmartDialSearchBenchmark extends AndroidTestCase {
+    private static final String TAG = "SmartDialSearchBenchmark";
+
+    private static final int[] CONTACT_SET_SIZES = {1000, 10000, 100000};
+
+    /** Number of contacts whose names and numbers are typed. */
+    private static final int TYPED_CONTACTS = 10;
+
+    /** Number of digits typed for every name and number. */
+    private static final int MAX_KEYSTROKES = 6;
+
+    /** Digits of the country code and area code skipped when typing numbers. */
+    private static final int NUMBER_KEYSTROKES_OFFSET = 3;
+
+    private DialerDatabaseHelper mTestHelper;
+    private SmartDialMap mPreviousMap;
+
+    @Override
+    protected void setUp() {
+        SmartDialPrefix.setUserInNanpRegion(true);
+        mPreviousMap = SmartDialPrefix.getMap();
+        mTestHelper = DialerDatabaseHelper.getNewInstanceForTest(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+        mTestHelper.removeAllContacts(db);
+        SmartDialPrefix.setSmartDialMap(mPreviousMap);
+        super.tearDown();
+    }
+
+    public void testGenerateNamePrefixes() {
+        for (Script script : Script.values()) {
+            SmartDialPrefix.setSmartDialMap(getMap(script));
+            for (int size : CONTACT_SET_SIZES) {
+                final SyntheticAddressBook book = new SyntheticAddressBook(script, size);
+                // Warm up.
+                for (int i = 0; i < Math.min(size, 1000); i++) {
+                    SmartDialPrefix.generateNamePrefixes(book.getName(i));
+                }
+
+                final BenchmarkResult result = new BenchmarkResult(
+                        "generateNamePrefixes " + script + " contacts=" + size);
+                startAllocCounting();
+                for (int i = 0; i < size; i++) {
+                    final long start = System.nanoTime();
+                    SmartDialPrefix.generateNamePrefixes(book.getName(i));
+                    result.addSample(System.nanoTime() - start, 1);
+                }
+                stopAllocCounting(result);
+                Log.i(TAG, result.toString());
+            }
+        }
+    }
+
+    public void testNameMatching() {
+        for (Script script : Script.values()) {
+            final SmartDialMap map = getMap(script);
+            SmartDialPrefix.setSmartDialMap(map);
+            for (int size : CONTACT_SET_SIZES) {
+                final SyntheticAddressBook book = new SyntheticAddressBook(script, size);
+                final ArrayList<String> keystrokes = getNameKeystrokes(book);
+                // Warm up.
+                matchNames(book, keystrokes.get(0), map);
+
+                final BenchmarkResult result = new BenchmarkResult(
+                        "matches " + script + " contacts=" + size);
+                startAllocCounting();
+                for (String query : keystrokes) {
+                    final long start = System.nanoTime();
+                    matchNames(book, query, map);
+                    result.addSample(System.nanoTime() - start, size);
+                }
+                stopAllocCounting(result);
+                Log.i(TAG, result.toString());
+            }
+        }
+    }
+
+    public void testNumberMatching() {
+        for (Script script : Script.values()) {
+            final SmartDialMap map = getMap(script);
+            SmartDialPrefix.setSmartDialMap(map);
+            for (int size : CONTACT_SET_SIZES) {
+                final SyntheticAddressBook book = new SyntheticAddressBook(script, size);
+                final ArrayList<String> keystrokes = getNumberKeystrokes(book, map);
+                // Warm up.
+                matchNumbers(book, keystrokes.get(0), map);
+
+                final BenchmarkResult result = new BenchmarkResult(
+                        "matchesNumber " + script + " contacts=" + size);
+                startAllocCounting();
+                for (String query : keystrokes) {
+                    final long start = System.nanoTime();
+                    matchNumbers(book, query, map);
+                    result.addSample(System.nanoTime() - start, size);
+                }
+                stopAllocCounting(result);
+                Log.i(TAG, result.toString());
+            }
+        }
+    }
+
+    public void testLooseMatches() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+        for (Script script : Script.values()) {
+            final SmartDialMap map = getMap(script);
+            SmartDialPrefix.setSmartDialMap(map);
+            for (int size : CONTACT_SET_SIZES) {
+                final SyntheticAddressBook book = new SyntheticAddressBook(script, size);
+                final MatrixCursor contactCursor = ContactCursorBuilder.create(book,
+                        System.currentTimeMillis());
+                mTestHelper.updateSmartDialTables(db, contactCursor, "0",
+                        System.currentTimeMillis(), true, null);
+                mTestHelper.loadSmartDialTrie(db);
+                contactCursor.close();
+
+                final ArrayList<String> keystrokes = getNameKeystrokes(book);
+                keystrokes.addAll(getNumberKeystrokes(book, map));
+                // Warm up the statement cache and the page cache.
+                for (int i = 0; i < MAX_KEYSTROKES; i++) {
+                    queryLooseMatches(keystrokes.get(i), map);
+                }
+
+                final BenchmarkResult result = new BenchmarkResult(
+                        "getLooseMatches " + script + " contacts=" + size);
+                startAllocCounting();
+                for (String query : keystrokes) {
+                    final long start = System.nanoTime();
+                    queryLooseMatches(query, map);
+                    result.addSample(System.nanoTime() - start, 1);
+                }
+                stopAllocCounting(result);
+                Log.i(TAG, result.toString());
+            }
+        }
+    }
+
+    private int matchNames(SyntheticAddressBook book, String query, SmartDialMap map) {
+        final SmartDialNameMatcher matcher = new SmartDialNameMatcher(query, map, getContext());
+        int matches = 0;
+        for (int i = 0; i < book.size(); i++) {
+            if (matcher.matches(book.getName(i))) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    private int matchNumbers(SyntheticAddressBook book, String query, SmartDialMap map) {
+        final SmartDialNameMatcher matcher = new SmartDialNameMatcher(query, map, getContext());
+        int matches = 0;
+        for (int i = 0; i < book.size(); i++) {
+            if (matcher.matchesNumber(book.getNumber(i), query) != null) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    private int queryLooseMatches(String query, SmartDialMap map) {
+        final SmartDialNameMatcher matcher = new SmartDialNameMatcher(query, map, getContext());
+        return mTestHelper.getLooseMatches(query, matcher, null).size();
+    }
+
+    /**
+     * Returns the queries typed by a user looking up contacts by name, every digit of the
+     * longest token prefix of their name one after the other.
+     */
+    private static ArrayList<String> getNameKeystrokes(SyntheticAddressBook book) {
+        final ArrayList<String> keystrokes = new ArrayList<String>();
+        for (int position : book.getSamplePositions(TYPED_CONTACTS)) {
+            String typed = "";
+            for (String prefix : SmartDialPrefix.generateNamePrefixes(book.getName(position))) {
+                if (prefix.length() > typed.length()) {
+                    typed = prefix;
+                }
+            }
+            addKeystrokes(keystrokes, typed, 0);
+        }
+        return keystrokes;
+    }
+
+    /**
+     * Returns the queries typed by a user looking up contacts by number, the digits following
+     * the country code and area code one after the other.
+     */
+    private static ArrayList<String> getNumberKeystrokes(SyntheticAddressBook book,
+            SmartDialMap map) {
+        final ArrayList<String> keystrokes = new ArrayList<String>();
+        for (int position : book.getSamplePositions(TYPED_CONTACTS)) {
+            addKeystrokes(keystrokes,
+                    SmartDialNameMatcher.normalizeNumber(book.getNumber(position), map),
+                    NUMBER_KEYSTROKES_OFFSET);
+        }
+        return keystrokes;
+    }
+
+    private static void addKeystrokes(ArrayList<String> keystrokes, String typed, int offset) {
+        final int end = Math.min(typed.length(), offset + MAX_KEYSTROKES);
+        for (int i = offset + 1; i <= end; i++) {
+            keystrokes.add(typed.substring(offset, i));
+        }
+    }
+
+    private static SmartDialMap getMap(Script script) {
+        switch (script) {
+            case CHINESE:
+                return new ChineseSmartDialMap();
+            case KOREAN:
+                return new KoreanSmartDialMap();
+            case CYRILLIC:
+                return new RussianSmartDialMap();
+            case HEBREW:
+                return new HebrewSmartDialMap();
+            case GREEK:
+                return new GreekSmartDialMap();
+            default:
+                return new LatinSmartDialMap();
+        }
+    }
+
+    private static void startAllocCounting() {
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+    }
+
+    private static void stopAllocCounting(BenchmarkResult result) {
+        Debug.stopAllocCounting();
+        result.addAllocations(Debug.getThreadAllocCount(), Debug.getThreadAllocSize());
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates address books of made up contacts, written in one script with a tenth of Latin names
+ * mixed in as in real address books. The contacts only depend on the script and the size, so
+ * every run of a benchmark, on any device or JVM, works on the same address book.
+ *
+ * This class only uses the Java library, so that it can be reused by benchmarks running outside
+ * of a device.
+ */
+public class SyntheticAddressBook {
+
+    public enum Script {
+        LATIN(new String[] {"James", "Mary", "John", "Patricia", "Robert", "Jennifer", "Michael",
+                "Linda", "William", "Elizabeth", "David", "Barbara", "Richard", "Susan", "Joseph",
+                "Jessica", "Thomas", "Sarah", "Charles", "Karen"},
+                new String[] {"Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia",
+                "Miller", "Davis", "Rodriguez", "Martinez", "Hernandez", "Lopez", "Gonzalez",
+                "Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Jackson", "Martin"},
+                " ", false, "+1 2%2$02d-%3$03d-%4$04d"),
+        CHINESE(new String[] {"王", "李", "张", "刘", "陈", "杨", "黄", "赵", "吴", "周", "徐",
+                "孙", "马", "朱", "胡", "郭", "何", "高", "林", "罗"},
+                new String[] {"伟", "芳", "娜", "敏", "静", "丽", "强", "磊", "军", "洋", "勇",
+                "艳", "杰", "娟", "涛", "明", "超", "秀", "霞", "平"},
+                "", true, "+86 1%1$d%2$02d %3$03d %4$04d"),
+        KOREAN(new String[] {"김", "이", "박", "최", "정", "강", "조", "윤", "장", "임", "한",
+                "오", "서", "신", "권", "황", "안", "송", "류", "전"},
+                new String[] {"민", "서", "지", "현", "준", "영", "수", "철", "은", "진", "하",
+                "우", "예", "도", "윤", "호", "미", "성", "주", "연"},
+                "", true, "+82 10-%3$04d-%4$04d"),
+        CYRILLIC(new String[] {"Александр", "Дмитрий", "Максим", "Сергей", "Андрей",
+                "Алексей", "Иван", "Никита", "Михаил", "Артём", "Ольга", "Елена", "Наталья",
+                "Мария", "Анна", "Татьяна", "Ирина", "Юлия", "Светлана", "Екатерина"},
+                new String[] {"Иванов", "Смирнов", "Кузнецов", "Попов", "Васильев", "Петров",
+                "Соколов", "Михайлов", "Новиков", "Фёдоров", "Морозов", "Волков", "Алексеев",
+                "Лебедев", "Семёнов", "Егоров", "Павлов", "Козлов", "Степанов", "Николаев"},
+                " ", false, "+7 9%2$02d %3$03d-%4$04d"),
+        HEBREW(new String[] {"דוד", "משה", "יוסף", "אברהם", "יעקב", "שלמה", "אריאל", "נועם",
+                "איתי", "עומר", "שרה", "רחל", "לאה", "מרים", "נועה", "תמר", "מיכל", "יעל",
+                "שירה", "אביגיל"},
+                new String[] {"כהן", "לוי", "מזרחי", "פרץ", "ביטון", "דהן", "אברהם", "פרידמן",
+                "אזולאי", "מלכה", "חדד", "גבאי", "אוחיון", "יוסף", "עמר", "שפירא", "בן דוד",
+                "קליין", "אשכנזי", "ששון"},
+                " ", false, "+972 5%1$d-%3$03d-%4$04d"),
+        GREEK(new String[] {"Γιώργος", "Δημήτρης", "Κώστας", "Γιάννης", "Νίκος", "Παναγιώτης",
+                "Βασίλης", "Χρήστος", "Αθανάσιος", "Μιχάλης", "Μαρία", "Ελένη", "Αικατερίνη",
+                "Βασιλική", "Σοφία", "Αγγελική", "Γεωργία", "Δήμητρα", "Κωνσταντίνα",
+                "Παρασκευή"},
+                new String[] {"Παπαδόπουλος", "Παππάς", "Οικονόμου", "Γεωργίου", "Νικολάου",
+                "Βασιλείου", "Ιωάννου", "Δημητρίου", "Αθανασίου", "Κωνσταντίνου", "Μακρής",
+                "Αντωνίου", "Καραγιάννης", "Αλεξίου", "Πετρόπουλος", "Χριστοδούλου",
+                "Μαυρίδης", "Λαμπρόπουλος", "Σταματόπουλος", "Αναστασίου"},
+                " ", false, "+30 69%1$d %3$03d %4$04d");
+
+        /** First names, or family names when the family name is written first. */
+        private final String[] mFirstParts;
+        private final String[] mLastParts;
+        private final String mSeparator;
+        /** Whether the name is made of one or two of the last parts, as Chinese names are. */
+        private final boolean mRepeatLastPart;
+        /**
+         * Format of the phone numbers, with a digit, two digits, three digits and four digits as
+         * arguments.
+         */
+        private final String mNumberFormat;
+
+        Script(String[] firstParts, String[] lastParts, String separator, boolean repeatLastPart,
+                String numberFormat) {
+            mFirstParts = firstParts;
+            mLastParts = lastParts;
+            mSeparator = separator;
+            mRepeatLastPart = repeatLastPart;
+            mNumberFormat = numberFormat;
+        }
+
+        String createName(Random random) {
+            final StringBuilder name = new StringBuilder(
+                    mFirstParts[random.nextInt(mFirstParts.length)]);
+            name.append(mSeparator).append(mLastParts[random.nextInt(mLastParts.length)]);
+            if (mRepeatLastPart && random.nextBoolean()) {
+                name.append(mLastParts[random.nextInt(mLastParts.length)]);
+            }
+            return name.toString();
+        }
+
+        String createNumber(Random random) {
+            // Not formatted in the default locale, whose digits may not be ASCII.
+            return String.format(Locale.US, mNumberFormat, random.nextInt(10), random.nextInt(100),
+                    random.nextInt(1000), random.nextInt(10000));
+        }
+    }
+
+    /** One contact out of this many has a Latin name, whatever the script of the book. */
+    private static final int LATIN_NAME_INTERVAL = 10;
+
+    private final Script mScript;
+    private final String[] mNames;
+    private final String[] mNumbers;
+
+    public SyntheticAddressBook(Script script, int size) {
+        mScript = script;
+        mNames = new String[size];
+        mNumbers = new String[size];
+        final Random random = new Random(31L * size + script.ordinal());
+        for (int i = 0; i < size; i++) {
+            final Script nameScript = i % LATIN_NAME_INTERVAL == LATIN_NAME_INTERVAL - 1
+                    ? Script.LATIN : script;
+            mNames[i] = nameScript.createName(random);
+            mNumbers[i] = script.createNumber(random);
+        }
+    }
+
+    public Script getScript() {
+        return mScript;
+    }
+
+    public int size() {
+        return mNames.length;
+    }
+
+    /** Returns the display name of the contact at the given position. */
+    public String getName(int position) {
+        return mNames[position];
+    }
+
+    /** Returns the phone number of the contact at the given position, as the user typed it. */
+    public String getNumber(int position) {
+        return mNumbers[position];
+    }
+
+    /**
+     * Returns the positions of count contacts spread over the book, which the benchmarks type
+     * the names and numbers of.
+     */
+    public int[] getSamplePositions(int count) {
+        final int[] positions = new int[Math.min(count, mNames.length)];
+        final Random random = new Random(mNames.length);
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = random.nextInt(mNames.length);
+        }
+        return positions;
+    }
+}
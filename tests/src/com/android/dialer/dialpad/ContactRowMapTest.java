@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+@SmallTest
+public class ContactRowMapTest extends AndroidTestCase {
+
+    public void testPutGetRemove() {
+        final ContactRowMap map = new ContactRowMap();
+        map.put(7, 0);
+        map.put(1L << 40, 1);
+        map.put(7, 2);
+
+        assertEquals(2, map.size());
+        assertEquals(2, map.get(7));
+        assertEquals(1, map.get(1L << 40));
+        assertEquals(ContactRowMap.NO_ROW, map.get(8));
+
+        assertEquals(2, map.remove(7));
+        assertEquals(ContactRowMap.NO_ROW, map.remove(7));
+        assertEquals(ContactRowMap.NO_ROW, map.get(7));
+        assertEquals(1, map.size());
+    }
+
+    public void testMatchesHashMap() {
+        final ContactRowMap map = new ContactRowMap();
+        final HashMap<Long, Integer> expected = new HashMap<Long, Integer>();
+        // Few distinct ids, so that probe sequences collide and removals shift entries back.
+        final Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            final long contactId = random.nextInt(2000) * 1024L;
+            if (random.nextInt(3) == 0) {
+                final Integer row = expected.remove(contactId);
+                assertEquals(row == null ? ContactRowMap.NO_ROW : row, map.remove(contactId));
+            } else {
+                expected.put(contactId, i);
+                map.put(contactId, i);
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), map.get(entry.getKey()));
+        }
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(ContactRowMap.NO_ROW, map.get(0));
+    }
+}
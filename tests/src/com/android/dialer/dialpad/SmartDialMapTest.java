@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.zip.CRC32;
+
+@SmallTest
+public class SmartDialMapTest extends AndroidTestCase {
+
+    /*
+     * Checksums of every method of the maps over all BMP characters, computed from the switch
+     * based implementations the lookup tables replaced. The Korean switch threw for a few
+     * compatibility jamo without a key (e.g. U+3133) and for U+D7A4..U+D7AF; those were
+     * recorded as letters without a key and as not normalized, which is what the tables return.
+     */
+    private static final long LATIN_CHECKSUM = 0x777ea0dcL;
+    private static final long GREEK_CHECKSUM = 0x4b7308d4L;
+    private static final long RUSSIAN_CHECKSUM = 0x6a348954L;
+    private static final long UKRAINIAN_CHECKSUM = 0x9c94f6eeL;
+    private static final long HEBREW_CHECKSUM = 0xe4cbd0beL;
+    private static final long KOREAN_CHECKSUM = 0xeb698481L;
+
+    public void testChecksums() {
+        assertEquals(LATIN_CHECKSUM, checksum(new LatinSmartDialMap()));
+        assertEquals(LATIN_CHECKSUM, checksum(new ChineseSmartDialMap()));
+        assertEquals(GREEK_CHECKSUM, checksum(new GreekSmartDialMap()));
+        assertEquals(RUSSIAN_CHECKSUM, checksum(new RussianSmartDialMap()));
+        assertEquals(UKRAINIAN_CHECKSUM, checksum(new UkrainianSmartDialMap()));
+        assertEquals(HEBREW_CHECKSUM, checksum(new HebrewSmartDialMap()));
+        assertEquals(KOREAN_CHECKSUM, checksum(new KoreanSmartDialMap()));
+    }
+
+    public void testNormalizeToDialpadCharacter() {
+        final SmartDialMap[] maps = {new LatinSmartDialMap(), new ChineseSmartDialMap(),
+                new GreekSmartDialMap(), new RussianSmartDialMap(), new UkrainianSmartDialMap(),
+                new HebrewSmartDialMap(), new KoreanSmartDialMap()};
+        for (SmartDialMap map : maps) {
+            for (int i = 0; i <= Character.MAX_VALUE; i++) {
+                final char ch = map.normalizeCharacter((char) i);
+                final char expected;
+                if (map.isValidDialpadAlphabeticChar(ch)) {
+                    expected = map.getDialpadNumericCharacter(ch);
+                } else if (map.isValidDialpadNumericChar(ch)) {
+                    expected = ch;
+                } else {
+                    expected = 0;
+                }
+                assertEquals(map.getClass().getSimpleName() + " " + Integer.toHexString(i),
+                        expected, map.normalizeToDialpadCharacter((char) i));
+            }
+        }
+    }
+
+    public void testLookups() {
+        final LatinSmartDialMap latin = new LatinSmartDialMap();
+        assertEquals('a', latin.normalizeCharacter('Ä'));
+        assertEquals('2', latin.normalizeToDialpadCharacter('Ä'));
+        assertEquals('7', latin.normalizeToDialpadCharacter('7'));
+        assertEquals(0, latin.normalizeToDialpadCharacter(' '));
+
+        assertEquals('е', new RussianSmartDialMap().normalizeCharacter('Ё'));
+        assertEquals('כ', new HebrewSmartDialMap().normalizeCharacter('ך'));
+        assertEquals(7, new GreekSmartDialMap().getDialpadIndex('ς'));
+
+        final KoreanSmartDialMap korean = new KoreanSmartDialMap();
+        assertEquals('ㅎ', korean.normalizeCharacter('한'));
+        assertEquals('8', korean.normalizeToDialpadCharacter('한'));
+    }
+
+    public void testPinyinCache() {
+        final ChineseSmartDialMap map = new ChineseSmartDialMap();
+        // A name no other test transliterates, so that the first lookup misses.
+        final String name = "Pinyin Cache " + SystemClock.elapsedRealtimeNanos();
+        final int hits = ChineseSmartDialMap.getPinyinCacheHitCount();
+        final int misses = ChineseSmartDialMap.getPinyinCacheMissCount();
+
+        assertEquals(name, map.transliterateName(name));
+        assertEquals(misses + 1, ChineseSmartDialMap.getPinyinCacheMissCount());
+        assertEquals(name, map.transliterateName(name));
+        assertEquals(hits + 1, ChineseSmartDialMap.getPinyinCacheHitCount());
+    }
+
+    private static long checksum(SmartDialMap map) {
+        final CRC32 crc = new CRC32();
+        for (int i = 0; i <= Character.MAX_VALUE; i++) {
+            final char ch = (char) i;
+            final char normalized = map.normalizeCharacter(ch);
+            final char numeric = map.getDialpadNumericCharacter(ch);
+            final int flags = (map.isValidDialpadAlphabeticChar(ch) ? 1 : 0)
+                    | (map.isValidDialpadNumericChar(ch) ? 2 : 0)
+                    | (map.isValidDialpadCharacter(ch) ? 4 : 0);
+            crc.update(normalized >> 8);
+            crc.update(normalized);
+            crc.update(flags);
+            crc.update(map.getDialpadIndex(ch));
+            crc.update(numeric >> 8);
+            crc.update(numeric);
+        }
+        return crc.getValue();
+    }
+}
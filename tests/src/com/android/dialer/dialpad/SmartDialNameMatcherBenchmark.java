@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.dialer.database.SyntheticAddressBook;
+import com.android.dialer.database.SyntheticAddressBook.Script;
+
+import java.util.Random;
+
+/**
+ * Measures the allocations and time spent by {@link SmartDialNameMatcher} when verifying every
+ * name of a large address book, with and without recording match positions, and when matching
+ * formatted international phone numbers.
+ *
+ * To run this benchmark, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.dialpad.SmartDialNameMatcherBenchmark /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class SmartDialNameMatcherBenchmark extends AndroidTestCase {
+    private static final String TAG = "SmartDialNameMatcherBenchmark";
+
+    private static final int CORPUS_SIZE = 50000;
+
+    private static final String[] QUERIES = {"5", "56", "562", "5627", "76484"};
+
+    private static final int NUMBER_CORPUS_SIZE = 10000;
+
+    private static final String[] NUMBER_QUERIES = {"4", "44", "207", "2079", "46123"};
+
+    /** Formats of international numbers as they are commonly stored in contacts. */
+    private static final String[] NUMBER_FORMATS = {"+1 (%1$s) %2$s-%3$s", "+44 %1$s %2$s %3$s",
+            "+49 (0)%1$s/%2$s%3$s", "+33 %1$s.%2$s.%3$s", "00%1$s-%2$s-%3$s", "%1$s %2$s %3$s"};
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASUREMENT_ITERATIONS = 10;
+
+    private String[] mNames;
+    private String[] mNumbers;
+
+    @Override
+    protected void setUp() {
+        final SyntheticAddressBook book = new SyntheticAddressBook(Script.LATIN, CORPUS_SIZE);
+        mNames = new String[CORPUS_SIZE];
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            mNames[i] = book.getName(i);
+        }
+
+        // Use a fixed seed so that every run formats the same numbers.
+        final Random random = new Random(CORPUS_SIZE);
+        mNumbers = new String[NUMBER_CORPUS_SIZE];
+        for (int i = 0; i < NUMBER_CORPUS_SIZE; i++) {
+            mNumbers[i] = String.format(NUMBER_FORMATS[random.nextInt(NUMBER_FORMATS.length)],
+                    String.valueOf(100 + random.nextInt(900)),
+                    String.valueOf(100 + random.nextInt(900)),
+                    String.valueOf(1000 + random.nextInt(9000)));
+        }
+    }
+
+    public void testAllocationsPerMatch() {
+        for (String query : QUERIES) {
+            final SmartDialNameMatcher matcher = new SmartDialNameMatcher(query,
+                    SmartDialPrefix.getMap(), getContext());
+            // Warm up, so that the scratch buffers of the matcher are allocated.
+            run(matcher, true);
+            run(matcher, false);
+
+            final String withPositions = measure(matcher, true);
+            final String withoutPositions = measure(matcher, false);
+            Log.i(TAG, "query=" + query + " names=" + CORPUS_SIZE
+                    + " matches() " + withPositions
+                    + " matchesWithoutPositions() " + withoutPositions);
+        }
+    }
+
+    public void testNumberMatching() {
+        for (String query : NUMBER_QUERIES) {
+            final SmartDialNameMatcher matcher = new SmartDialNameMatcher(query,
+                    SmartDialPrefix.getMap(), getContext());
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                runNumbers(matcher, query);
+            }
+
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+            int matches = 0;
+            final long start = System.nanoTime();
+            for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+                matches = runNumbers(matcher, query);
+            }
+            final long elapsed = System.nanoTime() - start;
+            Debug.stopAllocCounting();
+
+            final long operations = (long) MEASUREMENT_ITERATIONS * NUMBER_CORPUS_SIZE;
+            Log.i(TAG, "query=" + query + " numbers=" + NUMBER_CORPUS_SIZE
+                    + " matches=" + matches
+                    + " time=" + (elapsed / operations) + "ns/op"
+                    + " allocs/op=" + ((double) Debug.getThreadAllocCount() / operations));
+        }
+    }
+
+    private String measure(SmartDialNameMatcher matcher, boolean recordPositions) {
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        final long start = SystemClock.elapsedRealtime();
+        final int matches = run(matcher, recordPositions);
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        Debug.stopAllocCounting();
+
+        final int allocCount = Debug.getThreadAllocCount();
+        final int allocSize = Debug.getThreadAllocSize();
+        return "matches=" + matches + " time=" + elapsed + "ms"
+                + " allocs/name=" + ((double) allocCount / CORPUS_SIZE)
+                + " bytes/name=" + ((double) allocSize / CORPUS_SIZE);
+    }
+
+    private int run(SmartDialNameMatcher matcher, boolean recordPositions) {
+        int matches = 0;
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            final boolean match = recordPositions ? matcher.matches(mNames[i])
+                    : matcher.matchesWithoutPositions(mNames[i]);
+            if (match) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    private int runNumbers(SmartDialNameMatcher matcher, String query) {
+        int matches = 0;
+        for (int i = 0; i < NUMBER_CORPUS_SIZE; i++) {
+            if (matcher.matchesNumberWithoutPosition(mNumbers[i], query)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
@@ -26,6 +26,7 @@ import com.android.dialer.dialpad.SmartDialPrefix;
 
 import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import junit.framework.TestCase;
 
@@ -193,6 +194,39 @@ public class SmartDialNameMatcherTest extends AndroidTestCase {
         SmartDialPrefix.setSmartDialMap(new LatinSmartDialMap());
     }
 
+    public void testGenerateNamePrefixesFromIndex() {
+        final SmartDialMap[] maps = {new LatinSmartDialMap(), new ChineseSmartDialMap(),
+                new KoreanSmartDialMap()};
+        final String[] names = {"Albert Ben Ed Foster", "Éva O'Neil-Smith 2", "红霞李",
+                "Hongxia 李", "김철수", "남궁민수", "김 Chulsoo", "", " "};
+        for (SmartDialMap map : maps) {
+            SmartDialPrefix.setSmartDialMap(map);
+            for (String name : names) {
+                assertEquals(SmartDialPrefix.generateNamePrefixes(name),
+                        SmartDialPrefix.generateNamePrefixes(map.buildNameIndex(name)));
+            }
+        }
+
+        // Korean names are looked up by the keys of the initials of their syllables.
+        SmartDialPrefix.setSmartDialMap(maps[2]);
+        final ArrayList<String> prefixes =
+                SmartDialPrefix.generateNamePrefixes(maps[2].buildNameIndex("김철수"));
+        assertTrue(prefixes.contains("498"));
+        assertTrue(prefixes.contains("98"));
+
+        SmartDialPrefix.setSmartDialMap(new LatinSmartDialMap());
+    }
+
+    public void testGenerateNamePrefixes_skipsRedundantPrefixes() {
+        // The initials of "John" and "J" are the same key, "JSmith" and "JJSmith" are only
+        // returned once.
+        assertEquals(Arrays.asList("76484", "576484", "5646576484", "5576484"),
+                SmartDialPrefix.generateNamePrefixes("John J Smith"));
+        // The initials of one letter tokens are the tokens themselves, "E" is a prefix of "DE".
+        assertEquals(Arrays.asList("33", "233", "2233", "22233"),
+                SmartDialPrefix.generateNamePrefixes("A B C D E"));
+    }
+
     public void testMatches_NumberBasic() {
         // Simple basic examples that start the match from the start of the number
         checkMatchesNumber("5103337596", "510", true, 0, 3);
@@ -263,6 +297,94 @@ public class SmartDialNameMatcherTest extends AndroidTestCase {
     }
 
 
+    public void testMatchesNameIndex() {
+        final String[] names = {"joe", "joe oe", "Yo-Yoghurt", "Fred Smith William", "Ádám Éva",
+                "John O'Malley", "Mark 2 Jason", "ΑΛΕΞΗΣ Ιω", "Олег Пётр", "", "   "};
+        final String[] queries = {"5", "56", "563", "63", "964", "37337", "373376",
+                "2326", "2", "52766", "6", "7"};
+        final SmartDialMap map = SmartDialPrefix.getMap();
+        for (String name : names) {
+            final SmartDialNameIndex nameIndex = map.buildNameIndex(name);
+            final SmartDialNameIndex storedIndex = SmartDialNameIndex.fromStored(
+                    nameIndex.getIndex(), nameIndex.getSourcesAsBlob(), name);
+            for (String query : queries) {
+                final SmartDialNameMatcher matcher = new SmartDialNameMatcher(query, getContext());
+                final boolean expected = matcher.matches(name);
+                final ArrayList<SmartDialMatchPosition> expectedPositions =
+                        matcher.getMatchPositions();
+
+                assertEquals(name + " " + query, expected, matcher.matches(name, storedIndex));
+                final ArrayList<SmartDialMatchPosition> positions = matcher.getMatchPositions();
+                assertEquals(name + " " + query, expectedPositions.size(), positions.size());
+                for (int i = 0; i < positions.size(); i++) {
+                    assertEquals("start", expectedPositions.get(i).start, positions.get(i).start);
+                    assertEquals("end", expectedPositions.get(i).end, positions.get(i).end);
+                }
+            }
+        }
+    }
+
+    public void testMatchesBatch() {
+        final String[] names = {"joe", "Fred Smith", "joe oe", "Mark Jason", ""};
+        final boolean[] matches = new boolean[names.length];
+        final SmartDialNameMatcher matcher = new SmartDialNameMatcher("56", getContext());
+        if (matcher.hasMultiLanguageMatcher()) {
+            // Names are matched by the vendor matcher of the device.
+            return;
+        }
+
+        // Only the first count names are matched.
+        assertEquals(1, matcher.matchesWithoutPositions(names, 2, matches));
+        assertTrue(matches[0]);
+        assertFalse(matches[1]);
+        assertEquals(2, matcher.matchesWithoutPositions(names, names.length, matches));
+        for (int i = 0; i < names.length; i++) {
+            assertEquals(names[i], matcher.matchesWithoutPositions(names[i]), matches[i]);
+        }
+    }
+
+    public void testMatches_multiLanguageMatcher() {
+        final MultiLanguageMatcher deviceMatcher = MultiLanguageMatchers.getInstance();
+        final int[] batchCalls = new int[1];
+        MultiLanguageMatchers.setInstance(new MultiLanguageMatcher() {
+            @Override
+            public int[] getMatchStringIndex(String query, String name) {
+                // Matches the query against the last characters of the name.
+                return name.endsWith(query) ? new int[] {
+                        name.length() - query.length(), name.length() - 1} : null;
+            }
+
+            @Override
+            public void getMatchStringIndexes(String query, String[] names, int count,
+                    int[][] results) {
+                batchCalls[0]++;
+                for (int i = 0; i < count; i++) {
+                    results[i] = getMatchStringIndex(query, names[i]);
+                }
+            }
+        });
+        try {
+            final SmartDialNameMatcher matcher = new SmartDialNameMatcher("56", getContext());
+            assertTrue(matcher.hasMultiLanguageMatcher());
+
+            assertTrue(matcher.matches("1256"));
+            assertEquals("0011", matcher.getNameMatchPositionsInString());
+            // The map is not used, nor the dialpad index of the name.
+            assertFalse(matcher.matches("joe"));
+            assertFalse(matcher.matches("joe", SmartDialPrefix.getMap().buildNameIndex("joe")));
+
+            final String[] names = {"1256", "joe", "56"};
+            final boolean[] matches = new boolean[names.length];
+            assertEquals(2, matcher.matchesWithoutPositions(names, names.length, matches));
+            assertTrue(matches[0]);
+            assertFalse(matches[1]);
+            assertTrue(matches[2]);
+            assertEquals(1, batchCalls[0]);
+        } finally {
+            MultiLanguageMatchers.setInstance(deviceMatcher);
+        }
+    }
+
     private void checkMatchesNumber(String number, String query, boolean expectedMatches,
             int matchStart, int matchEnd) {
         checkMatchesNumber(number, query, expectedMatches, false, matchStart, matchEnd);
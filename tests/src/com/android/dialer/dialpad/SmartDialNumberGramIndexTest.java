@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+@SmallTest
+public class SmartDialNumberGramIndexTest extends AndroidTestCase {
+
+    public void testCandidates() {
+        final SmartDialNumberGramIndex index = new SmartDialNumberGramIndex();
+        index.addNumber(1, "510-527-2357");
+        index.addNumber(2, "+1 (772) 128-6235");
+        index.addNumber(3, "5103337596");
+
+        checkCandidates(index, "527", 1);
+        checkCandidates(index, "0527", 1);
+        checkCandidates(index, "235", 1, 2);
+        checkCandidates(index, "103", 3);
+        checkCandidates(index, "17721", 2);
+        checkCandidates(index, "999");
+    }
+
+    public void testCandidates_holdAllGrams() {
+        final SmartDialNumberGramIndex index = new SmartDialNumberGramIndex();
+        // Holds both grams of "1234" but not the query itself, callers verify the candidates.
+        index.addNumber(1, "123-0-234");
+        index.addNumber(2, "1230");
+
+        checkCandidates(index, "1234", 1);
+        // Repeated grams of the query are only counted once.
+        index.addNumber(3, "11111");
+        checkCandidates(index, "1111", 3);
+    }
+
+    public void testCandidates_shortQuery() {
+        final SmartDialNumberGramIndex index = new SmartDialNumberGramIndex();
+        index.addNumber(1, "5105272357");
+
+        assertNull(index.getCandidateContactIds("51"));
+        assertNull(index.getCandidateContactIds(""));
+    }
+
+    public void testCandidates_nonDigits() {
+        final SmartDialNumberGramIndex index = new SmartDialNumberGramIndex();
+        // Letters break the runs of digits, formatting characters don't.
+        index.addNumber(1, "12a34");
+        index.addNumber(2, "12 34");
+
+        checkCandidates(index, "123", 2);
+        checkCandidates(index, "234", 2);
+    }
+
+    public void testRemoveContact() {
+        final SmartDialNumberGramIndex index = new SmartDialNumberGramIndex();
+        index.addNumber(1, "5646");
+        index.addNumber(2, "5646");
+        index.removeContact(1);
+
+        checkCandidates(index, "564", 2);
+        assertEquals(1, index.getContactCount());
+
+        index.addNumber(1, "5646");
+        checkCandidates(index, "564", 1, 2);
+    }
+
+    public void testMemoryBudget() {
+        final SmartDialNumberGramIndex index = new SmartDialNumberGramIndex(16 * 1024);
+        boolean added = true;
+        for (int i = 0; i < 10000 && added; i++) {
+            added = index.addNumber(i, String.valueOf(1000000000L + i * 7919L));
+        }
+        assertFalse(added);
+        assertTrue(index.isOverBudget());
+        assertNull(index.getCandidateContactIds("100"));
+
+        index.clear();
+        assertFalse(index.isOverBudget());
+        checkCandidates(index, "100");
+        assertTrue(index.getHeapFootprintBytes() <= 16 * 1024);
+    }
+
+    private void checkCandidates(SmartDialNumberGramIndex index, String query, long... expected) {
+        final long[] actual = index.getCandidateContactIds(query);
+        Arrays.sort(actual);
+        assertTrue("query=" + query + " candidates=" + Arrays.toString(actual),
+                Arrays.equals(expected, actual));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+@SmallTest
+public class SmartDialTrieTest extends AndroidTestCase {
+
+    public void testCandidates() {
+        final SmartDialTrie trie = new SmartDialTrie();
+        // "Jason Smith" and "Jason Smitt"
+        trie.addPrefixes(1, Arrays.asList("76484", "527667648", "576484"));
+        trie.addPrefixes(2, Arrays.asList("76488", "527667648", "576488"));
+        trie.addPrefix(3, "5103337596");
+
+        checkCandidates(trie, "5", 1, 2, 3);
+        checkCandidates(trie, "57", 1, 2);
+        checkCandidates(trie, "7648", 1, 2);
+        checkCandidates(trie, "76484", 1);
+        checkCandidates(trie, "510", 3);
+        checkCandidates(trie, "8");
+        checkCandidates(trie, "");
+    }
+
+    public void testCandidates_longQuery() {
+        final SmartDialTrie trie = new SmartDialTrie();
+        trie.addPrefix(1, "12345678901");
+        trie.addPrefix(2, "12345678999");
+
+        // Only the first MAX_DEPTH digits are indexed, callers verify the rest.
+        checkCandidates(trie, "12345678901", 1, 2);
+    }
+
+    public void testRemoveContact() {
+        final SmartDialTrie trie = new SmartDialTrie();
+        trie.addPrefix(1, "5646");
+        trie.addPrefix(2, "5627");
+        trie.removeContact(1);
+
+        checkCandidates(trie, "56", 2);
+        assertEquals(1, trie.getContactCount());
+
+        trie.addPrefix(1, "5646");
+        checkCandidates(trie, "56", 1, 2);
+    }
+
+    public void testMemoryBudget() {
+        final SmartDialTrie trie = new SmartDialTrie(1024);
+        boolean added = true;
+        for (int i = 0; i < 1000 && added; i++) {
+            added = trie.addPrefix(i, String.valueOf(10000000 + i * 7919));
+        }
+        assertFalse(added);
+        assertTrue(trie.isOverBudget());
+        assertNull(trie.getCandidateContactIds("1"));
+
+        trie.clear();
+        assertFalse(trie.isOverBudget());
+        checkCandidates(trie, "1");
+    }
+
+    private void checkCandidates(SmartDialTrie trie, String query, long... expected) {
+        final long[] actual = trie.getCandidateContactIds(query);
+        Arrays.sort(actual);
+        assertTrue("query=" + query + " candidates=" + Arrays.toString(actual),
+                Arrays.equals(expected, actual));
+    }
+}
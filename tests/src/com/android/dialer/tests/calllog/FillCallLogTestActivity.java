@@ -23,6 +23,7 @@ import android.app.DialogFragment;
 import android.app.LoaderManager;
 import android.app.TimePickerDialog;
 import android.content.ContentProviderClient;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.CursorLoader;
 import android.content.Loader;
@@ -34,6 +35,7 @@ import android.provider.CallLog.Calls;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import android.text.format.DateFormat;
+import android.text.format.DateUtils;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
@@ -65,6 +67,17 @@ public class FillCallLogTestActivity extends Activity {
         Calls.INCOMING_TYPE, Calls.OUTGOING_TYPE, Calls.MISSED_TYPE,
     };
 
+    /** The number of entries copied from existing entries added at most. */
+    private static final int MAX_COPIED_ENTRIES = 100;
+    /** The number of entries with random numbers added at most, enough for heavy users. */
+    private static final int MAX_RANDOM_ENTRIES = 50000;
+    /** The number of entries inserted at once when adding entries with random numbers. */
+    private static final int BULK_INSERT_SIZE = 500;
+    /** The numbers random entries are from, so that some of them are grouped. */
+    private static final int RANDOM_NUMBER_COUNT = 2000;
+    /** The longest time between two random entries. */
+    private static final long MAX_RANDOM_CALL_INTERVAL = 2 * DateUtils.HOUR_IN_MILLIS;
+
     private TextView mNumberTextView;
     private Button mAddButton;
     private ProgressBar mProgressBar;
@@ -103,10 +116,12 @@ public class FillCallLogTestActivity extends Activity {
             @Override
             public void onClick(View v) {
                 int count;
+                final int maxCount = mUseRandomNumbers.isChecked()
+                        ? MAX_RANDOM_ENTRIES : MAX_COPIED_ENTRIES;
                 try {
                     count = Integer.parseInt(mNumberTextView.getText().toString());
-                    if (count > 100) {
-                        throw new RuntimeException("Number too large.  Max=100");
+                    if (count > maxCount) {
+                        throw new RuntimeException("Number too large.  Max=" + maxCount);
                     }
                 } catch (RuntimeException e) {
                     Toast.makeText(FillCallLogTestActivity.this, e.toString(), Toast.LENGTH_LONG)
@@ -215,19 +230,76 @@ public class FillCallLogTestActivity extends Activity {
     }
 
     private void addRandomNumbers(int count) {
-        ContentValues[] values = new ContentValues[count];
+        new AsyncCallLogBulkInserter(createRandomCalls(count, System.currentTimeMillis(), RNG))
+                .execute(new Void[0]);
+    }
+
+    private static String generateRandomNumber(Random random) {
+        return String.format("5%09d", random.nextInt(1000000000));
+    }
+
+    /**
+     * Creates entries with random numbers, types and durations, most recent first, each of them
+     * up to {@link #MAX_RANDOM_CALL_INTERVAL} before the previous one. The numbers are taken from
+     * a set of numbers, and repeated for a few calls in a row, so that the call log groups some
+     * of the entries as it does with real calls.
+     *
+     * @param count the number of entries to create
+     * @param newestDate the date of the most recent entry
+     * @param random the source of the values, seeded to create the same entries every time
+     * @return the values of the entries, to insert with {@link #bulkInsertCalls}
+     */
+    public static ContentValues[] createRandomCalls(int count, long newestDate, Random random) {
+        final String[] numbers = new String[Math.min(count, RANDOM_NUMBER_COUNT)];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = generateRandomNumber(random);
+        }
+
+        final ContentValues[] values = new ContentValues[count];
+        long date = newestDate;
+        String number = null;
         for (int i = 0; i < count; i++) {
+            if (number == null || random.nextInt(3) == 0) {
+                number = numbers[random.nextInt(numbers.length)];
+            }
             values[i] = new ContentValues();
-            values[i].put(Calls.NUMBER, generateRandomNumber());
+            values[i].put(Calls.NUMBER, number);
             values[i].put(Calls.NUMBER_PRESENTATION, Calls.PRESENTATION_ALLOWED);
-            values[i].put(Calls.DATE, System.currentTimeMillis()); // Will be randomized later
-            values[i].put(Calls.DURATION, 1); // Will be overwritten later
+            values[i].put(Calls.DATE, date);
+            values[i].put(Calls.DURATION, random.nextInt(30 * 60));
+            values[i].put(Calls.TYPE, CALL_TYPES[random.nextInt(CALL_TYPES.length)]);
+            values[i].put(Calls.NEW, 0);
+            values[i].put(Calls.IS_READ, 1);
+            date -= 1 + (long) (random.nextDouble() * MAX_RANDOM_CALL_INTERVAL);
         }
-        new AsyncCallLogInserter(values).execute(new Void[0]);
+        return values;
     }
 
-    private static String generateRandomNumber() {
-        return String.format("5%09d", RNG.nextInt(1000000000));
+    /**
+     * Inserts entries in the call log {@link #BULK_INSERT_SIZE} at a time, which is much faster
+     * than inserting them one by one when adding thousands of them.
+     *
+     * @return the number of inserted entries
+     */
+    public static int bulkInsertCalls(ContentResolver resolver, ContentValues[] values,
+            BulkInsertListener listener) {
+        int inserted = 0;
+        for (int start = 0; start < values.length; start += BULK_INSERT_SIZE) {
+            final ContentValues[] batch = new ContentValues[
+                    Math.min(BULK_INSERT_SIZE, values.length - start)];
+            System.arraycopy(values, start, batch, 0, batch.length);
+            inserted += resolver.bulkInsert(Calls.CONTENT_URI, batch);
+            if (listener != null) {
+                listener.onInserted(inserted);
+            }
+        }
+        return inserted;
+    }
+
+    /** Listener to the progress of {@link #bulkInsertCalls}. */
+    public interface BulkInsertListener {
+        /** Called after every batch of entries is inserted. */
+        void onInserted(int inserted);
     }
 
     /** Invokes {@link AsyncCallLogInserter} when the call log has loaded. */
@@ -356,6 +428,38 @@ public class FillCallLogTestActivity extends Activity {
         }
     }
 
+    /** Inserts entries with random numbers in the call log, as they are. */
+    private final class AsyncCallLogBulkInserter extends AsyncTask<Void, Integer, Integer>
+            implements BulkInsertListener {
+        private final ContentValues[] mValues;
+
+        public AsyncCallLogBulkInserter(ContentValues[] values) {
+            mValues = values;
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            Log.d(TAG, "doInBackground");
+            return bulkInsertCalls(getContentResolver(), mValues, this);
+        }
+
+        @Override
+        public void onInserted(int inserted) {
+            publishProgress(inserted);
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            updateCount(values[0]);
+        }
+
+        @Override
+        protected void onPostExecute(Integer count) {
+            Log.d(TAG, "onPostExecute");
+            insertCompleted(getString(R.string.addedLogEntriesToast, count));
+        }
+    }
+
     /**
      * Updates the count shown to the user corresponding to the number of entries added.
      *